@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+/**
+ * Helpers for Bluetooth device addresses (BD_ADDR) stored in the low 48 bits of a long.
+ *
+ * They convert between the byte[], String and long forms without going through
+ * {@link String#format}, so hot paths can key their maps by the long value.
+ */
+public final class BdAddr {
+
+    /** The long value of an invalid address, outside of the 48 bit range. */
+    public static final long INVALID = -1L;
+
+    private static final int BD_ADDR_LEN = 6;
+    private static final int BD_ADDR_STRING_LEN = 17;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private BdAddr() {}
+
+    /**
+     * @return the long value of {@code address}, or {@link #INVALID}
+     */
+    public static long toLong(byte[] address) {
+        if (address == null || address.length != BD_ADDR_LEN) {
+            return INVALID;
+        }
+        long value = 0;
+        for (int i = 0; i < BD_ADDR_LEN; i++) {
+            value = (value << 8) | (address[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return the long value of {@code address} in the "XX:XX:XX:XX:XX:XX" form, upper or lower
+     *         case, or {@link #INVALID}
+     */
+    public static long toLong(String address) {
+        if (address == null || address.length() != BD_ADDR_STRING_LEN) {
+            return INVALID;
+        }
+        long value = 0;
+        for (int i = 0; i < BD_ADDR_STRING_LEN; i += 3) {
+            int high = Character.digit(address.charAt(i), 16);
+            int low = Character.digit(address.charAt(i + 1), 16);
+            if (high < 0 || low < 0 || (i + 2 < BD_ADDR_STRING_LEN
+                    && address.charAt(i + 2) != ':')) {
+                return INVALID;
+            }
+            value = (value << 8) | (high << 4) | low;
+        }
+        return value;
+    }
+
+    /**
+     * @return the canonical, upper case, "XX:XX:XX:XX:XX:XX" form of the address {@code value}
+     */
+    public static String toString(long value) {
+        char[] chars = new char[BD_ADDR_STRING_LEN];
+        for (int i = 0; i < BD_ADDR_LEN; i++) {
+            int b = (int) (value >>> (8 * (BD_ADDR_LEN - 1 - i))) & 0xFF;
+            chars[3 * i] = HEX_DIGITS[b >>> 4];
+            chars[3 * i + 1] = HEX_DIGITS[b & 0x0F];
+            if (i < BD_ADDR_LEN - 1) {
+                chars[3 * i + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the 6 bytes of the address {@code value}, most significant byte first
+     */
+    public static byte[] toBytes(long value) {
+        byte[] address = new byte[BD_ADDR_LEN];
+        for (int i = BD_ADDR_LEN - 1; i >= 0; i--) {
+            address[i] = (byte) value;
+            value >>>= 8;
+        }
+        return address;
+    }
+}
@@ -18,12 +18,17 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.obex.ResponseCodes;
 import com.android.obex.ServerSession;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Wraps multiple BluetoothServerSocket objects to make it possible to accept connections on
@@ -32,8 +37,8 @@ import java.io.IOException;
  * and channel numbers have been assigned.<br>
  * Use {@link #getRfcommChannel()} and {@link #getL2capPsm()} to get the channel numbers to
  * put into the SDP record.<br>
- * Call {@link #shutdown(boolean)} to terminate the accept threads created by the call to
- * {@link #create(IObexConnectionHandler)}.<br>
+ * Call {@link #shutdown(boolean)} to stop accepting the connections, which all instances accept
+ * on a single shared thread, from the call to {@link #create(IObexConnectionHandler)}.<br>
  * A reference to an object of this type cannot be reused, and the {@link BluetoothServerSocket}
  * object references passed to this object will be closed by this object, hence cannot be reused
  * either (This is needed, as the only way to interrupt an accept call is to close the socket...)
@@ -43,6 +48,13 @@ import java.io.IOException;
  * If the an error occur while waiting for an incoming connection
  * {@link IObexConnectionHandler#onConnect(BluetoothDevice, BluetoothSocket)} will be called.<br>
  * In both cases the {@link ObexServerSockets} object have terminated, and a new must be created.
+ * <br>
+ * The connections of all instances are accepted on one shared thread, so the
+ * {@link IObexConnectionHandler#onConnect(BluetoothDevice, BluetoothSocket)} and
+ * {@link IObexConnectionHandler#onAcceptFailed()} callbacks of all services run serially on it.
+ * A callback that blocks delays accepting for every service, which includes the handlers that
+ * restart their server sockets from {@link IObexConnectionHandler#onAcceptFailed()}, such as
+ * the AVRCP cover art service creating its new sockets, or PBAP restarting its listener.
  */
 public class ObexServerSockets {
     private final String mTag;
@@ -54,20 +66,93 @@ public class ObexServerSockets {
     /* The wrapped sockets */
     private final BluetoothServerSocket mRfcommSocket;
     private final BluetoothServerSocket mL2capSocket;
-    /* Handles to the accept threads. Needed for shutdown. */
-    private SocketAcceptThread mRfcommThread;
-    private SocketAcceptThread mL2capThread;
+    private final AcceptableSocket mRfcommAcceptable;
+    private final AcceptableSocket mL2capAcceptable;
+    /* Handles to the acceptors. Needed for shutdown. */
+    private SocketAcceptor mRfcommAcceptor;
+    private SocketAcceptor mL2capAcceptor;
 
     private static volatile int sInstanceCounter;
+    /* The thread accepting the connections of all server sockets. */
+    private static HandlerThread sAcceptThread;
 
     private ObexServerSockets(IObexConnectionHandler conHandler, BluetoothServerSocket rfcommSocket,
             BluetoothServerSocket l2capSocket) {
+        this(conHandler, rfcommSocket, l2capSocket, new ServerSocketAcceptable(rfcommSocket),
+                new ServerSocketAcceptable(l2capSocket));
+    }
+
+    @VisibleForTesting
+    ObexServerSockets(IObexConnectionHandler conHandler, AcceptableSocket rfcommSocket,
+            AcceptableSocket l2capSocket) {
+        this(conHandler, null, null, rfcommSocket, l2capSocket);
+    }
+
+    private ObexServerSockets(IObexConnectionHandler conHandler, BluetoothServerSocket rfcommSocket,
+            BluetoothServerSocket l2capSocket, AcceptableSocket rfcommAcceptable,
+            AcceptableSocket l2capAcceptable) {
         mConHandler = conHandler;
         mRfcommSocket = rfcommSocket;
         mL2capSocket = l2capSocket;
+        mRfcommAcceptable = rfcommAcceptable;
+        mL2capAcceptable = l2capAcceptable;
         mTag = "ObexServerSockets" + sInstanceCounter++;
     }
 
+    /**
+     * The operations on a {@link BluetoothServerSocket} needed to accept its connections, so that
+     * tests can stand in for the socket.
+     */
+    @VisibleForTesting
+    interface AcceptableSocket {
+        /** Switches to non-blocking mode and calls {@code onAcceptable} on {@code looper}. */
+        void startAccepting(Looper looper, Runnable onAcceptable) throws IOException;
+
+        /** Returns the next pending connection, or null if there is none. */
+        BluetoothSocket accept() throws IOException;
+
+        void stopAccepting();
+
+        void close() throws IOException;
+    }
+
+    private static class ServerSocketAcceptable implements AcceptableSocket {
+        private final BluetoothServerSocket mSocket;
+
+        ServerSocketAcceptable(BluetoothServerSocket socket) {
+            if (socket == null) {
+                throw new IllegalArgumentException("serverSocket cannot be null");
+            }
+            mSocket = socket;
+        }
+
+        @Override
+        public void startAccepting(Looper looper, Runnable onAcceptable) throws IOException {
+            mSocket.configureBlocking(false);
+            mSocket.setAcceptListener(looper, serverSocket -> onAcceptable.run());
+        }
+
+        @Override
+        public BluetoothSocket accept() throws IOException {
+            return mSocket.accept();
+        }
+
+        @Override
+        public void stopAccepting() {
+            mSocket.removeAcceptListener();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public String toString() {
+            return mSocket.toString();
+        }
+    }
+
     /**
      * Creates an RFCOMM {@link BluetoothServerSocket} and a L2CAP {@link BluetoothServerSocket}
      * @param validator a reference to the {@link IObexConnectionHandler} object to call
@@ -174,7 +259,10 @@ public class ObexServerSockets {
                 Log.d(STAG, "Succeed to create listening sockets ");
             }
             ObexServerSockets sockets = new ObexServerSockets(validator, rfcommSocket, l2capSocket);
-            sockets.startAccept();
+            if (!sockets.startAccept()) {
+                sockets.shutdown(false);
+                return null;
+            }
             return sockets;
         } else {
             Log.e(STAG, "Error to create listening socket after " + CREATE_RETRY_TIME + " try");
@@ -200,25 +288,39 @@ public class ObexServerSockets {
         return mL2capSocket.getChannel();
     }
 
+    private static synchronized Looper getAcceptLooper() {
+        if (sAcceptThread == null) {
+            sAcceptThread = new HandlerThread("ObexServerSocketsAccept");
+            sAcceptThread.start();
+        }
+        return sAcceptThread.getLooper();
+    }
+
     /**
-     * Initiate the accept threads.
-     * Will create a thread for each socket type. an incoming connection will be signaled to
-     * the {@link IObexConnectionValidator#onConnect()}, at which point both threads will exit.
+     * Start accepting connections on both sockets, from the shared accept thread. An incoming
+     * connection will be signaled to the {@link IObexConnectionHandler#onConnect()}.
+     * @return false if the sockets could not be set up for accepting connections.
      */
-    private void startAccept() {
+    @VisibleForTesting
+    synchronized boolean startAccept() {
         if (D) {
             Log.d(mTag, "startAccept()");
         }
 
-        mRfcommThread = new SocketAcceptThread(mRfcommSocket);
-        mRfcommThread.start();
-
-        mL2capThread = new SocketAcceptThread(mL2capSocket);
-        mL2capThread.start();
+        mRfcommAcceptor = new SocketAcceptor(mRfcommAcceptable);
+        mL2capAcceptor = new SocketAcceptor(mL2capAcceptable);
+        try {
+            mRfcommAcceptor.start();
+            mL2capAcceptor.start();
+        } catch (IOException e) {
+            Log.e(mTag, "Error starting to accept connections", e);
+            return false;
+        }
+        return true;
     }
 
     /**
-     * Called from the AcceptThreads to signal an incoming connection.
+     * Called from the acceptors to signal an incoming connection.
      * @param device the connecting device.
      * @param conSocket the socket associated with the connection.
      * @return true if the connection is accepted, false otherwise.
@@ -243,148 +345,154 @@ public class ObexServerSockets {
     }
 
     /**
-     * Terminate any running accept threads
-     * @param block Set true to block the calling thread until the AcceptThreads
-     * has ended execution
+     * Stop accepting connections
+     * @param block Set true to block the calling thread until any connection being accepted
+     * has been handled
      */
-    public synchronized void shutdown(boolean block) {
-        if (D) {
-            Log.d(mTag, "shutdown(block = " + block + ")");
-        }
-        if (mRfcommThread != null) {
-            mRfcommThread.shutdown();
-        }
-        if (mL2capThread != null) {
-            mL2capThread.shutdown();
+    public void shutdown(boolean block) {
+        synchronized (this) {
+            if (D) {
+                Log.d(mTag, "shutdown(block = " + block + ")");
+            }
+            if (mRfcommAcceptor != null) {
+                mRfcommAcceptor.shutdown();
+                mRfcommAcceptor = null;
+            }
+            if (mL2capAcceptor != null) {
+                mL2capAcceptor.shutdown();
+                mL2capAcceptor = null;
+            }
         }
+        // Wait outside of the lock, as the accept thread may be waiting for it in onConnect().
         if (block) {
-            while (mRfcommThread != null || mL2capThread != null) {
+            Looper looper = getAcceptLooper();
+            if (looper.isCurrentThread()) {
+                return;
+            }
+            // The listeners are unregistered, so nothing runs for these sockets after the
+            // accept thread got to this point.
+            CountDownLatch latch = new CountDownLatch(1);
+            new Handler(looper).post(latch::countDown);
+            while (true) {
                 try {
-                    if (mRfcommThread != null) {
-                        mRfcommThread.join();
-                        mRfcommThread = null;
-                    }
-                    if (mL2capThread != null) {
-                        mL2capThread.join();
-                        mL2capThread = null;
-                    }
+                    latch.await();
+                    break;
                 } catch (InterruptedException e) {
                     Log.i(mTag, "shutdown() interrupted, continue waiting...", e);
                 }
             }
-        } else {
-            mRfcommThread = null;
-            mL2capThread = null;
         }
     }
 
     /**
-     * A thread that runs in the background waiting for remote an incoming
-     * connect. Once a remote socket connects, this thread will be
-     * shutdown. When the remote disconnect, this thread shall be restarted to
-     * accept a new connection.
+     * Accepts the incoming connections of a server socket in non-blocking mode, when the shared
+     * accept thread signals one is pending. Once a remote socket connects, it is handed over to
+     * the {@link IObexConnectionHandler}, and the acceptor keeps accepting new connections.
      */
-    private class SocketAcceptThread extends Thread {
+    private class SocketAcceptor {
 
-        private boolean mStopped = false;
-        private final BluetoothServerSocket mServerSocket;
+        private volatile boolean mStopped = false;
+        private final AcceptableSocket mServerSocket;
 
         /**
-         * Create a SocketAcceptThread
+         * Create a SocketAcceptor
          * @param serverSocket shall never be null.
-         * @param latch shall never be null.
          * @throws IllegalArgumentException
          */
-        SocketAcceptThread(BluetoothServerSocket serverSocket) {
+        SocketAcceptor(AcceptableSocket serverSocket) {
             if (serverSocket == null) {
                 throw new IllegalArgumentException("serverSocket cannot be null");
             }
             mServerSocket = serverSocket;
         }
 
+        void start() throws IOException {
+            if (D) {
+                Log.d(mTag, "Accepting socket connection...");
+            }
+            mServerSocket.startAccepting(getAcceptLooper(), this::onAcceptable);
+        }
+
         /**
-         * Run until shutdown of BT.
-         * Accept incoming connections and reject if needed. Keep accepting incoming connections.
+         * Accept the pending incoming connections and reject if needed.
          */
-        @Override
-        public void run() {
-            try {
-                while (!mStopped) {
-                    BluetoothSocket connSocket;
-                    BluetoothDevice device;
-
-                    try {
-                        if (D) {
-                            Log.d(mTag, "Accepting socket connection...");
-                        }
+        void onAcceptable() {
+            while (!mStopped) {
+                BluetoothSocket connSocket;
+                BluetoothDevice device;
 
-                        connSocket = mServerSocket.accept();
-                        if (D) {
-                            Log.d(mTag, "Accepted socket connection from: " + mServerSocket);
-                        }
+                try {
+                    connSocket = mServerSocket.accept();
+                } catch (IOException ex) {
+                    // The failed socket keeps reporting itself acceptable, which would spin the
+                    // shared accept thread.
+                    mServerSocket.stopAccepting();
+                    if (mStopped) {
+                        // Expected exception because of shutdown.
+                    } else {
+                        Log.w(mTag, "Accept exception for " + mServerSocket, ex);
+                        ObexServerSockets.this.onAcceptFailed();
+                    }
+                    mStopped = true;
+                    return;
+                }
+                if (connSocket == null) {
+                    // No more pending connection, wait for the next one.
+                    return;
+                }
+                if (D) {
+                    Log.d(mTag, "Accepted socket connection from: " + mServerSocket);
+                }
+                device = connSocket.getRemoteDevice();
 
-                        if (connSocket == null) {
-                            // TODO: Do we need a max error count, to avoid spinning?
-                            Log.w(mTag, "connSocket is null - reattempt accept");
-                            continue;
-                        }
-                        device = connSocket.getRemoteDevice();
-
-                        if (device == null) {
-                            Log.i(mTag, "getRemoteDevice() = null - reattempt accept");
-                            try {
-                                connSocket.close();
-                            } catch (IOException e) {
-                                Log.w(mTag, "Error closing the socket. ignoring...", e);
-                            }
-                            continue;
-                        }
+                if (device == null) {
+                    Log.i(mTag, "getRemoteDevice() = null - reattempt accept");
+                    try {
+                        connSocket.close();
+                    } catch (IOException e) {
+                        Log.w(mTag, "Error closing the socket. ignoring...", e);
+                    }
+                    continue;
+                }
 
-                        /* Signal to the service that we have received an incoming connection.
-                         */
-                        boolean isValid = ObexServerSockets.this.onConnect(device, connSocket);
-
-                        if (!isValid) {
-                            /* Close connection if we already have a connection with another device
-                             * by responding to the OBEX connect request.
-                             */
-                            Log.i(mTag, "RemoteDevice is invalid - creating ObexRejectServer.");
-                            BluetoothObexTransport obexTrans =
-                                    new BluetoothObexTransport(connSocket);
-                            // Create and detach a selfdestructing ServerSession to respond to any
-                            // incoming OBEX signals.
-                            new ServerSession(obexTrans,
-                                    new ObexRejectServer(ResponseCodes.OBEX_HTTP_UNAVAILABLE,
-                                            connSocket), null);
-                            // now wait for a new connect
-                        } else {
-                            // now wait for a new connect
-                        }
-                    } catch (IOException ex) {
-                        if (mStopped) {
-                            // Expected exception because of shutdown.
-                        } else {
-                            Log.w(mTag, "Accept exception for " + mServerSocket, ex);
-                            ObexServerSockets.this.onAcceptFailed();
+                /* Signal to the service that we have received an incoming connection.
+                 */
+                boolean isValid = ObexServerSockets.this.onConnect(device, connSocket);
+
+                if (!isValid) {
+                    /* Close connection if we already have a connection with another device
+                     * by responding to the OBEX connect request.
+                     */
+                    Log.i(mTag, "RemoteDevice is invalid - creating ObexRejectServer.");
+                    BluetoothObexTransport obexTrans = new BluetoothObexTransport(connSocket);
+                    // Create and detach a selfdestructing ServerSession to respond to any
+                    // incoming OBEX signals.
+                    try {
+                        new ServerSession(obexTrans,
+                                new ObexRejectServer(ResponseCodes.OBEX_HTTP_UNAVAILABLE,
+                                        connSocket), null);
+                    } catch (IOException e) {
+                        Log.w(mTag, "Error rejecting the connection", e);
+                        try {
+                            connSocket.close();
+                        } catch (IOException closeException) {
+                            Log.w(mTag, "Error closing the socket. ignoring...", closeException);
                         }
-                        mStopped = true;
                     }
-                } // End while()
-            } finally {
-                if (D) {
-                    Log.d(mTag, "AcceptThread ended for: " + mServerSocket);
                 }
+                // now wait for a new connect
             }
         }
 
         /**
-         * Shuts down the accept threads, and closes the ServerSockets, causing all related
-         * BluetoothSockets to disconnect, hence do not call until all all accepted connections
-         * are ready to be disconnected.
+         * Stops accepting, and closes the ServerSocket, causing all related BluetoothSockets to
+         * disconnect, hence do not call until all all accepted connections are ready to be
+         * disconnected.
          */
         public void shutdown() {
             if (!mStopped) {
                 mStopped = true;
+                mServerSocket.stopAccepting();
                 // TODO: According to the documentation, this should not close the accepted
                 //       sockets - and that is true, but it closes the l2cap connections, and
                 //       therefore it implicitly also closes the accepted sockets...
@@ -392,19 +500,10 @@ public class ObexServerSockets {
                     mServerSocket.close();
                 } catch (IOException e) {
                     if (D) {
-                        Log.d(mTag, "Exception while thread shutdown:", e);
+                        Log.d(mTag, "Exception while acceptor shutdown:", e);
                     }
                 }
             }
-            // If called from another thread, interrupt the thread
-            if (!Thread.currentThread().equals(this)) {
-                // TODO: Will this interrupt the thread if it is blocked in synchronized?
-                // Else: change to use InterruptableLock
-                if (D) {
-                    Log.d(mTag, "shutdown called from another thread - interrupt().");
-                }
-                interrupt();
-            }
         }
     }
 }
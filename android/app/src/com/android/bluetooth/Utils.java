@@ -135,8 +135,7 @@ public final class Utils {
             return null;
         }
 
-        return String.format("%02X:%02X:%02X:%02X:%02X:%02X", address[0], address[1], address[2],
-                address[3], address[4], address[5]);
+        return BdAddr.toString(BdAddr.toLong(address));
     }
 
     public static byte[] getByteAddress(BluetoothDevice device) {
@@ -144,6 +143,11 @@ public final class Utils {
     }
 
     public static byte[] getBytesFromAddress(String address) {
+        long value = BdAddr.toLong(address);
+        if (value != BdAddr.INVALID) {
+            return BdAddr.toBytes(value);
+        }
+
         int i, j = 0;
         byte[] output = new byte[BD_ADDR_LEN];
 
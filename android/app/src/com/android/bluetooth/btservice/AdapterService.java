@@ -98,6 +98,7 @@ import android.util.Base64;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.bluetooth.BdAddr;
 import com.android.bluetooth.BluetoothMetricsProto;
 import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.R;
@@ -123,6 +124,7 @@ import com.android.bluetooth.hid.HidHostService;
 import com.android.bluetooth.le_audio.LeAudioService;
 import com.android.bluetooth.map.BluetoothMapService;
 import com.android.bluetooth.mapclient.MapClientService;
+import com.android.bluetooth.opp.BluetoothOppService;
 import com.android.bluetooth.pan.PanService;
 import com.android.bluetooth.pbap.BluetoothPbapService;
 import com.android.bluetooth.pbapclient.PbapClientService;
@@ -183,6 +185,17 @@ public class AdapterService extends Service {
     private final ArrayList<ProfileService> mRegisteredProfiles = new ArrayList<>();
     private final ArrayList<ProfileService> mRunningProfiles = new ArrayList<>();
 
+    // Rarely used profiles, started once the adapter is on when
+    // R.bool.enable_deferred_profile_start is set
+    private static final Class[] DEFERRABLE_PROFILES = {SapService.class, PanService.class,
+            BluetoothOppService.class, MapClientService.class};
+    private static final int DEFERRED_PROFILE_START_DELAY_MS = 500;
+    // Deferred profiles not running yet, guarded by itself
+    private final ArrayList<Class> mDeferredProfiles = new ArrayList<>();
+    // Start request time of the profiles being started, then their start duration
+    private final Map<String, Long> mProfileStartRequestTimes = new ConcurrentHashMap<>();
+    private final Map<String, Long> mProfileStartMillis = new ConcurrentHashMap<>();
+
     public static final String ACTION_LOAD_ADAPTER_PROPERTIES =
             "com.android.bluetooth.btservice.action.LOAD_ADAPTER_PROPERTIES";
     public static final String ACTION_SERVICE_STATE_CHANGED =
@@ -199,6 +212,14 @@ public class AdapterService extends Service {
     private String mSnoopLogSettingAtEnable = "empty";
     private String mDefaultSnoopLogSettingAtEnable = "empty";
 
+    // Duration of the startup phases, in milliseconds, -1 until they complete. The enable phases
+    // are the ones of the last enable.
+    private long mDatabaseStartMillis = -1;
+    private long mBleTurningOnTime = 0;
+    private long mBleTurningOnMillis = -1;
+    private long mTurningOnTime = 0;
+    private long mTurningOnMillis = -1;
+
     public static final String BLUETOOTH_PRIVILEGED =
             android.Manifest.permission.BLUETOOTH_PRIVILEGED;
     static final String BLUETOOTH_PERM = android.Manifest.permission.BLUETOOTH;
@@ -379,6 +400,7 @@ public class AdapterService extends Service {
     private static final int MESSAGE_PROFILE_SERVICE_STATE_CHANGED = 1;
     private static final int MESSAGE_PROFILE_SERVICE_REGISTERED = 2;
     private static final int MESSAGE_PROFILE_SERVICE_UNREGISTERED = 3;
+    private static final int MESSAGE_START_DEFERRED_PROFILE = 4;
 
     class AdapterServiceHandler extends Handler {
         @Override
@@ -398,6 +420,10 @@ public class AdapterService extends Service {
                     verboseLog("handleMessage() - MESSAGE_PROFILE_SERVICE_UNREGISTERED");
                     unregisterProfileService((ProfileService) msg.obj);
                     break;
+                case MESSAGE_START_DEFERRED_PROFILE:
+                    verboseLog("handleMessage() - MESSAGE_START_DEFERRED_PROFILE");
+                    startNextDeferredProfile();
+                    break;
             }
         }
 
@@ -429,12 +455,20 @@ public class AdapterService extends Service {
                         return;
                     }
                     mRunningProfiles.add(profile);
+                    Long startRequestTime = mProfileStartRequestTimes.remove(profile.getName());
+                    if (startRequestTime != null) {
+                        mProfileStartMillis.put(profile.getName(),
+                                SystemClock.elapsedRealtime() - startRequestTime);
+                    }
                     // TODO(b/228875190): GATT is assumed supported. GATT starting triggers hardware
                     // initializtion. Configuring a device without GATT causes start up failures.
                     if (GattService.class.getSimpleName().equals(profile.getName())) {
                         enableNative();
-                    } else if (mRegisteredProfiles.size() == Config.getSupportedProfiles().length
-                            && mRegisteredProfiles.size() == mRunningProfiles.size()) {
+                    } else if (removeDeferredProfile(profile.getName())) {
+                        // Started after BREDR_STARTED, only its service field is missing
+                        initProfileServices();
+                    } else if (mRunningProfiles.size() + getDeferredProfileCount()
+                            == Config.getSupportedProfiles().length) {
                         mAdapterProperties.onBluetoothReady();
                         updateUuids();
                         setBluetoothClassFromConfig();
@@ -518,8 +552,10 @@ public class AdapterService extends Service {
         mSdpManager = SdpManager.init(this);
         registerReceiver(mAlarmBroadcastReceiver, new IntentFilter(ACTION_ALARM_WAKEUP));
 
+        long databaseStartTime = SystemClock.elapsedRealtime();
         mDatabaseManager = new DatabaseManager(this);
         mDatabaseManager.start(MetadataDatabase.createDatabase(this));
+        mDatabaseStartMillis = SystemClock.elapsedRealtime() - databaseStartTime;
 
         boolean isAutomotiveDevice = getApplicationContext().getPackageManager().hasSystemFeature(
                 PackageManager.FEATURE_AUTOMOTIVE);
@@ -710,7 +746,70 @@ public class AdapterService extends Service {
             setBluetoothClassFromConfig();
             mAdapterStateMachine.sendMessage(AdapterState.BREDR_STARTED);
         } else {
-            setAllProfileServiceStates(supportedProfileServices, BluetoothAdapter.STATE_ON);
+            setAllProfileServiceStates(deferProfileServices(supportedProfileServices),
+                    BluetoothAdapter.STATE_ON);
+        }
+    }
+
+    /**
+     * @return the profile services of {@code services} to start right away, the others are
+     *         started once the adapter is on
+     */
+    private Class[] deferProfileServices(Class[] services) {
+        synchronized (mDeferredProfiles) {
+            mDeferredProfiles.clear();
+            if (!getResources().getBoolean(R.bool.enable_deferred_profile_start)) {
+                return services;
+            }
+            List<Class> deferrable = Arrays.asList(DEFERRABLE_PROFILES);
+            ArrayList<Class> started = new ArrayList<>();
+            for (Class service : services) {
+                if (deferrable.contains(service)) {
+                    mDeferredProfiles.add(service);
+                } else {
+                    started.add(service);
+                }
+            }
+            debugLog("deferProfileServices() - Deferring " + mDeferredProfiles.size()
+                    + " profile services");
+            return started.toArray(new Class[0]);
+        }
+    }
+
+    /**
+     * @return the number of deferred profile services not running yet. A deferred profile service
+     *         registers before it runs, so it is counted once against the running ones only.
+     */
+    private int getDeferredProfileCount() {
+        synchronized (mDeferredProfiles) {
+            return mDeferredProfiles.size();
+        }
+    }
+
+    private boolean removeDeferredProfile(String name) {
+        synchronized (mDeferredProfiles) {
+            return mDeferredProfiles.removeIf(service -> service.getSimpleName().equals(name));
+        }
+    }
+
+    /**
+     * Starts the first deferred profile service not started yet, one at a time so the main thread
+     * keeps serving the applications reacting to the adapter being on.
+     */
+    private void startNextDeferredProfile() {
+        if (getState() != BluetoothAdapter.STATE_ON) {
+            return;
+        }
+        synchronized (mDeferredProfiles) {
+            for (Class service : mDeferredProfiles) {
+                if (!isStartedProfile(service.getSimpleName())) {
+                    debugLog("startNextDeferredProfile() - " + service.getSimpleName());
+                    setProfileServiceState(service, BluetoothAdapter.STATE_ON);
+                    mHandler.sendEmptyMessageDelayed(MESSAGE_START_DEFERRED_PROFILE,
+                            DEFERRED_PROFILE_START_DELAY_MS);
+                    return;
+                }
+            }
         }
     }
 
@@ -727,7 +826,19 @@ public class AdapterService extends Service {
             debugLog("stopProfileServices() - No profiles services to stop or already stopped.");
             mAdapterStateMachine.sendMessage(AdapterState.BREDR_STOPPED);
         } else {
-            setAllProfileServiceStates(supportedProfileServices, BluetoothAdapter.STATE_OFF);
+            mHandler.removeMessages(MESSAGE_START_DEFERRED_PROFILE);
+            ArrayList<Class> services = new ArrayList<>(Arrays.asList(supportedProfileServices));
+            synchronized (mDeferredProfiles) {
+                // The deferred profiles never started have nothing to stop
+                for (Iterator<Class> it = mDeferredProfiles.iterator(); it.hasNext(); ) {
+                    Class service = it.next();
+                    if (!isStartedProfile(service.getSimpleName())) {
+                        services.remove(service);
+                        it.remove();
+                    }
+                }
+            }
+            setAllProfileServiceStates(services.toArray(new Class[0]), BluetoothAdapter.STATE_OFF);
         }
     }
 
@@ -775,7 +886,12 @@ public class AdapterService extends Service {
     }
 
     void updateAdapterState(int prevState, int newState) {
+        recordEnablePhase(prevState, newState);
         mAdapterProperties.setState(newState);
+        if (newState == BluetoothAdapter.STATE_ON && getDeferredProfileCount() > 0) {
+            mHandler.sendEmptyMessageDelayed(MESSAGE_START_DEFERRED_PROFILE,
+                    DEFERRED_PROFILE_START_DELAY_MS);
+        }
         invalidateBluetoothGetStateCache();
         if (mCallbacks != null) {
             int n = mCallbacks.beginBroadcast();
@@ -822,6 +938,24 @@ public class AdapterService extends Service {
         }
     }
 
+    private void recordEnablePhase(int prevState, int newState) {
+        long now = SystemClock.elapsedRealtime();
+        if (newState == BluetoothAdapter.STATE_BLE_TURNING_ON) {
+            mBleTurningOnTime = now;
+            mBleTurningOnMillis = -1;
+            mTurningOnMillis = -1;
+        } else if (newState == BluetoothAdapter.STATE_BLE_ON
+                && prevState == BluetoothAdapter.STATE_BLE_TURNING_ON) {
+            mBleTurningOnMillis = now - mBleTurningOnTime;
+        } else if (newState == BluetoothAdapter.STATE_TURNING_ON) {
+            mTurningOnTime = now;
+            mTurningOnMillis = -1;
+        } else if (newState == BluetoothAdapter.STATE_ON
+                && prevState == BluetoothAdapter.STATE_TURNING_ON) {
+            mTurningOnMillis = now - mTurningOnTime;
+        }
+    }
+
     void linkQualityReportCallback(
             long timestamp,
             int reportId,
@@ -1001,6 +1135,7 @@ public class AdapterService extends Service {
     private void setProfileServiceState(Class service, int state) {
         if (state == BluetoothAdapter.STATE_ON) {
             mStartedProfiles.add(service.getSimpleName());
+            mProfileStartRequestTimes.put(service.getSimpleName(), SystemClock.elapsedRealtime());
         } else if (state == BluetoothAdapter.STATE_OFF) {
             mStartedProfiles.remove(service.getSimpleName());
         }
@@ -1310,8 +1445,8 @@ public class AdapterService extends Service {
      * @return true if all bluetooth profile services running, false otherwise
      */
     private boolean profileServicesRunning() {
-        if (mRegisteredProfiles.size() == Config.getSupportedProfiles().length
-                && mRegisteredProfiles.size() == mRunningProfiles.size()) {
+        if (mRunningProfiles.size() + getDeferredProfileCount()
+                == Config.getSupportedProfiles().length) {
             return true;
         }
 
@@ -4064,8 +4199,17 @@ public class AdapterService extends Service {
     }
 
     public String getIdentityAddress(String address) {
-        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address.toUpperCase());
-        DeviceProperties deviceProp = mRemoteDevices.getDeviceProperties(device);
+        // Called for each scan report, look the device up by value rather than through a
+        // BluetoothDevice
+        long addressValue = BdAddr.toLong(address);
+        DeviceProperties deviceProp;
+        if (addressValue != BdAddr.INVALID) {
+            deviceProp = mRemoteDevices.getDeviceProperties(addressValue);
+        } else {
+            BluetoothDevice device =
+                    BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address.toUpperCase());
+            deviceProp = mRemoteDevices.getDeviceProperties(device);
+        }
         if (deviceProp != null && deviceProp.getIdentityAddress() != null) {
             return deviceProp.getIdentityAddress();
         } else {
@@ -5178,6 +5322,26 @@ public class AdapterService extends Service {
             return;
         }
 
+        if ("scan-latency".equals(args[0])) {
+            String command = args.length < 2 ? "" : args[1];
+            if (!"enable".equals(command) && !"disable".equals(command)
+                    && !"reset".equals(command)) {
+                writer.println("Usage: scan-latency <enable|disable|reset>");
+                return;
+            }
+            GattService gattService = GattService.getGattService();
+            if (gattService == null) {
+                writer.println("GATT service is not running");
+                return;
+            }
+            if ("reset".equals(command)) {
+                gattService.resetScanLatencies();
+            } else {
+                gattService.setScanLatencyTrackingEnabled("enable".equals(command));
+            }
+            return;
+        }
+
         verboseLog("dumpsys arguments, check for protobuf output: " + TextUtils.join(" ", args));
         if (args[0].equals("--proto-bin")) {
             dumpMetrics(fd);
@@ -5189,6 +5353,22 @@ public class AdapterService extends Service {
         writer.println("mSnoopLogSettingAtEnable = " + mSnoopLogSettingAtEnable);
         writer.println("mDefaultSnoopLogSettingAtEnable = " + mDefaultSnoopLogSettingAtEnable);
 
+        writer.println();
+        writer.println("Startup Timings:");
+        writer.println("  Database start: " + mDatabaseStartMillis + "ms");
+        writer.println("  BLE_TURNING_ON -> BLE_ON: " + mBleTurningOnMillis + "ms");
+        writer.println("  TURNING_ON -> ON: " + mTurningOnMillis + "ms");
+        writer.println("  Profile service starts:");
+        mProfileStartMillis.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(entry -> writer.println("    " + entry.getKey() + ": " + entry.getValue()
+                        + "ms"));
+        synchronized (mDeferredProfiles) {
+            for (Class service : mDeferredProfiles) {
+                writer.println("    " + service.getSimpleName() + ": deferred, not running");
+            }
+        }
+
         writer.println();
         writer.println("Enabled Profile Services:");
         for (Class profile : Config.getSupportedProfiles()) {
@@ -42,6 +42,7 @@ import android.os.RemoteException;
 import android.os.SystemProperties;
 import android.util.Log;
 
+import com.android.bluetooth.BdAddr;
 import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
@@ -49,12 +50,12 @@ import com.android.bluetooth.bas.BatteryService;
 import com.android.bluetooth.hfp.HeadsetHalConstants;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 
 final class RemoteDevices {
@@ -62,19 +63,23 @@ final class RemoteDevices {
     private static final String TAG = "BluetoothRemoteDevices";
 
     // Maximum number of device properties to remember
-    private static final int MAX_DEVICE_QUEUE_SIZE = 200;
+    @VisibleForTesting
+    static final int MAX_DEVICE_QUEUE_SIZE = 200;
 
     private static BluetoothAdapter sAdapter;
     private static AdapterService sAdapterService;
     private static ArrayList<BluetoothDevice> sSdpTracker;
-    private final Object mObject = new Object();
 
     private static final int UUID_INTENT_DELAY = 6000;
     private static final int MESSAGE_UUID_INTENT = 1;
 
-    private final HashMap<String, DeviceProperties> mDevices;
-    private final HashMap<String, String> mDualDevicesMap;
-    private Queue<String> mDeviceQueue;
+    // Keyed by the long value of the addresses, see BdAddr. Read without locking, the properties
+    // of each device are guarded by their own lock.
+    private final ConcurrentHashMap<Long, DeviceProperties> mDevices;
+    // Secondary (e.g. random) address to main address of the dual mode devices
+    private final ConcurrentHashMap<Long, Long> mDualDevicesMap;
+    // Eviction order of mDevices, least recently added first. Bonded devices are never evicted.
+    private final Queue<Long> mDeviceQueue;
 
     /**
      * Bluetooth HFP v1.8 specifies the Battery Charge indicator of AG can take values from
@@ -168,9 +173,9 @@ final class RemoteDevices {
         sAdapter = BluetoothAdapter.getDefaultAdapter();
         sAdapterService = service;
         sSdpTracker = new ArrayList<BluetoothDevice>();
-        mDevices = new HashMap<String, DeviceProperties>();
-        mDualDevicesMap = new HashMap<String, String>();
-        mDeviceQueue = new LinkedList<String>();
+        mDevices = new ConcurrentHashMap<Long, DeviceProperties>();
+        mDualDevicesMap = new ConcurrentHashMap<Long, Long>();
+        mDeviceQueue = new ArrayDeque<Long>();
         mHandler = new RemoteDevicesHandler(looper);
     }
 
@@ -209,33 +214,25 @@ final class RemoteDevices {
             sSdpTracker.clear();
         }
 
-        synchronized (mDevices) {
-            if (mDevices != null) {
-                debugLog("reset(): Broadcasting ACL_DISCONNECTED");
-
-                mDevices.forEach((address, deviceProperties) -> {
-                    BluetoothDevice bluetoothDevice = deviceProperties.getDevice();
+        synchronized (mDeviceQueue) {
+            debugLog("reset(): Broadcasting ACL_DISCONNECTED");
 
-                    debugLog("reset(): address=" + address + ", connected="
-                            + bluetoothDevice.isConnected());
+            mDevices.forEach((address, deviceProperties) -> {
+                BluetoothDevice bluetoothDevice = deviceProperties.getDevice();
 
-                    if (bluetoothDevice.isConnected()) {
-                        Intent intent = new Intent(BluetoothDevice.ACTION_ACL_DISCONNECTED);
-                        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, bluetoothDevice);
-                        intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT
-                                | Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
-                        sAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_PERM);
-                    }
-                });
-                mDevices.clear();
-            }
-        }
+                debugLog("reset(): address=" + BdAddr.toString(address) + ", connected="
+                        + bluetoothDevice.isConnected());
 
-        if (mDualDevicesMap != null) {
+                if (bluetoothDevice.isConnected()) {
+                    Intent intent = new Intent(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+                    intent.putExtra(BluetoothDevice.EXTRA_DEVICE, bluetoothDevice);
+                    intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT
+                            | Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
+                    sAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_PERM);
+                }
+            });
+            mDevices.clear();
             mDualDevicesMap.clear();
-        }
-
-        if (mDeviceQueue != null) {
             mDeviceQueue.clear();
         }
     }
@@ -246,25 +243,30 @@ final class RemoteDevices {
     }
 
     DeviceProperties getDeviceProperties(BluetoothDevice device) {
-        synchronized (mDevices) {
-            String address = mDualDevicesMap.get(device.getAddress());
-            // If the device is not in the dual map, use its original address
-            if (address == null || mDevices.get(address) == null) {
-                address = device.getAddress();
+        return getDeviceProperties(BdAddr.toLong(device.getAddress()));
+    }
+
+    /**
+     * Get the properties of the device of the given address, as returned by
+     * {@link BdAddr#toLong(String)}
+     */
+    DeviceProperties getDeviceProperties(long address) {
+        if (!mDualDevicesMap.isEmpty()) {
+            Long mainAddress = mDualDevicesMap.get(address);
+            if (mainAddress != null) {
+                DeviceProperties prop = mDevices.get(mainAddress);
+                if (prop != null) {
+                    return prop.markUsed();
+                }
             }
-            return mDevices.get(address);
         }
+        // If the device is not in the dual map, use its original address
+        DeviceProperties prop = mDevices.get(address);
+        return prop == null ? null : prop.markUsed();
     }
 
     BluetoothDevice getDevice(byte[] address) {
-        String addressString = Utils.getAddressStringFromByte(address);
-        String deviceAddress = mDualDevicesMap.get(addressString);
-        // If the device is not in the dual map, use its original address
-        if (deviceAddress == null || mDevices.get(deviceAddress) == null) {
-            deviceAddress = addressString;
-        }
-
-        DeviceProperties prop = mDevices.get(deviceAddress);
+        DeviceProperties prop = getDeviceProperties(BdAddr.toLong(address));
         if (prop != null) {
             return prop.getDevice();
         }
@@ -273,30 +275,50 @@ final class RemoteDevices {
 
     @VisibleForTesting
     DeviceProperties addDeviceProperties(byte[] address) {
-        synchronized (mDevices) {
-            DeviceProperties prop = new DeviceProperties();
-            prop.mDevice = sAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
-            prop.mAddress = address;
-            String key = Utils.getAddressStringFromByte(address);
+        DeviceProperties prop = new DeviceProperties();
+        prop.mDevice = sAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
+        prop.mAddress = address;
+        long key = BdAddr.toLong(address);
+        synchronized (mDeviceQueue) {
             DeviceProperties pv = mDevices.put(key, prop);
 
             if (pv == null) {
                 mDeviceQueue.offer(key);
                 if (mDeviceQueue.size() > MAX_DEVICE_QUEUE_SIZE) {
-                    String deleteKey = mDeviceQueue.poll();
-                    for (BluetoothDevice device : sAdapterService.getBondedDevices()) {
-                        if (device.getAddress().equals(deleteKey)) {
-                            return prop;
-                        }
-                    }
-                    debugLog("Removing device " + deleteKey + " from property map");
-                    mDevices.remove(deleteKey);
+                    evictDeviceProperties();
                 }
             }
             return prop;
         }
     }
 
+    /**
+     * Removes the least recently used device that is not bonded, giving a second chance to the
+     * devices looked up since they were last considered. Must be called with mDeviceQueue held.
+     */
+    private void evictDeviceProperties() {
+        // Each device is given at most one second chance, so this ends within two rounds
+        for (int i = 2 * mDeviceQueue.size(); i > 0; i--) {
+            long deleteKey = mDeviceQueue.poll();
+            DeviceProperties prop = mDevices.get(deleteKey);
+            if (prop == null) {
+                continue;
+            }
+            if (prop.getBondState() == BluetoothDevice.BOND_BONDED) {
+                // Bonded devices are kept, and no longer tracked for eviction
+                return;
+            }
+            if (prop.mUsed) {
+                prop.mUsed = false;
+                mDeviceQueue.offer(deleteKey);
+                continue;
+            }
+            debugLog("Removing device " + BdAddr.toString(deleteKey) + " from property map");
+            mDevices.remove(deleteKey);
+            return;
+        }
+    }
+
     class DeviceProperties {
         private String mName;
         private byte[] mAddress;
@@ -313,11 +335,22 @@ final class RemoteDevices {
         @VisibleForTesting int mDeviceType;
         @VisibleForTesting ParcelUuid[] mUuids;
         private BluetoothSinkAudioPolicy mAudioPolicy;
+        // Set on lookup and cleared by the eviction, which spares recently used devices once
+        private volatile boolean mUsed;
+        // Guards the properties of this device only, so devices are updated concurrently
+        private final Object mObject = new Object();
 
         DeviceProperties() {
             mBondState = BluetoothDevice.BOND_NONE;
         }
 
+        private DeviceProperties markUsed() {
+            if (!mUsed) {
+                mUsed = true;
+            }
+            return this;
+        }
+
         /**
          * @return the mName
          */
@@ -556,7 +589,7 @@ final class RemoteDevices {
         if (deviceProperties == null) {
             deviceProperties = addDeviceProperties(Utils.getByteAddress(device));
         }
-        synchronized (mObject) {
+        synchronized (deviceProperties.mObject) {
             int currentBatteryLevel = deviceProperties.getBatteryLevel();
             if (batteryLevel == currentBatteryLevel) {
                 debugLog("Same battery level for device " + device + " received " + String.valueOf(
@@ -583,7 +616,7 @@ final class RemoteDevices {
         if (deviceProperties == null) {
             return;
         }
-        synchronized (mObject) {
+        synchronized (deviceProperties.mObject) {
             if (deviceProperties.getBatteryLevel() == BluetoothDevice.BATTERY_LEVEL_UNKNOWN) {
                 debugLog("Battery level was never set or is already reset, device=" + device);
                 return;
@@ -675,7 +708,7 @@ final class RemoteDevices {
             type = types[j];
             val = values[j];
             if (val.length > 0) {
-                synchronized (mObject) {
+                synchronized (device.mObject) {
                     debugLog("Property type: " + type);
                     switch (type) {
                         case AbstractionLayer.BT_PROPERTY_BDNAME:
@@ -819,7 +852,7 @@ final class RemoteDevices {
         deviceProperties.mIsConsolidated = true;
         deviceProperties.mDeviceType = BluetoothDevice.DEVICE_TYPE_DUAL;
         deviceProperties.mIdentityAddress = Utils.getAddressStringFromByte(secondaryAddress);
-        mDualDevicesMap.put(deviceProperties.getIdentityAddress(), Utils.getAddressStringFromByte(mainAddress));
+        mDualDevicesMap.put(BdAddr.toLong(secondaryAddress), BdAddr.toLong(mainAddress));
     }
 
     /**
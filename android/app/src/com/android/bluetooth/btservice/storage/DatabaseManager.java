@@ -34,6 +34,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 
@@ -48,11 +49,15 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.Semaphore;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -70,14 +75,33 @@ public class DatabaseManager {
 
     @VisibleForTesting
     final Map<String, Metadata> mMetadataCache = new HashMap<>();
-    private final Semaphore mSemaphore = new Semaphore(1);
+    // Counted down once the metadata of all the devices is in mMetadataCache. Until then, the
+    // metadata of a device is read from the database on its first access.
+    private volatile CountDownLatch mCacheLoaded = new CountDownLatch(1);
+    private long mLoadStartTime = 0;
+    private long mLoadDurationMillis = -1;
+    private int mFaultInCount = 0;
+    // Devices deleted before the end of the load, not to be cached again by it
+    private final Set<String> mDeletedBeforeLoad = new HashSet<>();
+    // Devices connected before the end of the load, in connection order
+    private final Set<String> mConnectedBeforeLoad = new LinkedHashSet<>();
     private static final int METADATA_CHANGED_LOG_MAX_SIZE = 20;
     private final EvictingQueue<String> mMetadataChangedLog;
 
+    // Metadata waiting to be written to the database, by address
+    private final Map<String, Metadata> mPendingWrites = new LinkedHashMap<>();
+    private int mWriteDelayMs = WRITE_COALESCING_DELAY;
+    private long mWriteRequestCount = 0;
+    private long mWrittenRowCount = 0;
+    private long mWriteTransactionCount = 0;
+
+    // How long the device ordering methods wait for the database to be loaded
     private static final int LOAD_DATABASE_TIMEOUT = 500; // milliseconds
+    private static final int WRITE_COALESCING_DELAY = 200; // milliseconds
     private static final int MSG_LOAD_DATABASE = 0;
     private static final int MSG_UPDATE_DATABASE = 1;
     private static final int MSG_DELETE_DATABASE = 2;
+    private static final int MSG_MIGRATE_SETTINGS_GLOBAL = 3;
     private static final int MSG_CLEAR_DATABASE = 100;
     private static final String LOCAL_STORAGE = "LocalStorage";
 
@@ -131,9 +155,12 @@ public class DatabaseManager {
                             list = mDatabase.load();
                         } catch (IllegalStateException e) {
                             Log.e(TAG, "Unable to open database: " + e);
-                            mDatabase = MetadataDatabase
+                            MetadataDatabase database = MetadataDatabase
                                     .createDatabaseWithoutMigration(mAdapterService);
-                            list = mDatabase.load();
+                            synchronized (mMetadataCache) {
+                                mDatabase = database;
+                            }
+                            list = database.load();
                         }
                         compactLastConnectionTime(list);
                         cacheMetadata(list);
@@ -141,10 +168,7 @@ public class DatabaseManager {
                     break;
                 }
                 case MSG_UPDATE_DATABASE: {
-                    Metadata data = (Metadata) msg.obj;
-                    synchronized (mDatabase) {
-                        mDatabase.insert(data);
-                    }
+                    flushPendingWrites();
                     break;
                 }
                 case MSG_DELETE_DATABASE: {
@@ -154,6 +178,13 @@ public class DatabaseManager {
                     }
                     break;
                 }
+                case MSG_MIGRATE_SETTINGS_GLOBAL: {
+                    // Handled after the load, which tells whether the database was migrated
+                    if (!mMigratedFromSettingsGlobal) {
+                        migrateSettingsGlobal();
+                    }
+                    break;
+                }
                 case MSG_CLEAR_DATABASE: {
                     synchronized (mDatabase) {
                         mDatabase.deleteAll();
@@ -186,9 +217,9 @@ public class DatabaseManager {
                 case BluetoothAdapter.ACTION_STATE_CHANGED: {
                     int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
                             BluetoothAdapter.STATE_OFF);
-                    if (!mMigratedFromSettingsGlobal
-                            && state == BluetoothAdapter.STATE_TURNING_ON) {
-                        migrateSettingsGlobal();
+                    if (state == BluetoothAdapter.STATE_TURNING_ON) {
+                        Message message = mHandler.obtainMessage(MSG_MIGRATE_SETTINGS_GLOBAL);
+                        mHandler.sendMessage(message);
                     }
                     break;
                 }
@@ -197,6 +228,7 @@ public class DatabaseManager {
     };
 
     void bondStateChanged(BluetoothDevice device, int state) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             String address = device.getAddress();
             if (state != BluetoothDevice.BOND_NONE) {
@@ -227,6 +259,7 @@ public class DatabaseManager {
      */
     @VisibleForTesting
     public boolean setCustomMeta(BluetoothDevice device, int key, byte[] newValue) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             if (device == null) {
                 Log.e(TAG, "setCustomMeta: device is null");
@@ -262,6 +295,7 @@ public class DatabaseManager {
      */
     @VisibleForTesting
     public byte[] getCustomMeta(BluetoothDevice device, int key) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             if (device == null) {
                 Log.e(TAG, "getCustomMeta: device is null");
@@ -290,6 +324,7 @@ public class DatabaseManager {
     @VisibleForTesting
     public boolean setAudioPolicyMetadata(BluetoothDevice device,
             BluetoothSinkAudioPolicy policies) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             if (device == null) {
                 Log.e(TAG, "setAudioPolicyMetadata: device is null");
@@ -316,6 +351,7 @@ public class DatabaseManager {
      */
     @VisibleForTesting
     public BluetoothSinkAudioPolicy getAudioPolicyMetadata(BluetoothDevice device) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             if (device == null) {
                 Log.e(TAG, "getAudioPolicyMetadata: device is null");
@@ -359,6 +395,7 @@ public class DatabaseManager {
     @VisibleForTesting
     public boolean setProfileConnectionPolicy(BluetoothDevice device, int profile,
             int newConnectionPolicy) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             if (device == null) {
                 Log.e(TAG, "setProfileConnectionPolicy: device is null");
@@ -416,6 +453,7 @@ public class DatabaseManager {
      */
     @VisibleForTesting
     public int getProfileConnectionPolicy(BluetoothDevice device, int profile) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             if (device == null) {
                 Log.e(TAG, "getProfileConnectionPolicy: device is null");
@@ -451,6 +489,7 @@ public class DatabaseManager {
      */
     @VisibleForTesting
     public void setA2dpSupportsOptionalCodecs(BluetoothDevice device, int newValue) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             if (device == null) {
                 Log.e(TAG, "setA2dpOptionalCodec: device is null");
@@ -493,6 +532,7 @@ public class DatabaseManager {
     @VisibleForTesting
     @OptionalCodecsSupportStatus
     public int getA2dpSupportsOptionalCodecs(BluetoothDevice device) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             if (device == null) {
                 Log.e(TAG, "setA2dpOptionalCodec: device is null");
@@ -522,6 +562,7 @@ public class DatabaseManager {
      */
     @VisibleForTesting
     public void setA2dpOptionalCodecsEnabled(BluetoothDevice device, int newValue) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             if (device == null) {
                 Log.e(TAG, "setA2dpOptionalCodecEnabled: device is null");
@@ -564,6 +605,7 @@ public class DatabaseManager {
     @VisibleForTesting
     @OptionalCodecsPreferenceStatus
     public int getA2dpOptionalCodecsEnabled(BluetoothDevice device) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             if (device == null) {
                 Log.e(TAG, "getA2dpOptionalCodecEnabled: device is null");
@@ -588,6 +630,8 @@ public class DatabaseManager {
      * @param device is the remote bluetooth device for which we are setting the connection time
      */
     public void setConnection(BluetoothDevice device, boolean isA2dpDevice) {
+        waitForCacheLoaded();
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             Log.d(TAG, "setConnection: device " + device.getAnonymizedAddress()
                     + " and isA2dpDevice=" + isA2dpDevice);
@@ -610,6 +654,7 @@ public class DatabaseManager {
             // Updates last_active_time to the current counter value and increments the counter
             Metadata metadata = mMetadataCache.get(address);
             metadata.last_active_time = MetadataDatabase.sCurrentConnectionNumber++;
+            markConnectedBeforeLoad(address);
 
             // Only update is_active_a2dp_device if an a2dp device is connected
             if (isA2dpDevice) {
@@ -628,6 +673,7 @@ public class DatabaseManager {
      * @param device is the remote bluetooth device with which we have disconnected a2dp
      */
     public void setDisconnection(BluetoothDevice device) {
+        faultInMetadata(device);
         synchronized (mMetadataCache) {
             if (device == null) {
                 Log.e(TAG, "setDisconnection: device is null");
@@ -676,6 +722,7 @@ public class DatabaseManager {
      */
     public List<BluetoothDevice> getMostRecentlyConnectedDevices() {
         List<BluetoothDevice> mostRecentlyConnectedDevices = new ArrayList<>();
+        waitForCacheLoaded();
         synchronized (mMetadataCache) {
             List<Metadata> sortedMetadata = new ArrayList<>(mMetadataCache.values());
             sortedMetadata.sort((o1, o2) -> Long.compare(o2.last_active_time, o1.last_active_time));
@@ -709,6 +756,7 @@ public class DatabaseManager {
 
         BluetoothDevice mostRecentDevice = null;
         long mostRecentLastActiveTime = -1;
+        waitForCacheLoaded();
         synchronized (mMetadataCache) {
             for (BluetoothDevice device : devicesList) {
                 String address = device.getAddress();
@@ -730,6 +778,7 @@ public class DatabaseManager {
      * @return the most recently active a2dp device or null if the last a2dp device was null
      */
     public BluetoothDevice getMostRecentlyConnectedA2dpDevice() {
+        waitForCacheLoaded();
         synchronized (mMetadataCache) {
             for (Map.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
                 Metadata metadata = entry.getValue();
@@ -799,18 +848,24 @@ public class DatabaseManager {
             return;
         }
 
-        mDatabase = database;
+        synchronized (mMetadataCache) {
+            mDatabase = database;
+            mCacheLoaded = new CountDownLatch(1);
+            mLoadStartTime = SystemClock.elapsedRealtime();
+            mLoadDurationMillis = -1;
+        }
 
         mHandlerThread = new HandlerThread("BluetoothDatabaseManager");
         mHandlerThread.start();
         mHandler = new DatabaseHandler(mHandlerThread.getLooper());
 
+        // Queued before any migration request of the receiver
+        loadDatabase();
+
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
         mAdapterService.registerReceiver(mReceiver, filter);
-
-        loadDatabase();
     }
 
     String getDatabaseAbsolutePath() {
@@ -824,6 +879,9 @@ public class DatabaseManager {
      */
     public void factoryReset() {
         Log.w(TAG, "factoryReset");
+        synchronized (mPendingWrites) {
+            mPendingWrites.clear();
+        }
         Message message = mHandler.obtainMessage(MSG_CLEAR_DATABASE);
         mHandler.sendMessage(message);
     }
@@ -835,6 +893,8 @@ public class DatabaseManager {
         removeUnusedMetadata();
         mAdapterService.unregisterReceiver(mReceiver);
         if (mHandlerThread != null) {
+            // Do not lose the updates still waiting to be coalesced
+            flushPendingWrites();
             mHandlerThread.quit();
             mHandlerThread = null;
         }
@@ -845,10 +905,23 @@ public class DatabaseManager {
         Metadata data = new Metadata(address);
         data.is_active_a2dp_device = isActiveA2dpDevice;
         mMetadataCache.put(address, data);
+        markConnectedBeforeLoad(address);
         updateDatabase(data);
         logMetadataChange(address, "Metadata created");
     }
 
+    /**
+     * Remembers that {@code address} became the most recent device before the end of the load,
+     * so that the connection order of the load does not overwrite it. Must be called with
+     * mMetadataCache held.
+     */
+    private void markConnectedBeforeLoad(String address) {
+        if (mCacheLoaded.getCount() > 0) {
+            mConnectedBeforeLoad.remove(address);
+            mConnectedBeforeLoad.add(address);
+        }
+    }
+
     @VisibleForTesting
     void removeUnusedMetadata() {
         BluetoothDevice[] bondedDevices = mAdapterService.getBondedDevices();
@@ -871,24 +944,109 @@ public class DatabaseManager {
     void cacheMetadata(List<Metadata> list) {
         synchronized (mMetadataCache) {
             Log.i(TAG, "cacheMetadata");
-            // Unlock the main thread.
-            mSemaphore.release();
+            boolean firstLoad = mCacheLoaded.getCount() > 0;
+            if (firstLoad) {
+                mLoadDurationMillis = SystemClock.elapsedRealtime() - mLoadStartTime;
+                mCacheLoaded.countDown();
+            }
 
             if (!isMigrated(list)) {
                 // Wait for data migrate from Settings Global
                 mMigratedFromSettingsGlobal = false;
+                mDeletedBeforeLoad.clear();
+                mConnectedBeforeLoad.clear();
                 return;
             }
             mMigratedFromSettingsGlobal = true;
             for (Metadata data : list) {
                 String address = data.getAddress();
                 Log.v(TAG, "cacheMetadata: found device " + data.getAnonymizedAddress());
-                mMetadataCache.put(address, data);
+                if (!firstLoad) {
+                    mMetadataCache.put(address, data);
+                    continue;
+                }
+                if (mDeletedBeforeLoad.contains(address)) {
+                    continue;
+                }
+                Metadata cached = mMetadataCache.putIfAbsent(address, data);
+                if (cached != null && !mConnectedBeforeLoad.contains(address)) {
+                    // Accessed during the load, keep its changes but the compacted connection order
+                    cached.last_active_time = data.last_active_time;
+                    updateDatabase(cached);
+                }
+            }
+            // Connected during the load, so more recent than all the loaded devices
+            for (String address : mConnectedBeforeLoad) {
+                Metadata metadata = mMetadataCache.get(address);
+                if (metadata != null) {
+                    metadata.last_active_time = MetadataDatabase.sCurrentConnectionNumber++;
+                    updateDatabase(metadata);
+                }
             }
+            mDeletedBeforeLoad.clear();
+            mConnectedBeforeLoad.clear();
             Log.i(TAG, "cacheMetadata: Database is ready");
         }
     }
 
+    /**
+     * Reads the metadata of {@code device} from the database if it is not loaded yet. Must not be
+     * called with mMetadataCache held, the database is queried without it.
+     */
+    private void faultInMetadata(BluetoothDevice device) {
+        if (device == null || mCacheLoaded.getCount() == 0) {
+            return;
+        }
+        String address = device.getAddress();
+        MetadataDatabase database;
+        synchronized (mMetadataCache) {
+            if (mMetadataCache.containsKey(address)) {
+                return;
+            }
+            database = mDatabase;
+        }
+        if (database == null) {
+            return;
+        }
+        Metadata data;
+        try {
+            data = database.load(address);
+        } catch (IllegalStateException e) {
+            // The load on the handler thread will recreate the database
+            Log.e(TAG, "faultInMetadata: unable to open database: " + e);
+            return;
+        }
+        if (data == null) {
+            return;
+        }
+        synchronized (mMetadataCache) {
+            // The load may have ended, or the device been created or deleted, in the meantime
+            if (mCacheLoaded.getCount() == 0 || mDeletedBeforeLoad.contains(address)
+                    || mMetadataCache.putIfAbsent(address, data) != null) {
+                return;
+            }
+            Log.d(TAG, "faultInMetadata: found device " + data.getAnonymizedAddress());
+            mFaultInCount++;
+        }
+    }
+
+    /**
+     * Waits for the metadata of all the devices to be loaded, for the methods that compare devices
+     * or change the connection order. Must not be called with mMetadataCache held.
+     */
+    private void waitForCacheLoaded() {
+        if (mHandler == null || mCacheLoaded.getCount() == 0) {
+            return;
+        }
+        try {
+            if (!mCacheLoaded.await(LOAD_DATABASE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "waitForCacheLoaded: database not loaded yet");
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "waitForCacheLoaded: interrupted");
+        }
+    }
+
     boolean isMigrated(List<Metadata> list) {
         for (Metadata data : list) {
             String address = data.getAddress();
@@ -899,6 +1057,10 @@ public class DatabaseManager {
         return false;
     }
 
+    /**
+     * Moves the legacy Settings.Global values to the database. Runs on the database handler
+     * thread, once the load has found the database not migrated yet.
+     */
     void migrateSettingsGlobal() {
         Log.i(TAG, "migrateSettingGlobal");
 
@@ -970,14 +1132,18 @@ public class DatabaseManager {
                     BluetoothProfile.CONNECTION_POLICY_UNKNOWN);
             data.a2dpSupportsOptionalCodecs = a2dpSupportsOptionalCodec;
             data.a2dpOptionalCodecsEnabled = a2dpOptionalCodecEnabled;
-            mMetadataCache.put(address, data);
+            synchronized (mMetadataCache) {
+                mMetadataCache.put(address, data);
+            }
             updateDatabase(data);
         }
 
         // Mark database migrated from Settings Global
         Metadata localData = new Metadata(LOCAL_STORAGE);
         localData.migrated = true;
-        mMetadataCache.put(LOCAL_STORAGE, localData);
+        synchronized (mMetadataCache) {
+            mMetadataCache.put(LOCAL_STORAGE, localData);
+        }
         updateDatabase(localData);
 
         // Reload database after migration is completed
@@ -1074,14 +1240,10 @@ public class DatabaseManager {
 
     private void loadDatabase() {
         Log.d(TAG, "Load Database");
+        // Do not block the caller, the devices accessed before the end of the load are read from
+        // the database one by one
         Message message = mHandler.obtainMessage(MSG_LOAD_DATABASE);
         mHandler.sendMessage(message);
-        try {
-            // Lock the thread until handler thread finish loading database.
-            mSemaphore.tryAcquire(LOAD_DATABASE_TIMEOUT, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            Log.e(TAG, "loadDatabase: semaphore acquire failed");
-        }
     }
 
     private void updateDatabase(Metadata data) {
@@ -1090,9 +1252,39 @@ public class DatabaseManager {
             return;
         }
         Log.d(TAG, "updateDatabase " + data.getAnonymizedAddress());
-        Message message = mHandler.obtainMessage(MSG_UPDATE_DATABASE);
-        message.obj = data;
-        mHandler.sendMessage(message);
+        synchronized (mPendingWrites) {
+            mWriteRequestCount++;
+            // The cached Metadata is updated in place, writing its latest state once is enough
+            mPendingWrites.put(data.getAddress(), data);
+            if (!mHandler.hasMessages(MSG_UPDATE_DATABASE)) {
+                mHandler.sendEmptyMessageDelayed(MSG_UPDATE_DATABASE, mWriteDelayMs);
+            }
+        }
+    }
+
+    /**
+     * Writes all the pending metadata updates to the database, in a single transaction
+     */
+    @VisibleForTesting
+    void flushPendingWrites() {
+        synchronized (mDatabase) {
+            Metadata[] data;
+            synchronized (mPendingWrites) {
+                if (mPendingWrites.isEmpty()) {
+                    return;
+                }
+                data = mPendingWrites.values().toArray(new Metadata[0]);
+                mPendingWrites.clear();
+                mWrittenRowCount += data.length;
+                mWriteTransactionCount++;
+            }
+            mDatabase.insert(data);
+        }
+    }
+
+    @VisibleForTesting
+    void setWriteDelayForTesting(int delayMs) {
+        mWriteDelayMs = delayMs;
     }
 
     @VisibleForTesting
@@ -1103,6 +1295,15 @@ public class DatabaseManager {
             return;
         }
         logMetadataChange(address, "Metadata deleted");
+        synchronized (mMetadataCache) {
+            if (mCacheLoaded.getCount() > 0) {
+                mDeletedBeforeLoad.add(address);
+            }
+        }
+        synchronized (mPendingWrites) {
+            // Do not write it back after the deletion
+            mPendingWrites.remove(address);
+        }
         Message message = mHandler.obtainMessage(MSG_DELETE_DATABASE);
         message.obj = data.getAddress();
         mHandler.sendMessage(message);
@@ -1161,6 +1362,16 @@ public class DatabaseManager {
         for (String log : mMetadataChangedLog) {
             writer.println("    " + log);
         }
+        synchronized (mMetadataCache) {
+            writer.println("  Load: " + (mLoadDurationMillis < 0 ? "in progress"
+                    : mLoadDurationMillis + "ms") + ", devices read before the load="
+                    + mFaultInCount);
+        }
+        synchronized (mPendingWrites) {
+            writer.println("  Writes: requested=" + mWriteRequestCount + ", rows written="
+                    + mWrittenRowCount + ", transactions=" + mWriteTransactionCount
+                    + ", pending=" + mPendingWrites.size());
+        }
         writer.println("\nMetadata:");
         for (HashMap.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
             if (entry.getKey().equals(LOCAL_STORAGE)) {
@@ -31,6 +31,12 @@ interface MetadataDao {
     @Query("SELECT * FROM metadata ORDER BY last_active_time DESC")
     List<Metadata> load();
 
+    /**
+     * Load the item of the given address in the database, or null if there is none
+     */
+    @Query("SELECT * FROM metadata WHERE address = :address")
+    Metadata load(String address);
+
     /**
      * Create or update a Metadata in the database
      */
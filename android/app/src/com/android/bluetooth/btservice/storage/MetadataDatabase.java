@@ -107,6 +107,16 @@ public abstract class MetadataDatabase extends RoomDatabase {
         return mMetadataDao().load();
     }
 
+    /**
+     * Load the {@link Metadata} of one device from metadata table
+     *
+     * @param address the address of the Metadata to load
+     * @return the {@link Metadata}, or null if the table contains none for {@code address}
+     */
+    public Metadata load(String address) {
+        return mMetadataDao().load(address);
+    }
+
     /**
      * Delete one of the {@link Metadata} contained in the metadata table
      *
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the last advertising payload seen from each device, used to suppress
+ * repeated advertisements for scan clients that enabled
+ * {@link android.bluetooth.le.ScanSettings#isDuplicateSuppressionEnabled}.
+ *
+ * For every device, the cache keeps a copy of the last payload and, per scanner, the RSSI of
+ * the last report delivered since that payload was first seen.
+ * @hide
+ */
+/* package */ class AdvertisementDedupCache {
+    static final int DEFAULT_MAX_DEVICES = 1024;
+
+    /**
+     * Cached state of a single device.
+     */
+    static class Entry {
+        // Hash of mPayload, to reject most changed payloads without comparing them.
+        private int mPayloadHash;
+        private byte[] mPayload;
+        // RSSI of the last report delivered to each scanner for the current payload.
+        private final SparseIntArray mLastRssiByScanner = new SparseIntArray();
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    AdvertisementDedupCache(int maxDevices) {
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxDevices;
+            }
+        };
+    }
+
+    /**
+     * Records a report from {@code address}. Must be called once per report, before checking
+     * any scanner with {@link #isDuplicate}.
+     */
+    synchronized Entry update(String address, byte[] advData) {
+        int payloadHash = Arrays.hashCode(advData);
+        Entry entry = mEntries.get(address);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(address, entry);
+        } else if (entry.mPayloadHash == payloadHash && Arrays.equals(entry.mPayload, advData)) {
+            return entry;
+        }
+        entry.mPayloadHash = payloadHash;
+        entry.mPayload = advData.clone();
+        entry.mLastRssiByScanner.clear();
+        return entry;
+    }
+
+    /**
+     * Returns true if a report with the payload of {@code entry} was already delivered to
+     * {@code scannerId}, and its RSSI changed by less than {@code rssiThreshold} since. A
+     * threshold of 0 suppresses duplicates regardless of their RSSI.
+     */
+    synchronized boolean isDuplicate(Entry entry, int scannerId, int rssi, int rssiThreshold) {
+        int index = entry.mLastRssiByScanner.indexOfKey(scannerId);
+        if (index < 0) {
+            return false;
+        }
+        return rssiThreshold == 0
+                || Math.abs(rssi - entry.mLastRssiByScanner.valueAt(index)) < rssiThreshold;
+    }
+
+    /**
+     * Records that the report of {@code entry} was delivered to {@code scannerId}.
+     */
+    synchronized void markDelivered(Entry entry, int scannerId, int rssi) {
+        entry.mLastRssiByScanner.put(scannerId, rssi);
+    }
+
+    /**
+     * Forgets the reports delivered to {@code scannerId}, e.g. when its scan is stopped.
+     */
+    synchronized void removeScanner(int scannerId) {
+        for (Entry entry : mEntries.values()) {
+            entry.mLastRssiByScanner.delete(scannerId);
+        }
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+}
@@ -56,6 +56,15 @@ import java.util.Objects;
 
     static final int LARGE_SCAN_TIME_GAP_MS = 24000;
 
+    // Stages of the regular scan result path, timed while scan latency tracking is enabled.
+    static final int STAGE_ADDRESS_RESOLUTION = 0;
+    static final int STAGE_PARSE = 1;
+    static final int STAGE_PERMISSION = 2;
+    static final int STAGE_FILTER_MATCH = 3;
+    static final int STAGE_DELIVERY = 4;
+    private static final String[] STAGE_NAMES = {
+            "Address resolution", "Parse", "Permission", "Filter match", "Delivery"};
+
     // ContextMap here is needed to grab Apps and Connections
     ContextMap mContextMap;
 
@@ -80,6 +89,7 @@ import java.util.Objects;
         public boolean isCallbackScan;
         public boolean isBatchScan;
         public int results;
+        public int suppressedResults;
         public int scannerId;
         public int scanMode;
         public int scanCallbackType;
@@ -98,6 +108,7 @@ import java.util.Objects;
             this.scanMode = scanMode;
             this.scanCallbackType = scanCallbackType;
             this.results = 0;
+            this.suppressedResults = 0;
             this.scannerId = scannerId;
             this.suspendDuration = 0;
             this.suspendStartTime = 0;
@@ -130,6 +141,9 @@ import java.util.Objects;
     public long startTime = 0;
     public long stopTime = 0;
     public int results = 0;
+    public int suppressedResults = 0;
+    // Not guarded by the object lock, so recording never contends with the other stats.
+    private final LatencyHistogram[] mStageLatencies = new LatencyHistogram[STAGE_NAMES.length];
 
     AppScanStats(String name, WorkSource source, ContextMap map, GattService service) {
         appName = name;
@@ -144,6 +158,9 @@ import java.util.Objects;
         mWorkSource = source;
         mWorkSourceUtil = new WorkSourceUtil(source);
         mAdapterService = Objects.requireNonNull(AdapterService.getAdapterService());
+        for (int i = 0; i < mStageLatencies.length; i++) {
+            mStageLatencies[i] = new LatencyHistogram();
+        }
     }
 
     synchronized void addResult(int scannerId) {
@@ -163,6 +180,38 @@ import java.util.Objects;
         results++;
     }
 
+    // Counts a duplicate advertisement that was not delivered to the app.
+    synchronized void addSuppressedResult(int scannerId) {
+        LastScan scan = getScanFromScannerId(scannerId);
+        if (scan != null) {
+            scan.suppressedResults++;
+        }
+        suppressedResults++;
+    }
+
+    void recordStageLatency(int stage, long nanos) {
+        mStageLatencies[stage].record(nanos);
+    }
+
+    LatencyHistogram getStageLatency(int stage) {
+        return mStageLatencies[stage];
+    }
+
+    private boolean hasStageLatencies() {
+        for (LatencyHistogram histogram : mStageLatencies) {
+            if (histogram.getCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void resetStageLatencies() {
+        for (LatencyHistogram histogram : mStageLatencies) {
+            histogram.reset();
+        }
+    }
+
     synchronized boolean isScanning() {
         return !mOngoingScans.isEmpty();
     }
@@ -539,6 +588,17 @@ import java.util.Objects;
                 + " / " + ambientDiscoveryScan);
         sb.append("\n  Score                                                       : " + Score);
         sb.append("\n  Total number of results                                     : " + results);
+        if (suppressedResults > 0) {
+            sb.append("\n  Total number of suppressed duplicate results                : "
+                    + suppressedResults);
+        }
+        if (hasStageLatencies()) {
+            sb.append("\n  Scan result latency per stage                               :");
+            for (int i = 0; i < mStageLatencies.length; i++) {
+                sb.append("\n    " + STAGE_NAMES[i] + ": ");
+                mStageLatencies[i].dump(sb);
+            }
+        }
 
         if (!mLastScans.isEmpty()) {
             sb.append("\n  Last " + mLastScans.size()
@@ -562,6 +622,9 @@ import java.util.Objects;
                     sb.append("Filter ");
                 }
                 sb.append(scan.results + " results");
+                if (scan.suppressedResults > 0) {
+                    sb.append(" (" + scan.suppressedResults + " suppressed)");
+                }
                 sb.append(" (" + scan.scannerId + ") ");
                 if (scan.isCallbackScan) {
                     sb.append("CB ");
@@ -610,6 +673,9 @@ import java.util.Objects;
                     sb.append("Suspended ");
                 }
                 sb.append(scan.results + " results");
+                if (scan.suppressedResults > 0) {
+                    sb.append(" (" + scan.suppressedResults + " suppressed)");
+                }
                 sb.append(" (" + scan.scannerId + ") ");
                 if (scan.isCallbackScan) {
                     sb.append("CB ");
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+import com.android.bluetooth.util.NumberUtils;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the batch scan reports flushed by the controller, and matches them against the filters
+ * of the batch scan clients.
+ *
+ * Records are parsed into an array in controller order. Reports larger than the parallel
+ * threshold are split into contiguous ranges, parsed and matched on the executor while the
+ * calling thread handles the first range.
+ * @hide
+ */
+/* package */ class BatchScanReportParser {
+    static final int DEFAULT_THREAD_COUNT = 2;
+    static final int DEFAULT_PARALLEL_THRESHOLD = 512;
+
+    @VisibleForTesting
+    static final int TRUNCATED_RESULT_SIZE = 11;
+
+    // Address, address type, tx power, rssi and timestamp precede the packets of a full record.
+    private static final int FULL_RESULT_HEADER_SIZE = 11;
+
+    private interface RangeTask {
+        void run(int chunk, int from, int to);
+    }
+
+    private final ExecutorService mExecutor;
+    private final int mThreadCount;
+    private final int mParallelThreshold;
+
+    /**
+     * @param executor runs the ranges of large reports, may be null to parse on the caller only
+     * @param threadCount number of threads of {@code executor}
+     * @param parallelThreshold minimum number of records handled by a single range
+     */
+    BatchScanReportParser(ExecutorService executor, int threadCount, int parallelThreshold) {
+        mExecutor = executor;
+        mThreadCount = executor == null ? 0 : threadCount;
+        mParallelThreshold = Math.max(1, parallelThreshold);
+    }
+
+    /**
+     * Parses a report of {@code numRecords} truncated records.
+     */
+    ScanResult[] parseTruncatedResults(int numRecords, byte[] batchRecord, long nowNanos) {
+        ScanResult[] results = new ScanResult[numRecords];
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        runChunked(numRecords, (chunk, from, to) -> {
+            for (int i = from; i < to; i++) {
+                int offset = i * TRUNCATED_RESULT_SIZE;
+                BluetoothDevice device = adapter.getRemoteDevice(readAddress(batchRecord, offset));
+                int rssi = batchRecord[offset + 8];
+                long timestampNanos = nowNanos - parseTimestampNanos(batchRecord, offset + 9);
+                results[i] = new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]), rssi,
+                        timestampNanos);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Parses a report of full records. {@code numRecords} is only used as a size hint, the whole
+     * report is parsed.
+     */
+    ScanResult[] parseFullResults(int numRecords, byte[] batchRecord, long nowNanos) {
+        // Records have a variable size, so find where each of them starts first.
+        int[] offsets = new int[Math.max(numRecords, 1)];
+        int count = 0;
+        int position = 0;
+        while (position < batchRecord.length) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = position;
+            position += FULL_RESULT_HEADER_SIZE;
+            position += batchRecord[position] + 1;
+            position += batchRecord[position] + 1;
+        }
+
+        ScanResult[] results = new ScanResult[count];
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        final int[] recordOffsets = offsets;
+        runChunked(count, (chunk, from, to) -> {
+            for (int i = from; i < to; i++) {
+                results[i] = parseFullResult(adapter, batchRecord, recordOffsets[i], nowNanos);
+            }
+        });
+        return results;
+    }
+
+    private static ScanResult parseFullResult(BluetoothAdapter adapter, byte[] batchRecord,
+            int offset, long nowNanos) {
+        BluetoothDevice device = adapter.getRemoteDevice(readAddress(batchRecord, offset));
+        // Skip address type and tx power level.
+        int rssi = batchRecord[offset + 8];
+        long timestampNanos = nowNanos - parseTimestampNanos(batchRecord, offset + 9);
+
+        // Combine advertise packet and scan response packet.
+        int position = offset + FULL_RESULT_HEADER_SIZE;
+        int advertisePacketLen = batchRecord[position++];
+        int advertiseOffset = position;
+        position += advertisePacketLen;
+        int scanResponsePacketLen = batchRecord[position++];
+        byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
+        System.arraycopy(batchRecord, advertiseOffset, scanRecord, 0, advertisePacketLen);
+        System.arraycopy(batchRecord, position, scanRecord, advertisePacketLen,
+                scanResponsePacketLen);
+        // Fields are only decoded if a filter reads them.
+        return new ScanResult(device, ScanRecord.parseFromBytesLazy(scanRecord), rssi,
+                timestampNanos);
+    }
+
+    /**
+     * Matches every result once against the filters of {@code index}, and returns the matching
+     * results of each client in report order. Clients without any match are absent.
+     */
+    Map<ScanClient, List<ScanResult>> match(ScanResult[] results, ScanFilterIndex index) {
+        int chunks = getChunkCount(results.length);
+        List<Map<ScanClient, List<ScanResult>>> chunkMatches = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            chunkMatches.add(new HashMap<>());
+        }
+        runChunked(results.length, (chunk, from, to) -> {
+            Map<ScanClient, List<ScanResult>> matches = chunkMatches.get(chunk);
+            for (int i = from; i < to; i++) {
+                for (ScanClient client : index.match(results[i], null)) {
+                    matches.computeIfAbsent(client, k -> new ArrayList<>()).add(results[i]);
+                }
+            }
+        });
+        if (chunks == 1) {
+            return chunkMatches.get(0);
+        }
+        Map<ScanClient, List<ScanResult>> merged = new HashMap<>();
+        for (Map<ScanClient, List<ScanResult>> matches : chunkMatches) {
+            for (Map.Entry<ScanClient, List<ScanResult>> entry : matches.entrySet()) {
+                merged.computeIfAbsent(entry.getKey(), k -> new ArrayList<>())
+                        .addAll(entry.getValue());
+            }
+        }
+        return merged;
+    }
+
+    @VisibleForTesting
+    int getChunkCount(int count) {
+        return Math.max(1, Math.min(mThreadCount + 1, count / mParallelThreshold));
+    }
+
+    // Splits [0, count) into getChunkCount() contiguous ranges and runs them, the first one on
+    // the calling thread. Returns once every range is done.
+    private void runChunked(int count, RangeTask task) {
+        int chunks = getChunkCount(count);
+        if (chunks == 1) {
+            task.run(0, 0, count);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(chunks - 1);
+        for (int chunk = 1; chunk < chunks; chunk++) {
+            final int index = chunk;
+            final int from = (int) ((long) count * chunk / chunks);
+            final int to = (int) ((long) count * (chunk + 1) / chunks);
+            try {
+                futures.add(mExecutor.submit(() -> task.run(index, from, to)));
+            } catch (RejectedExecutionException e) {
+                // The service is shutting down.
+                task.run(index, from, to);
+            }
+        }
+        task.run(0, 0, count / chunks);
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while parsing batch scan report", e);
+            }
+        }
+    }
+
+    // Addresses are reported in little endian order.
+    private static byte[] readAddress(byte[] batchRecord, int offset) {
+        byte[] address = new byte[6];
+        for (int i = 0; i < 6; i++) {
+            address[i] = batchRecord[offset + 5 - i];
+        }
+        return address;
+    }
+
+    private static long parseTimestampNanos(byte[] batchRecord, int offset) {
+        return parseTimestampNanos(Arrays.copyOfRange(batchRecord, offset, offset + 2));
+    }
+
+    static long parseTimestampNanos(byte[] data) {
+        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
+        // Timestamp is in every 50 ms.
+        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
+    }
+}
@@ -35,14 +35,17 @@ import com.android.internal.annotations.GuardedBy;
 import com.google.common.collect.EvictingQueue;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Helper class that keeps track of registered GATT applications.
@@ -208,6 +211,15 @@ public class ContextMap<C, T> {
     /** Internal list of connected devices **/
     private Set<Connection> mConnections = new HashSet<Connection>();
 
+    // Indexes of mApps and mConnections for the lookups done on every scan result and GATT
+    // callback. They are only modified while holding the lock of the list they index, and read
+    // without locking. Connection lists are replaced instead of modified.
+    private final Map<Integer, App> mAppsById = new ConcurrentHashMap<>();
+    private final Map<UUID, App> mAppsByUuid = new ConcurrentHashMap<>();
+    private final Map<Integer, Connection> mConnectionsByConnId = new ConcurrentHashMap<>();
+    private final Map<Integer, List<Connection>> mConnectionsByAppId = new ConcurrentHashMap<>();
+    private final Map<String, List<Connection>> mConnectionsByAddress = new ConcurrentHashMap<>();
+
     /**
      * Add an entry to the application context list.
      */
@@ -226,6 +238,7 @@ public class ContextMap<C, T> {
             }
             App app = new App(uuid, callback, info, appName, appScanStats);
             mApps.add(app);
+            mAppsByUuid.put(uuid, app);
             appScanStats.isRegistered = true;
             return app;
         }
@@ -254,11 +267,25 @@ public class ContextMap<C, T> {
             if (app == null) {
                 app = new App(appUid, callback, appName);
                 mApps.add(app);
+                mAppsById.put(appUid, app);
             }
             return app;
         }
     }
 
+    /**
+     * Sets the ID assigned by the stack to an application registered by UUID.
+     */
+    void setId(App app, int id) {
+        synchronized (mApps) {
+            mAppsById.remove(app.id, app);
+            app.id = id;
+            if (mApps.contains(app)) {
+                mAppsById.put(id, app);
+            }
+        }
+    }
+
     /**
      * Remove the context for a given UUID
      */
@@ -271,6 +298,7 @@ public class ContextMap<C, T> {
                     entry.unlinkToDeath();
                     entry.appScanStats.isRegistered = false;
                     i.remove();
+                    removeFromIndexes(entry);
                     break;
                 }
             }
@@ -291,6 +319,7 @@ public class ContextMap<C, T> {
                     entry.unlinkToDeath();
                     entry.appScanStats.isRegistered = false;
                     i.remove();
+                    removeFromIndexes(entry);
                     break;
                 }
             }
@@ -300,6 +329,13 @@ public class ContextMap<C, T> {
         }
     }
 
+    private void removeFromIndexes(App app) {
+        mAppsById.remove(app.id, app);
+        if (app.uuid != null) {
+            mAppsByUuid.remove(app.uuid, app);
+        }
+    }
+
     List<Integer> getAllAppsIds() {
         List<Integer> appIds = new ArrayList();
         synchronized (mApps) {
@@ -319,7 +355,14 @@ public class ContextMap<C, T> {
         synchronized (mConnections) {
             App entry = getById(id);
             if (entry != null) {
-                mConnections.add(new Connection(connId, address, id));
+                Connection connection = new Connection(connId, address, id);
+                mConnections.add(connection);
+                mConnectionsByConnId.put(connId, connection);
+                mConnectionsByAppId.put(id,
+                        withConnection(mConnectionsByAppId.get(id), connection));
+                String key = addressKey(address);
+                mConnectionsByAddress.put(key,
+                        withConnection(mConnectionsByAddress.get(key), connection));
             }
         }
     }
@@ -329,13 +372,10 @@ public class ContextMap<C, T> {
      */
     void removeConnection(int id, int connId) {
         synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                    break;
-                }
+            Connection connection = mConnectionsByConnId.get(connId);
+            if (connection != null) {
+                mConnections.remove(connection);
+                removeFromIndexes(connection);
             }
         }
     }
@@ -350,20 +390,69 @@ public class ContextMap<C, T> {
                 Connection connection = i.next();
                 if (connection.appId == appId) {
                     i.remove();
+                    removeFromIndexes(connection);
                 }
             }
         }
     }
 
+    // Must be called while holding mConnections, after removing the connection from it.
+    private void removeFromIndexes(Connection connection) {
+        if (mConnectionsByConnId.remove(connection.connId, connection)) {
+            // Another connection may have been added with the same ID.
+            for (Connection other : mConnections) {
+                if (other.connId == connection.connId) {
+                    mConnectionsByConnId.put(other.connId, other);
+                    break;
+                }
+            }
+        }
+        updateIndex(mConnectionsByAppId, connection.appId, connection);
+        updateIndex(mConnectionsByAddress, addressKey(connection.address), connection);
+    }
+
+    private static <K> void updateIndex(Map<K, List<Connection>> index, K key,
+            Connection removed) {
+        List<Connection> connections = index.get(key);
+        if (connections == null) {
+            return;
+        }
+        List<Connection> remaining = new ArrayList<>(connections);
+        remaining.remove(removed);
+        if (remaining.isEmpty()) {
+            index.remove(key);
+        } else {
+            index.put(key, Collections.unmodifiableList(remaining));
+        }
+    }
+
+    private static List<Connection> withConnection(List<Connection> connections,
+            Connection added) {
+        List<Connection> updated =
+                connections == null ? new ArrayList<>() : new ArrayList<>(connections);
+        updated.add(added);
+        return Collections.unmodifiableList(updated);
+    }
+
+    private static String addressKey(String address) {
+        return address == null ? "" : address.toUpperCase(Locale.ROOT);
+    }
+
     /**
      * Get an application context by ID.
      */
     App getById(int id) {
+        App app = mAppsById.get(id);
+        if (app != null && app.id == id) {
+            return app;
+        }
+        // Not indexed if its ID was assigned without setId().
         synchronized (mApps) {
             Iterator<App> i = mApps.iterator();
             while (i.hasNext()) {
                 App entry = i.next();
                 if (entry.id == id) {
+                    mAppsById.put(id, entry);
                     return entry;
                 }
             }
@@ -376,14 +465,9 @@ public class ContextMap<C, T> {
      * Get an application context by UUID.
      */
     App getByUuid(UUID uuid) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    return entry;
-                }
-            }
+        App app = uuid == null ? null : mAppsByUuid.get(uuid);
+        if (app != null) {
+            return app;
         }
         Log.e(TAG, "Context not found for UUID " + uuid);
         return null;
@@ -441,6 +525,17 @@ public class ContextMap<C, T> {
         return mAppScanStats.get(uid);
     }
 
+    /**
+     * Clears the scan result latencies of every app.
+     */
+    void resetStageLatencies() {
+        synchronized (mApps) {
+            for (AppScanStats appScanStats : mAppScanStats.values()) {
+                appScanStats.resetStageLatencies();
+            }
+        }
+    }
+
     /**
      * Remove the context for a given application ID.
      */
@@ -589,19 +684,9 @@ public class ContextMap<C, T> {
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        int appId = -1;
-        synchronized (mConnections) {
-            Iterator<Connection> ii = mConnections.iterator();
-            while (ii.hasNext()) {
-                Connection connection = ii.next();
-                if (connection.connId == connId) {
-                    appId = connection.appId;
-                    break;
-                }
-            }
-        }
-        if (appId >= 0) {
-            return getById(appId);
+        Connection connection = mConnectionsByConnId.get(connId);
+        if (connection != null && connection.appId >= 0) {
+            return getById(connection.appId);
         }
         return null;
     }
@@ -614,11 +699,10 @@ public class ContextMap<C, T> {
         if (entry == null) {
             return null;
         }
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.address.equalsIgnoreCase(address) && connection.appId == id) {
+        List<Connection> connections = mConnectionsByAddress.get(addressKey(address));
+        if (connections != null) {
+            for (Connection connection : connections) {
+                if (connection.appId == id) {
                     return connection.connId;
                 }
             }
@@ -630,30 +714,13 @@ public class ContextMap<C, T> {
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    return connection.address;
-                }
-            }
-        }
-        return null;
+        Connection connection = mConnectionsByConnId.get(connId);
+        return connection == null ? null : connection.address;
     }
 
     List<Connection> getConnectionByApp(int appId) {
-        List<Connection> currentConnections = new ArrayList<Connection>();
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == appId) {
-                    currentConnections.add(connection);
-                }
-            }
-        }
-        return currentConnections;
+        List<Connection> connections = mConnectionsByAppId.get(appId);
+        return connections == null ? new ArrayList<Connection>() : new ArrayList<>(connections);
     }
 
     /**
@@ -670,10 +737,15 @@ public class ContextMap<C, T> {
                 }
                 i.remove();
             }
+            mAppsById.clear();
+            mAppsByUuid.clear();
         }
 
         synchronized (mConnections) {
             mConnections.clear();
+            mConnectionsByConnId.clear();
+            mConnectionsByAppId.clear();
+            mConnectionsByAddress.clear();
         }
 
         synchronized (this) {
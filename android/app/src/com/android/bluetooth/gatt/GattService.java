@@ -59,6 +59,7 @@ import android.net.MacAddress;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.ParcelUuid;
@@ -81,7 +82,6 @@ import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.BluetoothAdapterProxy;
 import com.android.bluetooth.btservice.CompanionManager;
 import com.android.bluetooth.btservice.ProfileService;
-import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.modules.utils.SynchronousResultReceiver;
 
@@ -97,7 +97,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 
@@ -118,7 +119,6 @@ public class GattService extends ProfileService {
 
     private static final int MAC_ADDRESS_LENGTH = 6;
     // Batch scan related constants.
-    private static final int TRUNCATED_RESULT_SIZE = 11;
     private static final int TIME_STAMP_LENGTH = 2;
 
     private enum MatchOrigin {
@@ -251,6 +251,12 @@ public class GattService extends ProfileService {
      * Server handle map.
      */
     HandleMap mHandleMap = new HandleMap();
+
+    /**
+     * Notifications held for congested server connections.
+     */
+    @VisibleForTesting
+    ServerNotificationQueue mServerNotificationQueue = new ServerNotificationQueue();
     private List<UUID> mAdvertisingServiceUuids = new ArrayList<UUID>();
 
     private int mMaxScanFilters;
@@ -286,6 +292,19 @@ public class GattService extends ProfileService {
     private CompanionDeviceManager mCompanionManager;
     private String mExposureNotificationPackage;
     private Handler mTestModeHandler;
+    private HandlerThread mScanResultCoalescerThread;
+    @VisibleForTesting
+    ScanResultCoalescer mScanResultCoalescer;
+    private ExecutorService mScanResultDispatchExecutor;
+    private ExecutorService mScanResultPendingIntentExecutor;
+    private volatile boolean mScanLatencyTrackingEnabled = true;
+    private ExecutorService mBatchScanParseExecutor;
+    private BatchScanReportParser mBatchScanReportParser;
+    @VisibleForTesting
+    ScanResultDispatcher mScanResultDispatcher;
+    @VisibleForTesting
+    final AdvertisementDedupCache mAdvertisementDedupCache =
+            new AdvertisementDedupCache(AdvertisementDedupCache.DEFAULT_MAX_DEVICES);
     private final Object mTestModeLock = new Object();
 
     public static boolean isEnabled() {
@@ -349,6 +368,27 @@ public class GattService extends ProfileService {
         mPeriodicScanManager = new PeriodicScanManager(mAdapterService);
         mPeriodicScanManager.start();
 
+        mBatchScanParseExecutor =
+                Executors.newFixedThreadPool(BatchScanReportParser.DEFAULT_THREAD_COUNT);
+        mBatchScanReportParser = new BatchScanReportParser(mBatchScanParseExecutor,
+                BatchScanReportParser.DEFAULT_THREAD_COUNT,
+                BatchScanReportParser.DEFAULT_PARALLEL_THRESHOLD);
+
+        mScanResultDispatchExecutor =
+                Executors.newFixedThreadPool(ScanResultDispatcher.DEFAULT_THREAD_COUNT);
+        mScanResultPendingIntentExecutor = Executors.newSingleThreadExecutor();
+        mScanResultDispatcher = new ScanResultDispatcher(mScanResultDispatchExecutor,
+                mScanResultPendingIntentExecutor, ScanResultDispatcher.DEFAULT_QUEUE_CAPACITY,
+                scannerId -> mScannerMap.getById(scannerId) != null);
+
+        mScanResultCoalescerThread = new HandlerThread("BluetoothScanResultCoalescer");
+        mScanResultCoalescerThread.start();
+        mScanResultCoalescer = new ScanResultCoalescer(
+                new Handler(mScanResultCoalescerThread.getLooper()),
+                (client, results) -> mScanResultDispatcher.dispatch(client.scannerId,
+                        isPendingIntentScanner(client.scannerId),
+                        () -> deliverCoalescedResults(client, results)));
+
         setGattService(this);
         return true;
     }
@@ -364,6 +404,7 @@ public class GattService extends ProfileService {
         mClientMap.clear();
         mServerMap.clear();
         mHandleMap.clear();
+        mServerNotificationQueue.clear();
         mReliableQueue.clear();
         if (mAdvertiseManager != null) {
             mAdvertiseManager.cleanup();
@@ -374,6 +415,13 @@ public class GattService extends ProfileService {
         if (mPeriodicScanManager != null) {
             mPeriodicScanManager.cleanup();
         }
+        if (mScanResultCoalescer != null) {
+            mScanResultCoalescer.clear();
+        }
+        if (mScanResultDispatcher != null) {
+            mScanResultDispatcher.clear();
+        }
+        mAdvertisementDedupCache.clear();
         return true;
     }
 
@@ -392,6 +440,25 @@ public class GattService extends ProfileService {
         if (mPeriodicScanManager != null) {
             mPeriodicScanManager.cleanup();
         }
+        if (mScanResultCoalescer != null) {
+            mScanResultCoalescer.clear();
+        }
+        if (mScanResultCoalescerThread != null) {
+            mScanResultCoalescerThread.quitSafely();
+            mScanResultCoalescerThread = null;
+        }
+        if (mScanResultDispatchExecutor != null) {
+            mScanResultDispatchExecutor.shutdownNow();
+            mScanResultDispatchExecutor = null;
+        }
+        if (mScanResultPendingIntentExecutor != null) {
+            mScanResultPendingIntentExecutor.shutdownNow();
+            mScanResultPendingIntentExecutor = null;
+        }
+        if (mBatchScanParseExecutor != null) {
+            mBatchScanParseExecutor.shutdownNow();
+            mBatchScanParseExecutor = null;
+        }
     }
 
     // While test mode is enabled, pretend as if the underlying stack
@@ -1396,6 +1463,27 @@ public class GattService extends ProfileService {
                 attributionSource);
         }
 
+        @Override
+        public void sendMulticastNotification(int serverIf, String[] addresses, int handle,
+                boolean confirm, byte[] value, AttributionSource attributionSource,
+                SynchronousResultReceiver receiver) {
+            try {
+                receiver.send(sendMulticastNotification(serverIf, addresses, handle, confirm,
+                            value, attributionSource));
+            } catch (RuntimeException e) {
+                receiver.propagateException(e);
+            }
+        }
+        private int sendMulticastNotification(int serverIf, String[] addresses, int handle,
+                boolean confirm, byte[] value, AttributionSource attributionSource) {
+            GattService service = getService();
+            if (service == null) {
+                return BluetoothStatusCodes.ERROR_PROFILE_SERVICE_NOT_BOUND;
+            }
+            return service.sendMulticastNotification(serverIf, addresses, handle, confirm, value,
+                attributionSource);
+        }
+
         @Override
         public void startAdvertisingSet(AdvertisingSetParameters parameters,
                 AdvertiseData advertiseData, AdvertiseData scanResponse,
@@ -1807,7 +1895,11 @@ public class GattService extends ProfileService {
                     + ", originalAddress=" + originalAddress);
         }
 
+        // Read once, so a report is either fully timed or not at all.
+        final boolean trackLatency = mScanLatencyTrackingEnabled;
+        long stageStart = trackLatency ? SystemClock.elapsedRealtimeNanos() : 0;
         String identityAddress = mAdapterService.getIdentityAddress(address);
+        long resolutionNanos = trackLatency ? SystemClock.elapsedRealtimeNanos() - stageStart : 0;
         if (!address.equals(identityAddress)) {
             if (VDBG) {
                 Log.d(TAG, "found identityAddress of " + address + ", replace originalAddress as "
@@ -1816,8 +1908,10 @@ public class GattService extends ProfileService {
             originalAddress = identityAddress;
         }
 
-
-        byte[] legacyAdvData = Arrays.copyOfRange(advData, 0, 62);
+        ParsedAdvertisement report = new ParsedAdvertisement(eventType, address, primaryPhy,
+                secondaryPhy, advertisingSid, txPower, rssi, periodicAdvInt, advData);
+        ScanFilterIndex filterIndex = mScanManager.getRegularScanFilterIndex();
+        AdvertisementDedupCache.Entry dedupEntry = null;
 
         for (ScanClient client : mScanManager.getRegularScanQueue()) {
             ScannerMap.App app = mScannerMap.getById(client.scannerId);
@@ -1828,48 +1922,54 @@ public class GattService extends ProfileService {
                 continue;
             }
 
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-
             ScanSettings settings = client.settings;
-            byte[] scanRecordData;
             // This is for compability with applications that assume fixed size scan data.
-            if (settings.getLegacy()) {
-                if ((eventType & ET_LEGACY_MASK) == 0) {
-                    // If this is legacy scan, but nonlegacy result - skip.
-                    if (VDBG) {
-                        Log.d(TAG, "Legacy scan, non legacy result; skip.");
-                    }
+            if (settings.getLegacy() && (eventType & ET_LEGACY_MASK) == 0) {
+                // If this is legacy scan, but nonlegacy result - skip.
+                if (VDBG) {
+                    Log.d(TAG, "Legacy scan, non legacy result; skip.");
+                }
+                continue;
+            }
+
+            if ((settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES) == 0) {
+                if (VDBG) {
+                    Log.d(TAG, "Skipping client: CALLBACK_TYPE_ALL_MATCHES");
+                }
+                continue;
+            }
+
+            if (settings.isDuplicateSuppressionEnabled()) {
+                if (dedupEntry == null) {
+                    dedupEntry = mAdvertisementDedupCache.update(address, advData);
+                }
+                // Only reports that were delivered before are suppressed, so a duplicate
+                // would match the client filters and permissions again.
+                if (mAdvertisementDedupCache.isDuplicate(dedupEntry, client.scannerId, rssi,
+                        settings.getDuplicateRssiThreshold())) {
+                    app.appScanStats.addSuppressedResult(client.scannerId);
                     continue;
-                } else {
-                    // Some apps are used to fixed-size advertise data.
-                    scanRecordData = legacyAdvData;
                 }
-            } else {
-                scanRecordData = advData;
             }
 
-            ScanRecord scanRecord = ScanRecord.parseFromBytes(scanRecordData);
-            ScanResult result =
-                    new ScanResult(device, eventType, primaryPhy, secondaryPhy, advertisingSid,
-                            txPower, rssi, periodicAdvInt, scanRecord,
-                            SystemClock.elapsedRealtimeNanos());
+            // The parsed result is shared by every client, it must not be modified. Work shared
+            // by the clients is only timed for the client that triggers it, the next clients
+            // reuse it for free.
+            boolean parseTimed = !report.hasResult(settings.getLegacy());
+            long parseStart = trackLatency ? SystemClock.elapsedRealtimeNanos() : 0;
+            ScanResult result = report.getResult(settings.getLegacy());
+            long parseEnd = trackLatency ? SystemClock.elapsedRealtimeNanos() : 0;
 
             if (client.hasDisavowedLocation) {
-                if (mLocationDenylistPredicate.test(result)) {
+                if (report.isLocationDenylisted(settings.getLegacy(),
+                        mLocationDenylistPredicate)) {
                     Log.i(TAG, "Skipping client for location deny list");
                     continue;
                 }
             }
 
-            boolean hasPermission = hasScanResultPermission(client);
-            if (!hasPermission) {
-                for (String associatedDevice : client.associatedDevices) {
-                    if (associatedDevice.equalsIgnoreCase(address)) {
-                        hasPermission = true;
-                        break;
-                    }
-                }
-            }
+            boolean hasPermission = hasScanResultPermission(client)
+                    || client.isAssociatedDevice(address);
             if (!hasPermission && client.eligibleForSanitizedExposureNotification) {
                 ScanResult sanitized = getSanitizedExposureNotification(result);
                 if (sanitized != null) {
@@ -1877,38 +1977,119 @@ public class GattService extends ProfileService {
                     result = sanitized;
                 }
             }
-            MatchResult matchResult = matchesFilters(client, result, originalAddress);
-            if (!hasPermission || !matchResult.getMatches()) {
+            long permissionEnd = trackLatency ? SystemClock.elapsedRealtimeNanos() : 0;
+            boolean matches;
+            boolean matchTimed = true;
+            if (result == report.getResult(settings.getLegacy()) && filterIndex != null
+                    && filterIndex.contains(client)) {
+                matchTimed = !report.hasMatchingClients(settings.getLegacy());
+                matches = report.getMatchingClients(settings.getLegacy(), filterIndex,
+                        originalAddress).contains(client);
+            } else {
+                // Sanitized results, or clients started after the index snapshot.
+                matches = matchesFilters(client, result, originalAddress).getMatches();
+            }
+            if (trackLatency) {
+                AppScanStats stats = app.appScanStats;
+                // Address resolution runs once per report, so it is recorded once as well
+                if (resolutionNanos >= 0) {
+                    stats.recordStageLatency(AppScanStats.STAGE_ADDRESS_RESOLUTION,
+                            resolutionNanos);
+                    resolutionNanos = -1;
+                }
+                if (parseTimed) {
+                    stats.recordStageLatency(AppScanStats.STAGE_PARSE, parseEnd - parseStart);
+                }
+                stats.recordStageLatency(AppScanStats.STAGE_PERMISSION, permissionEnd - parseEnd);
+                if (matchTimed) {
+                    stats.recordStageLatency(AppScanStats.STAGE_FILTER_MATCH,
+                            SystemClock.elapsedRealtimeNanos() - permissionEnd);
+                }
+            }
+            if (!hasPermission || !matches) {
                 if (VDBG) {
                     Log.d(TAG, "Skipping client: permission="
-                            + hasPermission + " matches=" + matchResult.getMatches());
+                            + hasPermission + " matches=" + matches);
                 }
                 continue;
             }
 
-            if ((settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES) == 0) {
-                if (VDBG) {
-                    Log.d(TAG, "Skipping client: CALLBACK_TYPE_ALL_MATCHES");
-                }
-                continue;
+            if (dedupEntry != null && settings.isDuplicateSuppressionEnabled()) {
+                mAdvertisementDedupCache.markDelivered(dedupEntry, client.scannerId, rssi);
             }
 
-            try {
+            if (ScanResultCoalescer.isCoalescing(settings)) {
                 app.appScanStats.addResult(client.scannerId);
-                if (app.callback != null) {
-                    app.callback.onScanResult(result);
-                } else {
-                    // Send the PendingIntent
-                    ArrayList<ScanResult> results = new ArrayList<>();
-                    results.add(result);
-                    sendResultsByPendingIntent(app.info, results,
-                            ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
-                }
-            } catch (RemoteException | PendingIntent.CanceledException e) {
-                Log.e(TAG, "Exception: " + e);
-                mScannerMap.remove(client.scannerId);
-                mScanManager.stopScan(client.scannerId);
+                mScanResultCoalescer.add(client, result);
+                continue;
             }
+
+            app.appScanStats.addResult(client.scannerId);
+            final ScanResult delivered = result;
+            mScanResultDispatcher.dispatch(client.scannerId, app.callback == null,
+                    () -> deliverScanResult(app, client, delivered));
+        }
+    }
+
+    // Runs on the dispatcher, so a slow app does not hold the stack callback thread.
+    private void deliverScanResult(ScannerMap.App app, ScanClient client, ScanResult result) {
+        final boolean trackLatency = mScanLatencyTrackingEnabled;
+        long start = trackLatency ? SystemClock.elapsedRealtimeNanos() : 0;
+        try {
+            if (app.callback != null) {
+                app.callback.onScanResult(result);
+            } else {
+                // Send the PendingIntent
+                ArrayList<ScanResult> results = new ArrayList<>();
+                results.add(result);
+                sendResultsByPendingIntent(app.info, results,
+                        ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+            }
+            if (trackLatency) {
+                app.appScanStats.recordStageLatency(AppScanStats.STAGE_DELIVERY,
+                        SystemClock.elapsedRealtimeNanos() - start);
+            }
+        } catch (RemoteException | PendingIntent.CanceledException e) {
+            Log.e(TAG, "Exception: " + e);
+            mScannerMap.remove(client.scannerId);
+            mScanManager.stopScan(client.scannerId);
+        }
+    }
+
+    private boolean isPendingIntentScanner(int scannerId) {
+        ScannerMap.App app = mScannerMap.getById(scannerId);
+        return app != null && app.callback == null;
+    }
+
+    /**
+     * Called by {@link ScanManager} once the scan of {@code scannerId} stopped, whether the app
+     * stopped it, died or failed to take a delivery.
+     */
+    void onScanStopped(int scannerId) {
+        mScanResultDispatcher.remove(scannerId);
+        // The scanner id can be reused, drop the results coalesced for the stopped scan and the
+        // reports delivered to it
+        mScanResultCoalescer.remove(scannerId);
+        mAdvertisementDedupCache.removeScanner(scannerId);
+    }
+
+    // Delivers the results coalesced for a client through its batch scan callback.
+    private void deliverCoalescedResults(ScanClient client, List<ScanResult> results) {
+        ScannerMap.App app = mScannerMap.getById(client.scannerId);
+        if (app == null) {
+            return;
+        }
+        try {
+            if (app.callback != null) {
+                app.callback.onBatchScanResults(results);
+            } else {
+                sendResultsByPendingIntent(app.info, new ArrayList<>(results),
+                        ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+            }
+        } catch (RemoteException | PendingIntent.CanceledException e) {
+            Log.e(TAG, "Exception: " + e);
+            mScannerMap.remove(client.scannerId);
+            mScanManager.stopScan(client.scannerId);
         }
     }
 
@@ -1957,7 +2138,7 @@ public class GattService extends ProfileService {
         ScannerMap.App cbApp = mScannerMap.getByUuid(uuid);
         if (cbApp != null) {
             if (status == 0) {
-                cbApp.id = scannerId;
+                mScannerMap.setId(cbApp, scannerId);
                 // If app is callback based, setup a death recipient. App will initiate the start.
                 // Otherwise, if PendingIntent based, start the scan directly.
                 if (cbApp.callback != null) {
@@ -1976,6 +2157,16 @@ public class GattService extends ProfileService {
 
     /** Determines if the given scan client has the appropriate permissions to receive callbacks. */
     private boolean hasScanResultPermission(final ScanClient client) {
+        Boolean cached = client.getCachedScanResultPermission();
+        if (cached != null) {
+            return cached;
+        }
+        boolean hasPermission = checkScanResultPermission(client);
+        client.setCachedScanResultPermission(hasPermission);
+        return hasPermission;
+    }
+
+    private boolean checkScanResultPermission(final ScanClient client) {
         if (client.hasNetworkSettingsPermission
                 || client.hasNetworkSetupWizardPermission
                 || client.hasScanWithoutLocationPermission) {
@@ -2021,7 +2212,7 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByUuid(uuid);
         if (app != null) {
             if (status == 0) {
-                app.id = clientIf;
+                mClientMap.setId(app, clientIf);
                 app.linkToDeath(new ClientDeathRecipient(clientIf));
             } else {
                 mClientMap.remove(uuid);
@@ -2539,7 +2730,7 @@ public class GattService extends ProfileService {
                     + ", reportType=" + reportType + ", numRecords=" + numRecords);
         }
         mScanManager.callbackDone(scannerId, status);
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+        ScanResult[] results = parseBatchScanResults(numRecords, reportType, recordData);
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
             // We only support single client for truncated mode.
             ScannerMap.App app = mScannerMap.getById(scannerId);
@@ -2554,15 +2745,12 @@ public class GattService extends ProfileService {
 
             ArrayList<ScanResult> permittedResults;
             if (hasScanResultPermission(client)) {
-                permittedResults = new ArrayList<ScanResult>(results);
+                permittedResults = new ArrayList<ScanResult>(Arrays.asList(results));
             } else {
                 permittedResults = new ArrayList<ScanResult>();
                 for (ScanResult scanResult : results) {
-                    for (String associatedDevice : client.associatedDevices) {
-                        if (associatedDevice.equalsIgnoreCase(scanResult.getDevice()
-                                    .getAddress())) {
-                            permittedResults.add(scanResult);
-                        }
+                    if (client.isAssociatedDevice(scanResult.getDevice().getAddress())) {
+                        permittedResults.add(scanResult);
                     }
                 }
                 if (permittedResults.isEmpty()) {
@@ -2585,9 +2773,16 @@ public class GattService extends ProfileService {
                 }
             }
         } else {
-            for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
+            Set<ScanClient> clients = mScanManager.getFullBatchScanQueue();
+            if (clients.isEmpty()) {
+                return;
+            }
+            // Match each record once against the filters of all the clients.
+            Map<ScanClient, List<ScanResult>> matches =
+                    mBatchScanReportParser.match(results, new ScanFilterIndex(clients));
+            for (ScanClient client : clients) {
                 // Deliver results for each client.
-                deliverBatchScan(client, results);
+                deliverBatchScan(client, results, matches.get(client));
             }
         }
     }
@@ -2609,23 +2804,20 @@ public class GattService extends ProfileService {
     }
 
     // Check and deliver scan results for different scan clients.
-    private void deliverBatchScan(ScanClient client, Set<ScanResult> allResults)
-            throws RemoteException {
+    private void deliverBatchScan(ScanClient client, ScanResult[] allResults,
+            List<ScanResult> matchedResults) throws RemoteException {
         ScannerMap.App app = mScannerMap.getById(client.scannerId);
         if (app == null) {
             return;
         }
 
-        ArrayList<ScanResult> permittedResults;
-        if (hasScanResultPermission(client)) {
-            permittedResults = new ArrayList<ScanResult>(allResults);
-        } else {
+        boolean hasPermission = hasScanResultPermission(client);
+        ArrayList<ScanResult> permittedResults = null;
+        if (!hasPermission) {
             permittedResults = new ArrayList<ScanResult>();
             for (ScanResult scanResult : allResults) {
-                for (String associatedDevice : client.associatedDevices) {
-                    if (associatedDevice.equalsIgnoreCase(scanResult.getDevice().getAddress())) {
-                        permittedResults.add(scanResult);
-                    }
+                if (client.isAssociatedDevice(scanResult.getDevice().getAddress())) {
+                    permittedResults.add(scanResult);
                 }
             }
             if (permittedResults.isEmpty()) {
@@ -2634,117 +2826,45 @@ public class GattService extends ProfileService {
         }
 
         if (client.filters == null || client.filters.isEmpty()) {
+            if (permittedResults == null) {
+                permittedResults = new ArrayList<ScanResult>(Arrays.asList(allResults));
+            }
             sendBatchScanResults(app, client, permittedResults);
             // TODO: Question to reviewer: Shouldn't there be a return here?
         }
         // Reconstruct the scan results.
         ArrayList<ScanResult> results = new ArrayList<ScanResult>();
-        for (ScanResult scanResult : permittedResults) {
-            if (matchesFilters(client, scanResult).getMatches()) {
-                results.add(scanResult);
+        if (matchedResults != null) {
+            for (ScanResult scanResult : matchedResults) {
+                if (hasPermission
+                        || client.isAssociatedDevice(scanResult.getDevice().getAddress())) {
+                    results.add(scanResult);
+                }
             }
         }
         sendBatchScanResults(app, client, results);
     }
 
-    private Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
+    private ScanResult[] parseBatchScanResults(int numRecords, int reportType,
             byte[] batchRecord) {
         if (numRecords == 0) {
-            return Collections.emptySet();
+            return new ScanResult[0];
         }
+        long now = SystemClock.elapsedRealtimeNanos();
         if (DBG) {
-            Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
+            Log.d(TAG, "current time is " + now);
+            Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
         }
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
-            return parseTruncatedResults(numRecords, batchRecord);
+            return mBatchScanReportParser.parseTruncatedResults(numRecords, batchRecord, now);
         } else {
-            return parseFullResults(numRecords, batchRecord);
-        }
-    }
-
-    private Set<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
-        if (DBG) {
-            Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
-        }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        long now = SystemClock.elapsedRealtimeNanos();
-        for (int i = 0; i < numRecords; ++i) {
-            byte[] record =
-                    extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE, TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]), rssi,
-                    timestampNanos));
+            return mBatchScanReportParser.parseFullResults(numRecords, batchRecord, now);
         }
-        return results;
     }
 
     @VisibleForTesting
     long parseTimestampNanos(byte[] data) {
-        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
-        // Timestamp is in every 50 ms.
-        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
-    }
-
-    private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        if (DBG) {
-            Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
-        }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        int position = 0;
-        long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-            position += 6;
-            // Skip address type.
-            position++;
-            // Skip tx power level.
-            position++;
-            int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
-
-            // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
-            position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
-            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord, advertisePacketLen,
-                    scanResponsePacketLen);
-            if (DBG) {
-                Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
-            }
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord), rssi,
-                    timestampNanos));
-        }
-        return results;
-    }
-
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
-        }
-    }
-
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
+        return BatchScanReportParser.parseTimestampNanos(data);
     }
 
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_SCAN)
@@ -3918,7 +4038,7 @@ public class GattService extends ProfileService {
         }
         ServerMap.App app = mServerMap.getByUuid(uuid);
         if (app != null) {
-            app.id = serverIf;
+            mServerMap.setId(app, serverIf);
             app.linkToDeath(new ServerDeathRecipient(serverIf));
             app.callback.onServerRegistered(status, serverIf);
         }
@@ -4007,6 +4127,7 @@ public class GattService extends ProfileService {
             connectionState = BluetoothProtoEnums.CONNECTION_STATE_CONNECTED;
         } else {
             mServerMap.removeConnection(serverIf, connId);
+            mServerNotificationQueue.removeConnection(connId);
             connectionState = BluetoothProtoEnums.CONNECTION_STATE_DISCONNECTED;
         }
 
@@ -4169,6 +4290,12 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onServerCongestion() - connId=" + connId + ", congested=" + congested);
         }
 
+        for (ServerNotificationQueue.Notification notification
+                : mServerNotificationQueue.setCongested(connId, congested)) {
+            gattServerSendNotificationNative(notification.serverIf, notification.handle, connId,
+                    notification.value);
+        }
+
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) {
             return;
@@ -4428,12 +4555,52 @@ public class GattService extends ProfileService {
         if (confirm) {
             gattServerSendIndicationNative(serverIf, handle, connId, value);
         } else {
+            // A value multicast earlier and held for congestion would overwrite this one.
+            mServerNotificationQueue.discard(connId, handle);
             gattServerSendNotificationNative(serverIf, handle, connId, value);
         }
 
         return BluetoothStatusCodes.SUCCESS;
     }
 
+    /**
+     * Sends the same notification or indication to several connected devices.
+     *
+     * Notifications to a congested connection are held until the congestion clears, only the
+     * latest value of each attribute being kept. Indications are always handed to the stack.
+     */
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    int sendMulticastNotification(int serverIf, String[] addresses, int handle, boolean confirm,
+            byte[] value, AttributionSource attributionSource) {
+        if (!Utils.checkConnectPermissionForDataDelivery(
+                this, attributionSource, "GattService sendMulticastNotification")) {
+            return BluetoothStatusCodes.ERROR_MISSING_BLUETOOTH_CONNECT_PERMISSION;
+        }
+
+        if (VDBG) {
+            Log.d(TAG, "sendMulticastNotification() - devices=" + addresses.length
+                    + " handle=" + handle);
+        }
+
+        int result = BluetoothStatusCodes.SUCCESS;
+        for (String address : addresses) {
+            Integer connId = mServerMap.connIdByAddress(serverIf, address);
+            if (connId == null || connId == 0) {
+                result = BluetoothStatusCodes.ERROR_DEVICE_NOT_CONNECTED;
+                continue;
+            }
+
+            if (confirm) {
+                gattServerSendIndicationNative(serverIf, handle, connId, value);
+            } else if (!mServerNotificationQueue.holdIfCongested(connId, serverIf, handle,
+                    value)) {
+                gattServerSendNotificationNative(serverIf, handle, connId, value);
+            }
+        }
+
+        return result;
+    }
+
 
     /**************************************************************************
      * Private functions
@@ -4596,6 +4763,10 @@ public class GattService extends ProfileService {
                         .setReportDelay(floor)
                         .setScanMode(settings.getScanMode())
                         .setScanResultType(settings.getScanResultType())
+                        .setCoalescing(settings.getCoalescingWindowMillis(),
+                                settings.getCoalescingMaxResults())
+                        .setDuplicateSuppression(settings.isDuplicateSuppressionEnabled(),
+                                settings.getDuplicateRssiThreshold())
                         .build();
             }
         } finally {
@@ -4609,10 +4780,8 @@ public class GattService extends ProfileService {
         }
 
         if (status == 0) {
-            List<HandleMap.Entry> entries = mHandleMap.getEntries();
-            for (HandleMap.Entry entry : entries) {
-                if (entry.type != HandleMap.TYPE_SERVICE || entry.serverIf != serverIf
-                        || !entry.started) {
+            for (HandleMap.Entry entry : mHandleMap.getServices(serverIf)) {
+                if (!entry.started) {
                     continue;
                 }
 
@@ -4632,11 +4801,7 @@ public class GattService extends ProfileService {
          * The handles are copied into a new list to avoid race conditions.
          */
         List<Integer> handleList = new ArrayList<Integer>();
-        List<HandleMap.Entry> entries = mHandleMap.getEntries();
-        for (HandleMap.Entry entry : entries) {
-            if (entry.type != HandleMap.TYPE_SERVICE || entry.serverIf != serverIf) {
-                continue;
-            }
+        for (HandleMap.Entry entry : mHandleMap.getServices(serverIf)) {
             handleList.add(entry.handle);
         }
 
@@ -4662,6 +4827,22 @@ public class GattService extends ProfileService {
         sb.append("\n\n");
     }
 
+    /**
+     * Enables or disables timing the stages of the regular scan result path.
+     */
+    public void setScanLatencyTrackingEnabled(boolean enabled) {
+        Log.i(TAG, "setScanLatencyTrackingEnabled() - enabled=" + enabled);
+        mScanLatencyTrackingEnabled = enabled;
+    }
+
+    /**
+     * Clears the scan result latencies recorded for every app.
+     */
+    public void resetScanLatencies() {
+        Log.i(TAG, "resetScanLatencies()");
+        mScannerMap.resetStageLatencies();
+    }
+
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
@@ -4689,6 +4870,14 @@ public class GattService extends ProfileService {
 
         sb.append("GATT Handle Map\n");
         mHandleMap.dump(sb);
+
+        sb.append("GATT Server Notifications\n");
+        mServerNotificationQueue.dump(sb);
+
+        sb.append("GATT Scan Result Latency Tracking: ")
+                .append(mScanLatencyTrackingEnabled ? "enabled" : "disabled").append("\n");
+        sb.append("GATT Scan Result Dispatcher\n");
+        mScanResultDispatcher.dump(sb);
     }
 
     void addScanEvent(BluetoothMetricsProto.ScanEvent event) {
@@ -17,11 +17,14 @@ package com.android.bluetooth.gatt;
 
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 class HandleMap {
     private static final boolean DBG = GattServiceConfig.DBG;
@@ -82,39 +85,54 @@ class HandleMap {
         }
     }
 
-    List<Entry> mEntries = null;
+    // All entries in insertion order. Adding an attribute does not copy the other entries, and
+    // iteration never throws ConcurrentModificationException.
+    private final Queue<Entry> mEntries = new ConcurrentLinkedQueue<Entry>();
+    // First entry of each handle in insertion order, used by lookups from incoming requests.
+    private final Map<Integer, Entry> mEntriesByHandle = new ConcurrentHashMap<Integer, Entry>();
+    // Service entries of each server in insertion order.
+    private final Map<Integer, Queue<Entry>> mServicesByServerIf =
+            new ConcurrentHashMap<Integer, Queue<Entry>>();
     Map<Integer, Integer> mRequestMap = null;
     int mLastCharacteristic = 0;
 
     HandleMap() {
-        mEntries = new CopyOnWriteArrayList<Entry>();
         mRequestMap = new ConcurrentHashMap<Integer, Integer>();
     }
 
     void clear() {
         mEntries.clear();
+        mEntriesByHandle.clear();
+        mServicesByServerIf.clear();
         mRequestMap.clear();
     }
 
+    private void addEntry(Entry entry) {
+        mEntries.add(entry);
+        mEntriesByHandle.putIfAbsent(entry.handle, entry);
+    }
+
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance,
             boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        Entry entry = new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred);
+        addEntry(entry);
+        mServicesByServerIf.computeIfAbsent(serverIf, k -> new ConcurrentLinkedQueue<Entry>())
+                .add(entry);
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        addEntry(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
+        addEntry(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
                 mLastCharacteristic));
     }
 
     void setStarted(int serverIf, int handle, boolean started) {
-        for (Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE || entry.serverIf != serverIf
-                    || entry.handle != handle) {
+        for (Entry entry : getServices(serverIf)) {
+            if (entry.handle != handle) {
                 continue;
             }
 
@@ -124,18 +142,25 @@ class HandleMap {
     }
 
     Entry getByHandle(int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.handle == handle) {
-                return entry;
-            }
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null) {
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
+        return entry;
     }
 
     boolean checkServiceExists(UUID uuid, int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE && entry.handle == handle && entry.uuid.equals(uuid)) {
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.type == TYPE_SERVICE && entry.uuid.equals(uuid)) {
+            return true;
+        }
+        // Handles are unique within the local database, only a handle shared by a service and an
+        // earlier entry needs the full scan.
+        for (Entry other : mEntries) {
+            if (other.type == TYPE_SERVICE && other.handle == handle && other.uuid.equals(uuid)) {
                 return true;
             }
         }
@@ -143,12 +168,46 @@ class HandleMap {
     }
 
     void deleteService(int serverIf, int serviceHandle) {
-        mEntries.removeIf(entry -> ((entry.serverIf == serverIf)
-                && (entry.handle == serviceHandle || entry.serviceHandle == serviceHandle)));
+        List<Entry> removed = new ArrayList<Entry>();
+        mEntries.removeIf(entry -> {
+            if ((entry.serverIf == serverIf)
+                    && (entry.handle == serviceHandle || entry.serviceHandle == serviceHandle)) {
+                removed.add(entry);
+                return true;
+            }
+            return false;
+        });
+
+        Queue<Entry> services = mServicesByServerIf.get(serverIf);
+        for (Entry entry : removed) {
+            if (services != null && entry.type == TYPE_SERVICE) {
+                services.remove(entry);
+            }
+            if (mEntriesByHandle.remove(entry.handle, entry)) {
+                // Another entry may share the handle, index the first remaining one.
+                for (Entry other : mEntries) {
+                    if (other.handle == entry.handle) {
+                        mEntriesByHandle.putIfAbsent(other.handle, other);
+                        break;
+                    }
+                }
+            }
+        }
     }
 
+    /**
+     * Returns a snapshot of all the entries in insertion order.
+     */
     List<Entry> getEntries() {
-        return mEntries;
+        return new ArrayList<Entry>(mEntries);
+    }
+
+    /**
+     * Returns a snapshot of the service entries of a server in insertion order.
+     */
+    List<Entry> getServices(int serverIf) {
+        Queue<Entry> services = mServicesByServerIf.get(serverIf);
+        return services == null ? Collections.emptyList() : new ArrayList<Entry>(services);
     }
 
     void addRequest(int requestId, int handle) {
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size latency histogram that can be recorded into from any thread without locking.
+ * @hide
+ */
+/* package */ class LatencyHistogram {
+    // Upper bound of each bucket in microseconds, the last bucket has no upper bound.
+    static final long[] BUCKET_UPPER_BOUNDS_US = {10, 50, 100, 500, 1000, 5000, 10000, 50000};
+
+    private final AtomicLongArray mBuckets =
+            new AtomicLongArray(BUCKET_UPPER_BOUNDS_US.length + 1);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < BUCKET_UPPER_BOUNDS_US.length
+                && micros >= BUCKET_UPPER_BOUNDS_US[bucket]) {
+            bucket++;
+        }
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    long getBucketCount(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < mBuckets.length(); i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    /**
+     * Appends the count, average, max and bucket counts on a single line.
+     */
+    void dump(StringBuilder sb) {
+        long count = mCount.get();
+        sb.append("count=").append(count);
+        if (count == 0) {
+            return;
+        }
+        sb.append(" avg=").append(mTotalNanos.get() / count / 1000).append("us")
+                .append(" max=").append(mMaxNanos.get() / 1000).append("us [");
+        for (int i = 0; i < mBuckets.length(); i++) {
+            if (i > 0) {
+                sb.append(" ");
+            }
+            if (i < BUCKET_UPPER_BOUNDS_US.length) {
+                sb.append("<").append(BUCKET_UPPER_BOUNDS_US[i]);
+            } else {
+                sb.append(">=").append(BUCKET_UPPER_BOUNDS_US[i - 1]);
+            }
+            sb.append(":").append(mBuckets.get(i));
+        }
+        sb.append("]");
+    }
+}
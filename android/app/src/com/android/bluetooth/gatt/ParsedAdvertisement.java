@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Helper class holding a single advertising report received from the stack.
+ *
+ * The {@link ScanResult} delivered to scan clients is built lazily and at most once per
+ * flavour (legacy truncated data, or full extended data), so every client interested in
+ * the report shares the same parsed {@link ScanRecord} instead of re-parsing the payload.
+ * @hide
+ */
+/* package */ class ParsedAdvertisement {
+    // Some apps are used to fixed-size advertise data for legacy scans.
+    static final int LEGACY_ADV_DATA_LENGTH = 62;
+
+    private final int mEventType;
+    private final String mAddress;
+    private final int mPrimaryPhy;
+    private final int mSecondaryPhy;
+    private final int mAdvertisingSid;
+    private final int mTxPower;
+    private final int mRssi;
+    private final int mPeriodicAdvInt;
+    private final byte[] mAdvData;
+    private final long mTimestampNanos;
+
+    private BluetoothDevice mDevice;
+    private ScanResult mLegacyResult;
+    private ScanResult mExtendedResult;
+    private Set<ScanClient> mLegacyMatches;
+    private Set<ScanClient> mExtendedMatches;
+    private Boolean mLegacyDenylisted;
+    private Boolean mExtendedDenylisted;
+
+    ParsedAdvertisement(int eventType, String address, int primaryPhy, int secondaryPhy,
+            int advertisingSid, int txPower, int rssi, int periodicAdvInt, byte[] advData) {
+        mEventType = eventType;
+        mAddress = address;
+        mPrimaryPhy = primaryPhy;
+        mSecondaryPhy = secondaryPhy;
+        mAdvertisingSid = advertisingSid;
+        mTxPower = txPower;
+        mRssi = rssi;
+        mPeriodicAdvInt = periodicAdvInt;
+        mAdvData = advData;
+        mTimestampNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    int getEventType() {
+        return mEventType;
+    }
+
+    /**
+     * Returns the shared {@link ScanResult} for this report.
+     *
+     * @param legacy true to get the result built over the fixed-size legacy payload
+     */
+    ScanResult getResult(boolean legacy) {
+        if (legacy) {
+            if (mLegacyResult == null) {
+                mLegacyResult = buildResult(
+                        Arrays.copyOfRange(mAdvData, 0, LEGACY_ADV_DATA_LENGTH));
+            }
+            return mLegacyResult;
+        }
+        if (mExtendedResult == null) {
+            mExtendedResult = buildResult(mAdvData);
+        }
+        return mExtendedResult;
+    }
+
+    /**
+     * Returns true if the shared {@link ScanResult} of this flavour was already built.
+     */
+    boolean hasResult(boolean legacy) {
+        return (legacy ? mLegacyResult : mExtendedResult) != null;
+    }
+
+    /**
+     * Returns the clients of {@code index} whose filters match the shared result, computed at
+     * most once per flavour.
+     */
+    Set<ScanClient> getMatchingClients(boolean legacy, ScanFilterIndex index,
+            String originalAddress) {
+        if (legacy) {
+            if (mLegacyMatches == null) {
+                mLegacyMatches = index.match(getResult(true), originalAddress);
+            }
+            return mLegacyMatches;
+        }
+        if (mExtendedMatches == null) {
+            mExtendedMatches = index.match(getResult(false), originalAddress);
+        }
+        return mExtendedMatches;
+    }
+
+    /**
+     * Returns true if the matching clients of this flavour were already computed.
+     */
+    boolean hasMatchingClients(boolean legacy) {
+        return (legacy ? mLegacyMatches : mExtendedMatches) != null;
+    }
+
+    /**
+     * Returns true if the shared result is matched by the location {@code denylist}, evaluated
+     * at most once per flavour.
+     */
+    boolean isLocationDenylisted(boolean legacy, Predicate<ScanResult> denylist) {
+        if (legacy) {
+            if (mLegacyDenylisted == null) {
+                mLegacyDenylisted = denylist.test(getResult(true));
+            }
+            return mLegacyDenylisted;
+        }
+        if (mExtendedDenylisted == null) {
+            mExtendedDenylisted = denylist.test(getResult(false));
+        }
+        return mExtendedDenylisted;
+    }
+
+    private ScanResult buildResult(byte[] scanRecordData) {
+        if (mDevice == null) {
+            mDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(mAddress);
+        }
+        // Fields of the record are only decoded if a filter or the denylist reads them.
+        ScanRecord scanRecord = ScanRecord.parseFromBytesLazy(scanRecordData);
+        return new ScanResult(mDevice, mEventType, mPrimaryPhy, mSecondaryPhy, mAdvertisingSid,
+                mTxPower, mRssi, mPeriodicAdvInt, scanRecord, mTimestampNanos);
+    }
+}
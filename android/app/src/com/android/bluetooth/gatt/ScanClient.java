@@ -21,8 +21,12 @@ import android.bluetooth.le.ScanSettings;
 import android.os.Binder;
 import android.os.UserHandle;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * Helper class identifying a client that has requested LE scan results.
@@ -50,6 +54,14 @@ import java.util.Objects;
 
     public AppScanStats stats = null;
 
+    // Cached result of the scan result permission check, null until computed. Cleared when the
+    // location setting changes, the only input of the check that is not fixed at scan start.
+    private volatile Boolean mScanResultPermission;
+
+    // Upper-cased copy of associatedDevices, rebuilt if the list is replaced.
+    private List<String> mIndexedAssociatedDevices;
+    private Set<String> mAssociatedDeviceSet = Collections.emptySet();
+
     private static final ScanSettings DEFAULT_SCAN_SETTINGS =
             new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
 
@@ -95,6 +107,40 @@ import java.util.Objects;
         return sb.toString();
     }
 
+    Boolean getCachedScanResultPermission() {
+        return mScanResultPermission;
+    }
+
+    void setCachedScanResultPermission(boolean hasPermission) {
+        mScanResultPermission = hasPermission;
+    }
+
+    /**
+     * Forgets the cached scan result permission, so it is checked again on the next result.
+     */
+    void invalidateScanResultPermission() {
+        mScanResultPermission = null;
+    }
+
+    /**
+     * Returns true if {@code address} is one of the companion devices associated with the app.
+     * The address is expected in the upper-case form used by the stack.
+     */
+    synchronized boolean isAssociatedDevice(String address) {
+        if (associatedDevices != mIndexedAssociatedDevices) {
+            mIndexedAssociatedDevices = associatedDevices;
+            if (associatedDevices == null || associatedDevices.isEmpty()) {
+                mAssociatedDeviceSet = Collections.emptySet();
+            } else {
+                mAssociatedDeviceSet = new HashSet<>();
+                for (String device : associatedDevices) {
+                    mAssociatedDeviceSet.add(device.toUpperCase(Locale.ROOT));
+                }
+            }
+        }
+        return address != null && mAssociatedDeviceSet.contains(address);
+    }
+
     /**
      * Update scan settings with the new scan mode.
      * @param newScanMode
@@ -114,6 +160,10 @@ import java.util.Objects;
                 .setMatchMode(settings.getMatchMode())
                 .setLegacy(settings.getLegacy())
                 .setPhy(settings.getPhy())
+                .setCoalescing(settings.getCoalescingWindowMillis(),
+                        settings.getCoalescingMaxResults())
+                .setDuplicateSuppression(settings.isDuplicateSuppressionEnabled(),
+                        settings.getDuplicateRssiThreshold())
                 .build();
         return true;
     }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import com.android.bluetooth.BdAddr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable index over the software scan filters of a set of scan clients.
+ *
+ * Each filter is bucketed by its most selective exact-match key (device address, manufacturer
+ * id, service data UUID or unmasked service UUID), so matching a scan result only runs
+ * {@link ScanFilter#matches} on the filters whose key appears in the result, plus the residual
+ * filters that have no such key. The index is rebuilt by {@link ScanManager} whenever the set
+ * of regular scan clients changes and is read lock-free from the scan result path.
+ * @hide
+ */
+/* package */ class ScanFilterIndex {
+    static final ScanFilterIndex EMPTY = new ScanFilterIndex(Collections.emptyList());
+
+    private static class Entry {
+        final ScanClient client;
+        final ScanFilter filter;
+
+        Entry(ScanClient client, ScanFilter filter) {
+            this.client = client;
+            this.filter = filter;
+        }
+    }
+
+    private final Set<ScanClient> mClients = new HashSet<>();
+    private final Set<ScanClient> mUnfilteredClients = new HashSet<>();
+    // Keyed by the long value of the filtered addresses, see BdAddr
+    private final Map<Long, List<Entry>> mByAddress = new HashMap<>();
+    private final SparseArray<List<Entry>> mByManufacturerId = new SparseArray<>();
+    private final Map<ParcelUuid, List<Entry>> mByServiceDataUuid = new HashMap<>();
+    private final Map<ParcelUuid, List<Entry>> mByServiceUuid = new HashMap<>();
+    private final List<Entry> mResidual = new ArrayList<>();
+    private int mFilterCount;
+
+    ScanFilterIndex(Collection<ScanClient> clients) {
+        for (ScanClient client : clients) {
+            mClients.add(client);
+            if (client.filters == null || client.filters.isEmpty()) {
+                mUnfilteredClients.add(client);
+                continue;
+            }
+            for (ScanFilter filter : client.filters) {
+                addEntry(new Entry(client, filter));
+            }
+        }
+    }
+
+    private void addEntry(Entry entry) {
+        ScanFilter filter = entry.filter;
+        mFilterCount++;
+        long address = BdAddr.toLong(filter.getDeviceAddress());
+        if (address != BdAddr.INVALID) {
+            mByAddress.computeIfAbsent(address, k -> new ArrayList<>()).add(entry);
+        } else if (filter.getDeviceAddress() != null) {
+            mResidual.add(entry);
+        } else if (filter.getManufacturerId() >= 0) {
+            List<Entry> bucket = mByManufacturerId.get(filter.getManufacturerId());
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                mByManufacturerId.put(filter.getManufacturerId(), bucket);
+            }
+            bucket.add(entry);
+        } else if (filter.getServiceDataUuid() != null) {
+            mByServiceDataUuid.computeIfAbsent(filter.getServiceDataUuid(),
+                    k -> new ArrayList<>()).add(entry);
+        } else if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+            mByServiceUuid.computeIfAbsent(filter.getServiceUuid(),
+                    k -> new ArrayList<>()).add(entry);
+        } else {
+            mResidual.add(entry);
+        }
+    }
+
+    /**
+     * Returns true if the filters of {@code client} were indexed.
+     */
+    boolean contains(ScanClient client) {
+        return mClients.contains(client);
+    }
+
+    /**
+     * Returns the total number of indexed filters.
+     */
+    int getFilterCount() {
+        return mFilterCount;
+    }
+
+    /**
+     * Returns the indexed clients that have at least one filter matching {@code scanResult}, or
+     * a filter on {@code originalAddress} when the result was received with a pseudo address.
+     * Clients without filters always match.
+     */
+    Set<ScanClient> match(ScanResult scanResult, String originalAddress) {
+        Set<ScanClient> matched = new HashSet<>(mUnfilteredClients);
+        if (mFilterCount == 0) {
+            return matched;
+        }
+        BluetoothDevice device = scanResult.getDevice();
+        if (device != null) {
+            matchBucket(mByAddress.get(BdAddr.toLong(device.getAddress())), scanResult, matched);
+        }
+        if (originalAddress != null && !mByAddress.isEmpty()) {
+            List<Entry> bucket = mByAddress.get(BdAddr.toLong(originalAddress));
+            if (bucket != null) {
+                for (Entry entry : bucket) {
+                    matched.add(entry.client);
+                }
+            }
+        }
+        ScanRecord scanRecord = scanResult.getScanRecord();
+        if (scanRecord != null) {
+            if (mByManufacturerId.size() > 0) {
+                SparseArray<byte[]> manufacturerData = scanRecord.getManufacturerSpecificData();
+                for (int i = 0; manufacturerData != null && i < manufacturerData.size(); i++) {
+                    matchBucket(mByManufacturerId.get(manufacturerData.keyAt(i)), scanResult,
+                            matched);
+                }
+            }
+            if (!mByServiceDataUuid.isEmpty() && scanRecord.getServiceData() != null) {
+                for (ParcelUuid uuid : scanRecord.getServiceData().keySet()) {
+                    matchBucket(mByServiceDataUuid.get(uuid), scanResult, matched);
+                }
+            }
+            if (!mByServiceUuid.isEmpty() && scanRecord.getServiceUuids() != null) {
+                for (ParcelUuid uuid : scanRecord.getServiceUuids()) {
+                    matchBucket(mByServiceUuid.get(uuid), scanResult, matched);
+                }
+            }
+        }
+        matchBucket(mResidual, scanResult, matched);
+        return matched;
+    }
+
+    private static void matchBucket(List<Entry> bucket, ScanResult scanResult,
+            Set<ScanClient> matched) {
+        if (bucket == null) {
+            return;
+        }
+        for (Entry entry : bucket) {
+            if (!matched.contains(entry.client) && entry.filter.matches(scanResult)) {
+                matched.add(entry.client);
+            }
+        }
+    }
+}
@@ -120,6 +120,7 @@ public class ScanManager {
     private BluetoothAdapterProxy mBluetoothAdapterProxy;
 
     private Set<ScanClient> mRegularScanClients;
+    private volatile ScanFilterIndex mRegularScanFilterIndex = ScanFilterIndex.EMPTY;
     private Set<ScanClient> mBatchClients;
     private Set<ScanClient> mSuspendedScanClients;
     private SparseIntArray mPriorityMap = new SparseIntArray();
@@ -192,6 +193,7 @@ public class ScanManager {
 
     void cleanup() {
         mRegularScanClients.clear();
+        mRegularScanFilterIndex = ScanFilterIndex.EMPTY;
         mBatchClients.clear();
         mSuspendedScanClients.clear();
         mScanNative.cleanup();
@@ -241,6 +243,18 @@ public class ScanManager {
         return mRegularScanClients;
     }
 
+    /**
+     * Returns the software filter index over the regular scan queue.
+     */
+    ScanFilterIndex getRegularScanFilterIndex() {
+        return mRegularScanFilterIndex;
+    }
+
+    // Must be called whenever a client is added to or removed from the regular scan queue.
+    private void updateRegularScanFilterIndex() {
+        mRegularScanFilterIndex = new ScanFilterIndex(mRegularScanClients);
+    }
+
     /**
      * Returns the suspended scan queue.
      */
@@ -411,6 +425,7 @@ public class ScanManager {
             } else {
                 updateScanModeBeforeStart(client);
                 mRegularScanClients.add(client);
+                updateRegularScanFilterIndex();
                 mScanNative.startRegularScan(client);
                 if (!mScanNative.isOpportunisticScanClient(client)) {
                     mScanNative.configureRegularScanParams();
@@ -464,6 +479,7 @@ public class ScanManager {
             } else {
                 mScanNative.stopBatchScan(client);
             }
+            mService.onScanStopped(client.scannerId);
             if (client.appDied) {
                 if (DBG) {
                     Log.d(TAG, "app died, unregister scanner - " + client.scannerId);
@@ -1067,6 +1083,7 @@ public class ScanManager {
                 }
             }
             mRegularScanClients.remove(client);
+            updateRegularScanFilterIndex();
             if (numRegularScanClients() == 0) {
                 if (DBG) {
                     Log.d(TAG, "stop gattClientScanNative");
@@ -1117,6 +1134,10 @@ public class ScanManager {
             builder.setScanResultType(settings.getScanResultType());
             builder.setReportDelay(settings.getReportDelayMillis());
             builder.setNumOfMatches(settings.getNumOfMatches());
+            builder.setCoalescing(settings.getCoalescingWindowMillis(),
+                    settings.getCoalescingMaxResults());
+            builder.setDuplicateSuppression(settings.isDuplicateSuppressionEnabled(),
+                    settings.getDuplicateRssiThreshold());
             client.settings = builder.build();
         }
 
@@ -1639,6 +1660,7 @@ public class ScanManager {
                 public void onReceive(Context context, Intent intent) {
                     String action = intent.getAction();
                     if (LocationManager.MODE_CHANGED_ACTION.equals(action)) {
+                        invalidateScanResultPermissions();
                         final boolean locationEnabled = mLocationManager.isLocationEnabled();
                         if (locationEnabled) {
                             sendMessage(MSG_RESUME_SCANS, null);
@@ -1649,6 +1671,19 @@ public class ScanManager {
                 }
             };
 
+    // The scan result permission of a client depends on the location setting of its user.
+    private void invalidateScanResultPermissions() {
+        for (ScanClient client : mRegularScanClients) {
+            client.invalidateScanResultPermission();
+        }
+        for (ScanClient client : mBatchClients) {
+            client.invalidateScanResultPermission();
+        }
+        for (ScanClient client : mSuspendedScanClients) {
+            client.invalidateScanResultPermission();
+        }
+    }
+
     private void handleImportanceChange(UidImportance imp) {
         if (imp == null) {
             return;
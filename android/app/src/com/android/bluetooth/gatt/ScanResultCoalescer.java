@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces regular scan results of the clients that opted in through
+ * {@link ScanSettings.Builder#setCoalescing}, so they are delivered in a single batch per window
+ * instead of one binder call per advertisement.
+ * @hide
+ */
+/* package */ class ScanResultCoalescer {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "ScanResultCoalescer";
+
+    /**
+     * Receives the coalesced results of a client, called without holding any lock.
+     */
+    interface Callback {
+        void onCoalescedResults(ScanClient client, List<ScanResult> results);
+    }
+
+    // Results pending for one client during the current window.
+    private static class Buffer {
+        final ScanClient client;
+        final ArrayList<ScanResult> results = new ArrayList<>();
+        // Position in results of the last advertisement received from each device.
+        final Map<String, Integer> lastIndexByAddress = new HashMap<>();
+
+        Buffer(ScanClient client) {
+            this.client = client;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final SparseArray<Buffer> mBuffers = new SparseArray<>();
+
+    ScanResultCoalescer(Handler handler, Callback callback) {
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Returns true if results of a scan with the given settings should be coalesced.
+     */
+    static boolean isCoalescing(ScanSettings settings) {
+        return settings.getCoalescingWindowMillis() > 0
+                && settings.getReportDelayMillis() == 0
+                && (settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0;
+    }
+
+    /**
+     * Queues a result for {@code client}. An advertisement identical to the last one received
+     * from the same device in the current window replaces it instead of being queued again.
+     */
+    void add(ScanClient client, ScanResult result) {
+        ScanSettings settings = client.settings;
+        Buffer full = null;
+        synchronized (mBuffers) {
+            Buffer buffer = mBuffers.get(client.scannerId);
+            if (buffer == null) {
+                buffer = new Buffer(client);
+                mBuffers.put(client.scannerId, buffer);
+                final Buffer timed = buffer;
+                mHandler.postDelayed(() -> flush(timed), buffer,
+                        settings.getCoalescingWindowMillis());
+            }
+            String address = result.getDevice() == null ? null : result.getDevice().getAddress();
+            Integer lastIndex = address == null ? null : buffer.lastIndexByAddress.get(address);
+            if (lastIndex != null
+                    && isSamePayload(buffer.results.get(lastIndex).getScanRecord(),
+                            result.getScanRecord())) {
+                buffer.results.set(lastIndex, result);
+            } else {
+                if (address != null) {
+                    buffer.lastIndexByAddress.put(address, buffer.results.size());
+                }
+                buffer.results.add(result);
+            }
+            if (settings.getCoalescingMaxResults() > 0
+                    && buffer.results.size() >= settings.getCoalescingMaxResults()) {
+                mBuffers.remove(client.scannerId);
+                mHandler.removeCallbacksAndMessages(buffer);
+                full = buffer;
+            }
+        }
+        if (full != null) {
+            mCallback.onCoalescedResults(full.client, full.results);
+        }
+    }
+
+    /**
+     * Drops the pending results of a client, e.g. when its scan is stopped.
+     */
+    void remove(int scannerId) {
+        synchronized (mBuffers) {
+            Buffer buffer = mBuffers.get(scannerId);
+            if (buffer != null) {
+                mBuffers.remove(scannerId);
+                mHandler.removeCallbacksAndMessages(buffer);
+            }
+        }
+    }
+
+    /**
+     * Drops the pending results of every client.
+     */
+    void clear() {
+        synchronized (mBuffers) {
+            for (int i = 0; i < mBuffers.size(); i++) {
+                mHandler.removeCallbacksAndMessages(mBuffers.valueAt(i));
+            }
+            mBuffers.clear();
+        }
+    }
+
+    private void flush(Buffer buffer) {
+        synchronized (mBuffers) {
+            if (mBuffers.get(buffer.client.scannerId) != buffer) {
+                // Already delivered because it was full, or dropped.
+                return;
+            }
+            mBuffers.remove(buffer.client.scannerId);
+        }
+        if (DBG) {
+            Log.d(TAG, "flush() - scannerId=" + buffer.client.scannerId + ", results="
+                    + buffer.results.size());
+        }
+        mCallback.onCoalescedResults(buffer.client, buffer.results);
+    }
+
+    private static boolean isSamePayload(ScanRecord first, ScanRecord second) {
+        if (first == null || second == null) {
+            return first == second;
+        }
+        return Arrays.equals(first.getBytes(), second.getBytes());
+    }
+}
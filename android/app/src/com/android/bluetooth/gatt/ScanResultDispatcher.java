@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntPredicate;
+
+/**
+ * Delivers scan results to apps off the stack callback thread.
+ *
+ * Each scanner gets its own bounded FIFO queue, drained by at most one worker of the shared
+ * executor at a time so results keep their order. When a queue is full the oldest pending
+ * delivery is dropped, so a slow or hung app only loses its own results and never delays the
+ * other scanners. Scanners delivering through a PendingIntent are drained on their own executor,
+ * so they cannot starve the workers of the callback scanners.
+ * @hide
+ */
+/* package */ class ScanResultDispatcher {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "ScanResultDispatcher";
+
+    static final int DEFAULT_THREAD_COUNT = 4;
+    static final int DEFAULT_QUEUE_CAPACITY = 128;
+
+    // Deliveries run for a scanner before yielding the worker to other scanners.
+    @VisibleForTesting
+    static final int MAX_DELIVERIES_PER_DRAIN = 16;
+
+    private static class ClientQueue {
+        final int scannerId;
+        final Executor executor;
+        final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+        boolean draining;
+        // Set when the scanner stopped while a worker was draining the queue. The worker retires
+        // the queue once done, unless the scanner id dispatched again in the meantime.
+        boolean closed;
+        long dispatched;
+        long dropped;
+
+        ClientQueue(int scannerId, Executor executor) {
+            this.scannerId = scannerId;
+            this.executor = executor;
+        }
+    }
+
+    private final Executor mExecutor;
+    private final Executor mPendingIntentExecutor;
+    private final int mCapacity;
+    private final IntPredicate mIsRegistered;
+    private final SparseArray<ClientQueue> mQueues = new SparseArray<>();
+    private long mTotalDropped;
+
+    /**
+     * @param isRegistered whether a scanner id is registered, checked before opening a queue so
+     *        that a delivery racing with {@link #remove} does not outlive the scan
+     */
+    ScanResultDispatcher(Executor executor, Executor pendingIntentExecutor, int capacity,
+            IntPredicate isRegistered) {
+        mExecutor = executor;
+        mPendingIntentExecutor = pendingIntentExecutor;
+        mCapacity = capacity;
+        mIsRegistered = isRegistered;
+    }
+
+    /**
+     * Queues {@code delivery} for {@code scannerId}, dropping its oldest pending delivery if the
+     * queue is full. The delivery is dropped if the scanner is no longer registered and its
+     * queue was removed.
+     *
+     * @param pendingIntent whether the scanner delivers its results through a PendingIntent
+     */
+    void dispatch(int scannerId, boolean pendingIntent, Runnable delivery) {
+        ClientQueue queue;
+        synchronized (mQueues) {
+            queue = mQueues.get(scannerId);
+            if ((queue == null || queue.closed) && !mIsRegistered.test(scannerId)) {
+                // Produced before the scan stopped, but dispatched after
+                if (DBG) {
+                    Log.d(TAG, "dispatch() - scannerId=" + scannerId + " not registered");
+                }
+                return;
+            }
+            if (queue == null) {
+                queue = new ClientQueue(scannerId,
+                        pendingIntent ? mPendingIntentExecutor : mExecutor);
+                mQueues.put(scannerId, queue);
+            }
+            queue.closed = false;
+            if (queue.pending.size() >= mCapacity) {
+                queue.pending.pollFirst();
+                queue.dropped++;
+                mTotalDropped++;
+                if (DBG) {
+                    Log.d(TAG, "dispatch() - queue full, dropping oldest for scannerId="
+                            + scannerId);
+                }
+            }
+            queue.pending.addLast(delivery);
+            if (queue.draining) {
+                return;
+            }
+            queue.draining = true;
+        }
+        schedule(queue);
+    }
+
+    private void schedule(ClientQueue queue) {
+        try {
+            queue.executor.execute(() -> drain(queue));
+        } catch (RejectedExecutionException e) {
+            // The executor is shut down with the service, nothing is delivered anymore.
+            Log.w(TAG, "Dropping deliveries to scannerId=" + queue.scannerId + ", shut down");
+            synchronized (mQueues) {
+                queue.pending.clear();
+                queue.draining = false;
+                retireIfClosedLocked(queue);
+            }
+        }
+    }
+
+    private void drain(ClientQueue queue) {
+        for (int i = 0; i < MAX_DELIVERIES_PER_DRAIN; i++) {
+            Runnable delivery;
+            synchronized (mQueues) {
+                delivery = queue.pending.pollFirst();
+                if (delivery == null) {
+                    queue.draining = false;
+                    retireIfClosedLocked(queue);
+                    return;
+                }
+                queue.dispatched++;
+            }
+            try {
+                delivery.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Exception while delivering to scannerId=" + queue.scannerId, e);
+            }
+        }
+        synchronized (mQueues) {
+            if (queue.pending.isEmpty()) {
+                queue.draining = false;
+                retireIfClosedLocked(queue);
+                return;
+            }
+        }
+        // Let the other scanners use the worker before delivering the rest.
+        schedule(queue);
+    }
+
+    private void retireIfClosedLocked(ClientQueue queue) {
+        if (queue.closed && mQueues.get(queue.scannerId) == queue) {
+            mQueues.remove(queue.scannerId);
+        }
+    }
+
+    /**
+     * Drops the pending deliveries of {@code scannerId} once its scan stopped. A delivery being
+     * run completes, and the queue is kept until then so that a new scan reusing the scanner id
+     * is delivered after it.
+     */
+    void remove(int scannerId) {
+        synchronized (mQueues) {
+            ClientQueue queue = mQueues.get(scannerId);
+            if (queue == null) {
+                return;
+            }
+            queue.pending.clear();
+            queue.closed = true;
+            if (!queue.draining) {
+                mQueues.remove(scannerId);
+            }
+        }
+    }
+
+    /**
+     * Drops all pending deliveries.
+     */
+    void clear() {
+        synchronized (mQueues) {
+            for (int i = mQueues.size() - 1; i >= 0; i--) {
+                ClientQueue queue = mQueues.valueAt(i);
+                queue.pending.clear();
+                queue.closed = true;
+                if (!queue.draining) {
+                    mQueues.removeAt(i);
+                }
+            }
+        }
+    }
+
+    long getDroppedCount(int scannerId) {
+        synchronized (mQueues) {
+            ClientQueue queue = mQueues.get(scannerId);
+            return queue == null ? 0 : queue.dropped;
+        }
+    }
+
+    void dump(StringBuilder sb) {
+        synchronized (mQueues) {
+            sb.append("  Total dropped: ").append(mTotalDropped).append("\n");
+            for (int i = 0; i < mQueues.size(); i++) {
+                ClientQueue queue = mQueues.valueAt(i);
+                sb.append("  scannerId: ").append(queue.scannerId)
+                        .append(", pending: ").append(queue.pending.size())
+                        .append(", dispatched: ").append(queue.dispatched)
+                        .append(", dropped: ").append(queue.dropped)
+                        .append(queue.closed ? ", stopped" : "")
+                        .append("\n");
+            }
+        }
+    }
+}
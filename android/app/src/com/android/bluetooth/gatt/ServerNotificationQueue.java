@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the notifications multicast to GATT server connections while they are congested.
+ *
+ * Only the latest value of each attribute is kept per connection, so a state broadcast to many
+ * peers never piles up behind a slow one. Held notifications are sent in their original order
+ * once the congestion of their connection clears.
+ * @hide
+ */
+/* package */ class ServerNotificationQueue {
+
+    /**
+     * Notification held for a congested connection.
+     */
+    static class Notification {
+        final int serverIf;
+        final int handle;
+        final byte[] value;
+
+        Notification(int serverIf, int handle, byte[] value) {
+            this.serverIf = serverIf;
+            this.handle = handle;
+            this.value = value;
+        }
+    }
+
+    private final Set<Integer> mCongestedConnIds = new HashSet<>();
+    // Held notifications of each congested connection by handle, in the order they were held.
+    private final Map<Integer, LinkedHashMap<Integer, Notification>> mHeld = new HashMap<>();
+    private long mSupersededCount;
+
+    /**
+     * Holds the notification if {@code connId} is congested.
+     *
+     * @return true if the notification was held, false if it should be sent now
+     */
+    synchronized boolean holdIfCongested(int connId, int serverIf, int handle, byte[] value) {
+        if (!mCongestedConnIds.contains(connId)) {
+            return false;
+        }
+        Notification previous = mHeld.computeIfAbsent(connId, k -> new LinkedHashMap<>())
+                .put(handle, new Notification(serverIf, handle, value));
+        if (previous != null) {
+            mSupersededCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Drops the notification held for {@code handle} on {@code connId}, once a newer value was
+     * sent directly.
+     */
+    synchronized void discard(int connId, int handle) {
+        Map<Integer, Notification> held = mHeld.get(connId);
+        if (held != null && held.remove(handle) != null) {
+            mSupersededCount++;
+        }
+    }
+
+    /**
+     * Updates the congestion state of {@code connId}.
+     *
+     * @return the notifications to send now that the connection is no longer congested
+     */
+    synchronized List<Notification> setCongested(int connId, boolean congested) {
+        if (congested) {
+            mCongestedConnIds.add(connId);
+            return Collections.emptyList();
+        }
+        mCongestedConnIds.remove(connId);
+        Map<Integer, Notification> held = mHeld.remove(connId);
+        return held == null ? Collections.emptyList() : new ArrayList<>(held.values());
+    }
+
+    /**
+     * Forgets the state of a closed connection.
+     */
+    synchronized void removeConnection(int connId) {
+        mCongestedConnIds.remove(connId);
+        mHeld.remove(connId);
+    }
+
+    synchronized void clear() {
+        mCongestedConnIds.clear();
+        mHeld.clear();
+    }
+
+    synchronized int getHeldCount() {
+        int count = 0;
+        for (Map<Integer, Notification> held : mHeld.values()) {
+            count += held.size();
+        }
+        return count;
+    }
+
+    synchronized long getSupersededCount() {
+        return mSupersededCount;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Congested connections: ").append(mCongestedConnIds.size())
+                .append(", held notifications: ").append(getHeldCount())
+                .append(", superseded: ").append(mSupersededCount).append("\n");
+    }
+}
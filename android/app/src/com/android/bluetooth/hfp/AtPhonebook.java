@@ -26,6 +26,9 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.PhoneLookup;
@@ -72,6 +75,12 @@ public class AtPhonebook {
     private static final String INCOMING_CALL_WHERE = Calls.TYPE + "=" + Calls.INCOMING_TYPE;
     private static final String MISSED_CALL_WHERE = Calls.TYPE + "=" + Calls.MISSED_TYPE;
 
+    /** A snapshot of the phonebook is reused by the AT+CPBR commands received within this
+     *  delay of its creation, as car kits read the whole phonebook in small ranges. Its cursor
+     *  is closed once it expires. */
+    @VisibleForTesting
+    static final long SNAPSHOT_TIMEOUT_MS = 10000;
+
     @VisibleForTesting
     class PhonebookResult {
         public Cursor cursor; // result set of last query
@@ -79,6 +88,12 @@ public class AtPhonebook {
         public int numberPresentationColumn;
         public int typeColumn;
         public int nameColumn;
+        // +CPBR responses of the entries already read by AT+CPBR, indexed by entry
+        public String[] records;
+        public String recordsCharacterSet;
+        public long recordsTimestamp; // creation time of the snapshot
+        // caller id names looked up for the records, by number
+        public HashMap<String, String> callerIdNames;
     }
 
     private Context mContext;
@@ -100,6 +115,9 @@ public class AtPhonebook {
     final HashMap<String, PhonebookResult> mPhonebooks =
             new HashMap<String, PhonebookResult>(4);
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSnapshotExpiry = this::invalidateSnapshots;
+
     static final int TYPE_UNKNOWN = -1;
     static final int TYPE_READ = 0;
     static final int TYPE_SET = 1;
@@ -118,7 +136,14 @@ public class AtPhonebook {
         mCpbrIndex1 = mCpbrIndex2 = -1;
     }
 
-    public void cleanup() {
+    public synchronized void cleanup() {
+        mHandler.removeCallbacks(mSnapshotExpiry);
+        for (PhonebookResult pbr : mPhonebooks.values()) {
+            if (pbr.cursor != null) {
+                pbr.cursor.close();
+                pbr.cursor = null;
+            }
+        }
         mPhonebooks.clear();
     }
 
@@ -194,6 +219,7 @@ public class AtPhonebook {
                 if (characterSet.equals("GSM") || characterSet.equals("IRA") || characterSet.equals(
                         "UTF-8") || characterSet.equals("UTF8")) {
                     mCharacterSet = characterSet;
+                    invalidateSnapshots();
                     atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 } else {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_SUPPORTED;
@@ -266,6 +292,7 @@ public class AtPhonebook {
                     break;
                 }
                 mCurrentPhonebook = pb;
+                invalidateSnapshots();
                 atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 break;
             case TYPE_UNKNOWN:
@@ -433,6 +460,8 @@ public class AtPhonebook {
             pbr.cursor.close();
             pbr.cursor = null;
         }
+        pbr.records = null;
+        pbr.callerIdNames = null;
 
         if (ancillaryPhonebook) {
             Bundle queryArgs = new Bundle();
@@ -475,6 +504,65 @@ public class AtPhonebook {
         mCharacterSet = "UTF-8";
         mCpbrIndex1 = mCpbrIndex2 = -1;
         mCheckingAccessPermission = false;
+        invalidateSnapshots();
+    }
+
+    @VisibleForTesting
+    synchronized void invalidateSnapshots() {
+        mHandler.removeCallbacks(mSnapshotExpiry);
+        for (PhonebookResult pbr : mPhonebooks.values()) {
+            if (pbr.records == null) {
+                continue;
+            }
+            // The cursor belongs to the snapshot, no other command is using it
+            if (pbr.cursor != null) {
+                pbr.cursor.close();
+                pbr.cursor = null;
+            }
+            pbr.records = null;
+            pbr.callerIdNames = null;
+        }
+    }
+
+    /** Get the phonebook result used to answer AT+CPBR, reusing the snapshot of the previous
+     *  AT+CPBR read command if it was received recently.
+     *  Returns null if the phonebook could not be queried
+     */
+    @VisibleForTesting
+    synchronized PhonebookResult getPhonebookSnapshot(String pb) {
+        PhonebookResult pbr = mPhonebooks.get(pb);
+        long now = SystemClock.elapsedRealtime();
+        if (pbr != null && pbr.records != null && pbr.cursor != null
+                && mCharacterSet.equals(pbr.recordsCharacterSet)
+                && now - pbr.recordsTimestamp < SNAPSHOT_TIMEOUT_MS) {
+            return pbr;
+        }
+        pbr = getPhonebookResult(pb, true);
+        if (pbr == null) {
+            return null;
+        }
+        pbr.records = new String[pbr.cursor.getCount()];
+        pbr.callerIdNames = new HashMap<String, String>();
+        pbr.recordsCharacterSet = mCharacterSet;
+        pbr.recordsTimestamp = now;
+        mHandler.removeCallbacks(mSnapshotExpiry);
+        mHandler.postDelayed(mSnapshotExpiry, SNAPSHOT_TIMEOUT_MS);
+        return pbr;
+    }
+
+    /** Get the +CPBR response of the given entry of the snapshot, formatting it on first use.
+     *  Caller id lookups are done once per distinct number of the snapshot.
+     *  Returns null if the snapshot was invalidated since it was taken
+     */
+    private synchronized String getPhonebookRecord(PhonebookResult pbr, int index) {
+        if (pbr.records == null || pbr.cursor == null || index > pbr.records.length) {
+            return null;
+        }
+        if (pbr.records[index - 1] == null) {
+            pbr.cursor.moveToPosition(index - 1);
+            pbr.records[index - 1] = formatRecord(pbr, index, pbr.callerIdNames);
+        }
+        return pbr.records[index - 1];
     }
 
     @VisibleForTesting
@@ -505,9 +593,6 @@ public class AtPhonebook {
         log("processCpbrCommand");
         int atCommandResult = HeadsetHalConstants.AT_RESPONSE_ERROR;
         int atCommandErrorCode = -1;
-        String atCommandResponse = null;
-        StringBuilder response = new StringBuilder();
-        String record;
 
         // Shortcut SM phonebook
         if ("SM".equals(mCurrentPhonebook)) {
@@ -516,7 +601,7 @@ public class AtPhonebook {
         }
 
         // Check phonebook
-        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+        PhonebookResult pbr = getPhonebookSnapshot(mCurrentPhonebook);
         if (pbr == null) {
             Log.e(TAG, "pbr is null");
             atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
@@ -527,110 +612,120 @@ public class AtPhonebook {
         // Send OK instead of ERROR if these checks fail.
         // When we send error, certain kits like BMW disconnect the
         // Handsfree connection.
-        if (pbr.cursor.getCount() == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1
-                || mCpbrIndex1 > pbr.cursor.getCount()) {
+        // The snapshot may expire on the main thread at any time
+        String[] records = pbr.records;
+        int count = records == null ? 0 : records.length;
+        if (count == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1
+                || mCpbrIndex1 > count) {
             atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
             Log.e(TAG, "Invalid request or no results, returning");
             return atCommandResult;
         }
 
-        if (mCpbrIndex2 > pbr.cursor.getCount()) {
+        if (mCpbrIndex2 > count) {
             Log.w(TAG, "max index requested is greater than number of records"
                     + " available, resetting it");
-            mCpbrIndex2 = pbr.cursor.getCount();
+            mCpbrIndex2 = count;
         }
         // Process
         atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
-        int errorDetected = -1; // no error
-        pbr.cursor.moveToPosition(mCpbrIndex1 - 1);
         log("mCpbrIndex1 = " + mCpbrIndex1 + " and mCpbrIndex2 = " + mCpbrIndex2);
         for (int index = mCpbrIndex1; index <= mCpbrIndex2; index++) {
-            String number = pbr.cursor.getString(pbr.numberColumn);
-            String name = null;
-            int type = -1;
-            if (pbr.nameColumn == -1 && number != null && number.length() > 0) {
-                // try caller id lookup
-                // TODO: This code is horribly inefficient. I saw it
-                // take 7 seconds to process 100 missed calls.
-                Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mContentResolver,
-                        Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
-                        new String[]{
-                                PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
-                        }, null, null, null);
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        name = c.getString(0);
-                        type = c.getInt(1);
-                    }
-                    c.close();
-                }
-                if (DBG && name == null) {
-                    log("Caller ID lookup failed for " + number);
-                }
-
-            } else if (pbr.nameColumn != -1) {
-                name = pbr.cursor.getString(pbr.nameColumn);
-            } else {
-                log("processCpbrCommand: empty name and number");
-            }
-            if (name == null) {
-                name = "";
-            }
-            name = name.trim();
-            if (name.length() > 28) {
-                name = name.substring(0, 28);
+            String record = getPhonebookRecord(pbr, index);
+            if (record == null) {
+                // The phonebook was refreshed while answering
+                break;
             }
+            mNativeInterface.atResponseString(device, record);
+        }
+        return atCommandResult;
+    }
 
-            if (pbr.typeColumn != -1) {
-                type = pbr.cursor.getInt(pbr.typeColumn);
-                name = name + "/" + getPhoneType(type);
+    private String lookupCallerIdName(String number) {
+        String name = null;
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mContentResolver,
+                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
+                new String[]{
+                        PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
+                }, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                name = c.getString(0);
             }
+            c.close();
+        }
+        if (DBG && name == null) {
+            log("Caller ID lookup failed for " + number);
+        }
+        return name;
+    }
 
-            if (number == null) {
-                number = "";
+    // format the +CPBR response of the entry at the current position of the cursor
+    private String formatRecord(PhonebookResult pbr, int index,
+            HashMap<String, String> callerIdNames) {
+        String number = pbr.cursor.getString(pbr.numberColumn);
+        String name = null;
+        int type = -1;
+        if (pbr.nameColumn == -1 && number != null && number.length() > 0) {
+            // try caller id lookup, once per number as call logs repeat them a lot
+            if (callerIdNames.containsKey(number)) {
+                name = callerIdNames.get(number);
+            } else {
+                name = lookupCallerIdName(number);
+                callerIdNames.put(number, name);
             }
-            int regionType = PhoneNumberUtils.toaFromString(number);
+        } else if (pbr.nameColumn != -1) {
+            name = pbr.cursor.getString(pbr.nameColumn);
+        } else {
+            log("processCpbrCommand: empty name and number");
+        }
+        if (name == null) {
+            name = "";
+        }
+        name = name.trim();
+        if (name.length() > 28) {
+            name = name.substring(0, 28);
+        }
 
-            number = number.trim();
-            number = PhoneNumberUtils.stripSeparators(number);
-            if (number.length() > 30) {
-                number = number.substring(0, 30);
-            }
-            int numberPresentation = Calls.PRESENTATION_ALLOWED;
-            if (pbr.numberPresentationColumn != -1) {
-                numberPresentation = pbr.cursor.getInt(pbr.numberPresentationColumn);
-            }
-            if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
-                number = "";
-                // TODO: there are 3 types of numbers should have resource
-                // strings for: unknown, private, and payphone
-                name = mContext.getString(R.string.unknownNumber);
-            }
+        if (pbr.typeColumn != -1) {
+            type = pbr.cursor.getInt(pbr.typeColumn);
+            name = name + "/" + getPhoneType(type);
+        }
 
-            // TODO(): Handle IRA commands. It's basically
-            // a 7 bit ASCII character set.
-            if (!name.isEmpty() && mCharacterSet.equals("GSM")) {
-                byte[] nameByte = GsmAlphabet.stringToGsm8BitPacked(name);
-                if (nameByte == null) {
-                    name = mContext.getString(R.string.unknownNumber);
-                } else {
-                    name = new String(nameByte);
-                }
-            }
+        if (number == null) {
+            number = "";
+        }
+        int regionType = PhoneNumberUtils.toaFromString(number);
 
-            record = "+CPBR: " + index + ",\"" + number + "\"," + regionType + ",\"" + name + "\"";
-            record = record + "\r\n\r\n";
-            atCommandResponse = record;
-            mNativeInterface.atResponseString(device, atCommandResponse);
-            if (!pbr.cursor.moveToNext()) {
-                break;
-            }
+        number = number.trim();
+        number = PhoneNumberUtils.stripSeparators(number);
+        if (number.length() > 30) {
+            number = number.substring(0, 30);
         }
-        if (pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
+        int numberPresentation = Calls.PRESENTATION_ALLOWED;
+        if (pbr.numberPresentationColumn != -1) {
+            numberPresentation = pbr.cursor.getInt(pbr.numberPresentationColumn);
         }
-        return atCommandResult;
+        if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
+            number = "";
+            // TODO: there are 3 types of numbers should have resource
+            // strings for: unknown, private, and payphone
+            name = mContext.getString(R.string.unknownNumber);
+        }
+
+        // TODO(): Handle IRA commands. It's basically
+        // a 7 bit ASCII character set.
+        if (!name.isEmpty() && mCharacterSet.equals("GSM")) {
+            byte[] nameByte = GsmAlphabet.stringToGsm8BitPacked(name);
+            if (nameByte == null) {
+                name = mContext.getString(R.string.unknownNumber);
+            } else {
+                name = new String(nameByte);
+            }
+        }
+
+        return "+CPBR: " + index + ",\"" + number + "\"," + regionType + ",\"" + name + "\""
+                + "\r\n\r\n";
     }
 
     /**
@@ -1413,15 +1413,21 @@ public class BluetoothMapContent {
         return e;
     }
 
-    /* TODO: Change to use SmsMmsContacts.getContactNameFromPhone() with proper use of
-     *       caching. */
+    /**
+     * Get the name of the contact matching {@code phone}, through the {@link ContactNameCache}
+     * shared by the MAS instances.
+     */
     public static String getContactNameFromPhone(String phone, ContentResolver resolver) {
-        String name = null;
         //Handle possible exception for empty phone address
         if (TextUtils.isEmpty(phone)) {
-            return name;
+            return null;
         }
+        return ContactNameCache.getInstance().getName(phone,
+                p -> queryContactNameFromPhone(p, resolver));
+    }
 
+    private static String queryContactNameFromPhone(String phone, ContentResolver resolver) {
+        String name = null;
         Uri uri =
                 Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, Uri.encode(phone));
 
@@ -2225,6 +2231,98 @@ public class BluetoothMapContent {
         }
     }
 
+    /**
+     * Cursor of one message type of a message listing, sorted by date, newest first.
+     */
+    private static class ListingSource {
+        final Cursor mCursor;
+        final int mMsgType;
+        // The element of the next matching message of the cursor, null once it is exhausted
+        BluetoothMapMessageListingElement mNext;
+
+        ListingSource(Cursor cursor, int msgType) {
+            mCursor = cursor;
+            mMsgType = msgType;
+        }
+    }
+
+    private void selectListingSource(ListingSource source, FilterInfo fi) {
+        if (fi.mMsgType == source.mMsgType) {
+            return;
+        }
+        fi.mMsgType = source.mMsgType;
+        // Email and IM share the message column indexes, reload them when switching cursor
+        if (source.mMsgType == FilterInfo.TYPE_EMAIL) {
+            fi.setEmailMessageColumns(source.mCursor);
+        } else if (source.mMsgType == FilterInfo.TYPE_IM) {
+            fi.setImMessageColumns(source.mCursor);
+        }
+    }
+
+    private void moveToNextListingElement(ListingSource source, FilterInfo fi,
+            BluetoothMapAppParams ap) {
+        selectListingSource(source, fi);
+        boolean filterAddresses =
+                source.mMsgType == FilterInfo.TYPE_SMS || source.mMsgType == FilterInfo.TYPE_MMS;
+        source.mNext = null;
+        while (source.mCursor.moveToNext()) {
+            if (!filterAddresses || matchAddresses(source.mCursor, fi, ap)) {
+                if (V) {
+                    BluetoothMapUtils.printCursor(source.mCursor);
+                }
+                source.mNext = element(source.mCursor, fi, ap);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Merges the messages of the listing sources, newest first, and adds the {@code count}
+     * elements following the first {@code offset} ones to {@code bmList}.
+     *
+     * Messages with the same date are kept in the order of the sources, as the stable sort of the
+     * whole listing would. The messages outside of the segment are still visited to find out
+     * whether the listing has unread messages, but are not kept.
+     * @return the source of each element added to {@code bmList}
+     */
+    private List<ListingSource> mergeListing(BluetoothMapMessageListing bmList,
+            List<ListingSource> sources, FilterInfo fi, BluetoothMapAppParams ap, int count,
+            int offset) {
+        if (count <= 0) {
+            count = Integer.MAX_VALUE;
+        }
+        List<ListingSource> segmentSources = new ArrayList<>();
+        for (ListingSource source : sources) {
+            moveToNextListingElement(source, fi, ap);
+        }
+        while (true) {
+            ListingSource newest = null;
+            for (ListingSource source : sources) {
+                if (source.mNext != null
+                        && (newest == null || source.mNext.compareTo(newest.mNext) < 0)) {
+                    newest = source;
+                }
+            }
+            if (newest == null) {
+                break;
+            }
+            if (offset > 0) {
+                offset--;
+                bmList.addUnlisted(newest.mNext);
+            } else if (bmList.getCount() < count) {
+                bmList.add(newest.mNext);
+                segmentSources.add(newest);
+            } else if (bmList.hasUnread()) {
+                // Nothing left to learn from the messages after the segment
+                break;
+            } else {
+                bmList.addUnlisted(newest.mNext);
+            }
+            moveToNextListingElement(newest, fi, ap);
+        }
+        return segmentSources;
+    }
+
     /**
      * Get a listing of message in folder after applying filter.
      * @param folderElement Must contain a valid folder string != null
@@ -2263,7 +2361,7 @@ public class BluetoothMapContent {
         Cursor emailCursor = null;
         Cursor imCursor = null;
         String limit = "";
-        int countNum = ap.getMaxListCount();
+        List<ListingSource> sources = new ArrayList<>(4);
         int offsetNum = ap.getStartOffset();
         if (ap.getMaxListCount() > 0) {
             limit = " LIMIT " + (ap.getMaxListCount() + ap.getStartOffset());
@@ -2295,21 +2393,12 @@ public class BluetoothMapContent {
                             Sms.CONTENT_URI, SMS_PROJECTION, where, null,
                             Sms.DATE + " DESC" + limit);
                     if (smsCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         if (D) {
                             Log.d(TAG, "Found " + smsCursor.getCount() + " sms messages.");
                         }
                         fi.setSmsColumns(smsCursor);
-                        while (smsCursor.moveToNext()) {
-                            if (matchAddresses(smsCursor, fi, ap)) {
-                                if (V) {
-                                    BluetoothMapUtils.printCursor(smsCursor);
-                                }
-                                e = element(smsCursor, fi, ap);
-                                bmList.add(e);
-                            }
-                        }
+                        sources.add(new ListingSource(smsCursor, FilterInfo.TYPE_SMS));
                     }
                 }
             }
@@ -2338,21 +2427,12 @@ public class BluetoothMapContent {
                             Mms.CONTENT_URI, MMS_PROJECTION, where, null,
                             Mms.DATE + " DESC" + limit);
                     if (mmsCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         fi.setMmsColumns(mmsCursor);
                         if (D) {
                             Log.d(TAG, "Found " + mmsCursor.getCount() + " mms messages.");
                         }
-                        while (mmsCursor.moveToNext()) {
-                            if (matchAddresses(mmsCursor, fi, ap)) {
-                                if (V) {
-                                    BluetoothMapUtils.printCursor(mmsCursor);
-                                }
-                                e = element(mmsCursor, fi, ap);
-                                bmList.add(e);
-                            }
-                        }
+                        sources.add(new ListingSource(mmsCursor, FilterInfo.TYPE_MMS));
                     }
                 }
             }
@@ -2382,21 +2462,12 @@ public class BluetoothMapContent {
                             contentUri, BluetoothMapContract.BT_MESSAGE_PROJECTION, where, null,
                             BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
                     if (emailCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         fi.setEmailMessageColumns(emailCursor);
-                        int cnt = 0;
                         if (D) {
                             Log.d(TAG, "Found " + emailCursor.getCount() + " email messages.");
                         }
-                        while (emailCursor.moveToNext()) {
-                            if (V) {
-                                BluetoothMapUtils.printCursor(emailCursor);
-                            }
-                            e = element(emailCursor, fi, ap);
-                            bmList.add(e);
-                        }
-                        //   emailCursor.close();
+                        sources.add(new ListingSource(emailCursor, FilterInfo.TYPE_EMAIL));
                     }
                 }
             }
@@ -2425,68 +2496,44 @@ public class BluetoothMapContent {
                         contentUri, BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION, where, null,
                         BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
                 if (imCursor != null) {
-                    BluetoothMapMessageListingElement e = null;
                     // store column index so we dont have to look them up anymore (optimization)
                     fi.setImMessageColumns(imCursor);
                     if (D) {
                         Log.d(TAG, "Found " + imCursor.getCount() + " im messages.");
                     }
-                    while (imCursor.moveToNext()) {
-                        if (V) {
-                            BluetoothMapUtils.printCursor(imCursor);
-                        }
-                        e = element(imCursor, fi, ap);
-                        bmList.add(e);
-                    }
+                    sources.add(new ListingSource(imCursor, FilterInfo.TYPE_IM));
                 }
             }
 
-            /* Enable this if post sorting and segmenting needed */
-            bmList.sort();
-            bmList.segment(ap.getMaxListCount(), offsetNum);
+            /* Each cursor is already sorted by date, so merge them rather than sorting all the
+             * messages, and only keep the elements of the requested segment. */
+            List<ListingSource> segmentSources = mergeListing(bmList, sources, fi, ap,
+                    ap.getMaxListCount(), offsetNum);
             List<BluetoothMapMessageListingElement> list = bmList.getList();
             int listSize = list.size();
-            Cursor tmpCursor = null;
             for (int x = 0; x < listSize; x++) {
                 BluetoothMapMessageListingElement ele = list.get(x);
-                /* If OBEX "GET" request header includes "ParameterMask" with 'Type' NOT set,
-                 * then ele.getType() returns "null" even for a valid cursor.
-                 * Avoid NullPointerException in equals() check when 'mType' value is "null" */
-                TYPE tmpType = ele.getType();
-                if (smsCursor != null && ((TYPE.SMS_GSM).equals(tmpType) || (TYPE.SMS_CDMA).equals(
-                        tmpType))) {
-                    tmpCursor = smsCursor;
-                    fi.mMsgType = FilterInfo.TYPE_SMS;
-                } else if (mmsCursor != null && (TYPE.MMS).equals(tmpType)) {
-                    tmpCursor = mmsCursor;
-                    fi.mMsgType = FilterInfo.TYPE_MMS;
-                } else if (emailCursor != null && ((TYPE.EMAIL).equals(tmpType))) {
-                    tmpCursor = emailCursor;
-                    fi.mMsgType = FilterInfo.TYPE_EMAIL;
-                } else if (imCursor != null && ((TYPE.IM).equals(tmpType))) {
-                    tmpCursor = imCursor;
-                    fi.mMsgType = FilterInfo.TYPE_IM;
-                }
-                if (tmpCursor != null) {
-                    tmpCursor.moveToPosition(ele.getCursorIndex());
-                    setSenderAddressing(ele, tmpCursor, fi, ap);
-                    setSenderName(ele, tmpCursor, fi, ap);
-                    setRecipientAddressing(ele, tmpCursor, fi, ap);
-                    setRecipientName(ele, tmpCursor, fi, ap);
-                    setSubject(ele, tmpCursor, fi, ap);
-                    setSize(ele, tmpCursor, fi, ap);
-                    setText(ele, tmpCursor, fi, ap);
-                    setPriority(ele, tmpCursor, fi, ap);
-                    setSent(ele, tmpCursor, fi, ap);
-                    setProtected(ele, tmpCursor, fi, ap);
-                    setReceptionStatus(ele, tmpCursor, fi, ap);
-                    setAttachment(ele, tmpCursor, fi, ap);
-
-                    if (mMsgListingVersion > BluetoothMapUtils.MAP_MESSAGE_LISTING_FORMAT_V10) {
-                        setDeliveryStatus(ele, tmpCursor, fi, ap);
-                        setThreadId(ele, tmpCursor, fi, ap);
-                        setThreadName(ele, tmpCursor, fi, ap);
-                    }
+                ListingSource source = segmentSources.get(x);
+                selectListingSource(source, fi);
+                Cursor tmpCursor = source.mCursor;
+                tmpCursor.moveToPosition(ele.getCursorIndex());
+                setSenderAddressing(ele, tmpCursor, fi, ap);
+                setSenderName(ele, tmpCursor, fi, ap);
+                setRecipientAddressing(ele, tmpCursor, fi, ap);
+                setRecipientName(ele, tmpCursor, fi, ap);
+                setSubject(ele, tmpCursor, fi, ap);
+                setSize(ele, tmpCursor, fi, ap);
+                setText(ele, tmpCursor, fi, ap);
+                setPriority(ele, tmpCursor, fi, ap);
+                setSent(ele, tmpCursor, fi, ap);
+                setProtected(ele, tmpCursor, fi, ap);
+                setReceptionStatus(ele, tmpCursor, fi, ap);
+                setAttachment(ele, tmpCursor, fi, ap);
+
+                if (mMsgListingVersion > BluetoothMapUtils.MAP_MESSAGE_LISTING_FORMAT_V10) {
+                    setDeliveryStatus(ele, tmpCursor, fi, ap);
+                    setThreadId(ele, tmpCursor, fi, ap);
+                    setThreadName(ele, tmpCursor, fi, ap);
                 }
             }
         } finally {
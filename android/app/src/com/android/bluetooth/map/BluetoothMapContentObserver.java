@@ -78,6 +78,9 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -866,6 +869,7 @@ public class BluetoothMapContentObserver {
         public boolean transparent = false;
         // Used for EMAIL to delete message sent with transparency
         public int flagRead = -1;      // Message status read/unread
+        public int scan = 0;           // Last scan of the list the message was seen in
 
         Msg(long id, int type, int threadId, int readFlag) {
             this.id = id;
@@ -917,6 +921,9 @@ public class BluetoothMapContentObserver {
 
     private Map<Long, Msg> mMsgListMsg = null;
 
+    // Counts the scans of the message lists, to find the messages no longer in the database.
+    private int mScanCount = 0;
+
     private Map<String, BluetoothMapConvoContactElement> mContactList = null;
 
     public int setNotificationRegistration(int notificationStatus) throws RemoteException {
@@ -1423,38 +1430,64 @@ public class BluetoothMapContentObserver {
         }
     }
 
+    /**
+     * Builds the selection of the rows with the given ids.
+     */
+    private static String getIdSelection(String idColumn, Set<Long> ids) {
+        return idColumn + " IN (" + TextUtils.join(",", ids) + ")";
+    }
+
+    /**
+     * Removes the messages not seen by the latest scan from {@code msgList}.
+     *
+     * @return the removed messages
+     */
+    private static List<Msg> removeUnseenMsgs(Map<Long, Msg> msgList, int scan) {
+        List<Msg> removed = new ArrayList<Msg>();
+        Iterator<Msg> it = msgList.values().iterator();
+        while (it.hasNext()) {
+            Msg msg = it.next();
+            if (msg.scan != scan) {
+                removed.add(msg);
+                it.remove();
+            }
+        }
+        return removed;
+    }
+
     @VisibleForTesting
     void handleMsgListChangesSms() {
         if (V) {
             Log.d(TAG, "handleMsgListChangesSms");
         }
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
         boolean listChanged = false;
 
-        Cursor c;
         synchronized (getMsgListSms()) {
-            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT, null, null, null);
-            } else {
-                c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, null, null, null);
-            }
+            Map<Long, Msg> msgListSms = getMsgListSms();
+            int scan = ++mScanCount;
+            // The scan reads the state columns of all messages, the details needed by the events
+            // are only queried for the new messages.
+            Map<Long, Msg> newMsgs = new LinkedHashMap<Long, Msg>();
+            Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
+                    Sms.CONTENT_URI, SMS_PROJECTION_SHORT, null, null, null);
             try {
                 if (c != null && c.moveToFirst()) {
+                    int idIndex = c.getColumnIndexOrThrow(Sms._ID);
+                    int typeIndex = c.getColumnIndex(Sms.TYPE);
+                    int threadIdIndex = c.getColumnIndex(Sms.THREAD_ID);
+                    int readIndex = c.getColumnIndex(Sms.READ);
                     do {
-                        int idIndex = c.getColumnIndexOrThrow(Sms._ID);
                         if (c.isNull(idIndex)) {
                             Log.w(TAG, "handleMsgListChangesSms, ID is null");
                             continue;
                         }
                         long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-                        int read = c.getInt(c.getColumnIndex(Sms.READ));
+                        int type = c.getInt(typeIndex);
+                        int threadId = c.getInt(threadIdIndex);
+                        int read = c.getInt(readIndex);
 
-                        Msg msg = getMsgListSms().remove(id);
+                        Msg msg = msgListSms.get(id);
 
                         /* We must filter out any actions made by the MCE, hence do not send e.g.
                          * a message deleted and/or MessageShift for messages deleted by the MCE. */
@@ -1462,111 +1495,55 @@ public class BluetoothMapContentObserver {
                         if (msg == null) {
                             /* New message */
                             msg = new Msg(id, type, threadId, read);
-                            msgListSms.put(id, msg);
+                            msg.scan = scan;
+                            newMsgs.put(id, msg);
+                            continue;
+                        }
+                        /* Existing message */
+                        msg.scan = scan;
+                        if (type != msg.type) {
                             listChanged = true;
-                            Event evt;
-                            if (mTransmitEvents && // extract contact details only if needed
-                                    mMapEventReportVersion
-                                            > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                long timestamp = c.getLong(c.getColumnIndex(Sms.DATE));
-                                String date = BluetoothMapUtils.getDateTimeString(timestamp);
-                                if (BluetoothMapUtils.isDateTimeOlderThanOneYear(timestamp)) {
-                                    // Skip sending message events older than one year
-                                    listChanged = false;
-                                    msgListSms.remove(id);
-                                    continue;
-                                }
-                                String subject = c.getString(c.getColumnIndex(Sms.BODY));
-                                if (subject == null) {
-                                    subject = "";
-                                }
-                                String name = "";
-                                String phone = "";
-                                if (type == 1) { //inbox
-                                    phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
-                                    if (phone != null && !phone.isEmpty()) {
-                                        name = BluetoothMapContent.getContactNameFromPhone(phone,
-                                                mResolver);
-                                        if (name == null || name.isEmpty()) {
-                                            name = phone;
-                                        }
-                                    } else {
-                                        name = phone;
-                                    }
-                                } else {
-                                    TelephonyManager tm = mContext.getSystemService(
-                                            TelephonyManager.class);
-                                    if (tm != null) {
-                                        phone = tm.getLine1Number();
-                                        name = phone;
-                                    }
-                                }
-                                String priority = "no"; // no priority for sms
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion
-                                        == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
-                                            mSmsType, date, subject, name, priority);
-                                } else {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
-                                            mSmsType, date, subject, name, priority,
-                                            (long) threadId, null);
-                                }
-                            } else {
-                                /* Incoming message from the network */
-                                evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), null,
-                                        mSmsType);
+                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+                            String oldFolder = getSmsFolderName(msg.type);
+                            String newFolder = getSmsFolderName(type);
+                            // Filter out the intermediate outbox steps
+                            if (!oldFolder.equalsIgnoreCase(newFolder)) {
+                                Event evt = new Event(EVENT_TYPE_SHIFT, id, getSmsFolderName(type),
+                                        oldFolder, mSmsType);
+                                sendEvent(evt);
                             }
-                            sendEvent(evt);
-                        } else {
-                            /* Existing message */
-                            if (type != msg.type) {
-                                listChanged = true;
-                                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                                String oldFolder = getSmsFolderName(msg.type);
-                                String newFolder = getSmsFolderName(type);
-                                // Filter out the intermediate outbox steps
-                                if (!oldFolder.equalsIgnoreCase(newFolder)) {
-                                    Event evt =
-                                            new Event(EVENT_TYPE_SHIFT, id, getSmsFolderName(type),
-                                                    oldFolder, mSmsType);
-                                    sendEvent(evt);
-                                }
-                                msg.type = type;
-                            } else if (threadId != msg.threadId) {
-                                listChanged = true;
-                                Log.d(TAG, "Message delete change: type: " + type + " old type: "
-                                        + msg.type + "\n    threadId: " + threadId
-                                        + " old threadId: " + msg.threadId);
-                                if (threadId == DELETED_THREAD_ID) { // Message deleted
-                                    // TODO:
-                                    // We shall only use the folder attribute, but can't remember
-                                    // wether to set it to "deleted" or the name of the folder
-                                    // from which the message have been deleted.
-                                    // "old_folder" used only for MessageShift event
-                                    Event evt = new Event(EVENT_TYPE_DELETE, id,
-                                            getSmsFolderName(msg.type), null, mSmsType);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                } else { // Undelete
-                                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
-                                            getSmsFolderName(msg.type),
-                                            BluetoothMapContract.FOLDER_NAME_DELETED, mSmsType);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                }
+                            msg.type = type;
+                        } else if (threadId != msg.threadId) {
+                            listChanged = true;
+                            Log.d(TAG, "Message delete change: type: " + type + " old type: "
+                                    + msg.type + "\n    threadId: " + threadId
+                                    + " old threadId: " + msg.threadId);
+                            if (threadId == DELETED_THREAD_ID) { // Message deleted
+                                // TODO:
+                                // We shall only use the folder attribute, but can't remember
+                                // wether to set it to "deleted" or the name of the folder
+                                // from which the message have been deleted.
+                                // "old_folder" used only for MessageShift event
+                                Event evt = new Event(EVENT_TYPE_DELETE, id,
+                                        getSmsFolderName(msg.type), null, mSmsType);
+                                sendEvent(evt);
+                                msg.threadId = threadId;
+                            } else { // Undelete
+                                Event evt = new Event(EVENT_TYPE_SHIFT, id,
+                                        getSmsFolderName(msg.type),
+                                        BluetoothMapContract.FOLDER_NAME_DELETED, mSmsType);
+                                sendEvent(evt);
+                                msg.threadId = threadId;
                             }
-                            if (read != msg.flagRead) {
-                                listChanged = true;
-                                msg.flagRead = read;
-                                if (mMapEventReportVersion
-                                        > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
-                                            getSmsFolderName(msg.type), mSmsType);
-                                    sendEvent(evt);
-                                }
+                        }
+                        if (read != msg.flagRead) {
+                            listChanged = true;
+                            msg.flagRead = read;
+                            if (mMapEventReportVersion > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                                Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
+                                        getSmsFolderName(msg.type), mSmsType);
+                                sendEvent(evt);
                             }
-                            msgListSms.put(id, msg);
                         }
                     } while (c.moveToNext());
                 }
@@ -1576,7 +1553,7 @@ public class BluetoothMapContentObserver {
                 }
             }
             String eventType = EVENT_TYPE_DELETE;
-            for (Msg msg : getMsgListSms().values()) {
+            for (Msg msg : removeUnseenMsgs(msgListSms, scan)) {
                 // "old_folder" used only for MessageShift event
                 if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
                     eventType = EVENT_TYPE_REMOVED;
@@ -1587,46 +1564,133 @@ public class BluetoothMapContentObserver {
                 sendEvent(evt);
                 listChanged = true;
             }
+            if (!newMsgs.isEmpty() && addNewSms(msgListSms, newMsgs)) {
+                listChanged = true;
+            }
 
             setMsgListSms(msgListSms, listChanged);
         }
     }
 
+    /**
+     * Adds the new SMS messages found by a scan to {@code msgListSms}, and sends their events.
+     *
+     * @return true if a message was added
+     */
+    private boolean addNewSms(Map<Long, Msg> msgListSms, Map<Long, Msg> newMsgs) {
+        if (!mTransmitEvents
+                || mMapEventReportVersion <= BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+            for (Msg msg : newMsgs.values()) {
+                msgListSms.put(msg.id, msg);
+                /* Incoming message from the network */
+                Event evt = new Event(EVENT_TYPE_NEW, msg.id, getSmsFolderName(msg.type), null,
+                        mSmsType);
+                sendEvent(evt);
+            }
+            return true;
+        }
+
+        // extract contact details only if needed
+        boolean listChanged = false;
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
+                Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT,
+                getIdSelection(Sms._ID, newMsgs.keySet()), null, null);
+        try {
+            if (c != null && c.moveToFirst()) {
+                do {
+                    Msg msg = newMsgs.get(c.getLong(c.getColumnIndexOrThrow(Sms._ID)));
+                    if (msg == null) {
+                        continue;
+                    }
+                    long timestamp = c.getLong(c.getColumnIndex(Sms.DATE));
+                    String date = BluetoothMapUtils.getDateTimeString(timestamp);
+                    if (BluetoothMapUtils.isDateTimeOlderThanOneYear(timestamp)) {
+                        // Skip sending message events older than one year
+                        continue;
+                    }
+                    String subject = c.getString(c.getColumnIndex(Sms.BODY));
+                    if (subject == null) {
+                        subject = "";
+                    }
+                    String name = "";
+                    String phone = "";
+                    if (msg.type == 1) { //inbox
+                        phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
+                        if (phone != null && !phone.isEmpty()) {
+                            name = BluetoothMapContent.getContactNameFromPhone(phone, mResolver);
+                            if (name == null || name.isEmpty()) {
+                                name = phone;
+                            }
+                        } else {
+                            name = phone;
+                        }
+                    } else {
+                        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+                        if (tm != null) {
+                            phone = tm.getLine1Number();
+                            name = phone;
+                        }
+                    }
+                    String priority = "no"; // no priority for sms
+                    /* Incoming message from the network */
+                    Event evt;
+                    if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                        evt = new Event(EVENT_TYPE_NEW, msg.id, getSmsFolderName(msg.type),
+                                mSmsType, date, subject, name, priority);
+                    } else {
+                        evt = new Event(EVENT_TYPE_NEW, msg.id, getSmsFolderName(msg.type),
+                                mSmsType, date, subject, name, priority, (long) msg.threadId,
+                                null);
+                    }
+                    msgListSms.put(msg.id, msg);
+                    listChanged = true;
+                    sendEvent(evt);
+                } while (c.moveToNext());
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return listChanged;
+    }
+
     @VisibleForTesting
     void handleMsgListChangesMms() {
         if (V) {
             Log.d(TAG, "handleMsgListChangesMms");
         }
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
         boolean listChanged = false;
-        Cursor c;
         synchronized (getMsgListMms()) {
-            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
-            } else {
-                c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, null, null, null);
-            }
-
+            Map<Long, Msg> msgListMms = getMsgListMms();
+            int scan = ++mScanCount;
+            // The scan reads the state columns of all messages, the details needed by the events
+            // are only queried for the new messages.
+            Map<Long, Msg> newMsgs = new LinkedHashMap<Long, Msg>();
+            Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
+                    Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
             try {
                 if (c != null && c.moveToFirst()) {
+                    int idIndex = c.getColumnIndexOrThrow(Mms._ID);
+                    int typeIndex = c.getColumnIndex(Mms.MESSAGE_BOX);
+                    int mtypeIndex = c.getColumnIndex(Mms.MESSAGE_TYPE);
+                    int threadIdIndex = c.getColumnIndex(Mms.THREAD_ID);
+                    int readIndex = c.getColumnIndex(Mms.READ);
                     do {
-                        int idIndex = c.getColumnIndexOrThrow(Mms._ID);
                         if (c.isNull(idIndex)) {
                             Log.w(TAG, "handleMsgListChangesMms, ID is null");
                             continue;
                         }
                         long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
+                        int type = c.getInt(typeIndex);
+                        int mtype = c.getInt(mtypeIndex);
+                        int threadId = c.getInt(threadIdIndex);
                         // TODO: Go through code to see if we have an issue with mismatch in types
                         //       for threadId. Seems to be a long in DB??
-                        int read = c.getInt(c.getColumnIndex(Mms.READ));
+                        int read = c.getInt(readIndex);
 
-                        Msg msg = getMsgListMms().remove(id);
+                        Msg msg = msgListMms.get(id);
 
                         /* We must filter out any actions made by the MCE, hence do not send
                          * e.g. a message deleted and/or MessageShift for messages deleted by the
@@ -1640,137 +1704,168 @@ public class BluetoothMapContentObserver {
                                 continue;
                             }
                             msg = new Msg(id, type, threadId, read);
-                            msgListMms.put(id, msg);
+                            msg.scan = scan;
+                            newMsgs.put(id, msg);
+                            continue;
+                        }
+                        /* Existing message */
+                        msg.scan = scan;
+                        if (type != msg.type) {
+                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
                             Event evt;
-                            if (mTransmitEvents && // extract contact details only if needed
-                                    mMapEventReportVersion
-                                            != BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                // MMS date field is in seconds
-                                long timestamp =
-                                        TimeUnit.SECONDS.toMillis(
-                                            c.getLong(c.getColumnIndex(Mms.DATE)));
-                                String date = BluetoothMapUtils.getDateTimeString(timestamp);
-                                if (BluetoothMapUtils.isDateTimeOlderThanOneYear(timestamp)) {
-                                    // Skip sending new message events older than one year
-                                    msgListMms.remove(id);
-                                    continue;
-                                }
-                                String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
-                                if (subject == null || subject.length() == 0) {
-                                    /* Get subject from mms text body parts - if any exists */
-                                    subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
-                                    if (subject == null) {
-                                        subject = "";
-                                    }
-                                }
-                                int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
-                                Log.d(TAG, "TEMP handleMsgListChangesMms, "
-                                        + "newMessage 'read' state: " + read + "priority: "
-                                        + tmpPri);
-
-                                String address = BluetoothMapContent.getAddressMms(mResolver, id,
-                                        BluetoothMapContent.MMS_FROM);
-                                if (address == null) {
-                                    address = "";
-                                }
-
-                                String priority = "no";
-                                if (tmpPri == PduHeaders.PRIORITY_HIGH) {
-                                    priority = "yes";
-                                }
-
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion
-                                        == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
-                                            TYPE.MMS, date, subject, address, priority);
-                                } else {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
-                                            TYPE.MMS, date, subject, address, priority,
-                                            (long) threadId, null);
-                                }
+                            listChanged = true;
+                            if (!msg.localInitiatedSend) {
+                                // Only send events about local initiated changes
+                                evt = new Event(EVENT_TYPE_SHIFT, id, getMmsFolderName(type),
+                                        getMmsFolderName(msg.type), TYPE.MMS);
+                                sendEvent(evt);
+                            }
+                            msg.type = type;
 
-                            } else {
-                                /* Incoming message from the network */
-                                evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), null,
-                                        TYPE.MMS);
+                            if (getMmsFolderName(type).equalsIgnoreCase(
+                                    BluetoothMapContract.FOLDER_NAME_SENT)
+                                    && msg.localInitiatedSend) {
+                                // Stop tracking changes for this message
+                                msg.localInitiatedSend = false;
+                                evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id,
+                                        getMmsFolderName(type), null, TYPE.MMS);
+                                sendEvent(evt);
                             }
+                        } else if (threadId != msg.threadId) {
+                            Log.d(TAG, "Message delete change: type: " + type + " old type: "
+                                    + msg.type + "\n    threadId: " + threadId
+                                    + " old threadId: " + msg.threadId);
                             listChanged = true;
-
-                            sendEvent(evt);
-                        } else {
-                            /* Existing message */
-                            if (type != msg.type) {
-                                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                                Event evt;
-                                listChanged = true;
-                                if (!msg.localInitiatedSend) {
-                                    // Only send events about local initiated changes
-                                    evt = new Event(EVENT_TYPE_SHIFT, id, getMmsFolderName(type),
-                                            getMmsFolderName(msg.type), TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                                msg.type = type;
-
-                                if (getMmsFolderName(type).equalsIgnoreCase(
-                                        BluetoothMapContract.FOLDER_NAME_SENT)
-                                        && msg.localInitiatedSend) {
-                                    // Stop tracking changes for this message
-                                    msg.localInitiatedSend = false;
-                                    evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id,
-                                            getMmsFolderName(type), null, TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                            } else if (threadId != msg.threadId) {
-                                Log.d(TAG, "Message delete change: type: " + type + " old type: "
-                                        + msg.type + "\n    threadId: " + threadId
-                                        + " old threadId: " + msg.threadId);
-                                listChanged = true;
-                                if (threadId == DELETED_THREAD_ID) { // Message deleted
-                                    // "old_folder" used only for MessageShift event
-                                    Event evt = new Event(EVENT_TYPE_DELETE, id,
-                                            getMmsFolderName(msg.type), null, TYPE.MMS);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                } else { // Undelete
-                                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
-                                            getMmsFolderName(msg.type),
-                                            BluetoothMapContract.FOLDER_NAME_DELETED, TYPE.MMS);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                }
+                            if (threadId == DELETED_THREAD_ID) { // Message deleted
+                                // "old_folder" used only for MessageShift event
+                                Event evt = new Event(EVENT_TYPE_DELETE, id,
+                                        getMmsFolderName(msg.type), null, TYPE.MMS);
+                                sendEvent(evt);
+                                msg.threadId = threadId;
+                            } else { // Undelete
+                                Event evt = new Event(EVENT_TYPE_SHIFT, id,
+                                        getMmsFolderName(msg.type),
+                                        BluetoothMapContract.FOLDER_NAME_DELETED, TYPE.MMS);
+                                sendEvent(evt);
+                                msg.threadId = threadId;
                             }
-                            if (read != msg.flagRead) {
-                                listChanged = true;
-                                msg.flagRead = read;
-                                if (mMapEventReportVersion
-                                        > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
-                                            getMmsFolderName(msg.type), TYPE.MMS);
-                                    sendEvent(evt);
-                                }
+                        }
+                        if (read != msg.flagRead) {
+                            listChanged = true;
+                            msg.flagRead = read;
+                            if (mMapEventReportVersion > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                                Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
+                                        getMmsFolderName(msg.type), TYPE.MMS);
+                                sendEvent(evt);
                             }
-                            msgListMms.put(id, msg);
                         }
                     } while (c.moveToNext());
-
                 }
             } finally {
                 if (c != null) {
                     c.close();
                 }
             }
-            for (Msg msg : getMsgListMms().values()) {
+            for (Msg msg : removeUnseenMsgs(msgListMms, scan)) {
                 // "old_folder" used only for MessageShift event
                 Event evt = new Event(EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type), null,
                         TYPE.MMS);
                 sendEvent(evt);
                 listChanged = true;
             }
+            if (!newMsgs.isEmpty() && addNewMms(msgListMms, newMsgs)) {
+                listChanged = true;
+            }
             setMsgListMms(msgListMms, listChanged);
         }
     }
 
+    /**
+     * Adds the new MMS messages found by a scan to {@code msgListMms}, and sends their events.
+     *
+     * @return true if a message was added
+     */
+    private boolean addNewMms(Map<Long, Msg> msgListMms, Map<Long, Msg> newMsgs) {
+        if (!mTransmitEvents
+                || mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+            for (Msg msg : newMsgs.values()) {
+                msgListMms.put(msg.id, msg);
+                /* Incoming message from the network */
+                Event evt = new Event(EVENT_TYPE_NEW, msg.id, getMmsFolderName(msg.type), null,
+                        TYPE.MMS);
+                sendEvent(evt);
+            }
+            return true;
+        }
+
+        // extract contact details only if needed
+        boolean listChanged = false;
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
+                Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT,
+                getIdSelection(Mms._ID, newMsgs.keySet()), null, null);
+        try {
+            if (c != null && c.moveToFirst()) {
+                do {
+                    Msg msg = newMsgs.get(c.getLong(c.getColumnIndexOrThrow(Mms._ID)));
+                    if (msg == null) {
+                        continue;
+                    }
+                    long id = msg.id;
+                    // MMS date field is in seconds
+                    long timestamp =
+                            TimeUnit.SECONDS.toMillis(c.getLong(c.getColumnIndex(Mms.DATE)));
+                    String date = BluetoothMapUtils.getDateTimeString(timestamp);
+                    if (BluetoothMapUtils.isDateTimeOlderThanOneYear(timestamp)) {
+                        // Skip sending new message events older than one year
+                        continue;
+                    }
+                    String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
+                    if (subject == null || subject.length() == 0) {
+                        /* Get subject from mms text body parts - if any exists */
+                        subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
+                        if (subject == null) {
+                            subject = "";
+                        }
+                    }
+                    int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
+                    Log.d(TAG, "TEMP handleMsgListChangesMms, "
+                            + "newMessage 'read' state: " + msg.flagRead + "priority: "
+                            + tmpPri);
+
+                    String address = BluetoothMapContent.getAddressMms(mResolver, id,
+                            BluetoothMapContent.MMS_FROM);
+                    if (address == null) {
+                        address = "";
+                    }
+
+                    String priority = "no";
+                    if (tmpPri == PduHeaders.PRIORITY_HIGH) {
+                        priority = "yes";
+                    }
+
+                    /* Incoming message from the network */
+                    Event evt;
+                    if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                        evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(msg.type),
+                                TYPE.MMS, date, subject, address, priority);
+                    } else {
+                        evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(msg.type),
+                                TYPE.MMS, date, subject, address, priority,
+                                (long) msg.threadId, null);
+                    }
+                    msgListMms.put(id, msg);
+                    listChanged = true;
+                    sendEvent(evt);
+                } while (c.moveToNext());
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return listChanged;
+    }
+
     @VisibleForTesting
     void handleMsgListChangesMsg(Uri uri) throws RemoteException {
         if (V) {
@@ -1779,7 +1874,6 @@ public class BluetoothMapContentObserver {
 
         // TODO: Change observer to handle accountId and message ID if present
 
-        HashMap<Long, Msg> msgList = new HashMap<Long, Msg>();
         Cursor c;
         boolean listChanged = false;
         if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
@@ -1790,6 +1884,8 @@ public class BluetoothMapContentObserver {
             c = mProviderClient.query(mMessageUri, MSG_PROJECTION_SHORT_EXT2, null, null, null);
         }
         synchronized (getMsgListMsg()) {
+            Map<Long, Msg> msgList = getMsgListMsg();
+            int scan = ++mScanCount;
             try {
                 if (c != null && c.moveToFirst()) {
                     do {
@@ -1799,7 +1895,7 @@ public class BluetoothMapContentObserver {
                                 c.getColumnIndex(BluetoothMapContract.MessageColumns.FOLDER_ID));
                         int readFlag = c.getInt(
                                 c.getColumnIndex(BluetoothMapContract.MessageColumns.FLAG_READ));
-                        Msg msg = getMsgListMsg().remove(id);
+                        Msg msg = msgList.get(id);
                         BluetoothMapFolderElement folderElement = mFolders.getFolderById(folderId);
                         String newFolder;
                         if (folderElement != null) {
@@ -1814,6 +1910,7 @@ public class BluetoothMapContentObserver {
                             listChanged = true;
                             /* New message - created with message unread */
                             msg = new Msg(id, folderId, 0, readFlag);
+                            msg.scan = scan;
                             msgList.put(id, msg);
                             Event evt;
                             /* Incoming message from the network */
@@ -1850,6 +1947,7 @@ public class BluetoothMapContentObserver {
                             sendEvent(evt);
                         } else {
                             /* Existing message */
+                            msg.scan = scan;
                             if (folderId != msg.folderId && msg.folderId != -1) {
                                 if (D) {
                                     Log.d(TAG, "new folderId: " + folderId + " old folderId: "
@@ -1915,8 +2013,6 @@ public class BluetoothMapContentObserver {
                                     msg.flagRead = readFlag;
                                 }
                             }
-
-                            msgList.put(id, msg);
                         }
                     } while (c.moveToNext());
                 }
@@ -1926,7 +2022,7 @@ public class BluetoothMapContentObserver {
                 }
             }
             // For all messages no longer in the database send a delete notification
-            for (Msg msg : getMsgListMsg().values()) {
+            for (Msg msg : removeUnseenMsgs(msgList, scan)) {
                 BluetoothMapFolderElement oldFolderElement = mFolders.getFolderById(msg.folderId);
                 String oldFolder;
                 listChanged = true;
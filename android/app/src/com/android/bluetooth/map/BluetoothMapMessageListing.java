@@ -23,6 +23,7 @@ import com.android.bluetooth.Utils;
 import org.xmlpull.v1.XmlSerializer;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -48,6 +49,16 @@ public class BluetoothMapMessageListing {
         }
     }
 
+    /**
+     * Accounts for a message matching the listing request that is outside of the requested
+     * segment, hence not listed.
+     */
+    public void addUnlisted(BluetoothMapMessageListingElement element) {
+        if (!element.getReadBool()) {
+            mHasUnread = true;
+        }
+    }
+
     /**
      * Used to fetch the number of BluetoothMapMessageListingElement elements in the list.
      * @return the number of elements in the list.
@@ -91,35 +102,10 @@ public class BluetoothMapMessageListing {
     public byte[] encode(boolean includeThreadId, String version)
             throws UnsupportedEncodingException {
         StringWriter sw = new StringWriter();
-        boolean isBenzCarkit;
-
-        if (Utils.isInstrumentationTestMode()) {
-            isBenzCarkit = false;
-        } else {
-            isBenzCarkit = DeviceWorkArounds.addressStartsWith(
-                    BluetoothMapService.getRemoteDevice().getAddress(),
-                    DeviceWorkArounds.MERCEDES_BENZ_CARKIT);
-        }
         try {
             XmlSerializer xmlMsgElement = Xml.newSerializer();
             xmlMsgElement.setOutput(sw);
-            if (isBenzCarkit) {
-                Log.d(TAG, "java_interop: Remote is Mercedes Benz, "
-                        + "using Xml Workaround.");
-                xmlMsgElement.text("\n");
-            } else {
-                xmlMsgElement.startDocument("UTF-8", true);
-                xmlMsgElement.setFeature(
-                        "http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            }
-            xmlMsgElement.startTag(null, "MAP-msg-listing");
-            xmlMsgElement.attribute(null, "version", version);
-            // Do the XML encoding of list
-            for (BluetoothMapMessageListingElement element : mList) {
-                element.encode(xmlMsgElement, includeThreadId); // Append the list element
-            }
-            xmlMsgElement.endTag(null, "MAP-msg-listing");
-            xmlMsgElement.endDocument();
+            encode(xmlMsgElement, includeThreadId, version);
         } catch (IllegalArgumentException e) {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
@@ -128,9 +114,7 @@ public class BluetoothMapMessageListing {
             Log.w(TAG, e);
         }
         /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in MessageListing */
-        if (!Utils.isInstrumentationTestMode() && DeviceWorkArounds.addressStartsWith(
-                BluetoothMapService.getRemoteDevice().getAddress(),
-                DeviceWorkArounds.BREZZA_ZDI_CARKIT)) {
+        if (needsUnescapedXml()) {
             return sw.toString()
                     .replaceAll("&amp;", "&")
                     .replaceAll("&lt;", "<")
@@ -140,6 +124,71 @@ public class BluetoothMapMessageListing {
         return sw.toString().getBytes("UTF-8");
     }
 
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) as UTF-8 formatted XML directly
+     * into {@code out}, element by element, without holding the whole document in memory.
+     * The output is the same as the one of {@link #encode(boolean, String)}.
+     *
+     * @param out the stream to write the listing to, it is flushed but not closed.
+     * @param version the version as a string, see {@link #encode(boolean, String)}.
+     * @throws IOException if writing to {@code out} failed.
+     */
+    // TODO: Remove includeThreadId when MAP-IM is adopted
+    public void encode(OutputStream out, boolean includeThreadId, String version)
+            throws IOException {
+        if (needsUnescapedXml()) {
+            // The workaround rewrites the whole document
+            out.write(encode(includeThreadId, version));
+            out.flush();
+            return;
+        }
+        try {
+            XmlSerializer xmlMsgElement = Xml.newSerializer();
+            xmlMsgElement.setOutput(out, "UTF-8");
+            encode(xmlMsgElement, includeThreadId, version);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, e);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    private void encode(XmlSerializer xmlMsgElement, boolean includeThreadId, String version)
+            throws IOException {
+        boolean isBenzCarkit;
+
+        if (Utils.isInstrumentationTestMode()) {
+            isBenzCarkit = false;
+        } else {
+            isBenzCarkit = DeviceWorkArounds.addressStartsWith(
+                    BluetoothMapService.getRemoteDevice().getAddress(),
+                    DeviceWorkArounds.MERCEDES_BENZ_CARKIT);
+        }
+        if (isBenzCarkit) {
+            Log.d(TAG, "java_interop: Remote is Mercedes Benz, "
+                    + "using Xml Workaround.");
+            xmlMsgElement.text("\n");
+        } else {
+            xmlMsgElement.startDocument("UTF-8", true);
+            xmlMsgElement.setFeature(
+                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        }
+        xmlMsgElement.startTag(null, "MAP-msg-listing");
+        xmlMsgElement.attribute(null, "version", version);
+        // Do the XML encoding of list
+        for (BluetoothMapMessageListingElement element : mList) {
+            element.encode(xmlMsgElement, includeThreadId); // Append the list element
+        }
+        xmlMsgElement.endTag(null, "MAP-msg-listing");
+        xmlMsgElement.endDocument();
+    }
+
+    private static boolean needsUnescapedXml() {
+        return !Utils.isInstrumentationTestMode() && DeviceWorkArounds.addressStartsWith(
+                BluetoothMapService.getRemoteDevice().getAddress(),
+                DeviceWorkArounds.BREZZA_ZDI_CARKIT);
+    }
+
     public void sort() {
         Collections.sort(mList);
     }
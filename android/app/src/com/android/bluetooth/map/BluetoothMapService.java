@@ -709,6 +709,8 @@ public class BluetoothMapService extends ProfileService {
         TelephonyManager tm = getSystemService(TelephonyManager.class);
         mSmsCapable = tm.isSmsCapable();
 
+        ContactNameCache.getInstance().start(getContentResolver());
+
         mEnabledAccounts = mAppObserver.getEnabledAccountItems();
         createMasInstances();  // Uses mEnabledAccounts
 
@@ -900,6 +902,7 @@ public class BluetoothMapService extends ProfileService {
             mAppObserver.shutdown();
         }
         sendShutdownMessage();
+        ContactNameCache.getInstance().stop();
         setComponentAvailable(MAP_SETTINGS_ACTIVITY, false);
         setComponentAvailable(MAP_FILE_PROVIDER, false);
         return true;
@@ -1418,6 +1421,7 @@ public class BluetoothMapService extends ProfileService {
         println(sb, "mPermission: " + mPermission);
         println(sb, "mAccountChanged: " + mAccountChanged);
         println(sb, "mBluetoothMnsObexClient: " + mBluetoothMnsObexClient);
+        println(sb, "Contact name cache: " + ContactNameCache.getInstance());
         println(sb, "mMasInstanceMap:");
         for (BluetoothMapAccountItem key : mMasInstanceMap.keySet()) {
             println(sb, "  " + key + " : " + mMasInstanceMap.get(key));
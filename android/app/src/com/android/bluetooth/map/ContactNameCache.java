@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Caches the contact name of the phone numbers resolved while building message listings and
+ * events, so a listing does not query the contacts provider once per message.
+ *
+ * The cache is shared by all the MAS instances. It is only used while the MAP service is started,
+ * as it relies on a contacts observer to drop the names once any contact changes.
+ *
+ * The names are looked up with {@link ContactsContract.PhoneLookup#ENTERPRISE_CONTENT_FILTER_URI},
+ * so they may come from the work profile. Its changes are notified to the work profile user
+ * only: a work contact renamed while the service runs keeps its old name until the next change
+ * of a personal contact, or until the service restarts.
+ * @hide
+ */
+/* package */ class ContactNameCache {
+    private static final String TAG = "ContactNameCache";
+    private static final boolean D = BluetoothMapService.DEBUG;
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 256;
+
+    private static ContactNameCache sInstance = new ContactNameCache();
+
+    // Phone number to contact name, null if no contact matches. Least recently used first.
+    private final LinkedHashMap<String, String> mNames =
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    private ContentResolver mResolver;
+    // Bumped on each invalidation, so lookups racing with it do not store stale names
+    private int mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+    private long mInvalidationCount;
+
+    static ContactNameCache getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    static void setInstanceForTesting(ContactNameCache instance) {
+        sInstance = instance == null ? new ContactNameCache() : instance;
+    }
+
+    /**
+     * Starts caching names, until {@link #stop()} is called.
+     */
+    synchronized void start(ContentResolver resolver) {
+        if (mResolver != null) {
+            return;
+        }
+        mResolver = resolver;
+        // The whole authority, the phone lookups are not under Contacts.CONTENT_URI
+        mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                mContactsObserver);
+    }
+
+    synchronized void stop() {
+        if (mResolver == null) {
+            return;
+        }
+        mResolver.unregisterContentObserver(mContactsObserver);
+        mResolver = null;
+        mNames.clear();
+        // Contacts are not observed until the next start, lookups in progress must not be kept
+        mGeneration++;
+    }
+
+    /**
+     * Gets the contact name of {@code phone}, calling {@code lookup} on a cache miss.
+     *
+     * @return the contact name, or null if no contact matches the phone number
+     */
+    String getName(String phone, Function<String, String> lookup) {
+        int generation;
+        synchronized (this) {
+            if (mResolver == null) {
+                return lookup.apply(phone);
+            }
+            if (mNames.containsKey(phone)) {
+                mHitCount++;
+                return mNames.get(phone);
+            }
+            mMissCount++;
+            generation = mGeneration;
+        }
+        // Query outside of the lock, the contacts provider can be slow
+        String name = lookup.apply(phone);
+        synchronized (this) {
+            if (mResolver != null && generation == mGeneration) {
+                mNames.put(phone, name);
+            }
+        }
+        return name;
+    }
+
+    @VisibleForTesting
+    synchronized void invalidate() {
+        if (D) {
+            Log.d(TAG, "invalidate: dropping " + mNames.size() + " names");
+        }
+        mNames.clear();
+        mGeneration++;
+        mInvalidationCount++;
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        return mNames.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + mNames.size() + "/" + MAX_ENTRIES + ", hits=" + mHitCount + ", misses="
+                + mMissCount + ", invalidations=" + mInvalidationCount;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BdAddrTest {
+    private static final String TEST_ADDRESS = "00:11:22:AA:BB:FF";
+    private static final byte[] TEST_ADDRESS_BYTES =
+            new byte[] {0x00, 0x11, 0x22, (byte) 0xAA, (byte) 0xBB, (byte) 0xFF};
+    private static final long TEST_ADDRESS_LONG = 0x001122AABBFFL;
+
+    @Test
+    public void toLong_fromBytesAndString() {
+        assertThat(BdAddr.toLong(TEST_ADDRESS_BYTES)).isEqualTo(TEST_ADDRESS_LONG);
+        assertThat(BdAddr.toLong(TEST_ADDRESS)).isEqualTo(TEST_ADDRESS_LONG);
+        assertThat(BdAddr.toLong(TEST_ADDRESS.toLowerCase())).isEqualTo(TEST_ADDRESS_LONG);
+    }
+
+    @Test
+    public void toLong_invalidAddress_returnsInvalid() {
+        assertThat(BdAddr.toLong((byte[]) null)).isEqualTo(BdAddr.INVALID);
+        assertThat(BdAddr.toLong(new byte[5])).isEqualTo(BdAddr.INVALID);
+        assertThat(BdAddr.toLong((String) null)).isEqualTo(BdAddr.INVALID);
+        assertThat(BdAddr.toLong("00:11:22:AA:BB")).isEqualTo(BdAddr.INVALID);
+        assertThat(BdAddr.toLong("00-11-22-AA-BB-FF")).isEqualTo(BdAddr.INVALID);
+        assertThat(BdAddr.toLong("00:11:22:AA:BB:FG")).isEqualTo(BdAddr.INVALID);
+    }
+
+    @Test
+    public void toStringAndBytes_roundTrip() {
+        assertThat(BdAddr.toString(TEST_ADDRESS_LONG)).isEqualTo(TEST_ADDRESS);
+        assertThat(BdAddr.toBytes(TEST_ADDRESS_LONG)).isEqualTo(TEST_ADDRESS_BYTES);
+        assertThat(BdAddr.toString(BdAddr.toLong(TEST_ADDRESS.toLowerCase())))
+                .isEqualTo(TEST_ADDRESS);
+    }
+
+    @Test
+    public void toString_matchesUtils() {
+        for (int i = 0; i < 256; i++) {
+            byte[] bytes = new byte[] {(byte) i, (byte) (i * 7), (byte) (i * 13), (byte) (255 - i),
+                    (byte) (i * 31), (byte) (i ^ 0x5A)};
+            String expected = String.format("%02X:%02X:%02X:%02X:%02X:%02X", bytes[0], bytes[1],
+                    bytes[2], bytes[3], bytes[4], bytes[5]);
+
+            assertThat(BdAddr.toString(BdAddr.toLong(bytes))).isEqualTo(expected);
+            assertThat(Utils.getAddressStringFromByte(bytes)).isEqualTo(expected);
+            assertThat(Utils.getBytesFromAddress(expected)).isEqualTo(bytes);
+        }
+    }
+}
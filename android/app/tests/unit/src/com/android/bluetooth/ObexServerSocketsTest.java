@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.bluetooth.BluetoothSocket;
+import android.os.Looper;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.IOException;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ObexServerSocketsTest {
+
+    @Rule public MockitoRule mMockitoRule = MockitoJUnit.rule();
+
+    @Mock private IObexConnectionHandler mConHandler;
+
+    private FakeAcceptableSocket mRfcommSocket;
+    private FakeAcceptableSocket mL2capSocket;
+    private ObexServerSockets mServerSockets;
+
+    // Stands in for a BluetoothServerSocket in non-blocking mode.
+    private static class FakeAcceptableSocket implements ObexServerSockets.AcceptableSocket {
+        Looper mLooper;
+        Runnable mOnAcceptable;
+        IOException mAcceptException;
+        int mAcceptCount;
+        boolean mStopped;
+        boolean mClosed;
+
+        @Override
+        public void startAccepting(Looper looper, Runnable onAcceptable) {
+            mLooper = looper;
+            mOnAcceptable = onAcceptable;
+        }
+
+        @Override
+        public BluetoothSocket accept() throws IOException {
+            mAcceptCount++;
+            if (mAcceptException != null) {
+                throw mAcceptException;
+            }
+            return null;
+        }
+
+        @Override
+        public void stopAccepting() {
+            mStopped = true;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+
+        // Calls the listener the way the looper would while it is registered.
+        void signalAcceptable() {
+            if (!mStopped) {
+                mOnAcceptable.run();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mRfcommSocket = new FakeAcceptableSocket();
+        mL2capSocket = new FakeAcceptableSocket();
+        mServerSockets = new ObexServerSockets(mConHandler, mRfcommSocket, mL2capSocket);
+    }
+
+    @Test
+    public void startAccept_listensOnSharedAcceptThread() {
+        assertThat(mServerSockets.startAccept()).isTrue();
+
+        assertThat(mRfcommSocket.mLooper).isNotNull();
+        assertThat(mRfcommSocket.mLooper).isSameInstanceAs(mL2capSocket.mLooper);
+        assertThat(mRfcommSocket.mLooper).isNotEqualTo(Looper.getMainLooper());
+    }
+
+    @Test
+    public void onAcceptable_noPendingConnection_keepsListening() {
+        mServerSockets.startAccept();
+
+        mRfcommSocket.signalAcceptable();
+        mRfcommSocket.signalAcceptable();
+
+        assertThat(mRfcommSocket.mAcceptCount).isEqualTo(2);
+        assertThat(mRfcommSocket.mStopped).isFalse();
+        verify(mConHandler, never()).onConnect(any(), any());
+    }
+
+    @Test
+    public void onAcceptable_acceptFails_stopsListeningAndClosesSockets() {
+        mServerSockets.startAccept();
+        mRfcommSocket.mAcceptException = new IOException();
+
+        mRfcommSocket.signalAcceptable();
+        mRfcommSocket.signalAcceptable();
+
+        assertThat(mRfcommSocket.mAcceptCount).isEqualTo(1);
+        assertThat(mRfcommSocket.mStopped).isTrue();
+        assertThat(mRfcommSocket.mClosed).isTrue();
+        assertThat(mL2capSocket.mStopped).isTrue();
+        assertThat(mL2capSocket.mClosed).isTrue();
+    }
+
+    @Test
+    public void shutdown_stopsListeningAndClosesSockets() {
+        mServerSockets.startAccept();
+
+        mServerSockets.shutdown(true);
+        mRfcommSocket.signalAcceptable();
+
+        assertThat(mRfcommSocket.mAcceptCount).isEqualTo(0);
+        assertThat(mRfcommSocket.mClosed).isTrue();
+        assertThat(mL2capSocket.mStopped).isTrue();
+        assertThat(mL2capSocket.mClosed).isTrue();
+    }
+}
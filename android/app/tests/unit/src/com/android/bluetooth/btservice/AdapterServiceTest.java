@@ -25,6 +25,7 @@ import android.app.AlarmManager;
 import android.app.admin.DevicePolicyManager;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothStatusCodes;
 import android.bluetooth.IBluetoothCallback;
 import android.content.AttributionSource;
 import android.content.Context;
@@ -55,6 +56,7 @@ import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.MediumTest;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.bluetooth.R;
 import com.android.bluetooth.TestUtils;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.a2dp.A2dpService;
@@ -464,6 +466,88 @@ public class AdapterServiceTest {
         doDisable(0, false);
     }
 
+    /**
+     * Test: Turn Bluetooth on/off with the deferred profile start.
+     * Check that PAN is only started once the adapter is on, and stopped with the others.
+     */
+    @Test
+    public void testEnableDisable_deferredProfileStart() {
+        when(mMockResources.getBoolean(R.bool.enable_deferred_profile_start)).thenReturn(true);
+        when(mMockService.getName()).thenReturn("BluetoothPbapService");
+        when(mMockService2.getName()).thenReturn("PanService");
+
+        mAdapterService.enable(false);
+        verifyStateChange(BluetoothAdapter.STATE_OFF, BluetoothAdapter.STATE_BLE_TURNING_ON, 1,
+                CONTEXT_SWITCH_MS);
+        verify(mMockContext, timeout(GATT_START_TIME_MS).times(1)).startService(any());
+        mAdapterService.addProfile(mMockGattService);
+        mAdapterService.onProfileServiceStateChanged(mMockGattService, BluetoothAdapter.STATE_ON);
+        verifyStateChange(BluetoothAdapter.STATE_BLE_TURNING_ON, BluetoothAdapter.STATE_BLE_ON, 1,
+                NATIVE_INIT_MS);
+        mServiceBinder.onLeServiceUp(mAttributionSource);
+        verifyStateChange(BluetoothAdapter.STATE_BLE_ON, BluetoothAdapter.STATE_TURNING_ON, 1,
+                CONTEXT_SWITCH_MS);
+
+        // Only PBAP is started before the adapter is on
+        verify(mMockContext, timeout(ONE_SECOND_MS).times(2)).startService(any());
+        mAdapterService.addProfile(mMockService);
+        mAdapterService.onProfileServiceStateChanged(mMockService, BluetoothAdapter.STATE_ON);
+        verifyStateChange(BluetoothAdapter.STATE_TURNING_ON, BluetoothAdapter.STATE_ON, 1,
+                PROFILE_SERVICE_TOGGLE_TIME_MS);
+
+        // PAN is started once the adapter is on
+        verify(mMockContext, timeout(ONE_SECOND_MS).times(3)).startService(any());
+        mAdapterService.addProfile(mMockService2);
+        mAdapterService.onProfileServiceStateChanged(mMockService2, BluetoothAdapter.STATE_ON);
+
+        doDisable(0, false);
+    }
+
+    /**
+     * Test: Connect all profiles while a deferred profile service is registered but not running.
+     * Check that the profile services are not reported as not running.
+     */
+    @Test
+    public void testConnectAllEnabledProfiles_whileDeferredProfileStarting() {
+        when(mMockResources.getBoolean(R.bool.enable_deferred_profile_start)).thenReturn(true);
+        when(mMockService.getName()).thenReturn("BluetoothPbapService");
+        when(mMockService2.getName()).thenReturn("PanService");
+        BluetoothDevice device = TestUtils.getTestDevice(BluetoothAdapter.getDefaultAdapter(), 0);
+
+        mAdapterService.enable(false);
+        verifyStateChange(BluetoothAdapter.STATE_OFF, BluetoothAdapter.STATE_BLE_TURNING_ON, 1,
+                CONTEXT_SWITCH_MS);
+        verify(mMockContext, timeout(GATT_START_TIME_MS).times(1)).startService(any());
+        mAdapterService.addProfile(mMockGattService);
+        mAdapterService.onProfileServiceStateChanged(mMockGattService, BluetoothAdapter.STATE_ON);
+        verifyStateChange(BluetoothAdapter.STATE_BLE_TURNING_ON, BluetoothAdapter.STATE_BLE_ON, 1,
+                NATIVE_INIT_MS);
+        mServiceBinder.onLeServiceUp(mAttributionSource);
+        verifyStateChange(BluetoothAdapter.STATE_BLE_ON, BluetoothAdapter.STATE_TURNING_ON, 1,
+                CONTEXT_SWITCH_MS);
+        verify(mMockContext, timeout(ONE_SECOND_MS).times(2)).startService(any());
+        mAdapterService.addProfile(mMockService);
+        mAdapterService.onProfileServiceStateChanged(mMockService, BluetoothAdapter.STATE_ON);
+        verifyStateChange(BluetoothAdapter.STATE_TURNING_ON, BluetoothAdapter.STATE_ON, 1,
+                PROFILE_SERVICE_TOGGLE_TIME_MS);
+        Assert.assertNotEquals(BluetoothStatusCodes.ERROR_BLUETOOTH_NOT_ENABLED,
+                mAdapterService.connectAllEnabledProfiles(device));
+
+        // PAN registered, not running yet
+        verify(mMockContext, timeout(ONE_SECOND_MS).times(3)).startService(any());
+        mAdapterService.addProfile(mMockService2);
+        TestUtils.waitForLooperToFinishScheduledTask(Looper.getMainLooper());
+        Assert.assertNotEquals(BluetoothStatusCodes.ERROR_BLUETOOTH_NOT_ENABLED,
+                mAdapterService.connectAllEnabledProfiles(device));
+
+        mAdapterService.onProfileServiceStateChanged(mMockService2, BluetoothAdapter.STATE_ON);
+        TestUtils.waitForLooperToFinishScheduledTask(Looper.getMainLooper());
+        Assert.assertNotEquals(BluetoothStatusCodes.ERROR_BLUETOOTH_NOT_ENABLED,
+                mAdapterService.connectAllEnabledProfiles(device));
+
+        doDisable(0, false);
+    }
+
     /**
      * Test: Turn Bluetooth on/off with only GATT supported.
      * Check whether the AdapterService gets started and stopped.
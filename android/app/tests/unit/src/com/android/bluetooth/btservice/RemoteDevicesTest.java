@@ -21,6 +21,7 @@ import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.MediumTest;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.bluetooth.BdAddr;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
 import com.android.bluetooth.hfp.HeadsetHalConstants;
@@ -539,6 +540,70 @@ public class RemoteDevicesTest {
                 .getHfAudioPolicyForRemoteAg());
     }
 
+    @Test
+    public void testAddDeviceProperties_evictsLeastRecentlyUsedUnbondedDevice() {
+        DeviceProperties bonded = mRemoteDevices.addDeviceProperties(getTestAddress(0));
+        bonded.mBondState = BluetoothDevice.BOND_BONDED;
+        DeviceProperties used = mRemoteDevices.addDeviceProperties(getTestAddress(1));
+        for (int i = 2; i < RemoteDevices.MAX_DEVICE_QUEUE_SIZE; i++) {
+            mRemoteDevices.addDeviceProperties(getTestAddress(i));
+        }
+        Assert.assertSame(used,
+                mRemoteDevices.getDeviceProperties(BdAddr.toLong(getTestAddress(1))));
+
+        // The bonded device is the oldest one, but is kept
+        mRemoteDevices.addDeviceProperties(getTestAddress(RemoteDevices.MAX_DEVICE_QUEUE_SIZE));
+        Assert.assertSame(bonded, mRemoteDevices.getDeviceProperties(bonded.getDevice()));
+
+        // The device looked up is spared, the next oldest one is evicted
+        mRemoteDevices.addDeviceProperties(getTestAddress(RemoteDevices.MAX_DEVICE_QUEUE_SIZE + 1));
+        Assert.assertSame(used, mRemoteDevices.getDeviceProperties(used.getDevice()));
+        Assert.assertNull(mRemoteDevices.getDeviceProperties(BdAddr.toLong(getTestAddress(2))));
+        Assert.assertNotNull(mRemoteDevices.getDeviceProperties(
+                BdAddr.toLong(getTestAddress(RemoteDevices.MAX_DEVICE_QUEUE_SIZE + 1))));
+    }
+
+    @Test
+    public void testGetDevice_concurrentLookupsAndUpdates() throws Exception {
+        final int deviceCount = 10;
+        for (int i = 0; i < deviceCount; i++) {
+            mRemoteDevices.addDeviceProperties(getTestAddress(i));
+        }
+
+        Thread[] threads = new Thread[2];
+        int[] misses = new int[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < deviceCount; i++) {
+                    byte[] address = getTestAddress(i);
+                    if (mRemoteDevices.getDevice(address) == null) {
+                        misses[thread]++;
+                    }
+                    // Updating the properties of a device does not block the other lookups
+                    mRemoteDevices.getDeviceProperties(BdAddr.toLong(address))
+                            .setBatteryLevel(i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int missCount : misses) {
+            Assert.assertEquals(0, missCount);
+        }
+        for (int i = 0; i < deviceCount; i++) {
+            Assert.assertEquals(i, mRemoteDevices.getDeviceProperties(
+                    BdAddr.toLong(getTestAddress(i))).getBatteryLevel());
+        }
+    }
+
+    private static byte[] getTestAddress(int index) {
+        return BdAddr.toBytes(0x001122000000L + index);
+    }
+
     private static void verifyBatteryLevelChangedIntent(BluetoothDevice device, int batteryLevel,
             ArgumentCaptor<Intent> intentArgument) {
         verifyBatteryLevelChangedIntent(device, batteryLevel, intentArgument.getValue());
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.times;
@@ -31,7 +32,10 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.BluetoothSinkAudioPolicy;
+import android.content.BroadcastReceiver;
 import android.content.ContentValues;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
@@ -53,10 +57,13 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.List;
 
 @MediumTest
@@ -104,6 +111,8 @@ public final class DatabaseManagerTest {
         when(mAdapterService.getPackageManager()).thenReturn(
                 InstrumentationRegistry.getTargetContext().getPackageManager());
         mDatabaseManager = new DatabaseManager(mAdapterService);
+        // Write the updates right away, so the tests only wait for the handler thread
+        mDatabaseManager.setWriteDelayForTesting(0);
 
         BluetoothDevice[] bondedDevices = {mTestDevice};
         doReturn(bondedDevices).when(mAdapterService).getBondedDevices();
@@ -147,6 +156,149 @@ public final class DatabaseManagerTest {
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
     }
 
+    @Test
+    public void testUpdates_coalescedPerDeviceInOneTransaction() {
+        mDatabaseManager.setWriteDelayForTesting(60000);
+        int[] profiles = {BluetoothProfile.HEADSET, BluetoothProfile.A2DP,
+                BluetoothProfile.HEARING_AID, BluetoothProfile.MAP};
+        for (BluetoothDevice device : new BluetoothDevice[] {mTestDevice, mTestDevice2}) {
+            for (int profile : profiles) {
+                mDatabaseManager.setProfileConnectionPolicy(device, profile,
+                        BluetoothProfile.CONNECTION_POLICY_FORBIDDEN);
+                mDatabaseManager.setProfileConnectionPolicy(device, profile,
+                        BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+            }
+        }
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        // Nothing is written before the end of the coalescing window
+        Assert.assertTrue(mDatabase.load().isEmpty());
+        Assert.assertTrue(dumpDatabaseManager().contains("pending=2"));
+
+        mDatabaseManager.flushPendingWrites();
+
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(2, list.size());
+        for (Metadata data : list) {
+            for (int profile : profiles) {
+                Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                        data.getProfileConnectionPolicy(profile));
+            }
+        }
+        Assert.assertTrue(dumpDatabaseManager().contains("pending=0"));
+    }
+
+    @Test
+    public void testCleanup_flushesPendingUpdates() {
+        mDatabaseManager.setWriteDelayForTesting(60000);
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_FORBIDDEN);
+
+        mDatabaseManager.cleanup();
+
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_FORBIDDEN,
+                list.get(0).getProfileConnectionPolicy(BluetoothProfile.HEADSET));
+    }
+
+    @Test
+    public void testAccessBeforeLoad_readsDeviceAndKeepsChanges() {
+        Metadata localData = new Metadata(LOCAL_STORAGE);
+        localData.migrated = true;
+        Metadata data = new Metadata(TEST_BT_ADDR);
+        data.setProfileConnectionPolicy(BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_FORBIDDEN);
+        mDatabase.insert(localData, data);
+        mDatabaseManager.cleanup();
+
+        synchronized (mDatabase) {
+            // Holding the database lock keeps the handler thread from loading it
+            mDatabaseManager.start(mDatabase);
+
+            Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_FORBIDDEN,
+                    mDatabaseManager.getProfileConnectionPolicy(mTestDevice,
+                            BluetoothProfile.HEADSET));
+            mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.A2DP,
+                    BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        }
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_FORBIDDEN,
+                mDatabaseManager.getProfileConnectionPolicy(mTestDevice,
+                        BluetoothProfile.HEADSET));
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                mDatabaseManager.getProfileConnectionPolicy(mTestDevice, BluetoothProfile.A2DP));
+        for (Metadata stored : mDatabase.load()) {
+            if (stored.getAddress().equals(TEST_BT_ADDR)) {
+                Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                        stored.getProfileConnectionPolicy(BluetoothProfile.A2DP));
+            }
+        }
+        Assert.assertTrue(dumpDatabaseManager().contains("devices read before the load=1"));
+    }
+
+    @Test
+    public void testTurningOnBeforeLoad_doesNotMigrateAgain() {
+        Metadata localData = new Metadata(LOCAL_STORAGE);
+        localData.migrated = true;
+        Metadata data = new Metadata(TEST_BT_ADDR);
+        data.setProfileConnectionPolicy(BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_FORBIDDEN);
+        mDatabase.insert(localData, data);
+        mDatabaseManager.cleanup();
+
+        synchronized (mDatabase) {
+            // Holding the database lock keeps the handler thread from loading it
+            mDatabaseManager.start(mDatabase);
+
+            ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                    ArgumentCaptor.forClass(BroadcastReceiver.class);
+            verify(mAdapterService, atLeastOnce()).registerReceiver(receiverCaptor.capture(),
+                    any(IntentFilter.class));
+            Intent intent = new Intent(BluetoothAdapter.ACTION_STATE_CHANGED);
+            intent.putExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_TURNING_ON);
+            receiverCaptor.getValue().onReceive(InstrumentationRegistry.getTargetContext(),
+                    intent);
+        }
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_FORBIDDEN,
+                mDatabaseManager.getProfileConnectionPolicy(mTestDevice,
+                        BluetoothProfile.HEADSET));
+        for (Metadata stored : mDatabase.load()) {
+            if (stored.getAddress().equals(TEST_BT_ADDR)) {
+                Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_FORBIDDEN,
+                        stored.getProfileConnectionPolicy(BluetoothProfile.HEADSET));
+            }
+        }
+    }
+
+    @Test
+    public void testSetConnectionBeforeLoad_keepsDeviceMostRecent() {
+        Metadata localData = new Metadata(LOCAL_STORAGE);
+        localData.migrated = true;
+        Metadata data = new Metadata(TEST_BT_ADDR);
+        // Created last, so connected more recently than the first device
+        Metadata data2 = new Metadata(TEST_BT_ADDR2);
+        mDatabase.insert(localData, data, data2);
+        mDatabaseManager.cleanup();
+
+        synchronized (mDatabase) {
+            // Holding the database lock keeps the handler thread from loading it
+            mDatabaseManager.start(mDatabase);
+
+            mDatabaseManager.setConnection(mTestDevice, false);
+        }
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        List<BluetoothDevice> mostRecentlyConnectedDevicesOrdered =
+                mDatabaseManager.getMostRecentlyConnectedDevices();
+        Assert.assertEquals(2, mostRecentlyConnectedDevicesOrdered.size());
+        Assert.assertEquals(mTestDevice, mostRecentlyConnectedDevicesOrdered.get(0));
+        Assert.assertEquals(mTestDevice2, mostRecentlyConnectedDevicesOrdered.get(1));
+    }
+
     @Test
     public void testSetGetProfileConnectionPolicy() {
         int badConnectionPolicy = -100;
@@ -1343,6 +1495,12 @@ public final class DatabaseManagerTest {
                 CoreMatchers.is(data));
     }
 
+    String dumpDatabaseManager() {
+        StringWriter out = new StringWriter();
+        mDatabaseManager.dump(new PrintWriter(out));
+        return out.toString();
+    }
+
     void restartDatabaseManagerHelper() {
         Metadata data = new Metadata(LOCAL_STORAGE);
         data.migrated = true;
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link AdvertisementDedupCache}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AdvertisementDedupCacheTest {
+
+    private static final String ADDRESS_1 = "00:11:22:33:44:55";
+    private static final String ADDRESS_2 = "00:11:22:33:44:66";
+    private static final byte[] PAYLOAD = new byte[] {0x02, 0x01, 0x06};
+    private static final byte[] OTHER_PAYLOAD = new byte[] {0x02, 0x01, 0x04};
+    private static final int SCANNER_ID = 1;
+
+    private final AdvertisementDedupCache mCache = new AdvertisementDedupCache(2);
+
+    @Test
+    public void isDuplicate_onlyAfterDelivery() {
+        AdvertisementDedupCache.Entry entry = mCache.update(ADDRESS_1, PAYLOAD);
+        assertThat(mCache.isDuplicate(entry, SCANNER_ID, -50, 0)).isFalse();
+
+        mCache.markDelivered(entry, SCANNER_ID, -50);
+        entry = mCache.update(ADDRESS_1, PAYLOAD.clone());
+
+        assertThat(mCache.isDuplicate(entry, SCANNER_ID, -50, 0)).isTrue();
+        assertThat(mCache.isDuplicate(entry, SCANNER_ID + 1, -50, 0)).isFalse();
+    }
+
+    @Test
+    public void isDuplicate_payloadChangeIsReported() {
+        AdvertisementDedupCache.Entry entry = mCache.update(ADDRESS_1, PAYLOAD);
+        mCache.markDelivered(entry, SCANNER_ID, -50);
+
+        entry = mCache.update(ADDRESS_1, OTHER_PAYLOAD);
+
+        assertThat(mCache.isDuplicate(entry, SCANNER_ID, -50, 0)).isFalse();
+    }
+
+    @Test
+    public void isDuplicate_payloadChangeWithSameHashIsReported() {
+        byte[] payload = new byte[] {0x00, 0x1F};
+        byte[] collidingPayload = new byte[] {0x01, 0x00};
+        assertThat(Arrays.hashCode(collidingPayload)).isEqualTo(Arrays.hashCode(payload));
+
+        AdvertisementDedupCache.Entry entry = mCache.update(ADDRESS_1, payload);
+        mCache.markDelivered(entry, SCANNER_ID, -50);
+        entry = mCache.update(ADDRESS_1, collidingPayload);
+
+        assertThat(mCache.isDuplicate(entry, SCANNER_ID, -50, 0)).isFalse();
+    }
+
+    @Test
+    public void isDuplicate_rssiThreshold() {
+        AdvertisementDedupCache.Entry entry = mCache.update(ADDRESS_1, PAYLOAD);
+        mCache.markDelivered(entry, SCANNER_ID, -50);
+
+        assertThat(mCache.isDuplicate(entry, SCANNER_ID, -54, 5)).isTrue();
+        assertThat(mCache.isDuplicate(entry, SCANNER_ID, -45, 5)).isFalse();
+        assertThat(mCache.isDuplicate(entry, SCANNER_ID, -70, 0)).isTrue();
+    }
+
+    @Test
+    public void removeScanner_forgetsDeliveries() {
+        AdvertisementDedupCache.Entry entry = mCache.update(ADDRESS_1, PAYLOAD);
+        mCache.markDelivered(entry, SCANNER_ID, -50);
+
+        mCache.removeScanner(SCANNER_ID);
+
+        assertThat(mCache.isDuplicate(entry, SCANNER_ID, -50, 0)).isFalse();
+    }
+
+    @Test
+    public void update_evictsLeastRecentlyUsedDevice() {
+        AdvertisementDedupCache.Entry entry = mCache.update(ADDRESS_1, PAYLOAD);
+        mCache.markDelivered(entry, SCANNER_ID, -50);
+        mCache.update(ADDRESS_2, PAYLOAD);
+        mCache.update("00:11:22:33:44:77", PAYLOAD);
+
+        assertThat(mCache.size()).isEqualTo(2);
+        entry = mCache.update(ADDRESS_1, PAYLOAD);
+        assertThat(mCache.isDuplicate(entry, SCANNER_ID, -50, 0)).isFalse();
+    }
+}
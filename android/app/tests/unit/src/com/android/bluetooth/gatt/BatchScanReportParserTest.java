@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Test cases for {@link BatchScanReportParser}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatchScanReportParserTest {
+
+    private static final int THREAD_COUNT = 3;
+    private static final int THRESHOLD = 100;
+    private static final int SYNTHETIC_RECORD_COUNT = 5000;
+    private static final long NOW_NANOS = 1_000_000_000_000L;
+    private static final ScanSettings SETTINGS = new ScanSettings.Builder()
+            .setScanResultType(ScanSettings.SCAN_RESULT_TYPE_FULL)
+            .build();
+
+    private ExecutorService mExecutor;
+    private BatchScanReportParser mParallelParser;
+    private BatchScanReportParser mSerialParser;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
+        mParallelParser = new BatchScanReportParser(mExecutor, THREAD_COUNT, THRESHOLD);
+        mSerialParser = new BatchScanReportParser(null, 0, THRESHOLD);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    // Writes a full record of a device whose address ends with the two bytes of index.
+    private static void writeFullRecord(ByteArrayOutputStream out, int index, byte[] adv,
+            byte[] scanResponse) {
+        // Address in little endian order.
+        out.write(index & 0xff);
+        out.write((index >> 8) & 0xff);
+        out.write(0x33);
+        out.write(0x22);
+        out.write(0x11);
+        out.write(0x00);
+        // Address type, tx power, rssi and timestamp.
+        out.write(0x00);
+        out.write(0x7f);
+        out.write(-60);
+        out.write(0x02);
+        out.write(0x00);
+        out.write(adv.length);
+        out.write(adv, 0, adv.length);
+        out.write(scanResponse.length);
+        out.write(scanResponse, 0, scanResponse.length);
+    }
+
+    private static String addressOf(int index) {
+        return String.format("00:11:22:33:%02X:%02X", (index >> 8) & 0xff, index & 0xff);
+    }
+
+    private static byte[] manufacturerData(int manufacturerId) {
+        return new byte[] {0x04, (byte) 0xff, (byte) manufacturerId, 0x00, 0x01};
+    }
+
+    private static byte[] syntheticFlush(int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            writeFullRecord(out, i, manufacturerData(i % 3),
+                    i % 2 == 0 ? new byte[0] : new byte[] {0x02, 0x0a, 0x05});
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void parseFullResults_combinesPackets() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeFullRecord(out, 1, manufacturerData(0x4c), new byte[] {0x02, 0x0a, 0x05});
+
+        ScanResult[] results = mSerialParser.parseFullResults(1, out.toByteArray(), NOW_NANOS);
+
+        assertThat(results).hasLength(1);
+        ScanResult result = results[0];
+        assertThat(result.getDevice().getAddress()).isEqualTo(addressOf(1));
+        assertThat(result.getRssi()).isEqualTo(-60);
+        assertThat(result.getTimestampNanos())
+                .isEqualTo(NOW_NANOS - BatchScanReportParser.parseTimestampNanos(
+                        new byte[] {0x02, 0x00}));
+        assertThat(result.getScanRecord().getManufacturerSpecificData(0x4c))
+                .isEqualTo(new byte[] {0x01});
+        assertThat(result.getScanRecord().getTxPowerLevel()).isEqualTo(5);
+    }
+
+    @Test
+    public void parseTruncatedResults_readsFixedSizeRecords() {
+        byte[] report = new byte[] {
+                0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x00, 0x00, -70, 0x01, 0x00,
+                0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x00, 0x00, -80, 0x02, 0x00};
+
+        ScanResult[] results = mSerialParser.parseTruncatedResults(2, report, NOW_NANOS);
+
+        assertThat(results).hasLength(2);
+        assertThat(results[0].getDevice().getAddress()).isEqualTo("06:05:04:03:02:01");
+        assertThat(results[0].getRssi()).isEqualTo(-70);
+        assertThat(results[1].getDevice().getAddress()).isEqualTo("16:15:14:13:12:11");
+        assertThat(results[1].getRssi()).isEqualTo(-80);
+    }
+
+    @Test
+    public void parseFullResults_syntheticFlush_parallelMatchesSerial() {
+        byte[] report = syntheticFlush(SYNTHETIC_RECORD_COUNT);
+
+        ScanResult[] serial =
+                mSerialParser.parseFullResults(SYNTHETIC_RECORD_COUNT, report, NOW_NANOS);
+        ScanResult[] parallel =
+                mParallelParser.parseFullResults(SYNTHETIC_RECORD_COUNT, report, NOW_NANOS);
+
+        assertThat(mParallelParser.getChunkCount(SYNTHETIC_RECORD_COUNT))
+                .isEqualTo(THREAD_COUNT + 1);
+        assertThat(parallel).hasLength(SYNTHETIC_RECORD_COUNT);
+        for (int i = 0; i < SYNTHETIC_RECORD_COUNT; i++) {
+            assertThat(parallel[i].getDevice().getAddress()).isEqualTo(addressOf(i));
+            assertThat(parallel[i].getDevice()).isEqualTo(serial[i].getDevice());
+            assertThat(parallel[i].getScanRecord().getBytes())
+                    .isEqualTo(serial[i].getScanRecord().getBytes());
+        }
+    }
+
+    @Test
+    public void match_groupsResultsPerClientInReportOrder() {
+        ScanResult[] results = mParallelParser.parseFullResults(SYNTHETIC_RECORD_COUNT,
+                syntheticFlush(SYNTHETIC_RECORD_COUNT), NOW_NANOS);
+        ScanClient manufacturerClient = new ScanClient(1, SETTINGS,
+                List.of(new ScanFilter.Builder().setManufacturerData(1, new byte[0]).build()));
+        ScanClient addressClient = new ScanClient(2, SETTINGS,
+                List.of(new ScanFilter.Builder().setDeviceAddress(addressOf(42)).build()));
+        ScanClient unmatchedClient = new ScanClient(3, SETTINGS,
+                List.of(new ScanFilter.Builder().setManufacturerData(7, new byte[0]).build()));
+        ScanFilterIndex index = new ScanFilterIndex(
+                Set.of(manufacturerClient, addressClient, unmatchedClient));
+
+        Map<ScanClient, List<ScanResult>> matches = mParallelParser.match(results, index);
+
+        List<ScanResult> manufacturerMatches = matches.get(manufacturerClient);
+        assertThat(manufacturerMatches).hasSize((SYNTHETIC_RECORD_COUNT + 1) / 3);
+        for (int i = 0; i < manufacturerMatches.size(); i++) {
+            assertThat(manufacturerMatches.get(i)).isSameInstanceAs(results[i * 3 + 1]);
+        }
+        assertThat(matches.get(addressClient)).containsExactly(results[42]);
+        assertThat(matches).doesNotContainKey(unmatchedClient);
+    }
+}
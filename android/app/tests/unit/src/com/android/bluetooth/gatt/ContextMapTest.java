@@ -113,6 +113,69 @@ public class ContextMapTest {
         assertThat(contextMapByName.name).isEqualTo(appName);
     }
 
+    @Test
+    public void getByIdAndUuid_followRegistration() {
+        ContextMap<Void, Void> contextMap = new ContextMap<>();
+        UUID uuid = UUID.randomUUID();
+        int id = 7;
+
+        ContextMap<Void, Void>.App app = contextMap.add(uuid, null, null, null, mService);
+
+        assertThat(contextMap.getByUuid(uuid)).isSameInstanceAs(app);
+        assertThat(contextMap.getById(id)).isNull();
+
+        contextMap.setId(app, id);
+
+        assertThat(app.id).isEqualTo(id);
+        assertThat(contextMap.getById(id)).isSameInstanceAs(app);
+
+        contextMap.remove(id);
+
+        assertThat(contextMap.getById(id)).isNull();
+        assertThat(contextMap.getByUuid(uuid)).isNull();
+    }
+
+    @Test
+    public void getById_idAssignedDirectly() {
+        ContextMap<Void, Void> contextMap = new ContextMap<>();
+
+        ContextMap<Void, Void>.App app =
+                contextMap.add(UUID.randomUUID(), null, null, null, mService);
+        app.id = 8;
+
+        assertThat(contextMap.getById(8)).isSameInstanceAs(app);
+    }
+
+    @Test
+    public void connections_indexedByIdAppAndAddress() {
+        ContextMap<Void, Void> contextMap = new ContextMap<>();
+        ContextMap<Void, Void>.App app =
+                contextMap.add(UUID.randomUUID(), null, null, null, mService);
+        contextMap.setId(app, 1);
+
+        contextMap.addConnection(1, 10, "00:11:22:33:44:55");
+        contextMap.addConnection(1, 11, "00:11:22:33:44:66");
+
+        assertThat(contextMap.getByConnId(10)).isSameInstanceAs(app);
+        assertThat(contextMap.addressByConnId(11)).isEqualTo("00:11:22:33:44:66");
+        assertThat(contextMap.connIdByAddress(1, "00:11:22:33:44:55")).isEqualTo(10);
+        assertThat(contextMap.connIdByAddress(1, "00:11:22:33:44:aa")).isNull();
+        assertThat(contextMap.connIdByAddress(2, "00:11:22:33:44:55")).isNull();
+        assertThat(contextMap.getConnectionByApp(1)).hasSize(2);
+
+        contextMap.removeConnection(1, 10);
+
+        assertThat(contextMap.getByConnId(10)).isNull();
+        assertThat(contextMap.connIdByAddress(1, "00:11:22:33:44:55")).isNull();
+        assertThat(contextMap.getConnectionByApp(1)).hasSize(1);
+
+        contextMap.remove(1);
+
+        assertThat(contextMap.addressByConnId(11)).isNull();
+        assertThat(contextMap.getConnectionByApp(1)).isEmpty();
+        assertThat(contextMap.getConnectedDevices()).isEmpty();
+    }
+
     @Test
     public void advertisingSetAndData() {
         ContextMap contextMap = new ContextMap<>();
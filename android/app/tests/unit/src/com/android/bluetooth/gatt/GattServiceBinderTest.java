@@ -577,6 +577,21 @@ public class GattServiceBinderTest {
                 mAttributionSource);
     }
 
+    @Test
+    public void sendMulticastNotification() throws Exception {
+        int serverIf = 1;
+        String[] addresses = new String[] {REMOTE_DEVICE_ADDRESS};
+        int handle = 2;
+        boolean confirm = false;
+        byte[] value = new byte[] {5, 6};
+
+        mBinder.sendMulticastNotification(serverIf, addresses, handle, confirm, value,
+                mAttributionSource, SynchronousResultReceiver.get());
+
+        verify(mService).sendMulticastNotification(serverIf, addresses, handle, confirm, value,
+                mAttributionSource);
+    }
+
     @Test
     public void startAdvertisingSet() throws Exception {
         AdvertisingSetParameters parameters = new AdvertisingSetParameters.Builder().build();
@@ -187,6 +187,19 @@ public class GattServiceTest {
         mService.clearServices(serverIf, mAttributionSource);
     }
 
+    @Test
+    public void sendMulticastNotification_deviceNotConnected() {
+        int serverIf = 1;
+        int handle = 2;
+        String[] addresses = new String[] {REMOTE_DEVICE_ADDRESS};
+        doReturn(null).when(mServerMap).connIdByAddress(serverIf, REMOTE_DEVICE_ADDRESS);
+
+        int status = mService.sendMulticastNotification(serverIf, addresses, handle, false,
+                new byte[] {1}, mAttributionSource);
+
+        assertThat(status).isEqualTo(BluetoothStatusCodes.ERROR_DEVICE_NOT_CONNECTED);
+    }
+
     @Test
     public void clientReadPhy() {
         int clientIf = 1;
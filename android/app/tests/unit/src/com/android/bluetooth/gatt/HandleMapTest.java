@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothGattService;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test cases for {@link HandleMap}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HandleMapTest {
+
+    private static final int SERVER_IF = 1;
+    private static final int OTHER_SERVER_IF = 2;
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHARACTERISTIC_UUID =
+            UUID.fromString("00002A37-0000-1000-8000-00805F9B34FB");
+    private static final UUID DESCRIPTOR_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+    private static final int LOOKUP_ROUNDS = 2000;
+
+    private HandleMap mHandleMap;
+
+    @Before
+    public void setUp() {
+        mHandleMap = new HandleMap();
+    }
+
+    // Adds a service at serviceHandle followed by a characteristic and its descriptor.
+    private void addService(int serverIf, int serviceHandle) {
+        mHandleMap.addService(serverIf, serviceHandle, SERVICE_UUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY, 0, false);
+        mHandleMap.addCharacteristic(serverIf, serviceHandle + 1, CHARACTERISTIC_UUID,
+                serviceHandle);
+        mHandleMap.addDescriptor(serverIf, serviceHandle + 2, DESCRIPTOR_UUID, serviceHandle);
+    }
+
+    @Test
+    public void getByHandle() {
+        addService(SERVER_IF, 10);
+
+        HandleMap.Entry service = mHandleMap.getByHandle(10);
+        assertThat(service.type).isEqualTo(HandleMap.TYPE_SERVICE);
+        HandleMap.Entry characteristic = mHandleMap.getByHandle(11);
+        assertThat(characteristic.type).isEqualTo(HandleMap.TYPE_CHARACTERISTIC);
+        assertThat(characteristic.serviceHandle).isEqualTo(10);
+        HandleMap.Entry descriptor = mHandleMap.getByHandle(12);
+        assertThat(descriptor.type).isEqualTo(HandleMap.TYPE_DESCRIPTOR);
+        assertThat(descriptor.charHandle).isEqualTo(11);
+        assertThat(mHandleMap.getByHandle(13)).isNull();
+    }
+
+    @Test
+    public void getByRequestId() {
+        addService(SERVER_IF, 10);
+
+        mHandleMap.addRequest(7, 11);
+        assertThat(mHandleMap.getByRequestId(7).handle).isEqualTo(11);
+        mHandleMap.deleteRequest(7);
+        assertThat(mHandleMap.getByRequestId(7)).isNull();
+    }
+
+    @Test
+    public void getServices_perServer() {
+        addService(SERVER_IF, 10);
+        addService(OTHER_SERVER_IF, 20);
+        addService(SERVER_IF, 30);
+
+        assertThat(mHandleMap.getServices(SERVER_IF)).hasSize(2);
+        assertThat(mHandleMap.getServices(SERVER_IF).get(0).handle).isEqualTo(10);
+        assertThat(mHandleMap.getServices(SERVER_IF).get(1).handle).isEqualTo(30);
+        assertThat(mHandleMap.getServices(OTHER_SERVER_IF)).hasSize(1);
+        assertThat(mHandleMap.getServices(3)).isEmpty();
+        assertThat(mHandleMap.getEntries()).hasSize(9);
+    }
+
+    @Test
+    public void setStarted() {
+        addService(SERVER_IF, 10);
+
+        mHandleMap.setStarted(OTHER_SERVER_IF, 10, true);
+        assertThat(mHandleMap.getByHandle(10).started).isFalse();
+        mHandleMap.setStarted(SERVER_IF, 10, true);
+        assertThat(mHandleMap.getByHandle(10).started).isTrue();
+    }
+
+    @Test
+    public void checkServiceExists() {
+        addService(SERVER_IF, 10);
+
+        assertThat(mHandleMap.checkServiceExists(SERVICE_UUID, 10)).isTrue();
+        assertThat(mHandleMap.checkServiceExists(CHARACTERISTIC_UUID, 10)).isFalse();
+        assertThat(mHandleMap.checkServiceExists(SERVICE_UUID, 11)).isFalse();
+        assertThat(mHandleMap.checkServiceExists(SERVICE_UUID, 40)).isFalse();
+    }
+
+    @Test
+    public void deleteService_removesItsAttributesOnly() {
+        addService(SERVER_IF, 10);
+        addService(SERVER_IF, 20);
+
+        mHandleMap.deleteService(SERVER_IF, 10);
+
+        assertThat(mHandleMap.getByHandle(10)).isNull();
+        assertThat(mHandleMap.getByHandle(11)).isNull();
+        assertThat(mHandleMap.getByHandle(12)).isNull();
+        assertThat(mHandleMap.getByHandle(21).serviceHandle).isEqualTo(20);
+        assertThat(mHandleMap.getServices(SERVER_IF)).hasSize(1);
+        assertThat(mHandleMap.getEntries()).hasSize(3);
+
+        mHandleMap.deleteService(SERVER_IF, 20);
+        assertThat(mHandleMap.getServices(SERVER_IF)).isEmpty();
+        assertThat(mHandleMap.getEntries()).isEmpty();
+    }
+
+    @Test
+    public void deleteService_indexesRemainingEntryOfSharedHandle() {
+        addService(SERVER_IF, 10);
+        addService(OTHER_SERVER_IF, 10);
+        assertThat(mHandleMap.getByHandle(11).serverIf).isEqualTo(SERVER_IF);
+
+        mHandleMap.deleteService(SERVER_IF, 10);
+
+        assertThat(mHandleMap.getByHandle(11).serverIf).isEqualTo(OTHER_SERVER_IF);
+    }
+
+    @Test
+    public void clear() {
+        addService(SERVER_IF, 10);
+        mHandleMap.addRequest(1, 11);
+
+        mHandleMap.clear();
+
+        assertThat(mHandleMap.getByHandle(10)).isNull();
+        assertThat(mHandleMap.getByRequestId(1)).isNull();
+        assertThat(mHandleMap.getServices(SERVER_IF)).isEmpty();
+    }
+
+    @Test
+    public void getByHandle_duringConcurrentServiceRegistration() throws Exception {
+        // Services of a first server stay registered while a second server keeps adding and
+        // deleting services, as a gateway hosting many services would.
+        for (int i = 0; i < 50; i++) {
+            addService(SERVER_IF, 10 + i * 3);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread registration = new Thread(() -> {
+            try {
+                int round = 0;
+                while (running.get()) {
+                    int handle = 1000 + (round++ % 100) * 3;
+                    addService(OTHER_SERVER_IF, handle);
+                    mHandleMap.deleteService(OTHER_SERVER_IF, handle);
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        registration.start();
+
+        try {
+            for (int round = 0; round < LOOKUP_ROUNDS; round++) {
+                for (int i = 0; i < 50; i++) {
+                    int serviceHandle = 10 + i * 3;
+                    HandleMap.Entry entry = mHandleMap.getByHandle(serviceHandle + 1);
+                    assertThat(entry).isNotNull();
+                    assertThat(entry.serviceHandle).isEqualTo(serviceHandle);
+                }
+            }
+        } finally {
+            running.set(false);
+            registration.join();
+        }
+
+        assertThat(failure.get()).isNull();
+        assertThat(mHandleMap.getServices(SERVER_IF)).hasSize(50);
+        assertThat(mHandleMap.getServices(OTHER_SERVER_IF)).isEmpty();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link LatencyHistogram}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LatencyHistogramTest {
+
+    @Test
+    public void record_countsIntoBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(5_000);
+        histogram.record(10_000);
+        histogram.record(2_000_000);
+        histogram.record(1_000_000_000);
+
+        assertThat(histogram.getCount()).isEqualTo(4);
+        assertThat(histogram.getBucketCount(0)).isEqualTo(1);
+        assertThat(histogram.getBucketCount(1)).isEqualTo(1);
+        assertThat(histogram.getBucketCount(5)).isEqualTo(1);
+        assertThat(histogram.getBucketCount(LatencyHistogram.BUCKET_UPPER_BOUNDS_US.length))
+                .isEqualTo(1);
+        assertThat(histogram.getMaxNanos()).isEqualTo(1_000_000_000);
+    }
+
+    @Test
+    public void reset_clearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5_000);
+
+        histogram.reset();
+
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getBucketCount(0)).isEqualTo(0);
+        assertThat(histogram.getMaxNanos()).isEqualTo(0);
+        StringBuilder sb = new StringBuilder();
+        histogram.dump(sb);
+        assertThat(sb.toString()).isEqualTo("count=0");
+    }
+
+    @Test
+    public void dump_printsBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(20_000);
+        histogram.record(40_000);
+
+        StringBuilder sb = new StringBuilder();
+        histogram.dump(sb);
+
+        assertThat(sb.toString()).startsWith("count=2 avg=30us max=40us [<10:0 <50:2 ");
+        assertThat(sb.toString()).endsWith(">=50000:0]");
+    }
+}
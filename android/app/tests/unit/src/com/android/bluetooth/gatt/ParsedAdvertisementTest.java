@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.le.ScanResult;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link ParsedAdvertisement}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ParsedAdvertisementTest {
+
+    private static final String ADDRESS = "DD:34:02:05:5C:4D";
+    private static final byte[] ADV_DATA = new byte[] {
+            0x02, 0x01, 0x06, 0x03, 0x03, (byte) 0xAA, (byte) 0xFE};
+
+    private ParsedAdvertisement newReport(byte[] advData) {
+        return new ParsedAdvertisement(0x1b, ADDRESS, 1, 0, 0xff, 127, -54, 0, advData);
+    }
+
+    @Test
+    public void getResult_isSharedAcrossCalls() {
+        ParsedAdvertisement report = newReport(ADV_DATA);
+
+        ScanResult extended = report.getResult(false);
+        ScanResult legacy = report.getResult(true);
+
+        assertThat(report.getResult(false)).isSameInstanceAs(extended);
+        assertThat(report.getResult(true)).isSameInstanceAs(legacy);
+        assertThat(legacy).isNotSameInstanceAs(extended);
+        assertThat(legacy.getDevice()).isSameInstanceAs(extended.getDevice());
+        assertThat(legacy.getTimestampNanos()).isEqualTo(extended.getTimestampNanos());
+    }
+
+    @Test
+    public void hasResult_onlyOnceBuilt() {
+        ParsedAdvertisement report = newReport(ADV_DATA);
+        assertThat(report.hasResult(false)).isFalse();
+
+        report.getResult(false);
+
+        assertThat(report.hasResult(false)).isTrue();
+        assertThat(report.hasResult(true)).isFalse();
+    }
+
+    @Test
+    public void getResult_legacyIsFixedSize() {
+        ParsedAdvertisement report = newReport(ADV_DATA);
+
+        assertThat(report.getResult(true).getScanRecord().getBytes())
+                .hasLength(ParsedAdvertisement.LEGACY_ADV_DATA_LENGTH);
+        assertThat(report.getResult(false).getScanRecord().getBytes()).isEqualTo(ADV_DATA);
+    }
+
+    @Test
+    public void getResult_keepsReportFields() {
+        ScanResult result = newReport(ADV_DATA).getResult(false);
+
+        assertThat(result.getDevice().getAddress()).isEqualTo(ADDRESS);
+        assertThat(result.getRssi()).isEqualTo(-54);
+        assertThat(result.getTxPower()).isEqualTo(127);
+        assertThat(result.getAdvertisingSid()).isEqualTo(0xff);
+        assertThat(result.getScanRecord().getAdvertiseFlags()).isEqualTo(0x06);
+    }
+
+    @Test
+    public void isLocationDenylisted_evaluatedOncePerFlavour() {
+        ParsedAdvertisement report = newReport(ADV_DATA);
+        List<ScanResult> tested = new ArrayList<>();
+
+        assertThat(report.isLocationDenylisted(false, result -> tested.add(result))).isTrue();
+        assertThat(report.isLocationDenylisted(false, result -> tested.add(result))).isTrue();
+        assertThat(report.isLocationDenylisted(true, result -> !tested.add(result))).isFalse();
+
+        assertThat(tested).containsExactly(report.getResult(false), report.getResult(true))
+                .inOrder();
+    }
+}
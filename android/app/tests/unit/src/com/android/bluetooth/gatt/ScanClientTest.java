@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanClient}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanClientTest {
+
+    @Test
+    public void isAssociatedDevice_ignoresCaseOfAssociations() {
+        ScanClient client = new ScanClient(1);
+        client.associatedDevices = List.of("aa:bb:cc:dd:ee:ff", "00:11:22:33:44:55");
+
+        assertThat(client.isAssociatedDevice("AA:BB:CC:DD:EE:FF")).isTrue();
+        assertThat(client.isAssociatedDevice("00:11:22:33:44:55")).isTrue();
+        assertThat(client.isAssociatedDevice("00:11:22:33:44:66")).isFalse();
+        assertThat(client.isAssociatedDevice(null)).isFalse();
+    }
+
+    @Test
+    public void isAssociatedDevice_followsReplacedList() {
+        ScanClient client = new ScanClient(1);
+
+        assertThat(client.isAssociatedDevice("00:11:22:33:44:55")).isFalse();
+
+        client.associatedDevices = List.of("00:11:22:33:44:55");
+
+        assertThat(client.isAssociatedDevice("00:11:22:33:44:55")).isTrue();
+    }
+
+    @Test
+    public void scanResultPermission_cachedUntilInvalidated() {
+        ScanClient client = new ScanClient(1);
+
+        assertThat(client.getCachedScanResultPermission()).isNull();
+
+        client.setCachedScanResultPermission(true);
+
+        assertThat(client.getCachedScanResultPermission()).isTrue();
+
+        client.invalidateScanResultPermission();
+
+        assertThat(client.getCachedScanResultPermission()).isNull();
+    }
+}
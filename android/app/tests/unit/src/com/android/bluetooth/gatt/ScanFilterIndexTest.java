@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterIndex}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanFilterIndexTest {
+
+    private static final String ADDRESS = "DD:34:02:05:5C:4D";
+    private static final String OTHER_ADDRESS = "00:11:22:33:44:55";
+    private static final ScanSettings SETTINGS = new ScanSettings.Builder().build();
+
+    // Flags, complete 16-bit UUID 0xFEAA, manufacturer 0x004C data {0x02, 0x15}.
+    private static final byte[] ADV_DATA = new byte[] {
+            0x02, 0x01, 0x06,
+            0x03, 0x03, (byte) 0xAA, (byte) 0xFE,
+            0x05, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15};
+
+    private static ScanResult newResult(String address) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        return new ScanResult(device, 0x1b, 1, 0, 0xff, 127, -54, 0,
+                ScanRecord.parseFromBytes(ADV_DATA), 0);
+    }
+
+    private static ScanClient newClient(int scannerId, ScanFilter... filters) {
+        List<ScanFilter> list = filters.length == 0 ? null : Arrays.asList(filters);
+        return new ScanClient(scannerId, SETTINGS, list);
+    }
+
+    @Test
+    public void match_unfilteredClientAlwaysMatches() {
+        ScanClient client = newClient(1);
+        ScanFilterIndex index = new ScanFilterIndex(Arrays.asList(client));
+
+        assertThat(index.contains(client)).isTrue();
+        assertThat(index.getFilterCount()).isEqualTo(0);
+        assertThat(index.match(newResult(ADDRESS), null)).containsExactly(client);
+    }
+
+    @Test
+    public void match_byAddress() {
+        ScanClient match = newClient(1, new ScanFilter.Builder().setDeviceAddress(ADDRESS).build());
+        ScanClient noMatch = newClient(2,
+                new ScanFilter.Builder().setDeviceAddress(OTHER_ADDRESS).build());
+        ScanFilterIndex index = new ScanFilterIndex(Arrays.asList(match, noMatch));
+
+        assertThat(index.match(newResult(ADDRESS), null)).containsExactly(match);
+    }
+
+    @Test
+    public void match_byOriginalAddress() {
+        ScanClient client = newClient(1,
+                new ScanFilter.Builder().setDeviceAddress(OTHER_ADDRESS).build());
+        ScanFilterIndex index = new ScanFilterIndex(Arrays.asList(client));
+
+        assertThat(index.match(newResult(ADDRESS), OTHER_ADDRESS.toLowerCase()))
+                .containsExactly(client);
+    }
+
+    @Test
+    public void match_byManufacturerIdWithResidualDataCheck() {
+        ScanClient match = newClient(1, new ScanFilter.Builder()
+                .setManufacturerData(0x004C, new byte[] {0x02}).build());
+        ScanClient wrongData = newClient(2, new ScanFilter.Builder()
+                .setManufacturerData(0x004C, new byte[] {0x03}).build());
+        ScanClient wrongId = newClient(3, new ScanFilter.Builder()
+                .setManufacturerData(0x00E0, new byte[] {0x02}).build());
+        ScanFilterIndex index = new ScanFilterIndex(Arrays.asList(match, wrongData, wrongId));
+
+        assertThat(index.match(newResult(ADDRESS), null)).containsExactly(match);
+    }
+
+    @Test
+    public void match_byServiceUuidAndMaskedResidual() {
+        ScanClient exact = newClient(1, new ScanFilter.Builder()
+                .setServiceUuid(ParcelUuid.fromString("0000FEAA-0000-1000-8000-00805F9B34FB"))
+                .build());
+        ScanClient masked = newClient(2, new ScanFilter.Builder()
+                .setServiceUuid(ParcelUuid.fromString("0000FE00-0000-1000-8000-00805F9B34FB"),
+                        ParcelUuid.fromString("0000FF00-0000-0000-0000-000000000000"))
+                .build());
+        ScanClient other = newClient(3, new ScanFilter.Builder()
+                .setServiceUuid(ParcelUuid.fromString("0000180D-0000-1000-8000-00805F9B34FB"))
+                .build());
+        ScanFilterIndex index = new ScanFilterIndex(Arrays.asList(exact, masked, other));
+
+        assertThat(index.getFilterCount()).isEqualTo(3);
+        assertThat(index.match(newResult(ADDRESS), null)).containsExactly(exact, masked);
+    }
+
+    @Test
+    public void contains_unknownClient() {
+        ScanFilterIndex index = new ScanFilterIndex(Arrays.asList(newClient(1)));
+
+        assertThat(index.contains(newClient(2))).isFalse();
+        assertThat(ScanFilterIndex.EMPTY.contains(newClient(1))).isFalse();
+    }
+}
@@ -214,6 +214,28 @@ public class ScanManagerTest {
         return message;
     }
 
+    @Test
+    public void testStopScanAfterFailedDelivery_forgetsDeliveriesOfScannerId() {
+        final int scannerId = 1;
+        final String address = "00:11:22:33:44:55";
+        final byte[] payload = new byte[] {0x02, 0x01, 0x06};
+        sendMessageWaitForProcessed(createScreenOnOffMessage(true));
+        ScanClient client = createScanClient(scannerId, false, SCAN_MODE_LOW_LATENCY);
+        sendMessageWaitForProcessed(createStartStopScanMessage(true, client));
+        AdvertisementDedupCache.Entry entry =
+                mService.mAdvertisementDedupCache.update(address, payload);
+        mService.mAdvertisementDedupCache.markDelivered(entry, scannerId, -50);
+
+        // What GattService does when a delivery to the app fails
+        mScanManager.stopScan(scannerId);
+        TestUtils.waitForLooperToBeIdle(mHandler.getLooper());
+
+        // A new client reusing the scanner id gets the first report of the device
+        entry = mService.mAdvertisementDedupCache.update(address, payload);
+        assertThat(mService.mAdvertisementDedupCache.isDuplicate(entry, scannerId, -50, 0))
+                .isFalse();
+    }
+
     @Test
     public void testScreenOffStartUnfilteredScan() {
         // Set filtered scan flag
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.*;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.TestLooperManager;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanResultCoalescer}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanResultCoalescerTest {
+
+    private static final String ADDRESS_1 = "00:11:22:33:44:55";
+    private static final String ADDRESS_2 = "00:11:22:33:44:66";
+
+    private HandlerThread mHandlerThread;
+    private TestLooperManager mTestLooperManager;
+    private ScanResultCoalescer mCoalescer;
+
+    @Mock private ScanResultCoalescer.Callback mCallback;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mHandlerThread = new HandlerThread("ScanResultCoalescerTestHandlerThread");
+        mHandlerThread.start();
+        mTestLooperManager = InstrumentationRegistry.getInstrumentation()
+                .acquireLooperManager(mHandlerThread.getLooper());
+        mCoalescer = new ScanResultCoalescer(new Handler(mHandlerThread.getLooper()), mCallback);
+    }
+
+    @After
+    public void tearDown() {
+        mTestLooperManager.release();
+        mHandlerThread.quit();
+    }
+
+    private static ScanClient newClient(int scannerId, long windowMillis, int maxResults) {
+        ScanSettings settings = new ScanSettings.Builder()
+                .setCoalescing(windowMillis, maxResults)
+                .build();
+        return new ScanClient(scannerId, settings, null);
+    }
+
+    private static ScanResult newResult(String address, int rssi, byte... advData) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        return new ScanResult(device, 0x1b, 1, 0, 0xff, 127, rssi, 0,
+                ScanRecord.parseFromBytes(advData), 0);
+    }
+
+    @Test
+    public void isCoalescing() {
+        assertThat(ScanResultCoalescer.isCoalescing(new ScanSettings.Builder().build())).isFalse();
+        assertThat(ScanResultCoalescer.isCoalescing(newClient(1, 100, 0).settings)).isTrue();
+        assertThat(ScanResultCoalescer.isCoalescing(new ScanSettings.Builder()
+                .setCoalescing(100, 0)
+                .setReportDelay(1000)
+                .build())).isFalse();
+    }
+
+    @Test
+    public void add_deliversDedupedResultsAtEndOfWindow() {
+        ScanClient client = newClient(1, 100, 0);
+        ScanResult first = newResult(ADDRESS_1, -50, (byte) 0x02, (byte) 0x01, (byte) 0x06);
+        ScanResult repeated = newResult(ADDRESS_1, -40, (byte) 0x02, (byte) 0x01, (byte) 0x06);
+        ScanResult changed = newResult(ADDRESS_1, -40, (byte) 0x02, (byte) 0x01, (byte) 0x04);
+        ScanResult other = newResult(ADDRESS_2, -60, (byte) 0x02, (byte) 0x01, (byte) 0x06);
+
+        mCoalescer.add(client, first);
+        mCoalescer.add(client, repeated);
+        mCoalescer.add(client, other);
+        mCoalescer.add(client, changed);
+        verifyZeroInteractions(mCallback);
+
+        Message msg = mTestLooperManager.next();
+        mTestLooperManager.execute(msg);
+
+        ArgumentCaptor<List<ScanResult>> captor = ArgumentCaptor.forClass(List.class);
+        verify(mCallback).onCoalescedResults(eq(client), captor.capture());
+        assertThat(captor.getValue()).containsExactly(repeated, other, changed).inOrder();
+    }
+
+    @Test
+    public void add_deliversEarlyWhenFull() {
+        ScanClient client = newClient(1, 10000, 2);
+
+        mCoalescer.add(client, newResult(ADDRESS_1, -50, (byte) 0x02, (byte) 0x01, (byte) 0x06));
+        verifyZeroInteractions(mCallback);
+        mCoalescer.add(client, newResult(ADDRESS_2, -50, (byte) 0x02, (byte) 0x01, (byte) 0x06));
+
+        ArgumentCaptor<List<ScanResult>> captor = ArgumentCaptor.forClass(List.class);
+        verify(mCallback).onCoalescedResults(eq(client), captor.capture());
+        assertThat(captor.getValue()).hasSize(2);
+    }
+
+    @Test
+    public void remove_dropsPendingResults() {
+        ScanClient client = newClient(1, 100, 0);
+
+        mCoalescer.add(client, newResult(ADDRESS_1, -50, (byte) 0x02, (byte) 0x01, (byte) 0x06));
+        mCoalescer.remove(client.scannerId);
+        mCoalescer.add(client, newResult(ADDRESS_2, -50, (byte) 0x02, (byte) 0x01, (byte) 0x06));
+
+        // Only the window started after the removal is flushed.
+        mTestLooperManager.execute(mTestLooperManager.next());
+        ArgumentCaptor<List<ScanResult>> captor = ArgumentCaptor.forClass(List.class);
+        verify(mCallback).onCoalescedResults(eq(client), captor.capture());
+        assertThat(captor.getValue()).hasSize(1);
+        assertThat(captor.getValue().get(0).getDevice().getAddress()).isEqualTo(ADDRESS_2);
+    }
+}
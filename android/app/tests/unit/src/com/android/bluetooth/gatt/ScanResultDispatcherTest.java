@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Test cases for {@link ScanResultDispatcher}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanResultDispatcherTest {
+
+    private static final int CAPACITY = 4;
+
+    // Executor running the submitted tasks only when the test asks for it.
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private final ArrayDeque<Runnable> mPendingIntentTasks = new ArrayDeque<>();
+    private final List<String> mDelivered = new ArrayList<>();
+    private final Set<Integer> mUnregistered = new HashSet<>();
+    private ScanResultDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new ScanResultDispatcher(mTasks::add, mPendingIntentTasks::add, CAPACITY,
+                this::isRegistered);
+    }
+
+    private boolean isRegistered(int scannerId) {
+        return !mUnregistered.contains(scannerId);
+    }
+
+    private void runAllTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void dispatch(int scannerId, String name) {
+        mDispatcher.dispatch(scannerId, false, () -> mDelivered.add(name));
+    }
+
+    @Test
+    public void dispatch_deliversInOrder() {
+        dispatch(1, "a");
+        dispatch(1, "b");
+        dispatch(1, "c");
+
+        assertThat(mTasks).hasSize(1);
+        assertThat(mDelivered).isEmpty();
+
+        runAllTasks();
+
+        assertThat(mDelivered).containsExactly("a", "b", "c").inOrder();
+        assertThat(mDispatcher.getDroppedCount(1)).isEqualTo(0);
+    }
+
+    @Test
+    public void dispatch_queueFull_dropsOldest() {
+        for (int i = 0; i < CAPACITY + 2; i++) {
+            dispatch(1, "r" + i);
+        }
+        dispatch(2, "other");
+
+        runAllTasks();
+
+        assertThat(mDelivered).containsExactly("r2", "r3", "r4", "r5", "other").inOrder();
+        assertThat(mDispatcher.getDroppedCount(1)).isEqualTo(2);
+        assertThat(mDispatcher.getDroppedCount(2)).isEqualTo(0);
+
+        StringBuilder sb = new StringBuilder();
+        mDispatcher.dump(sb);
+        assertThat(sb.toString()).contains("Total dropped: 2");
+    }
+
+    @Test
+    public void dispatch_longQueue_yieldsToOtherScanners() {
+        mDispatcher = new ScanResultDispatcher(mTasks::add, mPendingIntentTasks::add,
+                ScanResultDispatcher.MAX_DELIVERIES_PER_DRAIN * 2, this::isRegistered);
+        for (int i = 0; i < ScanResultDispatcher.MAX_DELIVERIES_PER_DRAIN + 1; i++) {
+            dispatch(1, "r" + i);
+        }
+        dispatch(2, "other");
+
+        runAllTasks();
+
+        assertThat(mDelivered).hasSize(ScanResultDispatcher.MAX_DELIVERIES_PER_DRAIN + 2);
+        assertThat(mDelivered.get(ScanResultDispatcher.MAX_DELIVERIES_PER_DRAIN))
+                .isEqualTo("other");
+    }
+
+    @Test
+    public void dispatch_deliveryThrows_keepsDraining() {
+        mDispatcher.dispatch(1, false, () -> {
+            throw new IllegalStateException();
+        });
+        dispatch(1, "a");
+
+        runAllTasks();
+
+        assertThat(mDelivered).containsExactly("a");
+    }
+
+    @Test
+    public void remove_dropsPendingDeliveries() {
+        dispatch(1, "a");
+        dispatch(2, "b");
+
+        mDispatcher.remove(1);
+        runAllTasks();
+
+        assertThat(mDelivered).containsExactly("b");
+
+        dispatch(1, "c");
+        runAllTasks();
+
+        assertThat(mDelivered).containsExactly("b", "c").inOrder();
+    }
+
+    @Test
+    public void remove_whileDraining_scannerIdReusedDeliveredInOrder() {
+        mDispatcher.dispatch(1, false, () -> {
+            mDispatcher.remove(1);
+            dispatch(1, "new scan");
+            mDelivered.add("old scan");
+        });
+        dispatch(1, "dropped");
+
+        runAllTasks();
+
+        assertThat(mDelivered).containsExactly("old scan", "new scan").inOrder();
+    }
+
+    @Test
+    public void remove_whileDraining_retiredOnceDrained() {
+        mDispatcher.dispatch(1, false, () -> mDispatcher.remove(1));
+
+        runAllTasks();
+
+        StringBuilder sb = new StringBuilder();
+        mDispatcher.dump(sb);
+        assertThat(sb.toString()).doesNotContain("scannerId: 1");
+    }
+
+    @Test
+    public void dispatch_afterRemove_scannerUnregistered_dropsDelivery() {
+        dispatch(1, "a");
+        mUnregistered.add(1);
+        mDispatcher.remove(1);
+
+        dispatch(1, "late");
+        runAllTasks();
+
+        assertThat(mDelivered).isEmpty();
+        StringBuilder sb = new StringBuilder();
+        mDispatcher.dump(sb);
+        assertThat(sb.toString()).doesNotContain("scannerId: 1");
+    }
+
+    @Test
+    public void remove_whileDraining_scannerUnregistered_queueNotReopened() {
+        mDispatcher.dispatch(1, false, () -> {
+            mUnregistered.add(1);
+            mDispatcher.remove(1);
+            dispatch(1, "late");
+        });
+
+        runAllTasks();
+
+        assertThat(mDelivered).isEmpty();
+        StringBuilder sb = new StringBuilder();
+        mDispatcher.dump(sb);
+        assertThat(sb.toString()).doesNotContain("scannerId: 1");
+    }
+
+    @Test
+    public void dispatch_pendingIntentScanner_usesOwnExecutor() {
+        mDispatcher.dispatch(1, true, () -> mDelivered.add("intent"));
+        dispatch(2, "callback");
+
+        assertThat(mPendingIntentTasks).hasSize(1);
+        runAllTasks();
+
+        assertThat(mDelivered).containsExactly("callback");
+    }
+
+    @Test
+    public void dispatch_executorShutDown_dropsDeliveries() {
+        mDispatcher = new ScanResultDispatcher(task -> {
+            throw new RejectedExecutionException();
+        }, mPendingIntentTasks::add, CAPACITY, this::isRegistered);
+
+        dispatch(1, "a");
+        dispatch(1, "b");
+
+        StringBuilder sb = new StringBuilder();
+        mDispatcher.dump(sb);
+        assertThat(sb.toString()).contains("pending: 0");
+    }
+
+    @Test
+    public void clear_dropsAllPendingDeliveries() {
+        dispatch(1, "a");
+        dispatch(2, "b");
+
+        mDispatcher.clear();
+        runAllTasks();
+
+        assertThat(mDelivered).isEmpty();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Test cases for {@link ServerNotificationQueue}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ServerNotificationQueueTest {
+
+    private static final int SERVER_IF = 3;
+    private static final int CONN_ID = 1;
+    private static final int OTHER_CONN_ID = 2;
+
+    private ServerNotificationQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new ServerNotificationQueue();
+    }
+
+    @Test
+    public void holdIfCongested_notCongested() {
+        assertThat(mQueue.holdIfCongested(CONN_ID, SERVER_IF, 10, new byte[] {1})).isFalse();
+        assertThat(mQueue.getHeldCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void holdIfCongested_keepsLatestValuePerHandle() {
+        mQueue.setCongested(CONN_ID, true);
+
+        assertThat(mQueue.holdIfCongested(CONN_ID, SERVER_IF, 10, new byte[] {1})).isTrue();
+        assertThat(mQueue.holdIfCongested(CONN_ID, SERVER_IF, 20, new byte[] {2})).isTrue();
+        assertThat(mQueue.holdIfCongested(CONN_ID, SERVER_IF, 10, new byte[] {3})).isTrue();
+        assertThat(mQueue.holdIfCongested(OTHER_CONN_ID, SERVER_IF, 10, new byte[] {4}))
+                .isFalse();
+
+        assertThat(mQueue.getHeldCount()).isEqualTo(2);
+        assertThat(mQueue.getSupersededCount()).isEqualTo(1);
+
+        List<ServerNotificationQueue.Notification> flushed =
+                mQueue.setCongested(CONN_ID, false);
+        assertThat(flushed).hasSize(2);
+        assertThat(flushed.get(0).handle).isEqualTo(10);
+        assertThat(flushed.get(0).value).isEqualTo(new byte[] {3});
+        assertThat(flushed.get(0).serverIf).isEqualTo(SERVER_IF);
+        assertThat(flushed.get(1).handle).isEqualTo(20);
+        assertThat(mQueue.getHeldCount()).isEqualTo(0);
+        assertThat(mQueue.holdIfCongested(CONN_ID, SERVER_IF, 10, new byte[] {5})).isFalse();
+    }
+
+    @Test
+    public void discard_dropsHeldValue() {
+        mQueue.setCongested(CONN_ID, true);
+        mQueue.holdIfCongested(CONN_ID, SERVER_IF, 10, new byte[] {1});
+
+        mQueue.discard(CONN_ID, 10);
+
+        assertThat(mQueue.setCongested(CONN_ID, false)).isEmpty();
+    }
+
+    @Test
+    public void removeConnection_forgetsState() {
+        mQueue.setCongested(CONN_ID, true);
+        mQueue.holdIfCongested(CONN_ID, SERVER_IF, 10, new byte[] {1});
+
+        mQueue.removeConnection(CONN_ID);
+
+        assertThat(mQueue.getHeldCount()).isEqualTo(0);
+        assertThat(mQueue.holdIfCongested(CONN_ID, SERVER_IF, 10, new byte[] {1})).isFalse();
+    }
+}
@@ -18,11 +18,16 @@ package com.android.bluetooth.hfp;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -30,7 +35,9 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.provider.CallLog;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.telephony.PhoneNumberUtils;
 
@@ -286,6 +293,101 @@ public class AtPhonebookTest {
         verify(mNativeInterface).atResponseString(mTestDevice, expected);
     }
 
+    @Test
+    public void processCpbrCommand_withRepeatedNumbers_looksUpEachNumberOnce() {
+        doNothing().when(mNativeInterface).atResponseString(any(), any());
+        MatrixCursor callsCursor = new MatrixCursor(new String[] {CallLog.Calls._ID,
+                CallLog.Calls.NUMBER, CallLog.Calls.NUMBER_PRESENTATION});
+        for (int i = 0; i < 100; i++) {
+            callsCursor.addRow(new Object[] {i, i % 2 == 0 ? "1111" : "2222",
+                    CallLog.Calls.PRESENTATION_ALLOWED});
+        }
+        doReturn(callsCursor).when(mHfpMethodProxy).contentResolverQuery(any(), any(), any(),
+                any(), any());
+        doAnswer(invocation -> {
+            MatrixCursor nameCursor = new MatrixCursor(new String[] {
+                    ContactsContract.PhoneLookup.DISPLAY_NAME, ContactsContract.PhoneLookup.TYPE});
+            nameCursor.addRow(new Object[] {"name", Phone.TYPE_MOBILE});
+            return nameCursor;
+        }).when(mHfpMethodProxy).contentResolverQuery(any(), any(), any(), any(), any(), any());
+
+        mAtPhonebook.mCurrentPhonebook = "MC";
+        mAtPhonebook.mCpbrIndex1 = 1;
+        mAtPhonebook.mCpbrIndex2 = 50;
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+        mAtPhonebook.mCpbrIndex1 = 51;
+        mAtPhonebook.mCpbrIndex2 = 100;
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+
+        verify(mNativeInterface, times(100)).atResponseString(eq(mTestDevice), anyString());
+        verify(mNativeInterface).atResponseString(mTestDevice, "+CPBR: 100,\"2222\","
+                + PhoneNumberUtils.toaFromString("2222") + ",\"name\"\r\n\r\n");
+        // The call log is queried once for both ranges, and each number looked up once
+        verify(mHfpMethodProxy).contentResolverQuery(any(), any(), any(), any(), any());
+        verify(mHfpMethodProxy, times(2)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+    }
+
+    @Test
+    public void processCpbrCommand_withRanges_looksUpRequestedEntriesOnly() {
+        doNothing().when(mNativeInterface).atResponseString(any(), any());
+        MatrixCursor callsCursor = new MatrixCursor(new String[] {CallLog.Calls._ID,
+                CallLog.Calls.NUMBER, CallLog.Calls.NUMBER_PRESENTATION});
+        for (int i = 0; i < 4; i++) {
+            callsCursor.addRow(new Object[] {i, "111" + i, CallLog.Calls.PRESENTATION_ALLOWED});
+        }
+        doReturn(callsCursor).when(mHfpMethodProxy).contentResolverQuery(any(), any(), any(),
+                any(), any());
+        doAnswer(invocation -> {
+            MatrixCursor nameCursor = new MatrixCursor(new String[] {
+                    ContactsContract.PhoneLookup.DISPLAY_NAME, ContactsContract.PhoneLookup.TYPE});
+            nameCursor.addRow(new Object[] {"name", Phone.TYPE_MOBILE});
+            return nameCursor;
+        }).when(mHfpMethodProxy).contentResolverQuery(any(), any(), any(), any(), any(), any());
+
+        mAtPhonebook.mCurrentPhonebook = "MC";
+        mAtPhonebook.mCpbrIndex1 = 1;
+        mAtPhonebook.mCpbrIndex2 = 2;
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+
+        verify(mHfpMethodProxy, times(2)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+
+        mAtPhonebook.mCpbrIndex1 = 2;
+        mAtPhonebook.mCpbrIndex2 = 3;
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+
+        verify(mNativeInterface, times(2)).atResponseString(mTestDevice, "+CPBR: 2,\"1111\","
+                + PhoneNumberUtils.toaFromString("1111") + ",\"name\"\r\n\r\n");
+        verify(mNativeInterface).atResponseString(mTestDevice, "+CPBR: 3,\"1112\","
+                + PhoneNumberUtils.toaFromString("1112") + ",\"name\"\r\n\r\n");
+        // Entry 2 is reused from the first range and entry 4 is never formatted
+        verify(mHfpMethodProxy).contentResolverQuery(any(), any(), any(), any(), any());
+        verify(mHfpMethodProxy, times(3)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+    }
+
+    @Test
+    public void invalidateSnapshots_closesSnapshotCursor() {
+        MatrixCursor callsCursor = new MatrixCursor(new String[] {CallLog.Calls._ID,
+                CallLog.Calls.NUMBER, CallLog.Calls.NUMBER_PRESENTATION});
+        callsCursor.addRow(new Object[] {0, "1110", CallLog.Calls.PRESENTATION_ALLOWED});
+        doReturn(callsCursor).when(mHfpMethodProxy).contentResolverQuery(any(), any(), any(),
+                any(), any());
+
+        AtPhonebook.PhonebookResult pbr = mAtPhonebook.getPhonebookSnapshot("MC");
+        // Reusing the snapshot does not extend its lifetime
+        long timestamp = pbr.recordsTimestamp;
+        assertThat(mAtPhonebook.getPhonebookSnapshot("MC")).isSameInstanceAs(pbr);
+        assertThat(pbr.recordsTimestamp).isEqualTo(timestamp);
+
+        mAtPhonebook.invalidateSnapshots();
+
+        assertThat(callsCursor.isClosed()).isTrue();
+        assertThat(pbr.cursor).isNull();
+        assertThat(pbr.records).isNull();
+    }
+
     @Test
     public void setCpbrIndex() {
         int index = 1;
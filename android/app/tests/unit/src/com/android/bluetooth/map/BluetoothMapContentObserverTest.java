@@ -1464,6 +1464,67 @@ public class BluetoothMapContentObserverTest {
                 TEST_READ_FLAG_ONE);
     }
 
+    @Test
+    public void handleMsgListChangesSms_withNewMessage_queriesDetailsOfNewMessageOnly() {
+        // An inbox of known messages receiving one more.
+        int messageCount = 3;
+        MatrixCursor stateCursor =
+                new MatrixCursor(BluetoothMapContentObserver.SMS_PROJECTION_SHORT);
+        Map<Long, BluetoothMapContentObserver.Msg> map = new HashMap<>();
+        for (long id = 1; id <= messageCount; id++) {
+            stateCursor.addRow(new Object[] {id, TEST_THREAD_ID, TEST_SMS_TYPE_INBOX,
+                    TEST_READ_FLAG_ONE});
+            if (id < messageCount) {
+                map.put(id, new BluetoothMapContentObserver.Msg(id, TEST_SMS_TYPE_INBOX,
+                        TEST_THREAD_ID, TEST_READ_FLAG_ONE));
+            }
+        }
+        MatrixCursor detailCursor =
+                new MatrixCursor(BluetoothMapContentObserver.SMS_PROJECTION_SHORT_EXT);
+        detailCursor.addRow(new Object[] {(long) messageCount, TEST_THREAD_ID, TEST_ADDRESS,
+                TEST_SUBJECT, TEST_DATE_MS, TEST_READ_FLAG_ONE, TEST_SMS_TYPE_INBOX});
+        doReturn(stateCursor).when(mMapMethodProxy).contentResolverQuery(any(), any(),
+                eq(BluetoothMapContentObserver.SMS_PROJECTION_SHORT), any(), any(), any());
+        doReturn(detailCursor).when(mMapMethodProxy).contentResolverQuery(any(), any(),
+                eq(BluetoothMapContentObserver.SMS_PROJECTION_SHORT_EXT), any(), any(), any());
+        mObserver.setMsgListSms(map, true);
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V12;
+
+        mObserver.handleMsgListChangesSms();
+
+        verify(mMapMethodProxy).contentResolverQuery(any(), any(),
+                eq(BluetoothMapContentObserver.SMS_PROJECTION_SHORT_EXT),
+                eq(Sms._ID + " IN (" + messageCount + ")"), any(), any());
+        Assert.assertSame(map, mObserver.getMsgListSms());
+        Assert.assertEquals(messageCount, map.size());
+        Assert.assertEquals(TEST_SMS_TYPE_INBOX, map.get((long) messageCount).type);
+    }
+
+    @Test
+    public void handleMsgListChangesSms_withDeletedMessage_removesItInPlace() {
+        MatrixCursor cursor = new MatrixCursor(BluetoothMapContentObserver.SMS_PROJECTION_SHORT);
+        cursor.addRow(new Object[] {TEST_HANDLE_ONE, TEST_THREAD_ID, TEST_SMS_TYPE_INBOX,
+                TEST_READ_FLAG_ONE});
+        doReturn(cursor).when(mMapMethodProxy).contentResolverQuery(any(), any(), any(), any(),
+                any(), any());
+
+        Map<Long, BluetoothMapContentObserver.Msg> map = new HashMap<>();
+        map.put(TEST_HANDLE_ONE, new BluetoothMapContentObserver.Msg(TEST_HANDLE_ONE,
+                TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, TEST_READ_FLAG_ONE));
+        map.put(TEST_HANDLE_TWO, new BluetoothMapContentObserver.Msg(TEST_HANDLE_TWO,
+                TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, TEST_READ_FLAG_ONE));
+        mObserver.setMsgListSms(map, true);
+
+        mObserver.handleMsgListChangesSms();
+
+        // Only the state columns are needed when no message is new.
+        verify(mMapMethodProxy, never()).contentResolverQuery(any(), any(),
+                eq(BluetoothMapContentObserver.SMS_PROJECTION_SHORT_EXT), any(), any(), any());
+        Assert.assertSame(map, mObserver.getMsgListSms());
+        Assert.assertNotNull(map.get(TEST_HANDLE_ONE));
+        Assert.assertNull(map.get(TEST_HANDLE_TWO));
+    }
+
     @Test
     public void handleMsgListChangesSms_withNonExistingOldMessage_andVersion12() {
         Calendar cal = Calendar.getInstance();
@@ -1412,6 +1412,52 @@ public class BluetoothMapContentTest {
         assertThat(imElement.getThreadName()).isEqualTo(TEST_NAME);
     }
 
+    @Test
+    public void msgListing_withSmsAndMmsCursors_mergesRequestedSegmentByDate() {
+        when(mParams.getParameterMask()).thenReturn((long) BluetoothMapContent.MASK_DATETIME);
+        when(mParams.getFilterMessageType()).thenReturn(BluetoothMapAppParams.FILTER_NO_EMAIL
+                | BluetoothMapAppParams.FILTER_NO_IM);
+        when(mParams.getMaxListCount()).thenReturn(2);
+        when(mParams.getStartOffset()).thenReturn(1);
+
+        mCurrentFolder.setHasSmsMmsContent(true);
+        mCurrentFolder.setFolderId(TEST_ID);
+
+        // Both cursors are sorted by date, newest first. MMS dates are in seconds.
+        MatrixCursor smsCursor = new MatrixCursor(new String[] {BaseColumns._ID, Telephony.Sms.TYPE,
+                Telephony.Sms.READ, Telephony.Sms.BODY, Telephony.Sms.ADDRESS, Telephony.Sms.DATE,
+                Telephony.Sms.THREAD_ID});
+        smsCursor.addRow(new Object[] {1, TEST_SENT_NO, TEST_READ_FALSE, TEST_SUBJECT,
+                TEST_ADDRESS, 5000L, TEST_THREAD_ID});
+        smsCursor.addRow(new Object[] {2, TEST_SENT_NO, TEST_READ_TRUE, TEST_SUBJECT,
+                TEST_ADDRESS, 3000L, TEST_THREAD_ID});
+        smsCursor.addRow(new Object[] {3, TEST_SENT_NO, TEST_READ_TRUE, TEST_SUBJECT,
+                TEST_ADDRESS, 1000L, TEST_THREAD_ID});
+        MatrixCursor mmsCursor = new MatrixCursor(new String[] {BaseColumns._ID,
+                Telephony.Mms.MESSAGE_BOX, Telephony.Mms.READ, Telephony.Mms.MESSAGE_SIZE,
+                Telephony.Mms.TEXT_ONLY, Telephony.Mms.DATE, Telephony.Mms.SUBJECT,
+                Telephony.Mms.THREAD_ID});
+        mmsCursor.addRow(new Object[] {11, TEST_SENT_NO, TEST_READ_TRUE, TEST_SIZE,
+                TEST_TEXT_ONLY, 4L, TEST_SUBJECT, TEST_THREAD_ID});
+        mmsCursor.addRow(new Object[] {12, TEST_SENT_NO, TEST_READ_TRUE, TEST_SIZE,
+                TEST_TEXT_ONLY, 2L, TEST_SUBJECT, TEST_THREAD_ID});
+        doReturn(smsCursor).when(mMapMethodProxy).contentResolverQuery(any(), any(),
+                eq(BluetoothMapContent.SMS_PROJECTION), any(), any(), any());
+        doReturn(mmsCursor).when(mMapMethodProxy).contentResolverQuery(any(), any(),
+                eq(BluetoothMapContent.MMS_PROJECTION), any(), any(), any());
+
+        BluetoothMapMessageListing listing = mContent.msgListing(mCurrentFolder, mParams);
+
+        // Merged order is sms 1, mms 11, sms 2, mms 12, sms 3: skip one, then list two.
+        assertThat(listing.getCount()).isEqualTo(2);
+        assertThat(listing.getList().get(0).getHandle()).isEqualTo(11L);
+        assertThat(listing.getList().get(0).getDateTime()).isEqualTo(4000L);
+        assertThat(listing.getList().get(1).getHandle()).isEqualTo(2L);
+        assertThat(listing.getList().get(1).getDateTime()).isEqualTo(3000L);
+        // The skipped message is unread
+        assertThat(listing.hasUnread()).isTrue();
+    }
+
     @Test
     public void msgListingSize() {
         when(mParams.getFilterMessageType()).thenReturn(TEST_NO_FILTER);
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ContactNameCacheTest {
+    private static final String TEST_PHONE = "111-1111-1111";
+    private static final String TEST_NAME = "test_name";
+
+    private final AtomicInteger mLookupCount = new AtomicInteger();
+    private final Function<String, String> mLookup = phone -> {
+        mLookupCount.incrementAndGet();
+        return TEST_PHONE.equals(phone) ? TEST_NAME : null;
+    };
+
+    private ContactNameCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new ContactNameCache();
+        mCache.start(new MockContentResolver());
+    }
+
+    @After
+    public void tearDown() {
+        mCache.stop();
+    }
+
+    @Test
+    public void getName_queriesEachPhoneOnce() {
+        for (int i = 0; i < 10; i++) {
+            assertThat(mCache.getName(TEST_PHONE, mLookup)).isEqualTo(TEST_NAME);
+            assertThat(mCache.getName("222", mLookup)).isNull();
+        }
+
+        assertThat(mLookupCount.get()).isEqualTo(2);
+        assertThat(mCache.toString()).contains("hits=18, misses=2");
+    }
+
+    @Test
+    public void getName_afterInvalidate_queriesAgain() {
+        mCache.getName(TEST_PHONE, mLookup);
+
+        mCache.invalidate();
+        mCache.getName(TEST_PHONE, mLookup);
+
+        assertThat(mLookupCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void getName_whenStopped_doesNotCache() {
+        mCache.stop();
+
+        mCache.getName(TEST_PHONE, mLookup);
+        mCache.getName(TEST_PHONE, mLookup);
+
+        assertThat(mLookupCount.get()).isEqualTo(2);
+        assertThat(mCache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void getName_restartedDuringLookup_doesNotCache() {
+        mCache.getName(TEST_PHONE, phone -> {
+            mCache.stop();
+            mCache.start(new MockContentResolver());
+            return mLookup.apply(phone);
+        });
+        mCache.getName(TEST_PHONE, mLookup);
+
+        assertThat(mLookupCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void getName_isBounded() {
+        for (int i = 0; i < ContactNameCache.MAX_ENTRIES * 2; i++) {
+            mCache.getName(Integer.toString(i), mLookup);
+        }
+
+        assertThat(mCache.size()).isEqualTo(ContactNameCache.MAX_ENTRIES);
+    }
+}
@@ -96,6 +96,10 @@ public final class BluetoothGatt implements BluetoothProfile {
     private static final int WRITE_CHARACTERISTIC_TIME_TO_WAIT = 10; // milliseconds
 
     private List<BluetoothGattService> mServices;
+    // Handle index over mServices, rebuilt when discovery completes and reset when it starts.
+    private volatile GattAttributeIndex mAttributeIndex = GattAttributeIndex.EMPTY;
+    // Operation queue told about completed operations, if one was created for this connection.
+    private volatile BluetoothGattOperationQueue mOperationQueue;
 
     /** A GATT operation completed successfully */
     public static final int GATT_SUCCESS = 0;
@@ -313,6 +317,11 @@ public final class BluetoothGatt implements BluetoothProfile {
                     synchronized (mDeviceBusyLock) {
                         mDeviceBusy = false;
                     }
+
+                    final BluetoothGattOperationQueue queue = mOperationQueue;
+                    if (!connected && queue != null) {
+                        queue.onDisconnected();
+                    }
                 }
 
                 /**
@@ -339,6 +348,7 @@ public final class BluetoothGatt implements BluetoothProfile {
                     }
 
                     mServices.addAll(services);
+                    mAttributeIndex = new GattAttributeIndex(mServices);
 
                     // Fix references to included services, as they doesn't point to right objects.
                     for (BluetoothGattService fixedService : mServices) {
@@ -409,6 +419,11 @@ public final class BluetoothGatt implements BluetoothProfile {
 
                     mAuthRetryState = AUTH_RETRY_STATE_IDLE;
 
+                    final BluetoothGattOperationQueue queue = mOperationQueue;
+                    if (queue != null) {
+                        queue.onCharacteristicRead(handle, status, value);
+                    }
+
                     BluetoothGattCharacteristic characteristic = getCharacteristicById(mDevice,
                             handle);
                     if (characteristic == null) {
@@ -453,9 +468,9 @@ public final class BluetoothGatt implements BluetoothProfile {
 
                     BluetoothGattCharacteristic characteristic = getCharacteristicById(mDevice,
                             handle);
-                    if (characteristic == null) return;
 
-                    if ((status == GATT_INSUFFICIENT_AUTHENTICATION
+                    if (characteristic != null
+                            && (status == GATT_INSUFFICIENT_AUTHENTICATION
                             || status == GATT_INSUFFICIENT_ENCRYPTION)
                             && (mAuthRetryState != AUTH_RETRY_STATE_MITM)) {
                         try {
@@ -479,14 +494,24 @@ public final class BluetoothGatt implements BluetoothProfile {
                                 } catch (InterruptedException e) {
                                 }
                             }
-                            mAuthRetryState++;
-                            return;
+                            // A retry that was not accepted never completes, report the failure.
+                            if (requestStatus == BluetoothStatusCodes.SUCCESS) {
+                                mAuthRetryState++;
+                                return;
+                            }
                         } catch (RemoteException | TimeoutException e) {
                             Log.e(TAG, "", e);
                         }
                     }
 
                     mAuthRetryState = AUTH_RETRY_STATE_IDLE;
+
+                    final BluetoothGattOperationQueue queue = mOperationQueue;
+                    if (queue != null) {
+                        queue.onCharacteristicWrite(handle, status, value);
+                    }
+                    if (characteristic == null) return;
+
                     runOrQueueCallback(new Runnable() {
                         @Override
                         public void run() {
@@ -550,7 +575,6 @@ public final class BluetoothGatt implements BluetoothProfile {
                     }
 
                     BluetoothGattDescriptor descriptor = getDescriptorById(mDevice, handle);
-                    if (descriptor == null) return;
 
 
                     if ((status == GATT_INSUFFICIENT_AUTHENTICATION
@@ -572,6 +596,12 @@ public final class BluetoothGatt implements BluetoothProfile {
 
                     mAuthRetryState = AUTH_RETRY_STATE_IDLE;
 
+                    final BluetoothGattOperationQueue queue = mOperationQueue;
+                    if (queue != null) {
+                        queue.onDescriptorRead(handle, status, value);
+                    }
+                    if (descriptor == null) return;
+
                     runOrQueueCallback(new Runnable() {
                         @Override
                         public void run() {
@@ -607,7 +637,6 @@ public final class BluetoothGatt implements BluetoothProfile {
                     }
 
                     BluetoothGattDescriptor descriptor = getDescriptorById(mDevice, handle);
-                    if (descriptor == null) return;
 
                     if ((status == GATT_INSUFFICIENT_AUTHENTICATION
                             || status == GATT_INSUFFICIENT_ENCRYPTION)
@@ -628,6 +657,12 @@ public final class BluetoothGatt implements BluetoothProfile {
 
                     mAuthRetryState = AUTH_RETRY_STATE_IDLE;
 
+                    final BluetoothGattOperationQueue queue = mOperationQueue;
+                    if (queue != null) {
+                        queue.onDescriptorWrite(handle, status);
+                    }
+                    if (descriptor == null) return;
+
                     runOrQueueCallback(new Runnable() {
                         @Override
                         public void run() {
@@ -657,6 +692,11 @@ public final class BluetoothGatt implements BluetoothProfile {
                         mDeviceBusy = false;
                     }
 
+                    final BluetoothGattOperationQueue queue = mOperationQueue;
+                    if (queue != null) {
+                        queue.onExecuteWrite(status);
+                    }
+
                     runOrQueueCallback(new Runnable() {
                         @Override
                         public void run() {
@@ -799,6 +839,11 @@ public final class BluetoothGatt implements BluetoothProfile {
         unregisterApp();
         mConnState = CONN_STATE_CLOSED;
         mAuthRetryState = AUTH_RETRY_STATE_IDLE;
+
+        final BluetoothGattOperationQueue queue = mOperationQueue;
+        if (queue != null) {
+            queue.onDisconnected();
+        }
     }
 
     /**
@@ -826,6 +871,11 @@ public final class BluetoothGatt implements BluetoothProfile {
      */
     /*package*/ BluetoothGattCharacteristic getCharacteristicById(BluetoothDevice device,
             int instanceId) {
+        BluetoothGattCharacteristic characteristic = mAttributeIndex.getCharacteristic(instanceId);
+        if (characteristic != null) {
+            return characteristic;
+        }
+        // Attributes added by the app after discovery are not indexed.
         for (BluetoothGattService svc : mServices) {
             for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
                 if (charac.getInstanceId() == instanceId) {
@@ -842,6 +892,11 @@ public final class BluetoothGatt implements BluetoothProfile {
      * @hide
      */
     /*package*/ BluetoothGattDescriptor getDescriptorById(BluetoothDevice device, int instanceId) {
+        BluetoothGattDescriptor descriptor = mAttributeIndex.getDescriptor(instanceId);
+        if (descriptor != null) {
+            return descriptor;
+        }
+        // Attributes added by the app after discovery are not indexed.
         for (BluetoothGattService svc : mServices) {
             for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
                 for (BluetoothGattDescriptor desc : charac.getDescriptors()) {
@@ -1118,6 +1173,7 @@ public final class BluetoothGatt implements BluetoothProfile {
         if (mService == null || mClientIf == 0) return false;
 
         mServices.clear();
+        mAttributeIndex = GattAttributeIndex.EMPTY;
 
         try {
             final SynchronousResultReceiver recv = SynchronousResultReceiver.get();
@@ -1147,6 +1203,7 @@ public final class BluetoothGatt implements BluetoothProfile {
         if (mService == null || mClientIf == 0) return false;
 
         mServices.clear();
+        mAttributeIndex = GattAttributeIndex.EMPTY;
 
         try {
             final SynchronousResultReceiver recv = SynchronousResultReceiver.get();
@@ -1421,6 +1478,23 @@ public final class BluetoothGatt implements BluetoothProfile {
         return requestStatus;
     }
 
+    /**
+     * Sets the operation queue told about completed operations. Operations pending on the
+     * previous queue fail, their completions would no longer reach it.
+     *
+     * @hide
+     */
+    /*package*/ void setOperationQueue(BluetoothGattOperationQueue queue) {
+        final BluetoothGattOperationQueue previous;
+        synchronized (mStateLock) {
+            previous = mOperationQueue;
+            mOperationQueue = queue;
+        }
+        if (previous != null) {
+            previous.onReplaced();
+        }
+    }
+
     /**
      * Reads the value for a given descriptor from the associated remote device.
      *
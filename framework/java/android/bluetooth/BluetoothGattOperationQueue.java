@@ -0,0 +1,514 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import static java.util.Objects.requireNonNull;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.annotation.RequiresPermission;
+import android.annotation.SuppressLint;
+import android.annotation.SystemApi;
+import android.bluetooth.annotations.RequiresBluetoothConnectPermission;
+import android.os.Binder;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Queue of GATT client operations on the connection of a {@link BluetoothGatt}.
+ *
+ * <p>{@link BluetoothGatt} accepts a single outstanding read or write, so a caller otherwise
+ * waits for each {@link BluetoothGattCallback} before issuing its next operation. Operations
+ * submitted to this queue are issued in submission order, each one as soon as the previous one
+ * completed, and report their result to their own {@link OperationCallback}. The
+ * {@link BluetoothGattCallback} of the connection is still invoked for every operation.
+ *
+ * <p>Operations are serialized, not pipelined: writes without response also wait for the
+ * completion of the previous operation, as the Bluetooth stack accepts one outstanding write per
+ * remote device. The next operation is issued from the executor it was submitted with, never from
+ * the binder thread reporting the completion.
+ *
+ * <p>The queue owns the operations of its connection: no read or write should be issued
+ * directly on the {@link BluetoothGatt} while operations are pending. Pending operations fail
+ * with {@link BluetoothGatt#GATT_FAILURE} when the connection is lost, the queue is cleared or
+ * another queue is created for the same connection.
+ *
+ * @hide
+ */
+@SystemApi
+public final class BluetoothGattOperationQueue {
+    private static final String TAG = "BluetoothGattOperationQueue";
+    private static final boolean DBG = false;
+
+    /**
+     * Callback invoked once a queued operation completed.
+     *
+     * @hide
+     */
+    @SystemApi
+    public interface OperationCallback {
+        /**
+         * Called when the operation completed.
+         *
+         * @param status {@link BluetoothGatt#GATT_SUCCESS} or the GATT error of the operation,
+         *               {@link BluetoothGatt#GATT_FAILURE} if it could not be issued
+         * @param value value read by a successful read operation, {@code null} otherwise
+         */
+        void onOperationCompleted(int status, @Nullable byte[] value);
+    }
+
+    /**
+     * Issues operations on the connection, implemented on top of {@link BluetoothGatt}.
+     */
+    /*package*/ interface Issuer {
+        boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+        int writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                int writeType);
+
+        boolean readDescriptor(BluetoothGattDescriptor descriptor);
+
+        int writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value);
+
+        boolean beginReliableWrite();
+
+        boolean executeReliableWrite();
+
+        void abortReliableWrite();
+    }
+
+    private static final int OP_READ_CHARACTERISTIC = 0;
+    private static final int OP_WRITE_CHARACTERISTIC = 1;
+    private static final int OP_READ_DESCRIPTOR = 2;
+    private static final int OP_WRITE_DESCRIPTOR = 3;
+    private static final int OP_RELIABLE_WRITE = 4;
+
+    private static final class Operation {
+        final int mType;
+        final BluetoothGattCharacteristic mCharacteristic;
+        final BluetoothGattDescriptor mDescriptor;
+        final byte[] mValue;
+        final int mWriteType;
+        final List<BluetoothGattCharacteristic> mReliableCharacteristics;
+        final List<byte[]> mReliableValues;
+        final Executor mExecutor;
+        final OperationCallback mCallback;
+        // Index of the prepared write in flight of a reliable write, or its size once executing.
+        int mReliableIndex;
+
+        Operation(int type, BluetoothGattCharacteristic characteristic,
+                BluetoothGattDescriptor descriptor, byte[] value, int writeType,
+                List<BluetoothGattCharacteristic> reliableCharacteristics,
+                List<byte[]> reliableValues, Executor executor, OperationCallback callback) {
+            mType = type;
+            mCharacteristic = characteristic;
+            mDescriptor = descriptor;
+            mValue = value;
+            mWriteType = writeType;
+            mReliableCharacteristics = reliableCharacteristics;
+            mReliableValues = reliableValues;
+            mExecutor = requireNonNull(executor);
+            mCallback = requireNonNull(callback);
+        }
+
+        // Handle of the attribute whose completion ends this operation, or of the current
+        // prepared write of a reliable write.
+        int getHandle() {
+            switch (mType) {
+                case OP_READ_DESCRIPTOR:
+                case OP_WRITE_DESCRIPTOR:
+                    return mDescriptor.getInstanceId();
+                case OP_RELIABLE_WRITE:
+                    return mReliableIndex < mReliableCharacteristics.size()
+                            ? mReliableCharacteristics.get(mReliableIndex).getInstanceId() : -1;
+                default:
+                    return mCharacteristic.getInstanceId();
+            }
+        }
+
+        void complete(int status, byte[] value) {
+            execute(mExecutor, () -> mCallback.onOperationCompleted(status, value));
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Issuer mIssuer;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+    // Operation issued and not yet completed.
+    private Operation mInFlight;
+    // Set once another queue was created for the connection, operations then fail right away.
+    private boolean mClosed;
+
+    /**
+     * Creates the operation queue of {@code gatt}. A connection has a single queue, creating
+     * another one fails the operations pending on the previous one.
+     *
+     * @param gatt the connection operations are issued on
+     */
+    public BluetoothGattOperationQueue(@NonNull BluetoothGatt gatt) {
+        this(new GattIssuer(requireNonNull(gatt)));
+        gatt.setOperationQueue(this);
+    }
+
+    /*package*/ BluetoothGattOperationQueue(Issuer issuer) {
+        mIssuer = issuer;
+    }
+
+    /**
+     * Queues a read of {@code characteristic}.
+     */
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    public void readCharacteristic(@NonNull BluetoothGattCharacteristic characteristic,
+            @NonNull Executor executor, @NonNull OperationCallback callback) {
+        submit(new Operation(OP_READ_CHARACTERISTIC, requireNonNull(characteristic), null, null,
+                0, null, null, executor, callback));
+    }
+
+    /**
+     * Queues a write of {@code value} to {@code characteristic}.
+     */
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    public void writeCharacteristic(@NonNull BluetoothGattCharacteristic characteristic,
+            @NonNull byte[] value, @BluetoothGattCharacteristic.WriteType int writeType,
+            @NonNull Executor executor, @NonNull OperationCallback callback) {
+        submit(new Operation(OP_WRITE_CHARACTERISTIC, requireNonNull(characteristic), null,
+                requireNonNull(value), writeType, null, null, executor, callback));
+    }
+
+    /**
+     * Queues a read of {@code descriptor}.
+     */
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    public void readDescriptor(@NonNull BluetoothGattDescriptor descriptor,
+            @NonNull Executor executor, @NonNull OperationCallback callback) {
+        submit(new Operation(OP_READ_DESCRIPTOR, null, requireNonNull(descriptor), null, 0, null,
+                null, executor, callback));
+    }
+
+    /**
+     * Queues a write of {@code value} to {@code descriptor}.
+     */
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    public void writeDescriptor(@NonNull BluetoothGattDescriptor descriptor,
+            @NonNull byte[] value, @NonNull Executor executor,
+            @NonNull OperationCallback callback) {
+        submit(new Operation(OP_WRITE_DESCRIPTOR, null, requireNonNull(descriptor),
+                requireNonNull(value), 0, null, null, executor, callback));
+    }
+
+    /**
+     * Queues a reliable write transaction writing {@code values} to {@code characteristics}.
+     *
+     * <p>All the values are sent as prepared writes and committed together once the remote
+     * device echoed each of them back unchanged. Otherwise the transaction is aborted and the
+     * callback is invoked with {@link BluetoothGatt#GATT_FAILURE}.
+     *
+     * @throws IllegalArgumentException if the lists are empty or of different sizes
+     */
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    public void writeReliably(@NonNull List<BluetoothGattCharacteristic> characteristics,
+            @NonNull List<byte[]> values, @NonNull Executor executor,
+            @NonNull OperationCallback callback) {
+        if (characteristics.isEmpty() || characteristics.size() != values.size()) {
+            throw new IllegalArgumentException(
+                    "characteristics and values must be non empty and of the same size");
+        }
+        submit(new Operation(OP_RELIABLE_WRITE, null, null, null,
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, new ArrayList<>(characteristics),
+                new ArrayList<>(values), executor, callback));
+    }
+
+    /**
+     * Fails every operation that has not been issued yet. Operations in flight complete
+     * normally.
+     */
+    public void clear() {
+        List<Operation> failed;
+        synchronized (mLock) {
+            failed = new ArrayList<>(mPending);
+            mPending.clear();
+        }
+        for (Operation op : failed) {
+            op.complete(BluetoothGatt.GATT_FAILURE, null);
+        }
+    }
+
+    /**
+     * Returns the number of operations submitted and not completed yet.
+     */
+    public int getPendingOperationCount() {
+        synchronized (mLock) {
+            return mPending.size() + (mInFlight != null ? 1 : 0);
+        }
+    }
+
+    private void submit(Operation op) {
+        boolean closed;
+        synchronized (mLock) {
+            closed = mClosed;
+            if (!closed) {
+                mPending.addLast(op);
+            }
+        }
+        if (closed) {
+            op.complete(BluetoothGatt.GATT_FAILURE, null);
+            return;
+        }
+        issueNext();
+    }
+
+    /*package*/ void onCharacteristicRead(int handle, int status, byte[] value) {
+        onCompleted(OP_READ_CHARACTERISTIC, handle, status, value);
+    }
+
+    /*package*/ void onCharacteristicWrite(int handle, int status, byte[] value) {
+        onCompleted(OP_WRITE_CHARACTERISTIC, handle, status, value);
+    }
+
+    /*package*/ void onDescriptorRead(int handle, int status, byte[] value) {
+        onCompleted(OP_READ_DESCRIPTOR, handle, status, value);
+    }
+
+    /*package*/ void onDescriptorWrite(int handle, int status) {
+        onCompleted(OP_WRITE_DESCRIPTOR, handle, status, null);
+    }
+
+    /*package*/ void onExecuteWrite(int status) {
+        Operation op;
+        synchronized (mLock) {
+            op = mInFlight;
+            if (op == null || op.mType != OP_RELIABLE_WRITE
+                    || op.mReliableIndex < op.mReliableCharacteristics.size()) {
+                if (DBG) Log.d(TAG, "onExecuteWrite() - no reliable write executing");
+                return;
+            }
+            mInFlight = null;
+        }
+        op.complete(status, null);
+        postIssueNext();
+    }
+
+    /*package*/ void onDisconnected() {
+        failAll(false);
+    }
+
+    /*package*/ void onReplaced() {
+        failAll(true);
+    }
+
+    private void failAll(boolean close) {
+        List<Operation> failed = new ArrayList<>();
+        synchronized (mLock) {
+            mClosed |= close;
+            if (mInFlight != null) {
+                failed.add(mInFlight);
+                mInFlight = null;
+            }
+            failed.addAll(mPending);
+            mPending.clear();
+        }
+        for (Operation op : failed) {
+            op.complete(BluetoothGatt.GATT_FAILURE, null);
+        }
+    }
+
+    private void onCompleted(int type, int handle, int status, byte[] value) {
+        Operation op;
+        synchronized (mLock) {
+            op = mInFlight;
+            if (op == null || op.getHandle() != handle || (op.mType != type
+                    && (op.mType != OP_RELIABLE_WRITE || type != OP_WRITE_CHARACTERISTIC))) {
+                if (DBG) Log.d(TAG, "onCompleted() - no operation for handle " + handle);
+                return;
+            }
+            if (op.mType != OP_RELIABLE_WRITE) {
+                mInFlight = null;
+            }
+        }
+
+        if (op.mType == OP_RELIABLE_WRITE) {
+            execute(op.mExecutor, () -> onPreparedWrite(op, status, value));
+            return;
+        }
+        boolean read = type == OP_READ_CHARACTERISTIC || type == OP_READ_DESCRIPTOR;
+        op.complete(status, read && status == BluetoothGatt.GATT_SUCCESS ? value : null);
+        postIssueNext();
+    }
+
+    // Sends the next prepared write of a reliable write once the previous one was echoed back
+    // unchanged, and executes the transaction after the last one.
+    @SuppressLint("AndroidFrameworkRequiresPermission")
+    private void onPreparedWrite(Operation op, int status, byte[] value) {
+        synchronized (mLock) {
+            if (mInFlight != op) {
+                return;
+            }
+        }
+        byte[] expected = op.mReliableValues.get(op.mReliableIndex);
+        // An empty value means the stack did not report the echoed value.
+        boolean issued = false;
+        if (status == BluetoothGatt.GATT_SUCCESS
+                && (value == null || value.length == 0 || Arrays.equals(expected, value))) {
+            op.mReliableIndex++;
+            issued = op.mReliableIndex < op.mReliableCharacteristics.size()
+                    ? issuePreparedWrite(op) : mIssuer.executeReliableWrite();
+        }
+        if (!issued) {
+            mIssuer.abortReliableWrite();
+            failInFlight(op);
+            issueNext();
+        }
+    }
+
+    // Fails the operation in flight, unless it already completed in the meantime.
+    private void failInFlight(Operation op) {
+        synchronized (mLock) {
+            if (mInFlight != op) {
+                return;
+            }
+            mInFlight = null;
+        }
+        op.complete(BluetoothGatt.GATT_FAILURE, null);
+    }
+
+    // Completions are reported on a binder thread, which must not block on issuing the next
+    // operation. It is issued from the executor it was submitted with instead.
+    private void postIssueNext() {
+        Executor executor;
+        synchronized (mLock) {
+            if (mInFlight != null || mPending.isEmpty()) {
+                return;
+            }
+            executor = mPending.peekFirst().mExecutor;
+        }
+        execute(executor, this::issueNext);
+    }
+
+    // Issues pending operations in order until one has to wait for a completion. mLock is not
+    // held while issuing, the call into the Bluetooth stack blocks.
+    @SuppressLint("AndroidFrameworkRequiresPermission")
+    private void issueNext() {
+        while (true) {
+            Operation op;
+            synchronized (mLock) {
+                if (mInFlight != null || mPending.isEmpty()) {
+                    return;
+                }
+                op = mPending.pollFirst();
+                mInFlight = op;
+            }
+            if (issue(op)) {
+                return;
+            }
+            if (op.mType == OP_RELIABLE_WRITE) {
+                mIssuer.abortReliableWrite();
+            }
+            failInFlight(op);
+        }
+    }
+
+    @SuppressLint("AndroidFrameworkRequiresPermission")
+    private boolean issue(Operation op) {
+        switch (op.mType) {
+            case OP_READ_CHARACTERISTIC:
+                return mIssuer.readCharacteristic(op.mCharacteristic);
+            case OP_WRITE_CHARACTERISTIC:
+                return mIssuer.writeCharacteristic(op.mCharacteristic, op.mValue, op.mWriteType)
+                        == BluetoothStatusCodes.SUCCESS;
+            case OP_READ_DESCRIPTOR:
+                return mIssuer.readDescriptor(op.mDescriptor);
+            case OP_WRITE_DESCRIPTOR:
+                return mIssuer.writeDescriptor(op.mDescriptor, op.mValue)
+                        == BluetoothStatusCodes.SUCCESS;
+            case OP_RELIABLE_WRITE:
+                return mIssuer.beginReliableWrite() && issuePreparedWrite(op);
+            default:
+                return false;
+        }
+    }
+
+    @SuppressLint("AndroidFrameworkRequiresPermission")
+    private boolean issuePreparedWrite(Operation op) {
+        return mIssuer.writeCharacteristic(op.mReliableCharacteristics.get(op.mReliableIndex),
+                op.mReliableValues.get(op.mReliableIndex), op.mWriteType)
+                == BluetoothStatusCodes.SUCCESS;
+    }
+
+    private static void execute(Executor executor, Runnable runnable) {
+        final long token = Binder.clearCallingIdentity();
+        try {
+            executor.execute(runnable);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    @SuppressLint("AndroidFrameworkRequiresPermission")
+    private static final class GattIssuer implements Issuer {
+        private final BluetoothGatt mGatt;
+
+        GattIssuer(BluetoothGatt gatt) {
+            mGatt = gatt;
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return mGatt.readCharacteristic(characteristic);
+        }
+
+        @Override
+        public int writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                int writeType) {
+            return mGatt.writeCharacteristic(characteristic, value, writeType);
+        }
+
+        @Override
+        public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+            return mGatt.readDescriptor(descriptor);
+        }
+
+        @Override
+        public int writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+            return mGatt.writeDescriptor(descriptor, value);
+        }
+
+        @Override
+        public boolean beginReliableWrite() {
+            return mGatt.beginReliableWrite();
+        }
+
+        @Override
+        public boolean executeReliableWrite() {
+            return mGatt.executeReliableWrite();
+        }
+
+        @Override
+        public void abortReliableWrite() {
+            mGatt.abortReliableWrite();
+        }
+    }
+}
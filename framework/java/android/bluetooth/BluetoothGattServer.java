@@ -23,6 +23,7 @@ import android.annotation.NonNull;
 import android.annotation.RequiresNoPermission;
 import android.annotation.RequiresPermission;
 import android.annotation.SuppressLint;
+import android.annotation.SystemApi;
 import android.bluetooth.annotations.RequiresBluetoothConnectPermission;
 import android.bluetooth.annotations.RequiresLegacyBluetoothPermission;
 import android.content.AttributionSource;
@@ -816,6 +817,71 @@ public final class BluetoothGattServer implements BluetoothProfile {
         }
     }
 
+    /**
+     * Sends the same notification or indication to several remote devices with a single call.
+     *
+     * <p>Notifications to a device whose connection is congested are held by the stack until
+     * the congestion clears, a newer value of the same characteristic replacing the held one,
+     * so a slow device does not delay the others. Indications are always sent.
+     *
+     * @param devices the remote devices to receive the notification/indication
+     * @param characteristic the local characteristic that has been updated
+     * @param confirm {@code true} to request confirmation from the clients (indication) or
+     * {@code false} to send a notification
+     * @param value the characteristic value
+     * @return {@link BluetoothStatusCodes#SUCCESS} if the notification was triggered for every
+     * device, {@link BluetoothStatusCodes#ERROR_DEVICE_NOT_CONNECTED} if some devices are not
+     * connected, the others being notified anyway
+     * @throws IllegalArgumentException if the characteristic value or service is null
+     * @hide
+     */
+    @SystemApi
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    @NotifyCharacteristicReturnValues
+    public int notifyCharacteristicChanged(@NonNull List<BluetoothDevice> devices,
+            @NonNull BluetoothGattCharacteristic characteristic, boolean confirm,
+            @NonNull byte[] value) {
+        if (VDBG) Log.d(TAG, "notifyCharacteristicChanged() - devices: " + devices.size());
+        if (mService == null || mServerIf == 0) {
+            return BluetoothStatusCodes.ERROR_PROFILE_SERVICE_NOT_BOUND;
+        }
+
+        if (characteristic == null) {
+            throw new IllegalArgumentException("characteristic must not be null");
+        }
+        if (devices == null) {
+            throw new IllegalArgumentException("devices must not be null");
+        }
+        BluetoothGattService service = characteristic.getService();
+        if (service == null) {
+            throw new IllegalArgumentException("Characteristic must have a non-null service");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Characteristic value must not be null");
+        }
+
+        String[] addresses = new String[devices.size()];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = devices.get(i).getAddress();
+        }
+
+        try {
+            final SynchronousResultReceiver<Integer> recv = SynchronousResultReceiver.get();
+            mService.sendMulticastNotification(mServerIf, addresses,
+                    characteristic.getInstanceId(), confirm,
+                    value, mAttributionSource, recv);
+            return recv.awaitResultNoInterrupt(getSyncTimeout())
+                .getValue(BluetoothStatusCodes.ERROR_PROFILE_SERVICE_NOT_BOUND);
+        } catch (TimeoutException e) {
+            Log.e(TAG, e.toString() + "\n" + Log.getStackTraceString(new Throwable()));
+            return BluetoothStatusCodes.ERROR_PROFILE_SERVICE_NOT_BOUND;
+        } catch (RemoteException e) {
+            Log.e(TAG, "", e);
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     /**
      * Add a service to the list of services to be hosted.
      *
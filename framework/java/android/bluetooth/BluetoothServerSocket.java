@@ -16,9 +16,13 @@
 
 package android.bluetooth;
 
+import android.annotation.NonNull;
+import android.annotation.RequiresNoPermission;
 import android.annotation.SuppressLint;
+import android.annotation.SystemApi;
 import android.compat.annotation.UnsupportedAppUsage;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
 import android.util.Log;
 
@@ -163,6 +167,8 @@ public final class BluetoothServerSocket implements Closeable {
      * <p>Once this call returns, it can be called again to accept subsequent
      * incoming connections.
      * <p>{@link #close} can be used to abort this call from another thread.
+     * <p>In non-blocking mode this call returns null right away when there is no
+     * connection to accept.
      *
      * @return a connected {@link BluetoothSocket}
      * @throws IOException on error, for example this call was aborted, or timeout
@@ -188,6 +194,79 @@ public final class BluetoothServerSocket implements Closeable {
         mSocket.close();
     }
 
+    /**
+     * Listener notified when a {@link BluetoothServerSocket} has a connection to accept.
+     *
+     * @hide
+     */
+    @SystemApi
+    public interface AcceptListener {
+        /**
+         * Called on the looper the listener was registered with when a connection can be
+         * accepted, or when the socket failed, in which case {@link #accept()} throws.
+         *
+         * @param serverSocket the socket to accept the connection from
+         */
+        void onAcceptable(@NonNull BluetoothServerSocket serverSocket);
+    }
+
+    /**
+     * Switches the socket between blocking and non-blocking mode. In non-blocking mode
+     * {@link #accept()} returns null when there is no connection to accept, so a single thread
+     * can serve many server sockets with an {@link AcceptListener}.
+     *
+     * @param block true for blocking mode, which is the default
+     * @throws IOException if the socket is not listening
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public void configureBlocking(boolean block) throws IOException {
+        mSocket.configureBlocking(block);
+    }
+
+    /**
+     * Returns whether the socket is in blocking mode.
+     *
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public boolean isBlocking() {
+        return mSocket.isBlocking();
+    }
+
+    /**
+     * Registers a listener notified on {@code looper} when there is a connection to accept,
+     * replacing any listener registered before. The listener is unregistered after the socket
+     * failed, or when it is closed.
+     *
+     * @param looper the looper the listener is called on
+     * @param listener the listener to notify
+     * @throws IOException if the socket is not listening
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public void setAcceptListener(@NonNull Looper looper, @NonNull AcceptListener listener)
+            throws IOException {
+        mSocket.setEventListener(looper, BluetoothSocket.EVENT_INPUT, (socket, events) -> {
+            listener.onAcceptable(this);
+            return (events & BluetoothSocket.EVENT_ERROR) != 0 ? 0 : BluetoothSocket.EVENT_INPUT;
+        });
+    }
+
+    /**
+     * Unregisters the listener set by {@link #setAcceptListener}, if any.
+     *
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public void removeAcceptListener() {
+        mSocket.removeEventListener();
+    }
+
     /*package*/
     synchronized void setCloseHandler(Handler handler, int message) {
         mHandler = handler;
@@ -16,15 +16,24 @@
 
 package android.bluetooth;
 
+import android.annotation.IntDef;
+import android.annotation.NonNull;
 import android.annotation.RequiresNoPermission;
 import android.annotation.RequiresPermission;
+import android.annotation.SystemApi;
 import android.bluetooth.annotations.RequiresBluetoothConnectPermission;
 import android.compat.annotation.UnsupportedAppUsage;
 import android.net.LocalSocket;
 import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.util.Log;
 
 import java.io.Closeable;
@@ -32,6 +41,8 @@ import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
@@ -152,6 +163,8 @@ public final class BluetoothSocket implements Closeable {
     private ByteBuffer mL2capBuffer = null;
     private int mMaxTxPacketSize = 0; // The l2cap maximum packet size supported by the peer.
     private int mMaxRxPacketSize = 0; // The l2cap maximum packet size that can be received.
+    private volatile boolean mBlocking = true;
+    private MessageQueue mEventQueue; // The queue the event listener is registered with, if any.
 
     private enum SocketState {
         INIT,
@@ -263,6 +276,46 @@ public final class BluetoothSocket implements Closeable {
         return bluetoothSocket;
     }
 
+    /**
+     * Creates a connected BluetoothSocket of the given type from a {@link ParcelFileDescriptor},
+     * with the packet sizes the stack would have signaled on connection. This lets a local
+     * socket pair stand in for the stack.
+     */
+    /*package*/ static BluetoothSocket createSocketFromOpenFd(ParcelFileDescriptor pfd,
+            BluetoothDevice device, int type, int maxTxPacketSize, int maxRxPacketSize)
+            throws IOException {
+        BluetoothSocket bluetoothSocket =
+                new BluetoothSocket(type, pfd.getFd(), true, true, device, -1, null);
+
+        bluetoothSocket.mPfd = pfd;
+        bluetoothSocket.mSocket = new LocalSocket(pfd.getFileDescriptor());
+        bluetoothSocket.mSocketIS = bluetoothSocket.mSocket.getInputStream();
+        bluetoothSocket.mSocketOS = bluetoothSocket.mSocket.getOutputStream();
+        bluetoothSocket.mSocketState = SocketState.CONNECTED;
+        bluetoothSocket.mMaxTxPacketSize = maxTxPacketSize;
+        bluetoothSocket.mMaxRxPacketSize = maxRxPacketSize;
+
+        return bluetoothSocket;
+    }
+
+    /**
+     * Creates a listening BluetoothSocket on a {@link ParcelFileDescriptor}, standing in for the
+     * socket the stack signals incoming connections on.
+     */
+    /*package*/ static BluetoothSocket createListeningSocketFromOpenFd(ParcelFileDescriptor pfd,
+            BluetoothDevice device, int type) throws IOException {
+        BluetoothSocket bluetoothSocket =
+                new BluetoothSocket(type, pfd.getFd(), true, true, device, -1, null);
+
+        bluetoothSocket.mPfd = pfd;
+        bluetoothSocket.mSocket = new LocalSocket(pfd.getFileDescriptor());
+        bluetoothSocket.mSocketIS = bluetoothSocket.mSocket.getInputStream();
+        bluetoothSocket.mSocketOS = bluetoothSocket.mSocket.getOutputStream();
+        bluetoothSocket.mSocketState = SocketState.LISTENING;
+
+        return bluetoothSocket;
+    }
+
     private BluetoothSocket(BluetoothSocket s) {
         if (VDBG) Log.d(TAG, "Creating new Private BluetoothSocket of type: " + s.mType);
         mUuid = s.mUuid;
@@ -537,6 +590,10 @@ public final class BluetoothSocket implements Closeable {
         if (mSocketState != SocketState.LISTENING) {
             throw new IOException("bt socket is not in listen state");
         }
+        if (!mBlocking && !hasPendingInput()) {
+            // The stack sends the whole signal at once, so a pending one is read without blocking.
+            return null;
+        }
         Log.d(TAG, "accept(), timeout (ms):" + timeout);
         if (timeout > 0) {
             mSocket.setSoTimeout(timeout);
@@ -634,6 +691,458 @@ public final class BluetoothSocket implements Closeable {
         return length;
     }
 
+    /**
+     * Reads bytes from the socket into {@code dst}.
+     *
+     * <p>On an L2CAP socket a call returns the bytes of a single packet. When {@code dst} can
+     * hold a packet of {@link #getMaxReceivePacketSize()} bytes, the packet is read straight into
+     * it, without any intermediate copy if it is a direct buffer. Otherwise the packet is staged
+     * and returned over as many calls as needed. On an RFCOMM socket a call returns the bytes
+     * available, up to {@code dst.remaining()}.
+     *
+     * <p>The position of {@code dst} is advanced by the number of bytes read.
+     *
+     * @param dst buffer the bytes are read into
+     * @return the number of bytes read, which is 0 if a non-blocking socket has nothing to read
+     * @throws IOException on error, for example the socket was closed
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public int read(@NonNull ByteBuffer dst) throws IOException {
+        if (VDBG) Log.d(TAG, "read in:  " + mSocketIS + " remaining: " + dst.remaining());
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        int ret;
+        if (isL2cap()) {
+            if (mL2capBuffer != null && mL2capBuffer.hasRemaining()) {
+                // Finish the packet staged by a previous read first.
+                ret = drainL2capRxBuffer(dst);
+            } else if (dst.remaining() >= mMaxRxPacketSize) {
+                ret = readFromFd(dst);
+            } else {
+                ret = stageL2capPacket();
+                if (ret > 0) {
+                    ret = drainL2capRxBuffer(dst);
+                }
+            }
+        } else {
+            ret = readFromFd(dst);
+        }
+        if (ret < 0) {
+            throw new IOException("bt socket closed, read return: " + ret);
+        }
+        if (VDBG) Log.d(TAG, "read out:  " + mSocketIS + " ret: " + ret);
+        return ret;
+    }
+
+    /**
+     * Reads bytes from the socket into a sequence of buffers, filling each one before moving to
+     * the next.
+     *
+     * <p>On an L2CAP socket a call returns the bytes of a single packet, scattered straight
+     * into the buffers when together they can hold a packet of
+     * {@link #getMaxReceivePacketSize()} bytes.
+     *
+     * @param dsts buffers the bytes are read into
+     * @return the number of bytes read, which is 0 if a non-blocking socket has nothing to read
+     * @throws IOException on error, for example the socket was closed
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public long read(@NonNull ByteBuffer[] dsts) throws IOException {
+        long capacity = 0;
+        for (ByteBuffer dst : dsts) {
+            capacity += dst.remaining();
+        }
+        if (capacity == 0) {
+            return 0;
+        }
+        boolean staged = mL2capBuffer != null && mL2capBuffer.hasRemaining();
+        if (!isL2cap() || (!staged && capacity >= mMaxRxPacketSize)) {
+            int ret = transferVector(dsts, Integer.MAX_VALUE, false);
+            if (ret < 0) {
+                throw new IOException("bt socket closed, read return: " + ret);
+            }
+            return ret;
+        }
+        if (!staged) {
+            int ret = stageL2capPacket();
+            if (ret < 0) {
+                throw new IOException("bt socket closed, read return: " + ret);
+            }
+            if (ret == 0) {
+                return 0;
+            }
+        }
+        long total = 0;
+        for (ByteBuffer dst : dsts) {
+            if (!mL2capBuffer.hasRemaining()) {
+                break;
+            }
+            total += drainL2capRxBuffer(dst);
+        }
+        return total;
+    }
+
+    /**
+     * Writes the remaining bytes of {@code src} to the socket.
+     *
+     * <p>On an L2CAP socket the bytes are sent in packets of at most
+     * {@link #getMaxTransmitPacketSize()} bytes. The bytes are written straight from
+     * {@code src}, without any intermediate copy if it is a direct buffer.
+     *
+     * <p>The position of {@code src} is advanced by the number of bytes written.
+     *
+     * @param src buffer the bytes are written from
+     * @return the number of bytes written, which is less than requested if a non-blocking
+     *         socket cannot take them all
+     * @throws IOException on error, for example the socket was closed
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public int write(@NonNull ByteBuffer src) throws IOException {
+        if (VDBG) Log.d(TAG, "write: " + mSocketOS + " remaining: " + src.remaining());
+        int packetSize = getTxPacketSizeLimit();
+        int total = 0;
+        int limit = src.limit();
+        try {
+            while (src.hasRemaining()) {
+                src.limit(src.position() + Math.min(src.remaining(), packetSize));
+                total += Os.write(getSocketFd(), src);
+                src.limit(limit);
+            }
+        } catch (ErrnoException e) {
+            // A non-blocking socket stops at the first packet the socket cannot take.
+            if (e.errno != OsConstants.EAGAIN) {
+                throw e.rethrowAsIOException();
+            }
+        } finally {
+            src.limit(limit);
+        }
+        if (VDBG) Log.d(TAG, "write out: " + mSocketOS + " length: " + total);
+        return total;
+    }
+
+    /**
+     * Writes the remaining bytes of a sequence of buffers to the socket, in order.
+     *
+     * <p>On an L2CAP socket the bytes are gathered into packets of at most
+     * {@link #getMaxTransmitPacketSize()} bytes, so a header and a payload held in separate
+     * buffers are sent in the same packet.
+     *
+     * @param srcs buffers the bytes are written from
+     * @return the number of bytes written, which is less than requested if a non-blocking
+     *         socket cannot take them all
+     * @throws IOException on error, for example the socket was closed
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public long write(@NonNull ByteBuffer[] srcs) throws IOException {
+        int packetSize = getTxPacketSizeLimit();
+        long total = 0;
+        while (true) {
+            boolean remaining = false;
+            for (ByteBuffer src : srcs) {
+                if (src.hasRemaining()) {
+                    remaining = true;
+                    break;
+                }
+            }
+            if (!remaining) {
+                return total;
+            }
+            int ret = transferVector(srcs, packetSize, true);
+            if (ret == 0) {
+                return total;
+            }
+            total += ret;
+        }
+    }
+
+    /**
+     * Readiness events of a socket.
+     *
+     * @hide
+     */
+    @IntDef(flag = true, prefix = { "EVENT_" }, value = {
+            EVENT_INPUT,
+            EVENT_OUTPUT,
+            EVENT_ERROR,
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface SocketEvent {}
+
+    /**
+     * The socket has bytes to read, or was closed by the remote device.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static final int EVENT_INPUT = MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT;
+
+    /**
+     * The socket can take more bytes to write.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static final int EVENT_OUTPUT = MessageQueue.OnFileDescriptorEventListener.EVENT_OUTPUT;
+
+    /**
+     * The socket encountered an error and should be closed.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static final int EVENT_ERROR = MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR;
+
+    /**
+     * Listener notified of the readiness of a socket, on the {@link Looper} it was registered
+     * with.
+     *
+     * @hide
+     */
+    @SystemApi
+    public interface SocketEventListener {
+        /**
+         * Called when some of the events the listener was registered for occurred.
+         *
+         * @param socket the socket the events occurred on
+         * @param events the events that occurred
+         * @return the events to keep listening for, or 0 to unregister the listener
+         */
+        @SocketEvent
+        int onSocketEvents(@NonNull BluetoothSocket socket, @SocketEvent int events);
+    }
+
+    /**
+     * Switches a connected socket between blocking and non-blocking mode.
+     *
+     * <p>In non-blocking mode the {@link ByteBuffer} reads return 0 when there is nothing to
+     * read, and the {@link ByteBuffer} writes return once the socket cannot take more bytes, so
+     * a single thread can serve many sockets with a {@link SocketEventListener}. The streams of
+     * the socket must not be used in non-blocking mode.
+     *
+     * @param block true for blocking mode, which is the default
+     * @throws IOException if the socket is not connected
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public void configureBlocking(boolean block) throws IOException {
+        synchronized (this) {
+            if (mSocketState == SocketState.LISTENING) {
+                // The listening socket is polled before reading the accept signal instead.
+                mBlocking = block;
+                return;
+            }
+            if (mSocketState != SocketState.CONNECTED) {
+                throw new IOException("socket not connected");
+            }
+            try {
+                FileDescriptor fd = getSocketFd();
+                int flags = Os.fcntlInt(fd, OsConstants.F_GETFL, 0);
+                flags = block ? flags & ~OsConstants.O_NONBLOCK : flags | OsConstants.O_NONBLOCK;
+                Os.fcntlInt(fd, OsConstants.F_SETFL, flags);
+            } catch (ErrnoException e) {
+                throw e.rethrowAsIOException();
+            }
+            mBlocking = block;
+        }
+    }
+
+    /**
+     * Returns whether the socket is in blocking mode.
+     *
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public boolean isBlocking() {
+        return mBlocking;
+    }
+
+    /**
+     * Registers a listener notified on {@code looper} when the socket is ready for
+     * {@code events}, replacing any listener registered before.
+     *
+     * <p>The bytes of an L2CAP packet staged by a previous read are not reported as an event, so
+     * a non-blocking socket should be read until a read returns 0.
+     *
+     * @param looper the looper the listener is called on
+     * @param events the events to listen for
+     * @param listener the listener to notify
+     * @throws IOException if the socket is not connected
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public void setEventListener(@NonNull Looper looper, @SocketEvent int events,
+            @NonNull SocketEventListener listener) throws IOException {
+        synchronized (this) {
+            if (mSocketState != SocketState.CONNECTED && mSocketState != SocketState.LISTENING) {
+                throw new IOException("socket not connected");
+            }
+            FileDescriptor fd = getSocketFd();
+            MessageQueue queue = looper.getQueue();
+            if (mEventQueue != null && mEventQueue != queue) {
+                mEventQueue.removeOnFileDescriptorEventListener(fd);
+            }
+            mEventQueue = queue;
+            queue.addOnFileDescriptorEventListener(fd, events,
+                    (eventFd, firedEvents) -> listener.onSocketEvents(this, firedEvents));
+        }
+    }
+
+    /**
+     * Unregisters the listener set by {@link #setEventListener}, if any.
+     *
+     * @hide
+     */
+    @SystemApi
+    @RequiresNoPermission
+    public void removeEventListener() {
+        synchronized (this) {
+            if (mEventQueue != null && mSocket != null) {
+                mEventQueue.removeOnFileDescriptorEventListener(mSocket.getFileDescriptor());
+            }
+            mEventQueue = null;
+        }
+    }
+
+    private boolean isL2cap() {
+        return (mType == TYPE_L2CAP) || (mType == TYPE_L2CAP_LE);
+    }
+
+    private int getTxPacketSizeLimit() {
+        return isL2cap() && mMaxTxPacketSize > 0 ? mMaxTxPacketSize : Integer.MAX_VALUE;
+    }
+
+    private FileDescriptor getSocketFd() throws IOException {
+        LocalSocket socket = mSocket;
+        if (socket == null) {
+            throw new IOException("socket not connected");
+        }
+        return socket.getFileDescriptor();
+    }
+
+    // Returns the number of bytes read, 0 if a non-blocking socket has nothing to read, or -1
+    // at end of stream.
+    private int readFromFd(ByteBuffer dst) throws IOException {
+        try {
+            int ret = Os.read(getSocketFd(), dst);
+            // A read of 0 bytes means the peer closed the socket.
+            return ret == 0 ? -1 : ret;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EAGAIN) {
+                return 0;
+            }
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    // Reads the next packet into mL2capBuffer, with the same return values as readFromFd().
+    private int stageL2capPacket() throws IOException {
+        if (mL2capBuffer == null) {
+            createL2capRxBuffer();
+        }
+        mL2capBuffer.clear();
+        int ret = readFromFd(mL2capBuffer);
+        if (ret <= 0) {
+            mL2capBuffer.limit(0);
+            return ret;
+        }
+        mL2capBuffer.flip();
+        return ret;
+    }
+
+    private boolean hasPendingInput() throws IOException {
+        StructPollfd pollFd = new StructPollfd();
+        pollFd.fd = getSocketFd();
+        pollFd.events = (short) OsConstants.POLLIN;
+        try {
+            return Os.poll(new StructPollfd[] {pollFd}, 0) > 0;
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    private int drainL2capRxBuffer(ByteBuffer dst) {
+        int length = Math.min(dst.remaining(), mL2capBuffer.remaining());
+        int limit = mL2capBuffer.limit();
+        mL2capBuffer.limit(mL2capBuffer.position() + length);
+        dst.put(mL2capBuffer);
+        mL2capBuffer.limit(limit);
+        return length;
+    }
+
+    // Reads or writes up to maxBytes across the remaining bytes of buffers with a single
+    // readv/writev call, and advances their positions by the number of bytes transferred.
+    private int transferVector(ByteBuffer[] buffers, int maxBytes, boolean write)
+            throws IOException {
+        int count = 0;
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                count++;
+            }
+        }
+        Object[] vectors = new Object[count];
+        int[] offsets = new int[count];
+        int[] byteCounts = new int[count];
+        ByteBuffer[] used = new ByteBuffer[count];
+        int n = 0;
+        int bytes = 0;
+        for (ByteBuffer buffer : buffers) {
+            if (bytes == maxBytes) {
+                break;
+            }
+            if (!buffer.hasRemaining()) {
+                continue;
+            }
+            if (buffer.hasArray()) {
+                vectors[n] = buffer.array();
+                offsets[n] = buffer.arrayOffset() + buffer.position();
+            } else {
+                vectors[n] = buffer;
+                offsets[n] = buffer.position();
+            }
+            byteCounts[n] = Math.min(buffer.remaining(), maxBytes - bytes);
+            bytes += byteCounts[n];
+            used[n++] = buffer;
+        }
+        if (n < count) {
+            vectors = Arrays.copyOf(vectors, n);
+            offsets = Arrays.copyOf(offsets, n);
+            byteCounts = Arrays.copyOf(byteCounts, n);
+        }
+
+        int ret;
+        try {
+            ret = write ? Os.writev(getSocketFd(), vectors, offsets, byteCounts)
+                    : Os.readv(getSocketFd(), vectors, offsets, byteCounts);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EAGAIN) {
+                return 0;
+            }
+            throw e.rethrowAsIOException();
+        }
+        if (!write && ret == 0) {
+            return -1;
+        }
+        int left = ret;
+        for (int i = 0; i < n && left > 0; i++) {
+            int length = Math.min(left, byteCounts[i]);
+            used[i].position(used[i].position() + length);
+            left -= length;
+        }
+        return ret;
+    }
+
     @Override
     public void close() throws IOException {
         Log.d(TAG, "close() this: " + this + ", channel: " + mPort + ", mSocketIS: " + mSocketIS
@@ -647,6 +1156,11 @@ public final class BluetoothSocket implements Closeable {
                     return;
                 }
                 mSocketState = SocketState.CLOSED;
+                if (mEventQueue != null && mSocket != null) {
+                    // The listener must be gone before its file descriptor is closed.
+                    mEventQueue.removeOnFileDescriptorEventListener(mSocket.getFileDescriptor());
+                    mEventQueue = null;
+                }
                 if (mSocket != null) {
                     if (DBG) Log.d(TAG, "Closing mSocket: " + mSocket);
                     mSocket.shutdownInput();
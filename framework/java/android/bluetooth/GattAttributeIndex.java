@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.util.SparseArray;
+
+import java.util.List;
+
+/**
+ * GattAttributeIndex.
+ *
+ * Immutable index of the characteristics and descriptors of a discovered GATT database by
+ * handle, so notifications and responses resolve their attribute without walking every
+ * service. When several attributes share a handle, the first one in database order is kept.
+ *
+ * @hide
+ */
+/*package*/ final class GattAttributeIndex {
+    /*package*/ static final GattAttributeIndex EMPTY = new GattAttributeIndex();
+
+    private final SparseArray<BluetoothGattCharacteristic> mCharacteristics =
+            new SparseArray<>();
+    private final SparseArray<BluetoothGattDescriptor> mDescriptors = new SparseArray<>();
+
+    private GattAttributeIndex() {}
+
+    /*package*/ GattAttributeIndex(List<BluetoothGattService> services) {
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                int handle = characteristic.getInstanceId();
+                if (mCharacteristics.get(handle) == null) {
+                    mCharacteristics.put(handle, characteristic);
+                }
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    if (mDescriptors.get(descriptor.getInstanceId()) == null) {
+                        mDescriptors.put(descriptor.getInstanceId(), descriptor);
+                    }
+                }
+            }
+        }
+    }
+
+    /*package*/ BluetoothGattCharacteristic getCharacteristic(int handle) {
+        return mCharacteristics.get(handle);
+    }
+
+    /*package*/ BluetoothGattDescriptor getDescriptor(int handle) {
+        return mDescriptors.get(handle);
+    }
+
+    /*package*/ int size() {
+        return mCharacteristics.size() + mDescriptors.size();
+    }
+}
@@ -315,33 +315,56 @@ public final class ScanRecord {
     public static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
 
     // Flags of the advertising data.
-    private final int mAdvertiseFlags;
+    private int mAdvertiseFlags;
 
     @Nullable
-    private final List<ParcelUuid> mServiceUuids;
+    private List<ParcelUuid> mServiceUuids;
     @Nullable
-    private final List<ParcelUuid> mServiceSolicitationUuids;
+    private List<ParcelUuid> mServiceSolicitationUuids;
 
-    private final SparseArray<byte[]> mManufacturerSpecificData;
+    private SparseArray<byte[]> mManufacturerSpecificData;
 
-    private final Map<ParcelUuid, byte[]> mServiceData;
+    private Map<ParcelUuid, byte[]> mServiceData;
 
     // Transmission power level(in dB).
-    private final int mTxPowerLevel;
+    private int mTxPowerLevel;
 
     // Local name of the Bluetooth LE device.
-    private final String mDeviceName;
+    private String mDeviceName;
 
     // Raw bytes of scan record.
     private final byte[] mBytes;
 
-    private final HashMap<Integer, byte[]> mAdvertisingDataMap;
+    private HashMap<Integer, byte[]> mAdvertisingDataMap;
+
+    // Offset table of a lazily decoded record, null for eagerly parsed ones. Each AD structure
+    // takes AD_ENTRY_SIZE slots: field type, data offset and data length.
+    private final int[] mAdStructures;
+    // True if decoding the raw bytes would fail; decoded fields then keep their default values.
+    private final boolean mMalformed;
+    // Bit set of the DECODED_* fields already materialized from mAdStructures.
+    private volatile int mDecodedFields;
+
+    private static final int AD_ENTRY_SIZE = 3;
+
+    private static final int DECODED_FLAGS = 1 << 0;
+    private static final int DECODED_SERVICE_UUIDS = 1 << 1;
+    private static final int DECODED_SOLICITATION_UUIDS = 1 << 2;
+    private static final int DECODED_MANUFACTURER_DATA = 1 << 3;
+    private static final int DECODED_SERVICE_DATA = 1 << 4;
+    private static final int DECODED_TX_POWER = 1 << 5;
+    private static final int DECODED_DEVICE_NAME = 1 << 6;
+    private static final int DECODED_DATA_MAP = 1 << 7;
+    private static final int DECODED_ALL = (1 << 8) - 1;
 
     /**
      * Returns the advertising flags indicating the discoverable mode and capability of the device.
      * Returns -1 if the flag field is not set.
      */
     public int getAdvertiseFlags() {
+        if ((mDecodedFields & DECODED_FLAGS) == 0) {
+            decodeField(DECODED_FLAGS);
+        }
         return mAdvertiseFlags;
     }
 
@@ -350,6 +373,9 @@ public final class ScanRecord {
      * bluetooth GATT services.
      */
     public List<ParcelUuid> getServiceUuids() {
+        if ((mDecodedFields & DECODED_SERVICE_UUIDS) == 0) {
+            decodeField(DECODED_SERVICE_UUIDS);
+        }
         return mServiceUuids;
     }
 
@@ -359,6 +385,9 @@ public final class ScanRecord {
      */
     @NonNull
     public List<ParcelUuid> getServiceSolicitationUuids() {
+        if ((mDecodedFields & DECODED_SOLICITATION_UUIDS) == 0) {
+            decodeField(DECODED_SOLICITATION_UUIDS);
+        }
         return mServiceSolicitationUuids;
     }
 
@@ -367,6 +396,9 @@ public final class ScanRecord {
      * data.
      */
     public SparseArray<byte[]> getManufacturerSpecificData() {
+        if ((mDecodedFields & DECODED_MANUFACTURER_DATA) == 0) {
+            decodeField(DECODED_MANUFACTURER_DATA);
+        }
         return mManufacturerSpecificData;
     }
 
@@ -376,16 +408,20 @@ public final class ScanRecord {
      */
     @Nullable
     public byte[] getManufacturerSpecificData(int manufacturerId) {
-        if (mManufacturerSpecificData == null) {
+        SparseArray<byte[]> manufacturerSpecificData = getManufacturerSpecificData();
+        if (manufacturerSpecificData == null) {
             return null;
         }
-        return mManufacturerSpecificData.get(manufacturerId);
+        return manufacturerSpecificData.get(manufacturerId);
     }
 
     /**
      * Returns a map of service UUID and its corresponding service data.
      */
     public Map<ParcelUuid, byte[]> getServiceData() {
+        if ((mDecodedFields & DECODED_SERVICE_DATA) == 0) {
+            decodeField(DECODED_SERVICE_DATA);
+        }
         return mServiceData;
     }
 
@@ -395,10 +431,11 @@ public final class ScanRecord {
      */
     @Nullable
     public byte[] getServiceData(ParcelUuid serviceDataUuid) {
-        if (serviceDataUuid == null || mServiceData == null) {
+        Map<ParcelUuid, byte[]> serviceData = getServiceData();
+        if (serviceDataUuid == null || serviceData == null) {
             return null;
         }
-        return mServiceData.get(serviceDataUuid);
+        return serviceData.get(serviceDataUuid);
     }
 
     /**
@@ -409,6 +446,9 @@ public final class ScanRecord {
      * <code>pathloss = txPowerLevel - rssi</code>
      */
     public int getTxPowerLevel() {
+        if ((mDecodedFields & DECODED_TX_POWER) == 0) {
+            decodeField(DECODED_TX_POWER);
+        }
         return mTxPowerLevel;
     }
 
@@ -417,6 +457,9 @@ public final class ScanRecord {
      */
     @Nullable
     public String getDeviceName() {
+        if ((mDecodedFields & DECODED_DEVICE_NAME) == 0) {
+            decodeField(DECODED_DEVICE_NAME);
+        }
         return mDeviceName;
     }
 
@@ -427,6 +470,9 @@ public final class ScanRecord {
      * (https://www.bluetooth.com/specifications/assigned-numbers/)
      */
     public @NonNull Map<Integer, byte[]> getAdvertisingDataMap() {
+        if ((mDecodedFields & DECODED_DATA_MAP) == 0) {
+            decodeField(DECODED_DATA_MAP);
+        }
         return mAdvertisingDataMap;
     }
 
@@ -444,6 +490,17 @@ public final class ScanRecord {
      * @hide
      */
     public boolean matchesAnyField(@NonNull Predicate<byte[]> matcher) {
+        if (mAdStructures != null && !mMalformed) {
+            for (int i = 0; i < mAdStructures.length; i += AD_ENTRY_SIZE) {
+                // The field starts with its length and type, right before the data.
+                final int start = mAdStructures[i + 1] - 2;
+                final int end = mAdStructures[i + 1] + mAdStructures[i + 2];
+                if (matcher.test(Arrays.copyOfRange(mBytes, start, end))) {
+                    return true;
+                }
+            }
+            return false;
+        }
         int pos = 0;
         while (pos < mBytes.length) {
             final int length = mBytes[pos] & 0xFF;
@@ -473,6 +530,267 @@ public final class ScanRecord {
         mTxPowerLevel = txPowerLevel;
         mAdvertisingDataMap = advertisingDataMap;
         mBytes = bytes;
+        mAdStructures = null;
+        mMalformed = false;
+        mDecodedFields = DECODED_ALL;
+    }
+
+    private ScanRecord(byte[] bytes, int[] adStructures, boolean malformed) {
+        mBytes = bytes;
+        mAdStructures = adStructures;
+        mMalformed = malformed;
+        mAdvertiseFlags = -1;
+        mTxPowerLevel = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Parse scan record bytes to a {@link ScanRecord} whose fields are only decoded when first
+     * accessed.
+     * <p>
+     * Only the offsets of the AD structures are computed upfront, so a record that is never
+     * inspected costs a single small allocation. The decoded values, including for malformed
+     * records, are identical to the ones of {@link #parseFromBytes}.
+     *
+     * @param scanRecord The scan record of Bluetooth LE advertisement and/or scan response.
+     * @hide
+     */
+    public static ScanRecord parseFromBytesLazy(byte[] scanRecord) {
+        if (scanRecord == null) {
+            return null;
+        }
+        int count = 0;
+        boolean malformed = false;
+        // First pass counts the AD structures, second pass fills the offset table.
+        for (int pass = 0; pass < 2; pass++) {
+            int[] adStructures = pass == 0 ? null : new int[count * AD_ENTRY_SIZE];
+            int index = 0;
+            int currentPos = 0;
+            while (currentPos < scanRecord.length) {
+                int length = scanRecord[currentPos++] & 0xFF;
+                if (length == 0) {
+                    break;
+                }
+                int dataLength = length - 1;
+                if (currentPos >= scanRecord.length) {
+                    malformed = true;
+                    break;
+                }
+                int fieldType = scanRecord[currentPos++] & 0xFF;
+                if (currentPos + dataLength > scanRecord.length) {
+                    malformed = true;
+                    break;
+                }
+                if (adStructures != null) {
+                    adStructures[index++] = fieldType;
+                    adStructures[index++] = currentPos;
+                    adStructures[index++] = dataLength;
+                } else {
+                    count++;
+                }
+                if (!isFieldDecodable(scanRecord, fieldType, currentPos, dataLength)) {
+                    malformed = true;
+                    break;
+                }
+                currentPos += dataLength;
+            }
+            if (adStructures != null) {
+                return new ScanRecord(scanRecord, adStructures, malformed);
+            }
+        }
+        return null;
+    }
+
+    // Whether parseFromBytes can decode the given AD structure without throwing.
+    private static boolean isFieldDecodable(byte[] scanRecord, int fieldType, int currentPos,
+            int dataLength) {
+        switch (fieldType) {
+            case DATA_TYPE_FLAGS:
+            case DATA_TYPE_TX_POWER_LEVEL:
+                return currentPos < scanRecord.length;
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_16_BIT:
+                return isUuidListDecodable(scanRecord, currentPos, dataLength,
+                        BluetoothUuid.UUID_BYTES_16_BIT);
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_32_BIT:
+                return isUuidListDecodable(scanRecord, currentPos, dataLength,
+                        BluetoothUuid.UUID_BYTES_32_BIT);
+            case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_128_BIT:
+                return isUuidListDecodable(scanRecord, currentPos, dataLength,
+                        BluetoothUuid.UUID_BYTES_128_BIT);
+            case DATA_TYPE_SERVICE_DATA_16_BIT:
+                return dataLength >= BluetoothUuid.UUID_BYTES_16_BIT;
+            case DATA_TYPE_SERVICE_DATA_32_BIT:
+                return dataLength >= BluetoothUuid.UUID_BYTES_32_BIT;
+            case DATA_TYPE_SERVICE_DATA_128_BIT:
+                return dataLength >= BluetoothUuid.UUID_BYTES_128_BIT;
+            case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                return dataLength >= 2;
+            default:
+                return true;
+        }
+    }
+
+    // UUID lists are read in uuidLength chunks, the last one may overrun the field.
+    private static boolean isUuidListDecodable(byte[] scanRecord, int currentPos,
+            int dataLength, int uuidLength) {
+        int chunks = (dataLength + uuidLength - 1) / uuidLength;
+        return currentPos + chunks * uuidLength <= scanRecord.length;
+    }
+
+    // Materializes one of the DECODED_* fields of a lazily parsed record.
+    private synchronized void decodeField(int field) {
+        if ((mDecodedFields & field) != 0) {
+            return;
+        }
+        final byte[] scanRecord = mBytes;
+        final int[] table = mAdStructures;
+        switch (field) {
+            case DECODED_DATA_MAP: {
+                HashMap<Integer, byte[]> advertisingDataMap = new HashMap<Integer, byte[]>();
+                for (int i = 0; i < table.length; i += AD_ENTRY_SIZE) {
+                    advertisingDataMap.put(table[i],
+                            extractBytes(scanRecord, table[i + 1], table[i + 2]));
+                }
+                mAdvertisingDataMap = advertisingDataMap;
+                break;
+            }
+            case DECODED_FLAGS:
+                if (!mMalformed) {
+                    for (int i = 0; i < table.length; i += AD_ENTRY_SIZE) {
+                        if (table[i] == DATA_TYPE_FLAGS) {
+                            mAdvertiseFlags = scanRecord[table[i + 1]] & 0xFF;
+                        }
+                    }
+                }
+                break;
+            case DECODED_TX_POWER:
+                if (!mMalformed) {
+                    for (int i = 0; i < table.length; i += AD_ENTRY_SIZE) {
+                        if (table[i] == DATA_TYPE_TX_POWER_LEVEL) {
+                            mTxPowerLevel = scanRecord[table[i + 1]];
+                        }
+                    }
+                }
+                break;
+            case DECODED_DEVICE_NAME:
+                if (!mMalformed) {
+                    for (int i = 0; i < table.length; i += AD_ENTRY_SIZE) {
+                        if (table[i] == DATA_TYPE_LOCAL_NAME_SHORT
+                                || table[i] == DATA_TYPE_LOCAL_NAME_COMPLETE) {
+                            mDeviceName = new String(
+                                    extractBytes(scanRecord, table[i + 1], table[i + 2]));
+                        }
+                    }
+                }
+                break;
+            case DECODED_SERVICE_UUIDS:
+                if (!mMalformed) {
+                    List<ParcelUuid> serviceUuids = new ArrayList<ParcelUuid>();
+                    for (int i = 0; i < table.length; i += AD_ENTRY_SIZE) {
+                        int uuidLength = getServiceUuidLength(table[i]);
+                        if (uuidLength > 0) {
+                            parseServiceUuid(scanRecord, table[i + 1], table[i + 2],
+                                    uuidLength, serviceUuids);
+                        }
+                    }
+                    mServiceUuids = serviceUuids.isEmpty() ? null : serviceUuids;
+                }
+                break;
+            case DECODED_SOLICITATION_UUIDS:
+                if (!mMalformed) {
+                    List<ParcelUuid> solicitationUuids = new ArrayList<ParcelUuid>();
+                    for (int i = 0; i < table.length; i += AD_ENTRY_SIZE) {
+                        int uuidLength = getSolicitationUuidLength(table[i]);
+                        if (uuidLength > 0) {
+                            parseServiceSolicitationUuid(scanRecord, table[i + 1],
+                                    table[i + 2], uuidLength, solicitationUuids);
+                        }
+                    }
+                    mServiceSolicitationUuids = solicitationUuids;
+                }
+                break;
+            case DECODED_SERVICE_DATA:
+                if (!mMalformed) {
+                    Map<ParcelUuid, byte[]> serviceData = new ArrayMap<ParcelUuid, byte[]>();
+                    for (int i = 0; i < table.length; i += AD_ENTRY_SIZE) {
+                        int uuidLength = getServiceDataUuidLength(table[i]);
+                        if (uuidLength > 0) {
+                            int currentPos = table[i + 1];
+                            ParcelUuid serviceDataUuid = BluetoothUuid.parseUuidFrom(
+                                    extractBytes(scanRecord, currentPos, uuidLength));
+                            serviceData.put(serviceDataUuid, extractBytes(scanRecord,
+                                    currentPos + uuidLength, table[i + 2] - uuidLength));
+                        }
+                    }
+                    mServiceData = serviceData;
+                }
+                break;
+            case DECODED_MANUFACTURER_DATA:
+                if (!mMalformed) {
+                    SparseArray<byte[]> manufacturerData = new SparseArray<byte[]>();
+                    for (int i = 0; i < table.length; i += AD_ENTRY_SIZE) {
+                        if (table[i] == DATA_TYPE_MANUFACTURER_SPECIFIC_DATA) {
+                            int currentPos = table[i + 1];
+                            int manufacturerId = ((scanRecord[currentPos + 1] & 0xFF) << 8)
+                                    + (scanRecord[currentPos] & 0xFF);
+                            manufacturerData.put(manufacturerId, extractBytes(scanRecord,
+                                    currentPos + 2, table[i + 2] - 2));
+                        }
+                    }
+                    mManufacturerSpecificData = manufacturerData;
+                }
+                break;
+            default:
+                break;
+        }
+        mDecodedFields |= field;
+    }
+
+    private static int getServiceUuidLength(int fieldType) {
+        switch (fieldType) {
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                return BluetoothUuid.UUID_BYTES_16_BIT;
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                return BluetoothUuid.UUID_BYTES_32_BIT;
+            case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                return BluetoothUuid.UUID_BYTES_128_BIT;
+            default:
+                return 0;
+        }
+    }
+
+    private static int getSolicitationUuidLength(int fieldType) {
+        switch (fieldType) {
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_16_BIT:
+                return BluetoothUuid.UUID_BYTES_16_BIT;
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_32_BIT:
+                return BluetoothUuid.UUID_BYTES_32_BIT;
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_128_BIT:
+                return BluetoothUuid.UUID_BYTES_128_BIT;
+            default:
+                return 0;
+        }
+    }
+
+    private static int getServiceDataUuidLength(int fieldType) {
+        switch (fieldType) {
+            case DATA_TYPE_SERVICE_DATA_16_BIT:
+                return BluetoothUuid.UUID_BYTES_16_BIT;
+            case DATA_TYPE_SERVICE_DATA_32_BIT:
+                return BluetoothUuid.UUID_BYTES_32_BIT;
+            case DATA_TYPE_SERVICE_DATA_128_BIT:
+                return BluetoothUuid.UUID_BYTES_128_BIT;
+            default:
+                return 0;
+        }
     }
 
     /**
@@ -606,12 +924,14 @@ public final class ScanRecord {
 
     @Override
     public String toString() {
-        return "ScanRecord [mAdvertiseFlags=" + mAdvertiseFlags + ", mServiceUuids=" + mServiceUuids
-                + ", mServiceSolicitationUuids=" + mServiceSolicitationUuids
+        return "ScanRecord [mAdvertiseFlags=" + getAdvertiseFlags()
+                + ", mServiceUuids=" + getServiceUuids()
+                + ", mServiceSolicitationUuids=" + getServiceSolicitationUuids()
                 + ", mManufacturerSpecificData=" + BluetoothLeUtils.toString(
-                mManufacturerSpecificData)
-                + ", mServiceData=" + BluetoothLeUtils.toString(mServiceData)
-                + ", mTxPowerLevel=" + mTxPowerLevel + ", mDeviceName=" + mDeviceName + "]";
+                getManufacturerSpecificData())
+                + ", mServiceData=" + BluetoothLeUtils.toString(getServiceData())
+                + ", mTxPowerLevel=" + getTxPowerLevel() + ", mDeviceName=" + getDeviceName()
+                + "]";
     }
 
     // Parse service UUIDs.
@@ -16,6 +16,7 @@
 
 package android.bluetooth.le;
 
+import android.annotation.NonNull;
 import android.annotation.SystemApi;
 import android.app.compat.gms.GmsCompat;
 import android.bluetooth.BluetoothDevice;
@@ -180,6 +181,18 @@ public final class ScanSettings implements Parcelable {
 
     private int mPhy;
 
+    // Window during which regular scan results are coalesced before delivery, 0 if disabled
+    private long mCoalescingWindowMillis;
+
+    // Number of coalesced results that triggers an early delivery
+    private int mCoalescingMaxResults;
+
+    // Whether repeated identical advertisements from a device are suppressed
+    private boolean mDuplicateSuppression;
+
+    // RSSI change in dBm after which a repeated advertisement is reported again
+    private int mDuplicateRssiThreshold;
+
     public int getScanMode() {
         return mScanMode;
     }
@@ -229,9 +242,53 @@ public final class ScanSettings implements Parcelable {
         return mReportDelayMillis;
     }
 
+    /**
+     * Returns the window during which scan results are coalesced before being delivered through
+     * {@link ScanCallback#onBatchScanResults}, or 0 if results are delivered one by one.
+     *
+     * @hide
+     */
+    @SystemApi
+    public long getCoalescingWindowMillis() {
+        return mCoalescingWindowMillis;
+    }
+
+    /**
+     * Returns the number of coalesced scan results that triggers a delivery before the end of
+     * the coalescing window.
+     *
+     * @hide
+     */
+    @SystemApi
+    public int getCoalescingMaxResults() {
+        return mCoalescingMaxResults;
+    }
+
+    /**
+     * Returns whether advertisements identical to the last one reported for the same device are
+     * suppressed.
+     *
+     * @hide
+     */
+    @SystemApi
+    public boolean isDuplicateSuppressionEnabled() {
+        return mDuplicateSuppression;
+    }
+
+    /**
+     * Returns the RSSI change in dBm after which a duplicate advertisement is reported again.
+     *
+     * @hide
+     */
+    @SystemApi
+    public int getDuplicateRssiThreshold() {
+        return mDuplicateRssiThreshold;
+    }
+
     private ScanSettings(int scanMode, int callbackType, int scanResultType,
             long reportDelayMillis, int matchMode,
-            int numOfMatchesPerFilter, boolean legacy, int phy) {
+            int numOfMatchesPerFilter, boolean legacy, int phy, long coalescingWindowMillis,
+            int coalescingMaxResults, boolean duplicateSuppression, int duplicateRssiThreshold) {
         mScanMode = scanMode;
         mCallbackType = callbackType;
         mScanResultType = scanResultType;
@@ -240,6 +297,10 @@ public final class ScanSettings implements Parcelable {
         mMatchMode = matchMode;
         mLegacy = legacy;
         mPhy = phy;
+        mCoalescingWindowMillis = coalescingWindowMillis;
+        mCoalescingMaxResults = coalescingMaxResults;
+        mDuplicateSuppression = duplicateSuppression;
+        mDuplicateRssiThreshold = duplicateRssiThreshold;
     }
 
     private ScanSettings(Parcel in) {
@@ -251,6 +312,10 @@ public final class ScanSettings implements Parcelable {
         mNumOfMatchesPerFilter = in.readInt();
         mLegacy = in.readInt() != 0;
         mPhy = in.readInt();
+        mCoalescingWindowMillis = in.readLong();
+        mCoalescingMaxResults = in.readInt();
+        mDuplicateSuppression = in.readInt() != 0;
+        mDuplicateRssiThreshold = in.readInt();
     }
 
     @Override
@@ -263,6 +328,10 @@ public final class ScanSettings implements Parcelable {
         dest.writeInt(mNumOfMatchesPerFilter);
         dest.writeInt(mLegacy ? 1 : 0);
         dest.writeInt(mPhy);
+        dest.writeLong(mCoalescingWindowMillis);
+        dest.writeInt(mCoalescingMaxResults);
+        dest.writeInt(mDuplicateSuppression ? 1 : 0);
+        dest.writeInt(mDuplicateRssiThreshold);
     }
 
     @Override
@@ -295,6 +364,10 @@ public final class ScanSettings implements Parcelable {
         private int mNumOfMatchesPerFilter = MATCH_NUM_MAX_ADVERTISEMENT;
         private boolean mLegacy = true;
         private int mPhy = PHY_LE_ALL_SUPPORTED;
+        private long mCoalescingWindowMillis = 0;
+        private int mCoalescingMaxResults = 0;
+        private boolean mDuplicateSuppression = false;
+        private int mDuplicateRssiThreshold = 0;
 
         /**
          * Set scan mode for Bluetooth LE scan.
@@ -453,13 +526,68 @@ public final class ScanSettings implements Parcelable {
             return this;
         }
 
+        /**
+         * Coalesce scan results instead of delivering each of them individually. Results
+         * matching the scan during {@code windowMillis}, or until {@code maxResults} of them are
+         * pending, are delivered at once through {@link ScanCallback#onBatchScanResults}.
+         * Identical advertisements from the same device received within a window are only
+         * reported once, with the most recent RSSI and timestamp.
+         * <p>
+         * This only applies to scans with {@link ScanSettings#CALLBACK_TYPE_ALL_MATCHES} and no
+         * report delay.
+         *
+         * @param windowMillis coalescing window in milliseconds, 0 to disable coalescing
+         * @param maxResults number of pending results triggering an early delivery, 0 for no
+         *                   limit
+         * @throws IllegalArgumentException if {@code windowMillis} or {@code maxResults} &lt; 0
+         * @hide
+         */
+        @SystemApi
+        public @NonNull Builder setCoalescing(long windowMillis, int maxResults) {
+            if (windowMillis < 0) {
+                throw new IllegalArgumentException("invalid coalescing window " + windowMillis);
+            }
+            if (maxResults < 0) {
+                throw new IllegalArgumentException("invalid coalescing max results "
+                        + maxResults);
+            }
+            mCoalescingWindowMillis = windowMillis;
+            mCoalescingMaxResults = maxResults;
+            return this;
+        }
+
+        /**
+         * Suppress advertisements that are identical to the last one reported for the same
+         * device. A duplicate advertisement is still reported if its RSSI differs by at least
+         * {@code rssiThreshold} dBm from the last reported one.
+         * <p>
+         * This only applies to scans with {@link ScanSettings#CALLBACK_TYPE_ALL_MATCHES} and no
+         * report delay.
+         *
+         * @param enabled true to suppress duplicate advertisements
+         * @param rssiThreshold RSSI change in dBm reporting a duplicate again, 0 to never report
+         *                      duplicates
+         * @throws IllegalArgumentException if {@code rssiThreshold} &lt; 0
+         * @hide
+         */
+        @SystemApi
+        public @NonNull Builder setDuplicateSuppression(boolean enabled, int rssiThreshold) {
+            if (rssiThreshold < 0) {
+                throw new IllegalArgumentException("invalid rssi threshold " + rssiThreshold);
+            }
+            mDuplicateSuppression = enabled;
+            mDuplicateRssiThreshold = rssiThreshold;
+            return this;
+        }
+
         /**
          * Build {@link ScanSettings}.
          */
         public ScanSettings build() {
             return new ScanSettings(mScanMode, mCallbackType, mScanResultType,
                     mReportDelayMillis, mMatchMode,
-                    mNumOfMatchesPerFilter, mLegacy, mPhy);
+                    mNumOfMatchesPerFilter, mLegacy, mPhy, mCoalescingWindowMillis,
+                    mCoalescingMaxResults, mDuplicateSuppression, mDuplicateRssiThreshold);
         }
     }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Unit test cases for {@link BluetoothGattOperationQueue}.
+ */
+public class BluetoothGattOperationQueueTest extends TestCase {
+
+    private static final UUID CHARACTERISTIC_UUID =
+            UUID.fromString("00002A37-0000-1000-8000-00805F9B34FB");
+    private static final UUID DESCRIPTOR_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+    private static final Executor DIRECT_EXECUTOR = Runnable::run;
+    private static final byte[] VALUE = new byte[] {0x01, 0x02};
+
+    // Records the operations issued by the queue.
+    private static class FakeIssuer implements BluetoothGattOperationQueue.Issuer {
+        final List<String> mIssued = new ArrayList<>();
+        int mWriteStatus = BluetoothStatusCodes.SUCCESS;
+        boolean mReadResult = true;
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            mIssued.add("readCharacteristic " + characteristic.getInstanceId());
+            return mReadResult;
+        }
+
+        @Override
+        public int writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                int writeType) {
+            mIssued.add("writeCharacteristic " + characteristic.getInstanceId());
+            return mWriteStatus;
+        }
+
+        @Override
+        public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+            mIssued.add("readDescriptor " + descriptor.getInstanceId());
+            return mReadResult;
+        }
+
+        @Override
+        public int writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+            mIssued.add("writeDescriptor " + descriptor.getInstanceId());
+            return mWriteStatus;
+        }
+
+        @Override
+        public boolean beginReliableWrite() {
+            mIssued.add("beginReliableWrite");
+            return true;
+        }
+
+        @Override
+        public boolean executeReliableWrite() {
+            mIssued.add("executeReliableWrite");
+            return true;
+        }
+
+        @Override
+        public void abortReliableWrite() {
+            mIssued.add("abortReliableWrite");
+        }
+    }
+
+    // Records the status of each completed operation.
+    private static class RecordingCallback
+            implements BluetoothGattOperationQueue.OperationCallback {
+        final List<Integer> mStatuses = new ArrayList<>();
+        byte[] mLastValue;
+
+        @Override
+        public void onOperationCompleted(int status, byte[] value) {
+            mStatuses.add(status);
+            mLastValue = value;
+        }
+    }
+
+    private FakeIssuer mIssuer;
+    private RecordingCallback mCallback;
+
+    @Override
+    protected void setUp() {
+        mIssuer = new FakeIssuer();
+        mCallback = new RecordingCallback();
+    }
+
+    private static BluetoothGattCharacteristic characteristic(int handle) {
+        return new BluetoothGattCharacteristic(CHARACTERISTIC_UUID, handle,
+                BluetoothGattCharacteristic.PROPERTY_READ
+                        | BluetoothGattCharacteristic.PROPERTY_WRITE
+                        | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 0);
+    }
+
+    private void writeWithoutResponse(BluetoothGattOperationQueue queue, int handle) {
+        queue.writeCharacteristic(characteristic(handle), VALUE,
+                BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, DIRECT_EXECUTOR, mCallback);
+    }
+
+    @SmallTest
+    public void testOperationsIssuedInSubmissionOrder() {
+        BluetoothGattOperationQueue queue = new BluetoothGattOperationQueue(mIssuer);
+        BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(DESCRIPTOR_UUID, 3, 0);
+
+        queue.readCharacteristic(characteristic(1), DIRECT_EXECUTOR, mCallback);
+        queue.writeDescriptor(descriptor, VALUE, DIRECT_EXECUTOR, mCallback);
+        queue.readCharacteristic(characteristic(5), DIRECT_EXECUTOR, mCallback);
+        assertEquals(Arrays.asList("readCharacteristic 1"), mIssuer.mIssued);
+        assertEquals(3, queue.getPendingOperationCount());
+
+        queue.onCharacteristicRead(1, BluetoothGatt.GATT_SUCCESS, VALUE);
+        assertEquals(Arrays.asList(BluetoothGatt.GATT_SUCCESS), mCallback.mStatuses);
+        assertTrue(Arrays.equals(VALUE, mCallback.mLastValue));
+        assertEquals("writeDescriptor 3", mIssuer.mIssued.get(1));
+
+        queue.onDescriptorWrite(3, BluetoothGatt.GATT_WRITE_NOT_PERMITTED);
+        assertEquals(BluetoothGatt.GATT_WRITE_NOT_PERMITTED, (int) mCallback.mStatuses.get(1));
+        assertEquals("readCharacteristic 5", mIssuer.mIssued.get(2));
+
+        queue.onCharacteristicRead(5, BluetoothGatt.GATT_SUCCESS, VALUE);
+        assertEquals(3, mCallback.mStatuses.size());
+        assertEquals(0, queue.getPendingOperationCount());
+    }
+
+    @SmallTest
+    public void testUnrelatedCompletionIgnored() {
+        BluetoothGattOperationQueue queue = new BluetoothGattOperationQueue(mIssuer);
+
+        queue.readCharacteristic(characteristic(1), DIRECT_EXECUTOR, mCallback);
+        queue.onCharacteristicRead(2, BluetoothGatt.GATT_SUCCESS, VALUE);
+        queue.onCharacteristicWrite(1, BluetoothGatt.GATT_SUCCESS, VALUE);
+
+        assertTrue(mCallback.mStatuses.isEmpty());
+        assertEquals(1, queue.getPendingOperationCount());
+    }
+
+    @SmallTest
+    public void testWritesWithoutResponseSerialized() {
+        BluetoothGattOperationQueue queue = new BluetoothGattOperationQueue(mIssuer);
+
+        writeWithoutResponse(queue, 1);
+        writeWithoutResponse(queue, 2);
+        queue.readCharacteristic(characteristic(3), DIRECT_EXECUTOR, mCallback);
+        assertEquals(Arrays.asList("writeCharacteristic 1"), mIssuer.mIssued);
+
+        queue.onCharacteristicWrite(1, BluetoothGatt.GATT_SUCCESS, VALUE);
+        assertEquals("writeCharacteristic 2", mIssuer.mIssued.get(1));
+        queue.onCharacteristicWrite(2, BluetoothGatt.GATT_SUCCESS, VALUE);
+        assertEquals("readCharacteristic 3", mIssuer.mIssued.get(2));
+        assertEquals(2, mCallback.mStatuses.size());
+        assertNull(mCallback.mLastValue);
+    }
+
+    @SmallTest
+    public void testNextOperationIssuedFromItsExecutor() {
+        BluetoothGattOperationQueue queue = new BluetoothGattOperationQueue(mIssuer);
+        List<Runnable> posted = new ArrayList<>();
+        Executor postingExecutor = posted::add;
+
+        queue.readCharacteristic(characteristic(1), DIRECT_EXECUTOR, mCallback);
+        queue.readCharacteristic(characteristic(2), postingExecutor, mCallback);
+        queue.onCharacteristicRead(1, BluetoothGatt.GATT_SUCCESS, VALUE);
+        assertEquals(1, mIssuer.mIssued.size());
+        assertEquals(1, posted.size());
+
+        posted.remove(0).run();
+        assertEquals("readCharacteristic 2", mIssuer.mIssued.get(1));
+    }
+
+    @SmallTest
+    public void testIssueFailureCompletesAndContinues() {
+        BluetoothGattOperationQueue queue = new BluetoothGattOperationQueue(mIssuer);
+        mIssuer.mReadResult = false;
+
+        queue.readCharacteristic(characteristic(1), DIRECT_EXECUTOR, mCallback);
+        assertEquals(Arrays.asList(BluetoothGatt.GATT_FAILURE), mCallback.mStatuses);
+
+        queue.writeCharacteristic(characteristic(2), VALUE,
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, DIRECT_EXECUTOR, mCallback);
+        assertEquals("writeCharacteristic 2", mIssuer.mIssued.get(1));
+        assertEquals(1, queue.getPendingOperationCount());
+    }
+
+    @SmallTest
+    public void testReliableWrite() {
+        BluetoothGattOperationQueue queue = new BluetoothGattOperationQueue(mIssuer);
+        byte[] other = new byte[] {0x03};
+
+        queue.writeReliably(Arrays.asList(characteristic(1), characteristic(2)),
+                Arrays.asList(VALUE, other), DIRECT_EXECUTOR, mCallback);
+        assertEquals(Arrays.asList("beginReliableWrite", "writeCharacteristic 1"),
+                mIssuer.mIssued);
+
+        queue.onCharacteristicWrite(1, BluetoothGatt.GATT_SUCCESS, VALUE);
+        assertEquals("writeCharacteristic 2", mIssuer.mIssued.get(2));
+        queue.onCharacteristicWrite(2, BluetoothGatt.GATT_SUCCESS, other);
+        assertEquals("executeReliableWrite", mIssuer.mIssued.get(3));
+        assertTrue(mCallback.mStatuses.isEmpty());
+
+        queue.onExecuteWrite(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(Arrays.asList(BluetoothGatt.GATT_SUCCESS), mCallback.mStatuses);
+        assertEquals(0, queue.getPendingOperationCount());
+    }
+
+    @SmallTest
+    public void testReliableWriteAbortedOnEchoMismatch() {
+        BluetoothGattOperationQueue queue = new BluetoothGattOperationQueue(mIssuer);
+
+        queue.writeReliably(Arrays.asList(characteristic(1), characteristic(2)),
+                Arrays.asList(VALUE, VALUE), DIRECT_EXECUTOR, mCallback);
+        queue.readCharacteristic(characteristic(3), DIRECT_EXECUTOR, mCallback);
+        queue.onCharacteristicWrite(1, BluetoothGatt.GATT_SUCCESS, new byte[] {0x07});
+
+        assertEquals(Arrays.asList("beginReliableWrite", "writeCharacteristic 1",
+                "abortReliableWrite", "readCharacteristic 3"), mIssuer.mIssued);
+        assertEquals(Arrays.asList(BluetoothGatt.GATT_FAILURE), mCallback.mStatuses);
+    }
+
+    @SmallTest
+    public void testDisconnectionFailsEveryOperation() {
+        BluetoothGattOperationQueue queue = new BluetoothGattOperationQueue(mIssuer);
+
+        writeWithoutResponse(queue, 1);
+        writeWithoutResponse(queue, 2);
+        queue.readCharacteristic(characteristic(3), DIRECT_EXECUTOR, mCallback);
+        queue.onDisconnected();
+
+        assertEquals(Arrays.asList(BluetoothGatt.GATT_FAILURE, BluetoothGatt.GATT_FAILURE,
+                BluetoothGatt.GATT_FAILURE), mCallback.mStatuses);
+        assertEquals(0, queue.getPendingOperationCount());
+
+        queue.readCharacteristic(characteristic(4), DIRECT_EXECUTOR, mCallback);
+        assertEquals("readCharacteristic 4", mIssuer.mIssued.get(1));
+    }
+
+    @SmallTest
+    public void testReplacedQueueFailsOperations() {
+        BluetoothGattOperationQueue queue = new BluetoothGattOperationQueue(mIssuer);
+
+        queue.readCharacteristic(characteristic(1), DIRECT_EXECUTOR, mCallback);
+        queue.readCharacteristic(characteristic(2), DIRECT_EXECUTOR, mCallback);
+        queue.onReplaced();
+        assertEquals(Arrays.asList(BluetoothGatt.GATT_FAILURE, BluetoothGatt.GATT_FAILURE),
+                mCallback.mStatuses);
+
+        queue.readCharacteristic(characteristic(3), DIRECT_EXECUTOR, mCallback);
+        assertEquals(3, mCallback.mStatuses.size());
+        assertEquals(1, mIssuer.mIssued.size());
+        assertEquals(0, queue.getPendingOperationCount());
+    }
+
+    @SmallTest
+    public void testClearFailsOperationsNotIssued() {
+        BluetoothGattOperationQueue queue = new BluetoothGattOperationQueue(mIssuer);
+
+        queue.readCharacteristic(characteristic(1), DIRECT_EXECUTOR, mCallback);
+        queue.readCharacteristic(characteristic(2), DIRECT_EXECUTOR, mCallback);
+        queue.clear();
+
+        assertEquals(Arrays.asList(BluetoothGatt.GATT_FAILURE), mCallback.mStatuses);
+        assertEquals(1, queue.getPendingOperationCount());
+        queue.onCharacteristicRead(1, BluetoothGatt.GATT_SUCCESS, VALUE);
+        assertEquals(1, mIssuer.mIssued.size());
+    }
+
+    @SmallTest
+    public void testInvalidArguments() {
+        BluetoothGattOperationQueue queue = new BluetoothGattOperationQueue(mIssuer);
+        try {
+            queue.writeReliably(Arrays.asList(characteristic(1)), new ArrayList<>(),
+                    DIRECT_EXECUTOR, mCallback);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.system.Os;
+import android.system.OsConstants;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit test cases for the {@link java.nio.ByteBuffer} read and write path of
+ * {@link BluetoothSocket}, over a local socket pair standing in for the stack.
+ */
+public class BluetoothSocketTest extends TestCase {
+    private static final String TAG = "BluetoothSocketTest";
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int MAX_PACKET_SIZE = 64;
+
+    private BluetoothSocket mSocket;
+    private FileDescriptor mPeer;
+
+    private void createSocketPair(int type, int maxTxPacketSize, int maxRxPacketSize)
+            throws Exception {
+        FileDescriptor local = new FileDescriptor();
+        mPeer = new FileDescriptor();
+        int socketType = type == BluetoothSocket.TYPE_RFCOMM
+                ? OsConstants.SOCK_STREAM : OsConstants.SOCK_SEQPACKET;
+        Os.socketpair(OsConstants.AF_UNIX, socketType, 0, local, mPeer);
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(local);
+        Os.close(local);
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+        mSocket = BluetoothSocket.createSocketFromOpenFd(pfd, device, type, maxTxPacketSize,
+                maxRxPacketSize);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mSocket != null) {
+            mSocket.close();
+        }
+        if (mPeer != null) {
+            Os.close(mPeer);
+        }
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    private byte[] readPeerPacket() throws Exception {
+        byte[] packet = new byte[MAX_PACKET_SIZE * 2];
+        int length = Os.read(mPeer, packet, 0, packet.length);
+        return Arrays.copyOf(packet, length);
+    }
+
+    @SmallTest
+    public void testL2capReadReturnsOnePacketPerCall() throws Exception {
+        createSocketPair(BluetoothSocket.TYPE_L2CAP_LE, MAX_PACKET_SIZE, MAX_PACKET_SIZE);
+        Os.write(mPeer, bytes(3, 1), 0, 3);
+        Os.write(mPeer, bytes(5, 10), 0, 5);
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        assertEquals(3, mSocket.read(dst));
+        assertEquals(5, mSocket.read(dst));
+
+        dst.flip();
+        byte[] received = new byte[dst.remaining()];
+        dst.get(received);
+        byte[] expected = new byte[8];
+        System.arraycopy(bytes(3, 1), 0, expected, 0, 3);
+        System.arraycopy(bytes(5, 10), 0, expected, 3, 5);
+        assertTrue(Arrays.equals(expected, received));
+    }
+
+    @SmallTest
+    public void testL2capReadIntoSmallBufferStagesPacket() throws Exception {
+        createSocketPair(BluetoothSocket.TYPE_L2CAP_LE, MAX_PACKET_SIZE, MAX_PACKET_SIZE);
+        Os.write(mPeer, bytes(10, 1), 0, 10);
+        Os.write(mPeer, bytes(2, 50), 0, 2);
+
+        ByteBuffer dst = ByteBuffer.allocate(4);
+        assertEquals(4, mSocket.read(dst));
+        dst.clear();
+        assertEquals(4, mSocket.read(dst));
+        dst.clear();
+        assertEquals(2, mSocket.read(dst));
+        assertEquals(bytes(10, 1)[9], dst.get(1));
+
+        // The staged packet is finished, the next read starts a new packet.
+        dst.clear();
+        assertEquals(2, mSocket.read(dst));
+        assertEquals(50, dst.get(0));
+    }
+
+    @SmallTest
+    public void testL2capReadMixesWithStreamRead() throws Exception {
+        createSocketPair(BluetoothSocket.TYPE_L2CAP_LE, MAX_PACKET_SIZE, MAX_PACKET_SIZE);
+        Os.write(mPeer, bytes(6, 1), 0, 6);
+
+        InputStream in = mSocket.getInputStream();
+        byte[] head = new byte[2];
+        assertEquals(2, in.read(head));
+
+        ByteBuffer dst = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        assertEquals(4, mSocket.read(dst));
+        assertEquals(3, dst.get(0));
+    }
+
+    @SmallTest
+    public void testL2capWriteSplitsIntoPackets() throws Exception {
+        createSocketPair(BluetoothSocket.TYPE_L2CAP_LE, 4, MAX_PACKET_SIZE);
+        ByteBuffer src = ByteBuffer.allocateDirect(10);
+        src.put(bytes(10, 1));
+        src.flip();
+
+        assertEquals(10, mSocket.write(src));
+
+        assertFalse(src.hasRemaining());
+        assertTrue(Arrays.equals(bytes(4, 1), readPeerPacket()));
+        assertTrue(Arrays.equals(bytes(4, 5), readPeerPacket()));
+        assertTrue(Arrays.equals(bytes(2, 9), readPeerPacket()));
+    }
+
+    @SmallTest
+    public void testL2capGatherWriteSendsOnePacket() throws Exception {
+        createSocketPair(BluetoothSocket.TYPE_L2CAP_LE, MAX_PACKET_SIZE, MAX_PACKET_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(bytes(2, 1));
+        ByteBuffer payload = ByteBuffer.allocateDirect(5);
+        payload.put(bytes(5, 3));
+        payload.flip();
+
+        assertEquals(7, mSocket.write(new ByteBuffer[] {header, payload}));
+
+        assertFalse(header.hasRemaining());
+        assertFalse(payload.hasRemaining());
+        assertTrue(Arrays.equals(bytes(7, 1), readPeerPacket()));
+    }
+
+    @SmallTest
+    public void testL2capGatherWriteSplitsAcrossBuffers() throws Exception {
+        createSocketPair(BluetoothSocket.TYPE_L2CAP_LE, 4, MAX_PACKET_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(bytes(3, 1));
+        ByteBuffer payload = ByteBuffer.wrap(bytes(4, 4));
+
+        assertEquals(7, mSocket.write(new ByteBuffer[] {header, payload}));
+
+        assertTrue(Arrays.equals(bytes(4, 1), readPeerPacket()));
+        assertTrue(Arrays.equals(bytes(3, 5), readPeerPacket()));
+    }
+
+    @SmallTest
+    public void testL2capScatterRead() throws Exception {
+        createSocketPair(BluetoothSocket.TYPE_L2CAP_LE, MAX_PACKET_SIZE, MAX_PACKET_SIZE);
+        Os.write(mPeer, bytes(6, 1), 0, 6);
+        Os.write(mPeer, bytes(3, 20), 0, 3);
+
+        ByteBuffer header = ByteBuffer.allocate(2);
+        ByteBuffer payload = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        assertEquals(6, mSocket.read(new ByteBuffer[] {header, payload}));
+        assertEquals(2, header.position());
+        assertEquals(4, payload.position());
+        assertEquals(3, payload.get(0));
+
+        // Too small to hold a full packet, the packet is staged.
+        header.clear();
+        ByteBuffer rest = ByteBuffer.allocate(1);
+        assertEquals(3, mSocket.read(new ByteBuffer[] {header, rest}));
+        assertEquals(20, header.get(0));
+        assertEquals(22, rest.get(0));
+    }
+
+    @SmallTest
+    public void testRfcommReadWrite() throws Exception {
+        createSocketPair(BluetoothSocket.TYPE_RFCOMM, 0, 0);
+        ByteBuffer src = ByteBuffer.wrap(bytes(100, 1));
+
+        assertEquals(100, mSocket.write(src));
+        byte[] received = new byte[100];
+        int length = 0;
+        while (length < received.length) {
+            length += Os.read(mPeer, received, length, received.length - length);
+        }
+        assertTrue(Arrays.equals(bytes(100, 1), received));
+
+        Os.write(mPeer, bytes(10, 7), 0, 10);
+        ByteBuffer dst = ByteBuffer.allocateDirect(100);
+        int read = 0;
+        while (read < 10) {
+            read += mSocket.read(dst);
+        }
+        assertEquals(7, dst.get(0));
+    }
+
+    @SmallTest
+    public void testNonBlockingReadReturnsZeroWhenEmpty() throws Exception {
+        createSocketPair(BluetoothSocket.TYPE_L2CAP_LE, MAX_PACKET_SIZE, MAX_PACKET_SIZE);
+        mSocket.configureBlocking(false);
+        assertFalse(mSocket.isBlocking());
+
+        ByteBuffer dst = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        ByteBuffer small = ByteBuffer.allocate(2);
+        assertEquals(0, mSocket.read(dst));
+        assertEquals(0, mSocket.read(small));
+        assertEquals(0, mSocket.read(new ByteBuffer[] {small}));
+
+        Os.write(mPeer, bytes(3, 1), 0, 3);
+        assertEquals(3, mSocket.read(dst));
+        assertEquals(0, mSocket.read(dst));
+    }
+
+    @SmallTest
+    public void testNonBlockingWriteStopsWhenSocketIsFull() throws Exception {
+        createSocketPair(BluetoothSocket.TYPE_RFCOMM, 0, 0);
+        mSocket.configureBlocking(false);
+        ByteBuffer src = ByteBuffer.allocateDirect(8 * 1024 * 1024);
+
+        int written = mSocket.write(src);
+
+        assertTrue(written > 0);
+        assertTrue(src.hasRemaining());
+        assertEquals(written, src.position());
+        assertEquals(0, mSocket.write(src));
+    }
+
+    @SmallTest
+    public void testNonBlockingAcceptReturnsNullWhenNoConnectionPending() throws Exception {
+        FileDescriptor local = new FileDescriptor();
+        mPeer = new FileDescriptor();
+        Os.socketpair(OsConstants.AF_UNIX, OsConstants.SOCK_STREAM, 0, local, mPeer);
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(local);
+        Os.close(local);
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+        mSocket = BluetoothSocket.createListeningSocketFromOpenFd(pfd, device,
+                BluetoothSocket.TYPE_RFCOMM);
+
+        mSocket.configureBlocking(false);
+        assertFalse(mSocket.isBlocking());
+        assertNull(mSocket.accept(0));
+        assertNull(mSocket.accept(0));
+
+        // Once the stack side is gone, the pending end of stream makes accept() fail.
+        Os.close(mPeer);
+        mPeer = null;
+        try {
+            mSocket.accept(0);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @SmallTest
+    public void testEventListenerNotifiedOnInput() throws Exception {
+        createSocketPair(BluetoothSocket.TYPE_L2CAP_LE, MAX_PACKET_SIZE, MAX_PACKET_SIZE);
+        mSocket.configureBlocking(false);
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        CountDownLatch latch = new CountDownLatch(2);
+        ByteBuffer dst = ByteBuffer.allocate(MAX_PACKET_SIZE * 2);
+        try {
+            mSocket.setEventListener(thread.getLooper(), BluetoothSocket.EVENT_INPUT,
+                    (socket, events) -> {
+                        try {
+                            while (socket.read(dst) > 0) {
+                                latch.countDown();
+                            }
+                        } catch (Exception e) {
+                            Log.e(TAG, "read failed", e);
+                        }
+                        return BluetoothSocket.EVENT_INPUT;
+                    });
+            Os.write(mPeer, bytes(3, 1), 0, 3);
+            Os.write(mPeer, bytes(4, 10), 0, 4);
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            mSocket.removeEventListener();
+        } finally {
+            thread.quitSafely();
+        }
+        assertEquals(7, dst.position());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Unit test cases for {@link GattAttributeIndex}.
+ */
+public class GattAttributeIndexTest extends TestCase {
+
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHARACTERISTIC_UUID =
+            UUID.fromString("00002A37-0000-1000-8000-00805F9B34FB");
+    private static final UUID DESCRIPTOR_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    // Builds a database with the handle layout of a real server: each service is followed by
+    // its characteristics, each characteristic by its descriptors.
+    private static List<BluetoothGattService> buildDatabase(int serviceCount,
+            int characteristicsPerService, int descriptorsPerCharacteristic) {
+        List<BluetoothGattService> services = new ArrayList<>();
+        int handle = 1;
+        for (int s = 0; s < serviceCount; s++) {
+            BluetoothGattService service = new BluetoothGattService(SERVICE_UUID, handle++,
+                    BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            for (int c = 0; c < characteristicsPerService; c++) {
+                BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+                        CHARACTERISTIC_UUID, handle++,
+                        BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+                service.addCharacteristic(characteristic);
+                for (int d = 0; d < descriptorsPerCharacteristic; d++) {
+                    characteristic.addDescriptor(
+                            new BluetoothGattDescriptor(DESCRIPTOR_UUID, handle++, 0));
+                }
+            }
+            services.add(service);
+        }
+        return services;
+    }
+
+    @SmallTest
+    public void testEmpty() {
+        assertNull(GattAttributeIndex.EMPTY.getCharacteristic(1));
+        assertNull(GattAttributeIndex.EMPTY.getDescriptor(1));
+        assertEquals(0, GattAttributeIndex.EMPTY.size());
+    }
+
+    @SmallTest
+    public void testLookupByHandle() {
+        List<BluetoothGattService> services = buildDatabase(2, 2, 1);
+        GattAttributeIndex index = new GattAttributeIndex(services);
+
+        // Handles: 1 service, 2 characteristic, 3 descriptor, 4 characteristic, 5 descriptor.
+        BluetoothGattCharacteristic characteristic = services.get(0).getCharacteristics().get(1);
+        assertSame(characteristic, index.getCharacteristic(4));
+        assertSame(characteristic.getDescriptors().get(0), index.getDescriptor(5));
+        assertNull(index.getCharacteristic(1));
+        assertNull(index.getCharacteristic(3));
+        assertNull(index.getDescriptor(2));
+        assertNull(index.getCharacteristic(100));
+        assertEquals(8, index.size());
+    }
+
+    @SmallTest
+    public void testDuplicateHandleKeepsFirst() {
+        BluetoothGattService service = new BluetoothGattService(SERVICE_UUID, 1,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        BluetoothGattCharacteristic first =
+                new BluetoothGattCharacteristic(CHARACTERISTIC_UUID, 2, 0, 0);
+        BluetoothGattCharacteristic second =
+                new BluetoothGattCharacteristic(CHARACTERISTIC_UUID, 2, 0, 0);
+        service.addCharacteristic(first);
+        service.addCharacteristic(second);
+        List<BluetoothGattService> services = new ArrayList<>();
+        services.add(service);
+
+        assertSame(first, new GattAttributeIndex(services).getCharacteristic(2));
+    }
+
+    @SmallTest
+    public void testLargeDatabaseMatchesWalk() {
+        List<BluetoothGattService> services = buildDatabase(40, 10, 2);
+        GattAttributeIndex index = new GattAttributeIndex(services);
+
+        assertEquals(40 * 10 * 3, index.size());
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                int handle = characteristic.getInstanceId();
+                assertSame(walk(services, handle), index.getCharacteristic(handle));
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    assertSame(descriptor, index.getDescriptor(descriptor.getInstanceId()));
+                }
+            }
+        }
+    }
+
+    private static BluetoothGattCharacteristic walk(List<BluetoothGattService> services,
+            int handle) {
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if (characteristic.getInstanceId() == handle) {
+                    return characteristic;
+                }
+            }
+        }
+        return null;
+    }
+}
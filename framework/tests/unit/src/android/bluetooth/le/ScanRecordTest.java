@@ -154,6 +154,55 @@ public class ScanRecordTest extends TestCase {
                 0x50, 0x64 }, data.getServiceData().get(uuid2));
     }
 
+    @SmallTest
+    public void testParseFromBytesLazy_MatchesEagerParser() {
+        final String[] records = new String[] {
+                RECORD_URL, RECORD_UUID, RECORD_TLM, RECORD_IBEACON, RECORD_E2EE_EID,
+                "0201060909506564536D617274", // flags and complete local name
+                "020A0C03030D18051FAABBCCDD", // tx power, 16-bit uuid, 32-bit solicitation
+                "0201060303AAFE", // partial record padded with nothing
+                "0403AABBCC020106", // 16-bit uuid list reading into the next field
+                "",
+                // Malformed records must decode to the same defaults as the eager parser.
+                "0201060AFF4C00", // truncated manufacturer data
+                "02010602FF4C", // manufacturer data without id
+                "0201060216AA", // service data shorter than its uuid
+                "0403AABBCC", // 16-bit uuid list overrunning the record
+                "0201", // flags without data
+        };
+        for (String record : records) {
+            byte[] bytes = HexDump.hexStringToByteArray(record);
+            assertLazyEqualsEager(ScanRecord.parseFromBytes(bytes),
+                    ScanRecord.parseFromBytesLazy(bytes));
+        }
+        assertNull(ScanRecord.parseFromBytesLazy(null));
+    }
+
+    @SmallTest
+    public void testParseFromBytesLazy_MatchesAnyField() {
+        final BytesMatcher matcher = BytesMatcher.decode("⊆00FF4C0002/00FFFFFFFF");
+        assertTrue(ScanRecord.parseFromBytesLazy(HexDump.hexStringToByteArray(RECORD_IBEACON))
+                .matchesAnyField(matcher));
+        assertFalse(ScanRecord.parseFromBytesLazy(HexDump.hexStringToByteArray(RECORD_URL))
+                .matchesAnyField(matcher));
+    }
+
+    private static void assertLazyEqualsEager(ScanRecord eager, ScanRecord lazy) {
+        assertSame(eager.getBytes(), lazy.getBytes());
+        assertEquals(eager.getAdvertiseFlags(), lazy.getAdvertiseFlags());
+        assertEquals(eager.getServiceUuids(), lazy.getServiceUuids());
+        assertEquals(eager.getServiceSolicitationUuids(), lazy.getServiceSolicitationUuids());
+        assertEquals(eager.getTxPowerLevel(), lazy.getTxPowerLevel());
+        assertEquals(eager.getDeviceName(), lazy.getDeviceName());
+        assertEquals(eager.toString(), lazy.toString());
+        assertEquals(eager.getAdvertisingDataMap().keySet(),
+                lazy.getAdvertisingDataMap().keySet());
+        for (Integer type : eager.getAdvertisingDataMap().keySet()) {
+            assertArrayEquals(eager.getAdvertisingDataMap().get(type),
+                    lazy.getAdvertisingDataMap().get(type));
+        }
+    }
+
     // Assert two byte arrays are equal.
     private static void assertArrayEquals(byte[] expected, byte[] actual) {
         if (!Arrays.equals(expected, actual)) {